@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app_kvServer.IKVCache;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.StripedCache;
+import shared.messages.Bytes;
+
+/**
+ * GETs and PUTs from several threads on the cache as the server uses it, a
+ * StripedCache of lru_cache, fifo_cache, lfu_cache or TinyLfuCache
+ * segments. The keys are drawn uniformly from twice as many as fit, so
+ * about half of the GETs hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CacheBenchmark {
+
+	private static final int CACHE_SIZE = 10000;
+	private static final int VALUE_SIZE = 100;
+
+	@Param({"LRU", "FIFO", "LFU", "TINYLFU"})
+	public CacheStrategy strategy;
+
+	/* percent of the operations that are GETs, the others are PUTs */
+	@Param({"90", "50"})
+	public int readPercent;
+
+	private IKVCache cache;
+	private Bytes[] keys;
+	private byte[] value;
+
+	@Setup
+	public void setUp() {
+		cache = StripedCache.create(strategy, CACHE_SIZE);
+		keys = new Bytes[2 * CACHE_SIZE];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Bytes.of("key" + i);
+		}
+		value = new byte[VALUE_SIZE];
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			cache.put(keys[i], value);
+		}
+	}
+
+	/* a xorshift generator per thread, java.util.Random would be shared */
+	@State(Scope.Thread)
+	public static class Operations {
+		private long seed = System.nanoTime() | 1;
+
+		int next() {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			return (int) (seed >>> 33);
+		}
+	}
+
+	@Benchmark
+	public Object getPut(Operations operations) {
+		int random = operations.next();
+		Bytes key = keys[random % keys.length];
+		if ((random >>> 16) % 100 < readPercent) {
+			return cache.get(key);
+		}
+		cache.put(key, value);
+		return key;
+	}
+}
@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app_kvServer.ClientConnection;
+import app_kvServer.TextMessage;
+import shared.messages.BinaryProtocol;
+
+/**
+ * Encoding and decoding of requests: text messages, the line framing of
+ * ClientConnection.receiveMessage on a buffered stream, and binary protocol
+ * frames for comparison. receiveMessage is private, it is called through a
+ * method handle on a connection whose socket never connects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	/* as in ClientConnection */
+	private static final int BUFFER_SIZE = 1024;
+
+	@Param({"16", "1024"})
+	public int valueSize;
+
+	private String request;
+	private byte[] textBytes;
+	private byte[] frame;
+	private String key;
+	private String value;
+	private ClientConnection connection;
+	private MethodHandle receiveMessage;
+
+	@Setup
+	public void setUp() throws Exception {
+		Logger.getRootLogger().setLevel(Level.OFF);
+		char[] chars = new char[valueSize];
+		Arrays.fill(chars, 'v');
+		key = "key12345";
+		value = new String(chars);
+		request = "put " + key + " " + value;
+		textBytes = new TextMessage(request).getMsgBytes();
+		frame = BinaryProtocol.encode(BinaryProtocol.VERSION, 1, BinaryProtocol.PUT, null, key, value);
+
+		// the logging in receiveMessage asks the socket for its peer
+		Socket socket = new Socket() {
+			public InetAddress getInetAddress() {
+				return InetAddress.getLoopbackAddress();
+			}
+
+			public int getPort() {
+				return 50000;
+			}
+		};
+		connection = new ClientConnection(socket, null);
+		Field input = ClientConnection.class.getDeclaredField("input");
+		input.setAccessible(true);
+		input.set(connection, new BufferedInputStream(new Repeating(textBytes), BUFFER_SIZE));
+		Method method = ClientConnection.class.getDeclaredMethod("receiveMessage");
+		method.setAccessible(true);
+		receiveMessage = MethodHandles.lookup().unreflect(method);
+	}
+
+	@Benchmark
+	public byte[] textEncode() {
+		return new TextMessage(request).getMsgBytes();
+	}
+
+	@Benchmark
+	public String textDecode() {
+		return new TextMessage(textBytes).getMsg();
+	}
+
+	@Benchmark
+	public Object receiveMessage() throws Throwable {
+		return receiveMessage.invoke(connection);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() {
+		return BinaryProtocol.encode(BinaryProtocol.VERSION, 1, BinaryProtocol.PUT, null, key, value);
+	}
+
+	@Benchmark
+	public BinaryProtocol.Frame binaryDecode() throws Exception {
+		return BinaryProtocol.decode(ByteBuffer.wrap(frame), BinaryProtocol.VERSION);
+	}
+
+	/* the same message over and over, as a client sending request after request */
+	private static class Repeating extends InputStream {
+		private final byte[] message;
+		private int position = 0;
+
+		Repeating(byte[] message) {
+			this.message = message;
+		}
+
+		public int read() {
+			int read = message[position] & 0xff;
+			position = (position + 1) % message.length;
+			return read;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int copied = 0;
+			while (copied < len) {
+				int n = Math.min(len - copied, message.length - position);
+				System.arraycopy(message, position, b, off + copied, n);
+				position = (position + n) % message.length;
+				copied += n;
+			}
+			return len;
+		}
+	}
+}
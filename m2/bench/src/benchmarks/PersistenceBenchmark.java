@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app_kvServer.IKVStorage;
+import app_kvServer.ServerConfig;
+import app_kvServer.persistentDb;
+
+/**
+ * persistentDb.find and add, through the write-ahead log, on datasets of
+ * several sizes. persistentDb is one storage per process, so every
+ * combination of parameters runs in a fork of its own, on a fresh
+ * directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	private static final int VALUE_SIZE = 100;
+	private static final int LOAD_BATCH = 1000;
+
+	@Param({"10000", "100000", "1000000"})
+	public int keys;
+
+	@Param({"LOG", "LSM"})
+	public IKVStorage.StorageEngine engine;
+
+	private File dir;
+	private String value;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.OFF);
+		dir = Files.createTempDirectory("kv-bench").toFile();
+		persistentDb.initializeDb(new File(dir, "db").getPath(), new ServerConfig().setStorageEngine(engine));
+
+		char[] chars = new char[VALUE_SIZE];
+		Arrays.fill(chars, 'v');
+		value = new String(chars);
+		List<String> batchKeys = new ArrayList<String>(LOAD_BATCH);
+		List<String> batchValues = new ArrayList<String>(LOAD_BATCH);
+		for (int i = 0; i < keys; i++) {
+			batchKeys.add("key" + i);
+			batchValues.add(value);
+			if (batchKeys.size() == LOAD_BATCH || i == keys - 1) {
+				persistentDb.addAll(batchKeys, batchValues);
+				batchKeys.clear();
+				batchValues.clear();
+			}
+		}
+		persistentDb.checkpoint();
+	}
+
+	@TearDown
+	public void tearDown() {
+		persistentDb.closeDb();
+		deleteRecursively(dir);
+	}
+
+	/* strides through the keys, so that reads do not stay in one page */
+	private String nextKey() {
+		next = (next + 7919) % keys;
+		return "key" + next;
+	}
+
+	@Benchmark
+	public String find() {
+		return persistentDb.find(nextKey());
+	}
+
+	@Benchmark
+	public String findMissing() {
+		return persistentDb.find("missing" + nextKey());
+	}
+
+	/* overwrites, so the dataset keeps its size */
+	@Benchmark
+	public void add() throws IOException {
+		persistentDb.add(nextKey(), value);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import app_kvServer.KVServer;
+import ecs.ECSNode;
+import shared.KeyHash;
+import shared.messages.Bytes;
+
+/**
+ * The check every request makes, whether the server is responsible for the
+ * key: the MD5 of the key and the lookup of its range on the hash ring,
+ * with the metadata the ECS would publish for the servers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+	private static final int KEYS = 1024;
+
+	@Param({"4", "32"})
+	public int servers;
+
+	@Param({"1", "64"})
+	public int virtualNodes;
+
+	private KVServer server;
+	private String[] keys;
+	private Bytes[] keyBytes;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		Logger.getRootLogger().setLevel(Level.OFF);
+		// each position owns the range from the position before it
+		TreeMap<String, String> positions = new TreeMap<String, String>();
+		for (int port = 50000; port < 50000 + servers; port++) {
+			ECSNode node = new ECSNode("server" + port, "127.0.0.1", port, virtualNodes);
+			for (String hash : node.getNodeHashes()) {
+				positions.put(hash, "127.0.0.1:" + port);
+			}
+		}
+		Map<String, StringBuilder> ranges = new TreeMap<String, StringBuilder>();
+		String lower = positions.lastKey();
+		for (Map.Entry<String, String> position : positions.entrySet()) {
+			StringBuilder range = ranges.get(position.getValue());
+			if (range == null) {
+				range = new StringBuilder();
+				ranges.put(position.getValue(), range);
+			} else {
+				range.append(',');
+			}
+			range.append(lower).append('-').append(position.getKey());
+			lower = position.getKey();
+		}
+		StringBuilder metadata = new StringBuilder();
+		for (Map.Entry<String, StringBuilder> range : ranges.entrySet()) {
+			metadata.append(range.getKey()).append(' ').append(range.getValue()).append('\n');
+		}
+
+		server = new KVServer(50000, 0, "None");
+		server.applyMetadata(metadata.toString(), 0, 1);
+		keys = new String[KEYS];
+		keyBytes = new Bytes[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "key" + i;
+			keyBytes[i] = Bytes.of(keys[i]);
+		}
+	}
+
+	/* the text protocol, from the key as a String */
+	@Benchmark
+	public boolean isCorrectServer() {
+		next = (next + 1) & (KEYS - 1);
+		return server.isCorrectServer(keys[next]);
+	}
+
+	/* the binary protocol, from the key bytes of the frame */
+	@Benchmark
+	public boolean isCorrectServerBytes() {
+		next = (next + 1) & (KEYS - 1);
+		return server.isCorrectServer(keyBytes[next]);
+	}
+
+	/* the hashing alone */
+	@Benchmark
+	public String md5() {
+		next = (next + 1) & (KEYS - 1);
+		return KeyHash.md5(keys[next]);
+	}
+}
@@ -206,6 +206,10 @@ public class KVClient implements IKVClient {
     private KVMessage retryput(String key, String value) throws Exception {
 		KVMessage msg;
 
+		if (store.isRouting()) {
+			return store.put(key, value);
+		}
+
 		do {
 			String address = store.searchKey(key);
 			if (!address.equals(serverAddress + ":" + Integer.toString(serverPort))) {
@@ -239,6 +243,10 @@ public class KVClient implements IKVClient {
 	private KVMessage retryget(String key) throws Exception{
 		KVMessage msg;
 
+		if (store.isRouting()) {
+			return store.get(key);
+		}
+
 		do {
             // System.out.println("in do loop");
             String address = store.searchKey(key);
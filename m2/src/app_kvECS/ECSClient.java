@@ -16,6 +16,7 @@ import org.apache.log4j.Logger;
 import logger.LogSetup;
 
 import ecs.ECS;
+import ecs.ECSNode;
 import ecs.IECSNode;
 
 public class ECSClient implements IECSClient {
@@ -60,6 +61,10 @@ public class ECSClient implements IECSClient {
 	  command_addnodes(tokens);
        } else if (tokens[0].equals("removeNode")) {
 	  command_removenode(tokens);
+       } else if (tokens[0].equals("stats")) {
+	  command_stats(tokens);
+       } else if (tokens[0].equals("trace")) {
+	  command_trace(tokens);
        } else if (tokens[0].equals("logLevel")) {
 	  command_loglevel(tokens);
        } else if (tokens[0].equals("quit")) {
@@ -72,19 +77,21 @@ public class ECSClient implements IECSClient {
       	}
    }
    private void command_init(String[] tokens){
-      if (tokens.length!=4){
+      if (tokens.length < 4 || tokens.length > 6){
 	     System.out.println(PROMPT + "Invalid arguments, please use:");
-	     System.out.println(PROMPT + "init <numberOfServers> <cacheSize> <cacheStrategy>");
+	     System.out.println(PROMPT + "init <numberOfServers> <cacheSize> <cacheStrategy> [<virtualNodes> [<replicas>]]");
 	 }else {
 	    if (done_init){
 	       System.out.println("Cannot initialize storage server more than once");
 	    }
 	    if (!done_init) {
-	       if (!tokens[3].equalsIgnoreCase("LRU") && !tokens[3].equalsIgnoreCase("LFU") && !tokens[3].equalsIgnoreCase("FIFO")) {
-		  System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be: LRU, LFU, or FIFO");
+	       if (!tokens[3].equalsIgnoreCase("LRU") && !tokens[3].equalsIgnoreCase("LFU") && !tokens[3].equalsIgnoreCase("FIFO") && !tokens[3].equalsIgnoreCase("TINYLFU")) {
+		  System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be: LRU, LFU, FIFO or TINYLFU");
 	       } else {
 		  System.out.println(PROMPT + "Initializing Storage Servers.....");
-		  ecs = new ECS(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), tokens[3]);
+		  int virtualNodes = tokens.length >= 5 ? Integer.parseInt(tokens[4]) : ECS.DEFAULT_VIRTUAL_NODES;
+		  int replicas = tokens.length == 6 ? Integer.parseInt(tokens[5]) : ECS.DEFAULT_REPLICAS;
+		  ecs = new ECS(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), tokens[3], virtualNodes, replicas);
 		  System.out.println(PROMPT + "Initialized Storage Service with " + ecs.servers_launched + " server(s).");
 		  done_init = true;
 	       }
@@ -113,14 +120,32 @@ public class ECSClient implements IECSClient {
 	 done_init = false;
       } 
    }
+   private void command_stats(String[]tokens){
+      if (!done_init) {
+	 printError("no servers to ask, storage service has not been initialized");
+      } else {
+	 for (Map.Entry<ECSNode, String> reply : ecs.stats().entrySet()) {
+	    System.out.println(PROMPT + reply.getKey().getNodeName() + ": " + reply.getValue());
+	 }
+      }
+   }
+   private void command_trace(String[]tokens){
+      if (!done_init) {
+	 printError("no servers to ask, storage service has not been initialized");
+      } else {
+	 for (Map.Entry<ECSNode, String> reply : ecs.trace().entrySet()) {
+	    System.out.println(PROMPT + reply.getKey().getNodeName() + ": " + reply.getValue());
+	 }
+      }
+   }
    private void command_addnode(String[]tokens){
       if(!done_init) {
 	    printError("Please initialize storage service before adding node");
 	 }
       else {
 	 if (tokens.length==3) {
-	    if (!tokens[2].equalsIgnoreCase("LRU") && !tokens[2].equalsIgnoreCase("LFU") && !tokens[2].equalsIgnoreCase("FIFO")) {
-	       System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be LRU, LFU, or FIFO");
+	    if (!tokens[2].equalsIgnoreCase("LRU") && !tokens[2].equalsIgnoreCase("LFU") && !tokens[2].equalsIgnoreCase("FIFO") && !tokens[2].equalsIgnoreCase("TINYLFU")) {
+	       System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be LRU, LFU, FIFO or TINYLFU");
 	    } else {
 	       System.out.println(PROMPT + "New node being added....");
 	       addNode(tokens[2], Integer.parseInt(tokens[1]));
@@ -139,8 +164,8 @@ public class ECSClient implements IECSClient {
 
       else{
 	 if (tokens.length==4) {
-	    if (!tokens[3].equalsIgnoreCase("LRU") && !tokens[3].equalsIgnoreCase("LFU") && !tokens[3].equalsIgnoreCase("FIFO")) {
-	       System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be LRU, LFU, or FIFO");
+	    if (!tokens[3].equalsIgnoreCase("LRU") && !tokens[3].equalsIgnoreCase("LFU") && !tokens[3].equalsIgnoreCase("FIFO") && !tokens[3].equalsIgnoreCase("TINYLFU")) {
+	       System.out.println(PROMPT + "Invalid cache strategy. Cache strategy must be LRU, LFU, FIFO or TINYLFU");
 	    } else {
 	       System.out.println(PROMPT + "New node(s) being added....");
 	       addNodes(Integer.parseInt(tokens[1]), tokens[3], Integer.parseInt(tokens[2]));
@@ -287,14 +312,18 @@ public class ECSClient implements IECSClient {
 		sb.append(PROMPT);
 		sb.append("::::::::::::::::::::::::::::::::");
 		sb.append("::::::::::::::::::::::::::::::::\n");
-		sb.append(PROMPT).append("init <number Of Servers> <cache size> <cache strategy>");
-		sb.append("\t initialize number of servers with cache size and strategy \n");
+		sb.append(PROMPT).append("init <number Of Servers> <cache size> <cache strategy> [<virtual nodes> [<replicas>]]");
+		sb.append("\t initialize number of servers with cache size and strategy, optionally with several positions on the ring per server and several servers per key \n");
 		sb.append(PROMPT).append("start");
 		sb.append("\t\t start all storage servers \n");
 		sb.append(PROMPT).append("stop");
 		sb.append("\t\t stop all storage servers \n");
 		sb.append(PROMPT).append("shutdown");
 		sb.append("\t\t shut down all storage servers \n");
+		sb.append(PROMPT).append("stats");
+		sb.append("\t\t latency percentiles and throughput of all storage servers \n");
+		sb.append(PROMPT).append("trace");
+		sb.append("\t\t dump the last requests of all storage servers to their logs directory \n");
 		sb.append(PROMPT).append("addNode <cache size> <cache strategy>");
 		sb.append("\t\t add a storage server \n");
 		sb.append(PROMPT).append("addNodes <count> <cache size> <cache strategy>");
@@ -0,0 +1,95 @@
+package app_kvServer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size bloom filter over string keys. A negative answer from
+ * mightContain is exact, a positive one is wrong with roughly the false
+ * positive rate the filter was sized for. Keys may be added while other
+ * threads add or look up keys, a key is found once its add has returned.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int numHashes;
+
+	public BloomFilter(long expectedEntries, double falsePositiveRate) {
+		expectedEntries = Math.max(expectedEntries, 1);
+		double ln2 = Math.log(2);
+		long wanted = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+		int words = (int) Math.max(1, (wanted + 63) / 64);
+
+		this.bits = new AtomicLongArray(words);
+		this.numBits = words * 64L;
+		this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * ln2));
+	}
+
+	private BloomFilter(AtomicLongArray bits, int numHashes) {
+		this.bits = bits;
+		this.numBits = bits.length() * 64L;
+		this.numHashes = numHashes;
+	}
+
+	public void add(String key) {
+		long hash = hash(key);
+		long h1 = hash & 0xFFFFFFFFL;
+		long h2 = hash >>> 32;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = (h1 + i * h2) % numBits;
+			int word = (int) (bit >>> 6);
+			long current = bits.get(word);
+			while ((current & (1L << bit)) == 0 && !bits.compareAndSet(word, current, current | (1L << bit))) {
+				current = bits.get(word);
+			}
+		}
+	}
+
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		long h1 = hash & 0xFFFFFFFFL;
+		long h2 = hash >>> 32;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = (h1 + i * h2) % numBits;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(numHashes);
+		out.writeInt(bits.length());
+		for (int i = 0; i < bits.length(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+
+	public static BloomFilter readFrom(ByteBuffer in) {
+		int numHashes = in.getInt();
+		AtomicLongArray bits = new AtomicLongArray(in.getInt());
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, in.getLong());
+		}
+		return new BloomFilter(bits, numHashes);
+	}
+
+	/* FNV-1a over the chars followed by the murmur3 finalizer */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
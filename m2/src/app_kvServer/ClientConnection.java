@@ -1,21 +1,29 @@
 package app_kvServer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.*;
 
-import java.util.ArrayList;
-import java.util.List;
+import logger.LogSetup;
+import shared.messages.BinaryProtocol;
+
 
 /**
  * Represents a connection end point for a particular client that is 
  * connected to the server. This class is responsible for message reception 
- * and sending. 
- * The class also implements the echo functionality. Thus whenever a message 
- * is received it is going to be echoed back to the client.
+ * and sending, the requests are executed by a RequestHandler.
+ * <p>
+ * This is the legacy thread per connection front end, see NioServer for the
+ * selector based one.
  */
 public class ClientConnection implements Runnable {
 
@@ -24,16 +32,28 @@ public class ClientConnection implements Runnable {
 	private boolean isOpen;
 	private static final int BUFFER_SIZE = 1024;
 	private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+	/* pipelined requests read ahead before waiting for replies */
+	private static final int MAX_IN_FLIGHT = 64;
 	
 	private Socket clientSocket;
+	/* "address:port" of the client, for logging */
+	private final String peer;
 	private InputStream input;
 	private OutputStream output;
 
-	private Socket socket;
-	private OutputStream outputS;
-	private InputStream inputS;
+	private RequestHandler handler;
+	private KVServer server;
 
-	private KVServer server = null;
+	/* binary protocol state, replies may be written by several workers */
+	private int version;
+	private OutputStream binaryOutput;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final RequestWindow requests = new RequestWindow();
+	private final Runnable worker = new Runnable() {
+		public void run() {
+			serveRequests();
+		}
+	};
 	
 	/**
 	 * Constructs a new CientConnection object for a given TCP socket.
@@ -42,6 +62,8 @@ public class ClientConnection implements Runnable {
 	public ClientConnection(Socket clientSocket, KVServer server) {
 		this.clientSocket = clientSocket;
 		this.isOpen = true;
+		this.peer = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+		this.handler = new RequestHandler(server, (InetSocketAddress) clientSocket.getRemoteSocketAddress());
 		this.server = server;
 	}
 	
@@ -51,147 +73,24 @@ public class ClientConnection implements Runnable {
 	 */
 	public void run() {
 		try {
-			output = clientSocket.getOutputStream();
-			input = clientSocket.getInputStream();
+			output = server.getMetrics().countOut(clientSocket.getOutputStream());
+			// receiveMessage reads byte by byte, buffer so that is not a read call each
+			input = new BufferedInputStream(server.getMetrics().countIn(clientSocket.getInputStream()), BUFFER_SIZE);
 		
 			while(isOpen) {
 				try {
-					TextMessage latestMsg = receiveMessage(true);
-					String msg = "";
-
-					// parse msg and take action accordingly
-					String[] token = null;
-					token = latestMsg.getMsg().trim().split("\\s+");
-
-					if (token[0].equalsIgnoreCase("transfer")) {
-						if(token.length >= 3){
-							if (server.inCache(token[1])){
-								msg = "TRANSFER_UPDATE < ";
-							}else{
-								msg = "TRANSFER_SUCCESS < ";
-							}
-
-							String value = "";
-
-							for (int i = 2; i < token.length; i++) {
-								value += token[i] + " ";
-							}
-
-							value.trim();
-
-							try {
-								server.putKV(token[1], value);
-							} catch (Exception e) {
-								logger.error("TRANSFER ERROR! Error in PUT function");
-							}
+					TextMessage latestMsg = receiveMessage();
+					int version = BinaryProtocol.parseHello(latestMsg.getMsg(), BinaryProtocol.HELLO);
+					if (version > 0) {
+						this.version = Math.min(version, BinaryProtocol.VERSION);
+						sendMessage(new TextMessage(BinaryProtocol.helloReply(this.version)));
+						serveBinary();
+						continue;
+					}
 
-							msg += token[1] + " , " + value + " >";
-						}else {
-							msg = "TRANSFER ERROR: Invalid format";
-						}
-					} else if (token[0].equalsIgnoreCase("start")) {
-						server.start();
-						msg = "Server is started";
-					} else if (token[0].equalsIgnoreCase("stop")) {
-						server.stop();
-						msg = "Server is stopped";
-					} else if (token[0].equalsIgnoreCase("shutdown")) {
-						server.shutdown();
-						msg = "Server is shutdown";
-					} else if (token[0].equalsIgnoreCase("lockWrite")) {
-						createSocket(token[1].split(":")[0], Integer.parseInt(token[1].split(":")[1]));
-						List<List<String>> movedData = server.moveData(token[2].split("-"));
-						transferData(movedData);
-						try {
-							if (socket != null) {
-								inputS.close();
-								outputS.close();
-								socket.close();
-							}
-						} catch (IOException ioe) {
-							logger.error("Error! Unable to tear down connection!", ioe);
-						}
-						socket = null;
-						server.lockWrite();
-						msg = "Locked write at " + server.getPort() + " and moved data...";
-					} else if (token[0].equalsIgnoreCase("unlockWrite")) {
-						server.unlockWrite();
-						msg = "Unlocked write at " + server.getPort() + "...";
-					} else if (token[0].equalsIgnoreCase("update_metadata")) {
-						server.loadMetadataFromZookeeper();
-						msg = "Updating metadata on " + server.getPort();
-					} else if (server.getServerState() == ServerStateType.STOPPED) {
-						msg = "SERVER_STOPPED";
-					} else if (token[0].equalsIgnoreCase("get")) {
-						logger.info("Message received with GET request."); 
-						boolean append = true;
-						String value = "";
-						
-						if (token.length == 2 && server.isCorrectServer(token[1]) && server.inStorage(token[1])) {
-							try {
-								value = server.getKV(token[1]);
-								msg = "GET_SUCCESS < ";
-							} catch (Exception e) {
-								logger.error("GET_ERROR! Could not find key in DB.");
-							}
-						} else if (token.length != 2) {
-							msg = "GET_ERROR < ";
-						} else if (!server.isCorrectServer(token[1])) {
-							msg = "SERVER_NOT_RESPONSIBLE " + server.getMetaData();
-							append = false;
-						} else {
-							msg = "GET_ERROR < ";
-						}
+					String msg = handler.handle(latestMsg.getMsg());
 
-						if (append) {
-							msg += token[1] + ", " + value + " >";
-						}
-					} else if (server.isWriterLocked()) {
-						msg = "SERVER_WRITE_LOCK";
-					} else if(token[0].equalsIgnoreCase("put")) {
-						logger.info("Message received with PUT request.");
-
-						if (!(token.length >= 2)) {
-							msg = "INVALID_PUT";
-						} else if (server.isCorrectServer(token[1])) {
-							if ((token.length == 3 && token[2].equalsIgnoreCase("null")) || token.length == 2) {
-								// delete operation
-								if (server.inStorage(token[1])) {
-									msg = "DELETE_SUCCESS < "; 
-								} else {
-									msg = "DELETE_ERROR < "; 
-								}
-							} else if (token.length > 2) {
-								if (server.inStorage(token[1])) {
-									msg = "PUT_UPDATE < ";
-								} else {
-									msg = "PUT_SUCCESS < ";
-								}
-							}
-
-							String value = "";
-
-							for (int i = 2; i < token.length; i++) {
-								value += token[i] + " ";
-							}
-
-							value.trim();
-
-							try {
-								server.putKV(token[1], value);
-							} catch (Exception e) {
-								logger.error("PUT ERROR! Error in PUT function");
-							}
-
-							msg += token[1] + " , " + value + " >";
-						} else {
-							msg = "SERVER_NOT_RESPONSIBLE " + server.getMetaData();
-						}
-					} else {
-						msg = latestMsg.toString();
-					} 
-
-					sendMessage(new TextMessage(msg), true);
+					sendMessage(new TextMessage(msg));
 					
 				/* connection either terminated by the client or lost due to 
 				 * network problems*/	
@@ -218,57 +117,93 @@ public class ClientConnection implements Runnable {
 		}
 	}
 
-	public void createSocket(String host, int port) {
+	/**
+	 * Serves binary protocol frames until the client disconnects. This
+	 * thread only reads, the requests execute on the server's request
+	 * executor. Pipelined connections keep reading ahead up to
+	 * MAX_IN_FLIGHT requests and get each reply as soon as it is ready.
+	 */
+	private void serveBinary() throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		binaryOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+		if (version >= BinaryProtocol.PIPELINED_VERSION) {
+			requests.setParallelism(RequestWindow.PIPELINED_PARALLELISM);
+		}
 		try {
-			socket = new Socket(host, port);
-			outputS = socket.getOutputStream();
-			inputS = socket.getInputStream();
-		} catch(Exception e) {
-			logger.error("Error! Cannot establish connection.");
+			while (isOpen) {
+				BinaryProtocol.Frame request = BinaryProtocol.read(in, version);
+				if (request == null) {
+					isOpen = false;
+					break;
+				}
+				requests.awaitBelow(MAX_IN_FLIGHT);
+				requests.add(request);
+				while (requests.claim()) {
+					try {
+						server.getRequestExecutor().execute(worker);
+					} catch (RejectedExecutionException e) {
+						requests.release();
+						throw new IOException("Server is shutting down");
+					}
+				}
+			}
+			// answer what is left before the socket closes
+			requests.awaitBelow(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			isOpen = false;
 		}
 	}
 
-	public void transferData(List<List<String>> movedData) {
-		List<String> movedDataKeys = movedData.get(0);
-		List<String> movedDataValues = movedData.get(1);
-		
-		for (String s : movedDataKeys) {
-			try{
-				sendMessage(new TextMessage("transfer " + s + " " + movedDataValues.get(movedDataKeys.indexOf(s))), false);
-				TextMessage latestMsg = receiveMessage(false);
+	/* runs on the request executor */
+	private void serveRequests() {
+		for (Object request = requests.next(); request != null; request = requests.next()) {
+			BinaryProtocol.Frame reply;
+			try {
+				reply = handler.handle((BinaryProtocol.Frame) request);
+			} catch (RuntimeException e) {
+				logger.error("Error! Request failed: " + request, e);
+				reply = RequestHandler.error((BinaryProtocol.Frame) request);
 			}
-			catch(Exception e){
-				System.out.println(e.getMessage());
+			writeLock.lock();
+			try {
+				try {
+					// straight from the cached value, without a frame array
+					reply.writeTo(binaryOutput, version);
+				} catch (RuntimeException e) {
+					// a reply that cannot be encoded fails before any of it is written
+					logger.error("Error! Cannot send reply to: " + request, e);
+					RequestHandler.error((BinaryProtocol.Frame) request).writeTo(binaryOutput, version);
+				}
+				// the last writer in line flushes for all of them
+				if (!writeLock.hasQueuedThreads()) {
+					binaryOutput.flush();
+				}
+			} catch (IOException e) {
+				logger.error("Error! Connection lost!");
+			} finally {
+				writeLock.unlock();
+				requests.done(request);
 			}
 		}
 	}
-	
+
 	/**
 	 * Method sends a TextMessage using this socket.
 	 * @param msg the message that is to be sent.
 	 * @throws IOException some I/O error regarding the output stream 
 	 */
-	public void sendMessage(TextMessage msg, boolean isClient) throws IOException {
+	public void sendMessage(TextMessage msg) throws IOException {
 		byte[] msgBytes = msg.getMsgBytes();
-		if(isClient) {
-			output.write(msgBytes, 0, msgBytes.length);
-			output.flush();
-			logger.info("SEND \t<" 
-					+ clientSocket.getInetAddress().getHostAddress() + ":" 
-					+ clientSocket.getPort() + ">: '" 
-					+ msg.getMsg() +"'");
-		} else {
-			outputS.write(msgBytes, 0, msgBytes.length);
-			outputS.flush();
-			logger.info("SEND \t<" 
-					+ socket.getInetAddress().getHostAddress() + ":" 
-					+ socket.getPort() + ">: '" 
-					+ msg.getMsg() +"'");
+		output.write(msgBytes, 0, msgBytes.length);
+		output.flush();
+		if (LogSetup.sample(logger)) {
+			logger.info("SEND \t<" + peer + ">: '" + msg.getMsg() +"'");
 		}
     }
 	
 	
-	private TextMessage receiveMessage(boolean isClient) throws IOException {
+	private TextMessage receiveMessage() throws IOException {
 		int index = 0;
 		byte[] msgBytes = null, tmp = null;
 		byte[] bufferBytes = new byte[BUFFER_SIZE];
@@ -328,16 +263,8 @@ public class ClientConnection implements Runnable {
 		
 		/* build final String */
 		TextMessage msg = new TextMessage(msgBytes);
-		if(isClient) {
-			logger.info("RECEIVE \t<" 
-					+ clientSocket.getInetAddress().getHostAddress() + ":" 
-					+ clientSocket.getPort() + ">: '" 
-					+ msg.getMsg().trim() + "'");
-		} else {
-			logger.info("RECEIVE \t<" 
-					+ socket.getInetAddress().getHostAddress() + ":" 
-					+ socket.getPort() + ">: '" 
-					+ msg.getMsg().trim() + "'");
+		if (LogSetup.sample(logger)) {
+			logger.info("RECEIVE \t<" + peer + ">: '" + msg.getMsg().trim() + "'");
 		}
 		return msg;
     }
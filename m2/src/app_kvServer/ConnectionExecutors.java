@@ -0,0 +1,93 @@
+package app_kvServer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the executors that run the ClientConnections of the thread per
+ * connection front end and the binary requests they read.
+ * <p>
+ * Virtual threads are looked up by reflection, since the server is built for
+ * older JDKs. Without them the server falls back to platform threads.
+ */
+public class ConnectionExecutors {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static ExecutorService create(ServerConfig config) {
+		switch (config.getExecutor()) {
+		case POOL:
+			return Executors.newFixedThreadPool(config.getPoolSize(), new ConnectionThreadFactory());
+		case VIRTUAL:
+			ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+			if (virtual != null) {
+				return virtual;
+			}
+			logger.warn("Virtual threads need JDK 21 or newer, using platform threads");
+			return Executors.newCachedThreadPool(new ConnectionThreadFactory());
+		default:
+			return Executors.newCachedThreadPool(new ConnectionThreadFactory());
+		}
+	}
+
+	/**
+	 * Creates the executor that runs the binary protocol requests read by
+	 * ClientConnections. It is separate from the connection executor, so
+	 * that a fixed connection pool full of readers cannot starve them.
+	 */
+	public static ExecutorService createRequestExecutor(ServerConfig config) {
+		if (config.getExecutor() == ServerConfig.Executor.VIRTUAL) {
+			ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+			if (virtual != null) {
+				return virtual;
+			}
+		}
+		return Executors.newFixedThreadPool(config.getWorkers(), new ConnectionThreadFactory("kv-request-"));
+	}
+
+	/**
+	 * @return whether this JVM can run connections on virtual threads
+	 */
+	public static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			logger.error("Error! Unable to create virtual thread executor", e);
+			return null;
+		}
+	}
+
+	private static class ConnectionThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		ConnectionThreadFactory() {
+			this("kv-connection-");
+		}
+
+		ConnectionThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, prefix + count.getAndIncrement());
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package app_kvServer;
+
+/**
+ * Count-min sketch estimating how often keys were seen recently, with four
+ * 4 bit counters per key, one in each row. The counters saturate at 15.
+ * Once as many increments as ten times the sampled capacity were counted,
+ * every counter is halved, so that the estimate follows changes in what is
+ * popular instead of remembering old favourites forever.
+ */
+class FrequencySketch {
+
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	/* clears the bit each counter shifts in from its neighbour when halved */
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int SAMPLE_FACTOR = 10;
+
+	/* sixteen counters per long */
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	FrequencySketch(int capacity) {
+		int width = 8;
+		while (width < capacity && width < (1 << 30)) {
+			width <<= 1;
+		}
+		this.table = new long[width];
+		this.tableMask = width - 1;
+		this.sampleSize = SAMPLE_FACTOR * Math.max(capacity, 1);
+	}
+
+	/**
+	 * @return the estimated number of recent occurrences, at most 15
+	 */
+	int frequency(int hashCode) {
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		int frequency = 15;
+		for (int row = 0; row < 4; row++) {
+			int index = indexOf(hash, row);
+			int count = (int) ((table[index] >>> ((start + row) << 2)) & 0xFL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	void increment(int hashCode) {
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int row = 0; row < 4; row++) {
+			added |= incrementAt(indexOf(hash, row), start + row);
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0;
+		}
+		additions = 0;
+	}
+
+	private boolean incrementAt(int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xFL << offset;
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/* halves every counter */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -0,0 +1,73 @@
+package app_kvServer;
+
+import java.nio.charset.StandardCharsets;
+
+import shared.messages.Bytes;
+
+/**
+ * Cache in front of the persistent storage. Implementations are safe for
+ * concurrent use by all connections of a server.
+ * <p>
+ * Keys and values are kept UTF-8 encoded, so a hit can be written to a
+ * binary connection as it is. The String methods encode and decode for
+ * callers that work with Strings.
+ */
+public interface IKVCache {
+
+    /**
+     * @return the cached value, or null if the key is not cached. The
+     * 		array must not be modified.
+     */
+    public byte[] get(Bytes key);
+
+    /**
+     * Caches a value, evicting others when the cache is full. The cache
+     * keeps the value array, which must not be modified afterwards.
+     */
+    public void put(Bytes key, byte[] value);
+
+    public void remove(Bytes key);
+
+    /**
+     * Check if key is cached.
+     * NOTE: unlike get, does not count as an access for the replacement
+     * strategy
+     */
+    public boolean containsKey(Bytes key);
+
+    public int size();
+
+    public void clear();
+
+    /**
+     * @return the number of gets that found their key
+     */
+    public long getHits();
+
+    /**
+     * @return the number of gets that did not find their key
+     */
+    public long getMisses();
+
+    /**
+     * @return the share of gets that found their key, 0 before the first
+     */
+    public double getHitRatio();
+
+    default String get(String key) {
+        byte[] value = get(Bytes.of(key));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    default void put(String key, String value) {
+        put(Bytes.of(key), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    default void remove(String key) {
+        remove(Bytes.of(key));
+    }
+
+    default boolean containsKey(String key) {
+        return containsKey(Bytes.of(key));
+    }
+}
@@ -0,0 +1,70 @@
+package app_kvServer;
+
+/**
+ * Storage engine used by persistentDb to keep key-value pairs on disk.
+ */
+public interface IKVStorage {
+    public enum StorageEngine {
+        LOG,
+        LSM
+    };
+
+    /**
+     * Receives the key-value pairs found by a scan
+     */
+    public interface Visitor {
+        public void visit(String key, String value);
+    }
+
+    /**
+     * Get the value stored for a key
+     * @return  the value, or null if the key is not stored
+     */
+    public String get(String key);
+
+    /**
+     * Check if a key is stored.
+     * NOTE: does not modify any other properties
+     * @return  true if key in storage, false otherwise
+     */
+    public boolean contains(String key);
+
+    /**
+     * Insert or overwrite the value stored for a key
+     */
+    public void put(String key, String value);
+
+    /**
+     * Remove a key from storage
+     * @return  true if the key was stored before, false otherwise
+     */
+    public boolean delete(String key);
+
+    /**
+     * Get the number of keys in storage
+     * @return  number of stored keys
+     */
+    public int size();
+
+    /**
+     * Visit every stored pair whose MD5 key hash lies in (lowerHash, upperHash].
+     * The range wraps around the ring when lowerHash >= upperHash.
+     */
+    public void scan(String lowerHash, String upperHash, Visitor visitor);
+
+    /**
+     * Make every write so far durable, so that the write-ahead log records
+     * covering them can be dropped
+     */
+    public void sync();
+
+    /**
+     * Remove every key from storage
+     */
+    public void clear();
+
+    /**
+     * Release all files and background threads held by the engine
+     */
+    public void close();
+}
@@ -1,11 +1,18 @@
 package app_kvServer;
 
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
 import java.util.Iterator; 
+import java.util.TreeSet;
+import java.nio.charset.StandardCharsets;
+import shared.HashRing;
+import shared.messages.Bytes;
 
 import javax.naming.NameNotFoundException;
 
@@ -20,6 +27,10 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.*;
 
 import java.security.*;
@@ -44,39 +55,98 @@ public class KVServer implements IKVServer {
 	 * @param strategy specifies the cache replacement strategy in case the cache
 	 *           is full and there is a GET- or PUT-request on a key that is
 	 *           currently not contained in the cache. Options are "FIFO", "LRU",
-	 *           and "LFU".
+	 *           "LFU" and "TINYLFU".
 	 */
 
 	private static Logger logger = Logger.getRootLogger();
+
+	/* pending connections the OS queues while the accept loop is busy */
+	private static final int ACCEPT_BACKLOG = 1024;
+	/*
+	 * the ECS waits for the ephemeral znode "ip:port" of a server in here,
+	 * holding the version of the metadata the server applied
+	 */
+	private static final String READY_PATH = "/ready";
+	private static final String METADATA_PATH = "/server";
+	/* the number of servers holding each key, set by the ECS */
+	private static final String REPLICATION_PATH = "/replication";
+	/* how long a write waits for the replicas of its write quorum */
+	private static final long REPLICATION_TIMEOUT = 5000;
 	
 	private int port;
+	/* the name of this server in the metadata */
+	private String self;
 	private int cacheSize;
 	private String strategy;
+	private ServerConfig config;
 	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	private NioServer nioServer;
+	private ExecutorService connectionExecutor;
+	private ExecutorService requestExecutor;
 	private boolean running;
 	private static KVServer server;
-	private Map<String,String>cache;
+	private IKVCache cache;
+	private static final int CACHE_LOCKS = 64;
+	private final ReentrantLock[] cacheLocks = new ReentrantLock[CACHE_LOCKS];
 	private ArrayList<ClientConnection> connections;
 
 	private ServerStateType serverStatus = ServerStateType.STOPPED;
-	private boolean lockWrite = false;
+	private volatile boolean lockWrite = false;
+	/* held shared by client writes, exclusively while writes are locked */
+	private final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock();
 	private ZooKeeper zookeeper;
-	private Map<String, String[]> metaData = new HashMap<>();
+	/* replaced as a whole with the ring built from it, never modified */
+	private volatile Map<String, String[]> metaData = new HashMap<>();
+	private volatile String metaDataString = "";
+	/* the unparsed ranges of each server, to tell which lines changed */
+	private Map<String, String> rangeSpecs = new HashMap<>();
+	private volatile int metadataVersion = -1;
+	private volatile int replicationFactor = 1;
+	private Replicator replicator;
+	/* one shot, so each event reads the metadata and sets the watch again */
+	private final Watcher metadataWatcher = new Watcher() {
+		public void process(WatchedEvent event) {
+			if (event.getType() == Watcher.Event.EventType.NodeDataChanged
+					|| event.getType() == Watcher.Event.EventType.NodeCreated) {
+				loadMetadataFromZookeeper();
+			}
+		}
+	};
+	private volatile HashRing<String> ring = new HashRing<String>(Collections.<String, String>emptyMap());
+	private final Metrics metrics = new Metrics();
+	private final RequestTrace trace;
 
 	public KVServer(int port, int cacheSize, String strategy) {
-		// TODO Auto-generated method stub
+		this(port, cacheSize, strategy, IKVStorage.StorageEngine.LOG);
+	}
+
+	/**
+	 * Start KV Server at given port with the given persistent storage engine
+	 * @param storageEngine the engine behind persistentDb, "LOG" for the
+	 *           hash indexed log and "LSM" for the log-structured merge tree.
+	 */
+	public KVServer(int port, int cacheSize, String strategy, IKVStorage.StorageEngine storageEngine) {
+		this(port, cacheSize, strategy, new ServerConfig().setStorageEngine(storageEngine));
+	}
+
+	/**
+	 * Start KV Server at given port with the given storage and durability
+	 * settings
+	 * @param config the optional settings, see ServerConfig
+	 */
+	public KVServer(int port, int cacheSize, String strategy, ServerConfig config) {
 		this.port = port;
+		this.self = "127.0.0.1:" + port;
+		this.replicator = new Replicator(self);
+		this.config = config;
 		this.cacheSize = cacheSize;
 		this.strategy = strategy;
+		this.trace = new RequestTrace(config.getTraceSize());
 
-		if (strategy.equalsIgnoreCase("LRU")){
-		  cache = Collections.synchronizedMap(new lru_cache(cacheSize));
-		}
-		else if (strategy.equalsIgnoreCase("FIFO")){
-		  cache = Collections.synchronizedMap(new fifo_cache(cacheSize));
-		}
-		else if (strategy.equalsIgnoreCase("LFU")){
-		  cache = Collections.synchronizedMap(new lfu_cache(cacheSize, 0.5f));
+		cache = createCache();
+		for (int i = 0; i < CACHE_LOCKS; i++) {
+			cacheLocks[i] = new ReentrantLock();
 		}
     }
 	
@@ -98,7 +168,10 @@ public class KVServer implements IKVServer {
 	@Override
     public CacheStrategy getCacheStrategy(){
 		// TODO Auto-generated method stub
-		if (strategy.contains("LRU")) {
+		String strategy = this.strategy.toUpperCase();
+		if (strategy.contains("TINYLFU")) {
+			return IKVServer.CacheStrategy.TINYLFU;
+		} else if (strategy.contains("LRU")) {
 			return IKVServer.CacheStrategy.LRU;
 		} else if (strategy.contains("LFU")) {
 			return IKVServer.CacheStrategy.LFU;
@@ -109,6 +182,40 @@ public class KVServer implements IKVServer {
 		}
 	}
 
+	public IKVStorage.StorageEngine getStorageEngine() {
+		return this.config.getStorageEngine();
+	}
+
+	public ServerConfig getConfig() {
+		return this.config;
+	}
+
+	/**
+	 * @return the latencies and counters of this server, see the "stats"
+	 * 		command
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the last requests of this server, see the "trace" command
+	 */
+	public RequestTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * @return the executor for binary requests of the thread per connection
+	 * 		front end, created on first use
+	 */
+	public synchronized ExecutorService getRequestExecutor() {
+		if (requestExecutor == null) {
+			requestExecutor = ConnectionExecutors.createRequestExecutor(config);
+		}
+		return requestExecutor;
+	}
+
 	@Override
     public int getCacheSize(){
 		// TODO Auto-generated method stub
@@ -119,14 +226,13 @@ public class KVServer implements IKVServer {
     public boolean inStorage(String key){
 		// TODO Auto-generated method stub
 
-		// call getKV in persistent storage and return true if found
+		// ask the persistent storage, which does not need to read the value
 		if(key.isEmpty() || key == null) return false;
 
-		// System.out.println("Finding key");
-		String value = persistentDb.find(key);
-
-		if (value == null)  return false;
-		return true;
+		long start = System.nanoTime();
+		boolean stored = persistentDb.contains(key);
+		metrics.storageRead.since(start);
+		return stored;
 	}
 
 	@Override
@@ -135,7 +241,7 @@ public class KVServer implements IKVServer {
 
 		// call getKV in cache and return true if found
 		 if (cache != null) {
-		 	if (cache.containsKey(key)) return true;
+		 	if (cache.containsKey(Bytes.of(key))) return true;
 		 }
 		return false;
 	}
@@ -143,17 +249,49 @@ public class KVServer implements IKVServer {
 	@Override
     public String getKV(String key) throws Exception{
 		// TODO Auto-generated method stub
-		
+		byte[] value = getValue(Bytes.of(key));
+		if (value == null) {
+			throw new NameNotFoundException();
+		}
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Like getKV, but a cache hit neither decodes the value nor allocates,
+	 * the binary front ends write the returned array as it is.
+	 * @return the UTF-8 value, which must not be modified, or null if the
+	 * 		key is not stored
+	 */
+	public byte[] getValue(Bytes key) throws Exception {
 		// try to get value in cache, if not found, try to get value
 		// in persistent storage
 
-		String value = "";
-		if (inCache(key)) {
-		      value = cache.get(key);
-		} else if (inStorage(key)) {
-			value = persistentDb.find(key);
+		// a single storage lookup, the value doubles as the existence check
+		if (cache == null) {
+			long start = System.nanoTime();
+			String value = persistentDb.find(key.toString());
+			metrics.storageRead.since(start);
+			return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		}
+		byte[] value = cache.get(key);
+		if (value != null) {
+			metrics.cacheHits.increment();
 		} else {
-			throw new NameNotFoundException();
+			metrics.cacheMisses.increment();
+			// cache what was read, unless a write to the key is in between
+			ReentrantLock lock = cacheLockFor(key);
+			lock.lock();
+			try {
+				long start = System.nanoTime();
+				String stored = persistentDb.find(key.toString());
+				metrics.storageRead.since(start);
+				if (stored != null) {
+					value = stored.getBytes(StandardCharsets.UTF_8);
+					cache.put(key, value);
+				}
+			} finally {
+				lock.unlock();
+			}
 		}
 		return value;
 	}
@@ -161,14 +299,148 @@ public class KVServer implements IKVServer {
 	@Override
     public void putKV(String key, String value) throws Exception{
 		// TODO Auto-generated method stub
-		
-		// put in persistent storage and in cache based on policy
-		if (inCache(key) && value.equals("") && value.equals("null") || value == null) {
-			 cache.remove(key);
-		} else {
-			persistentDb.add(key, value);
-			cache.put(key, value);
+		putKV(Bytes.of(key), value == null ? null : Bytes.of(value));
+	}
+
+	/**
+	 * Like putKV, for a key and value as received by a binary front end.
+	 * @param value the value, or null to delete the key
+	 * @return the position of the write in the replication log, see
+	 * 		awaitReplicas, -1 if no other server holds the key
+	 */
+	public long putKV(Bytes key, Bytes value) throws Exception {
+		// put in persistent storage and in cache based on policy, an empty
+		// or "null" value deletes the key
+		String stored = value == null ? null : value.toString();
+		// decided once, so that storage, cache and replicas agree on it
+		boolean delete = isDelete(stored);
+		if (delete) {
+			stored = null;
+		}
+		ReentrantLock lock = cacheLockFor(key);
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			persistentDb.add(key.toString(), stored);
+			metrics.storageWrite.since(start);
+			if (cache != null && delete) {
+				cache.remove(key);
+			} else if (cache != null) {
+				// a slice of a received frame, copy only the value
+				cache.put(key, value.toByteArray());
+			}
+			// logged under the lock, so replicas apply the writes of a key in order
+			return replicator.append(key.toString(), stored);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the write at the position of the replication log reached
+	 * enough replicas of its key.
+	 * @param quorum the servers that must hold the write, this one included
+	 * @return false if they did not within REPLICATION_TIMEOUT
+	 */
+	public boolean awaitReplicas(Bytes key, long position, int quorum) throws InterruptedException {
+		return replicator.awaitReplicas(key, position, quorum, REPLICATION_TIMEOUT);
+	}
+
+	private static boolean isDelete(String value) {
+		return value == null || value.trim().isEmpty() || value.trim().equals("null");
+	}
+
+	/**
+	 * Stores a batch with a single write-ahead log commit. Like putKV, an
+	 * empty or "null" value deletes its key.
+	 */
+	public void putAllKV(List<String> keys, List<String> values) throws Exception {
+		storeAll(keys, values, true, true);
+	}
+
+	/**
+	 * Stores a chunk of keys moved here from another server, with a single
+	 * write-ahead log commit. The keys are only dropped from the cache, so
+	 * that a bulk import does not evict what clients are reading. Keys
+	 * replicated here arrive the same way.
+	 */
+	public void importKV(List<String> keys, List<String> values) throws Exception {
+		storeAll(keys, values, false, false);
+	}
+
+	private void storeAll(List<String> keys, List<String> values, boolean fillCache, boolean replicate)
+			throws Exception {
+		long start = System.nanoTime();
+		// as in putKV, storage, cache and replicas see the same deletes
+		List<String> stored = new ArrayList<String>(values.size());
+		for (String value : values) {
+			stored.add(isDelete(value) ? null : value);
+		}
+		values = stored;
+		if (cache == null && !replicate) {
+			persistentDb.addAll(keys, values);
+			metrics.storageWrite.since(start);
+			return;
+		}
+		// ascending order, so that batches cannot deadlock
+		List<Bytes> cacheKeys = new ArrayList<Bytes>(keys.size());
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+		for (String key : keys) {
+			Bytes cacheKey = Bytes.of(key);
+			cacheKeys.add(cacheKey);
+			stripes.add(cacheStripe(cacheKey));
+		}
+		for (int stripe : stripes) {
+			cacheLocks[stripe].lock();
 		}
+		try {
+			persistentDb.addAll(keys, values);
+			metrics.storageWrite.since(start);
+			for (int i = 0; i < keys.size(); i++) {
+				String value = values.get(i);
+				if (cache != null && (value == null || !fillCache)) {
+					cache.remove(cacheKeys.get(i));
+				} else if (cache != null) {
+					cache.put(cacheKeys.get(i), value.getBytes(StandardCharsets.UTF_8));
+				}
+				if (replicate) {
+					replicator.append(keys.get(i), value);
+				}
+			}
+		} finally {
+			for (int stripe : stripes) {
+				cacheLocks[stripe].unlock();
+			}
+		}
+	}
+
+	/* bounded by bytes if the config asks for off-heap memory, else by entries */
+	private IKVCache createCache() {
+		if (config.getCacheMemory() > 0) {
+			return OffHeapCache.create(getCacheStrategy(), config.getCacheMemory());
+		}
+		return StripedCache.create(getCacheStrategy(), cacheSize);
+	}
+
+	/*
+	 * Held around a write to storage and the matching cache update, and
+	 * around a read miss and the cache fill, so that the cache never keeps
+	 * a value the storage already replaced. Taken before any lock of
+	 * persistentDb.
+	 */
+	private ReentrantLock cacheLockFor(Bytes key) {
+		return cacheLocks[cacheStripe(key)];
+	}
+
+	private static int cacheStripe(Bytes key) {
+		return (key.hashCode() & 0x7fffffff) % CACHE_LOCKS;
+	}
+
+	/**
+	 * @return the share of GETs served from the cache
+	 */
+	public double getCacheHitRatio() {
+		return cache == null ? 0 : cache.getHitRatio();
 	}
 
 	@Override
@@ -216,6 +488,29 @@ public class KVServer implements IKVServer {
 		}
 	}
 
+	/*
+	 * Tells the ECS this server takes commands, with an ephemeral znode
+	 * that goes away with the session when the server stops.
+	 */
+	private synchronized void announceReady() {
+		try {
+			if (zookeeper.exists(READY_PATH, false) == null) {
+				try {
+					zookeeper.create(READY_PATH, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+				} catch (KeeperException.NodeExistsException e) {
+					// created by another server at the same time
+				}
+			}
+			zookeeper.create(READY_PATH + "/" + self, Integer.toString(metadataVersion).getBytes(StandardCharsets.US_ASCII),
+					ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		} catch (KeeperException.NodeExistsException e) {
+			// left by a previous run whose session has not expired yet
+			reportMetadataVersion();
+		} catch (Exception e) {
+			logger.error("Error! Cannot announce server in Zookeeper", e);
+		}
+	}
+
 	private void disconnectZookeeper() {
 		try {
 			if (zookeeper != null) {
@@ -237,32 +532,122 @@ public class KVServer implements IKVServer {
 		return "";
 	}
 
-	public void loadMetadataFromZookeeper() {
-		this.metaData.clear();
-
+	/**
+	 * Reads the metadata znode and leaves a data watch on it, so that the
+	 * server applies every later version as soon as the ECS publishes it.
+	 * Versions already applied are skipped, and the ranges of servers whose
+	 * line did not change are reused instead of parsed again.
+	 */
+	public synchronized void loadMetadataFromZookeeper() {
+		Stat stat = new Stat();
+		String data;
 		try {
-			String data = new String (zookeeper.getData("/server", false, null), "UTF-8");
-			String[] token = data.split("\\s+");
-			String key = "";
-
-			for(int i = 0; i < token.length; i++) {
-				if (i % 2 == 0) {
-					// key
-					key = token[i];
-				} else {
-					// value, store with key
-					this.metaData.put(key, token[i].split("-"));
+			data = new String(zookeeper.getData(METADATA_PATH, metadataWatcher, stat), "UTF-8");
+		} catch (KeeperException.NoNodeException e) {
+			// not published yet, read it once the ECS creates it
+			try {
+				if (zookeeper.exists(METADATA_PATH, metadataWatcher) != null) {
+					loadMetadataFromZookeeper();
 				}
+			} catch (Exception ex) {
+				logger.error("Error! Cannot watch metadata in Zookeeper", ex);
 			}
+			return;
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("Error! Cannot read metadata from Zookeeper", e);
+			return;
+		}
+		if (stat.getVersion() <= metadataVersion) {
+			return;
+		}
+		applyMetadata(data, stat.getVersion(), loadReplicationFactor());
+		reportMetadataVersion();
+	}
+
+	/**
+	 * Applies metadata in the format of the metadata znode, lines of
+	 * "ip:port" and its ranges. loadMetadataFromZookeeper reads it there,
+	 * tools running a server without ZooKeeper may pass their own.
+	 * @param version the version of the metadata
+	 * @param replicationFactor the number of servers holding each key
+	 */
+	public synchronized void applyMetadata(String data, int version, int replicationFactor) {
+		Map<String, String> specs = new HashMap<>();
+		Map<String, String[]> metaData = new HashMap<>();
+		String[] token = data.trim().split("\\s+");
+		int changed = 0;
+		for (int i = 0; i + 1 < token.length; i += 2) {
+			// server, then its ranges
+			specs.put(token[i], token[i + 1]);
+			if (token[i + 1].equals(rangeSpecs.get(token[i]))) {
+				metaData.put(token[i], this.metaData.get(token[i]));
+			} else {
+				metaData.put(token[i], HashRing.parseRanges(token[i + 1]));
+				changed++;
+			}
+		}
+		int removed = 0;
+		for (String server : rangeSpecs.keySet()) {
+			if (!specs.containsKey(server)) {
+				removed++;
+			}
+		}
+
+		if (changed > 0 || removed > 0 || replicationFactor != this.replicationFactor) {
+			this.ring = HashRing.fromRanges(metaData);
+			this.metaData = metaData;
+			this.metaDataString = formatMetaData(metaData);
+			this.replicationFactor = replicationFactor;
+			replicator.update(ring, metaData, replicationFactor);
+		}
+		this.rangeSpecs = specs;
+		this.metadataVersion = version;
+		logger.info("Metadata version " + version + ": " + changed + " servers changed, "
+				+ removed + " removed");
+	}
+
+	/* 1 unless the ECS asked for replicas */
+	private int loadReplicationFactor() {
+		try {
+			String data = new String(zookeeper.getData(REPLICATION_PATH, false, null), StandardCharsets.US_ASCII);
+			return Math.max(1, Integer.parseInt(data.trim()));
+		} catch (KeeperException.NoNodeException e) {
+			return 1;
+		} catch (Exception e) {
+			logger.error("Error! Cannot read replication factor from Zookeeper", e);
+			return this.replicationFactor;
 		}
 	}
+
+	/* the metadata version this server applied, into its znode under READY_PATH */
+	private void reportMetadataVersion() {
+		try {
+			zookeeper.setData(READY_PATH + "/" + self, Integer.toString(metadataVersion).getBytes(StandardCharsets.US_ASCII), -1);
+		} catch (KeeperException.NoNodeException e) {
+			// not announced yet, announceReady writes the version
+		} catch (Exception e) {
+			logger.error("Error! Cannot report metadata version to Zookeeper", e);
+		}
+	}
+
+	private static String formatMetaData(Map<String, String[]> metaData) {
+		StringBuilder meta = new StringBuilder();
+		for (Map.Entry <String,String[]> pair : metaData.entrySet()) {
+			meta.append(pair.getKey()).append(' ').append(HashRing.formatRanges(pair.getValue())).append(' ');
+		}
+		return meta.toString();
+	}
 	
 	private boolean initializeServer() {
     	logger.info("Initialize server ...");
     	try {
-            serverSocket = new ServerSocket(port);
+            if (config.getFrontEnd() == ServerConfig.FrontEnd.NIO) {
+                serverChannel = ServerSocketChannel.open();
+                serverSocket = serverChannel.socket();
+                serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            } else {
+                serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+            }
             logger.info("Server listening on port: " 
             		+ serverSocket.getLocalPort()); 
 			
@@ -281,8 +666,10 @@ public class KVServer implements IKVServer {
 		logger.info("Setting up the server...");
 		connections = new ArrayList<ClientConnection>();
 
-		// initialize persistent storage
-		persistentDb.initializeDb();
+		// initialize persistent storage, one directory per server so that
+		// servers launched from the same working directory do not collide
+		persistentDb.initializeDb(persistentDb.DEFAULT_NAME + "_" + port, config);
+		logger.info("Using server options: " + config);
 
 		// connect to zookeeper
 		connectZookeeper();
@@ -291,19 +678,19 @@ public class KVServer implements IKVServer {
 		loadMetadataFromZookeeper();
 
 		// setup cache strategy
-		if (this.strategy.compareToIgnoreCase("LRU") == 0) {
-			logger.info("Using cache strategy: LRU");
-			cache = Collections.synchronizedMap(new lru_cache(cacheSize));
-		} else if (this.strategy.compareToIgnoreCase("LFU") == 0) {
-			logger.info("Using cache strategy: LFU");
-			cache = Collections.synchronizedMap(new lfu_cache(cacheSize, 0.5f));
-		} else if (this.strategy.compareToIgnoreCase("FIFO") == 0) {
-			logger.info("Using cache strategy: FIFO");
-			cache = Collections.synchronizedMap(new fifo_cache(cacheSize));
+		cache = createCache();
+		if (cache instanceof OffHeapCache) {
+			logger.info("Using cache strategy: " + getCacheStrategy() + " off heap, "
+					+ ((OffHeapCache) cache).getCapacity() + " bytes");
+		} else if (cache != null) {
+			logger.info("Using cache strategy: " + getCacheStrategy());
 		} else {
 			// no cache strategy
 			logger.info("No cache strategy specified.");
 		}
+
+		// the socket is bound, so commands of the ECS wait in the backlog
+		announceReady();
 	}
 
 	@Override
@@ -312,19 +699,28 @@ public class KVServer implements IKVServer {
 
 		running = initializeServer();
 		setupServer();
+		metrics.open(port);
 
-		if (serverSocket != null) {
+		if (running && serverChannel != null) {
+			try {
+				nioServer = new NioServer(this, serverChannel, config);
+				nioServer.run();
+			} catch (IOException e) {
+				logger.error("Error! Unable to start NIO front end", e);
+			}
+		} else if (serverSocket != null) {
+			connectionExecutor = ConnectionExecutors.create(config);
 	        while(isRunning()){
 	            try {
 	                Socket client = serverSocket.accept();                
 	                ClientConnection connection = 
 	                		new ClientConnection(client, this);
-					new Thread(connection).start();
+					connectionExecutor.execute(connection);
 					
 					this.connections.add(connection);
 	                
 	                logger.info("Connected to " 
-	                		+ client.getInetAddress().getHostName() 
+	                		+ client.getInetAddress().getHostAddress() 
 	                		+  " on port " + client.getPort());
 	            } catch (IOException e) {
 	            	logger.error("Error! " +
@@ -341,7 +737,22 @@ public class KVServer implements IKVServer {
 		running = false;
         try {
 			logger.info("Killing server.");
+			if (cache != null) {
+				logger.info("Cache hit ratio: " + cache.getHitRatio());
+			}
 			// @TODO: Loop through all connections and stop each thread
+			metrics.close();
+			if (nioServer != null) {
+				nioServer.close();
+			}
+			if (connectionExecutor != null) {
+				connectionExecutor.shutdown();
+			}
+			synchronized (this) {
+				if (requestExecutor != null) {
+					requestExecutor.shutdown();
+				}
+			}
 			serverSocket.close();
 		} catch (IOException e) {
 			logger.error("Error! " +
@@ -356,8 +767,24 @@ public class KVServer implements IKVServer {
 		running = false;
         try {
 			logger.info("Closing server.");
+			if (cache != null) {
+				logger.info("Cache hit ratio: " + cache.getHitRatio());
+			}
 			// @TODO: Loop through all connections and stop each thread
 			disconnectZookeeper();
+			replicator.close();
+			metrics.close();
+			if (nioServer != null) {
+				nioServer.close();
+			}
+			if (connectionExecutor != null) {
+				connectionExecutor.shutdown();
+			}
+			synchronized (this) {
+				if (requestExecutor != null) {
+					requestExecutor.shutdown();
+				}
+			}
 			serverSocket.close();
 		} catch (IOException e) {
 			logger.error("Error! " +
@@ -374,100 +801,77 @@ public class KVServer implements IKVServer {
 	}
 
 	public String getMetaData() {
-		String meta = "";
-		for (Map.Entry <String,String[]> pair : this.metaData.entrySet()) {
-			meta += pair.getKey() + " " + pair.getValue()[0] +  "-" +  pair.getValue()[1] + " ";
-		}
-		return meta;
+		return this.metaDataString;
 	}
 
-	public boolean isCorrectServer(String data) {
-		boolean res = false;
-
-		try {
-			byte[] bytesOfMessage = data.getBytes("UTF-8");
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			byte[] thedigest = md.digest(bytesOfMessage);
-			StringBuffer sb = new StringBuffer();
-			for (int i = 0; i < thedigest.length; ++i) {
-				sb.append(Integer.toHexString((thedigest[i] & 0xFF) | 0x100).substring(1,3));
-			}
-
-			String hash = sb.toString();
-
-			String lowerBound = metaData.get("127.0.0.1:" + Integer.toString(this.port))[0];
-			String upperBound = metaData.get("127.0.0.1:" + Integer.toString(this.port))[1];
-
-			if (hash.compareTo(lowerBound) > 0 && hash.compareTo(upperBound) <= 0) {
-				res = true;
-			} else if (lowerBound.compareTo(upperBound) >= 0 && (hash.compareTo(lowerBound) > 0 || hash.compareTo(upperBound) <= 0)) {
-				res = true;
-			} else if (lowerBound.compareTo(upperBound) == 0) {
-				res = true;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		return res;
+	/**
+	 * @return the version of the metadata znode this server applied, -1
+	 * 		before the ECS published any
+	 */
+	public int getMetadataVersion() {
+		return this.metadataVersion;
 	}
 
-	
-
-	public List<List<String>> moveData(String[] range) {
-
-		String lowerBound = range[0];
-		String upperBound = range[1];
-		List<String> movedDataKeys = new ArrayList<String>();
-		List<String> movedDataValues = new ArrayList<String>();
-
-		// createSocket(server.split(":")[0], Integer.parseInt(server.split(":")[1]));
-
-		Iterator it = this.cache.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry<String, String> pair = (Map.Entry<String, String>)it.next();
+	public boolean isCorrectServer(String data) {
+		return isCorrectServer(Bytes.of(data));
+	}
 
-			String key = pair.getKey();
-			String hash = "";
-			try {
-				// convert to hash
-				byte[] bytesOfMessage = key.getBytes("UTF-8");
-				MessageDigest md = MessageDigest.getInstance("MD5");
-				byte[] thedigest = md.digest(bytesOfMessage);
-				StringBuffer sb = new StringBuffer();
-				for (int i = 0; i < thedigest.length; ++i) {
-					sb.append(Integer.toHexString((thedigest[i] & 0xFF) | 0x100).substring(1,3));
-				}
+	/**
+	 * @return true if this server owns the key, found on the ring without
+	 * 		decoding the key or allocating
+	 */
+	public boolean isCorrectServer(Bytes key) {
+		return self.equals(ring.get(key));
+	}
 
-				hash = sb.toString();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+	/**
+	 * @return true if this server holds a replica of the key, which it may
+	 * 		serve GETs for, the responsible server included
+	 */
+	public boolean isReplica(Bytes key) {
+		int replicas = replicationFactor;
+		return replicas <= 1 ? isCorrectServer(key) : ring.isReplica(key, self, replicas);
+	}
 
-			boolean res = false;
-			// Does key fall in lowerBound and upperBound range?
-			if (hash.compareTo(lowerBound) > 0 && hash.compareTo(upperBound) <= 0) {
-				res = true;
-			} else if (lowerBound.compareTo(upperBound) >= 0 && (hash.compareTo(lowerBound) > 0 || hash.compareTo(upperBound) <= 0)) {
-				res = true;
+	/**
+	 * Streams the stored keys of the ranges to the server at host:port
+	 * while scanning the storage, see RangeTransfer, and drops them from
+	 * the cache.
+	 * @param bounds the ranges as {lower, upper, lower, upper, ...}
+	 * @return the number of keys moved
+	 */
+	public long moveData(String host, int port, String[] bounds) throws IOException {
+		long start = System.nanoTime();
+		final RangeTransfer transfer = new RangeTransfer(host, port);
+		final IOException[] failure = new IOException[1];
+		try {
+			for (int i = 0; i + 1 < bounds.length && failure[0] == null; i += 2) {
+				// the storage holds every key, the cache only the hot ones
+				persistentDb.getStorage().scan(bounds[i], bounds[i + 1], new IKVStorage.Visitor() {
+					public void visit(String key, String value) {
+						if (failure[0] != null) {
+							return;
+						}
+						try {
+							transfer.add(key, value);
+						} catch (IOException e) {
+							failure[0] = e;
+						}
+						if (cache != null) {
+							cache.remove(key);
+						}
+					}
+				});
 			}
-
-			if(res) {
-				movedDataKeys.add(key);
-				movedDataValues.add(pair.getValue());
+			if (failure[0] != null) {
+				throw failure[0];
 			}
-			it.remove(); // avoids a ConcurrentModificationException
+			transfer.finish();
+			metrics.transfer.since(start);
+			return transfer.getKeys();
+		} finally {
+			transfer.close();
 		}
-
-		for (String s : movedDataKeys) {
-            cache.remove(s);
-		}
-		
-		List<List<String>> listOfLists = new ArrayList<List<String>>();
-		listOfLists.add(movedDataKeys);
-		listOfLists.add(movedDataValues);
-
-		return listOfLists;
 	}
 
 	public void start() {
@@ -482,8 +886,26 @@ public class KVServer implements IKVServer {
 		close();
 	}
 
+	/**
+	 * Locks out client writes. Returns once the writes that were already
+	 * past the check of isWriterLocked are done, so that a scan started
+	 * afterwards sees all of them.
+	 */
 	public void lockWrite() {
-		this.lockWrite = true;		
+		writeGate.writeLock().lock();
+		try {
+			this.lockWrite = true;
+		} finally {
+			writeGate.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the lock a client write holds from its check of
+	 * 		isWriterLocked until it is stored
+	 */
+	public Lock clientWriteLock() {
+		return writeGate.readLock();
 	}
 
 	public void unlockWrite() {
@@ -493,12 +915,14 @@ public class KVServer implements IKVServer {
 	public static void main(String[] args) {
 		try {
 			new LogSetup("logs/server.log", Level.ALL);
-			if(args.length != 3) {
+			if(args.length < 3) {
 				System.out.println("Error! Invalid number of arguments!");
-				System.out.println("Usage: Server <port>!");
+				System.out.println("Usage: Server <port> <cacheSize> <strategy> " + ServerConfig.usage() + "!");
 			} else {
-				// KVServer(port, cacheSize, cache replacement strategy)
-				server = new KVServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2]);
+				// KVServer(port, cacheSize, cache replacement strategy, options)
+				ServerConfig config = ServerConfig.parse(Arrays.copyOfRange(args, 3, args.length));
+				LogSetup.setSampleRate(config.getLogSample());
+				server = new KVServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2], config);
 				new TServer(server).start();
 			}
 		} catch (IOException e) {
@@ -509,6 +933,10 @@ public class KVServer implements IKVServer {
 			System.out.println("Error! Invalid argument <port>! Not a number!");
 			System.out.println("Usage: Server <port>!");
 			System.exit(1);
+		} catch (IllegalArgumentException iae) {
+			System.out.println("Error! Invalid server option! " + iae.getMessage());
+			System.out.println("Options: " + ServerConfig.usage());
+			System.exit(1);
 		}
 	}
 }
@@ -0,0 +1,829 @@
+package app_kvServer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import shared.KeyHash;
+
+/**
+ * Log-structured merge tree storage engine for write heavy workloads.
+ * <p>
+ * Writes go to a concurrent skip-list memtable. Once the memtable is full it
+ * is frozen and flushed by a background thread into an immutable SSTable.
+ * The same thread merges runs of similarly sized tables (size-tiered
+ * compaction). Writes that are still in a memtable are only durable through
+ * the server's WriteAheadLog, which is why sync() flushes the memtable.
+ * <p>
+ * Entries are ordered by sort key, which is the MD5 hash of the key followed
+ * by the key itself. A hash range of the ring is therefore one contiguous
+ * run in every memtable and table, which makes scan a sequential read.
+ * <p>
+ * A bloom filter over every key written since it was built answers GETs,
+ * and the existence checks of PUT and DELETE, for keys that were never
+ * stored without looking at any memtable or table. It does not forget
+ * deleted keys, so it is rebuilt from a scan once enough keys were deleted
+ * or it holds more keys than it was sized for. It is saved on close and
+ * loaded on open, after a crash it is rebuilt.
+ */
+public class LSMStorage implements IKVStorage {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final long DEFAULT_MEMTABLE_SIZE = 4L * 1024 * 1024;
+
+	private static final int HASH_LENGTH = KeyHash.MIN.length();
+	private static final int MIN_COMPACTION_THRESHOLD = 4;
+	private static final int MAX_COMPACTION_THRESHOLD = 32;
+	/* tables below this size are always considered similar */
+	private static final long SMALL_TABLE_SIZE = 1024 * 1024;
+	private static final String KEY_FILTER_FILE = "keys.filter";
+	private static final double KEY_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static final long MIN_KEY_FILTER_CAPACITY = 64 * 1024;
+
+	private final File dir;
+	private final long memtableSize;
+	private final AtomicInteger nextId = new AtomicInteger(1);
+
+	/* held shared by writers, exclusively while the memtable is swapped */
+	private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+	/* serializes replacements of the state */
+	private final ReentrantLock stateLock = new ReentrantLock();
+	private volatile State state;
+
+	/* replaced under the memtableLock write lock, so no write misses both */
+	private volatile BloomFilter keyFilter;
+	/* while the filter is rebuilt, writes go to the new one as well */
+	private volatile BloomFilter nextKeyFilter;
+	private volatile long keyFilterCapacity;
+	/* live keys found by the scan that built the filter */
+	private volatile long keyFilterKeys;
+	private final LongAdder keyFilterPuts = new LongAdder();
+	private final LongAdder keyFilterDeletes = new LongAdder();
+
+	private final ExecutorService background;
+
+	public LSMStorage(File dir) throws IOException {
+		this(dir, DEFAULT_MEMTABLE_SIZE);
+	}
+
+	public LSMStorage(File dir, long memtableSize) throws IOException {
+		this.dir = dir;
+		this.memtableSize = memtableSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+
+		recover();
+		if (!loadKeyFilter()) {
+			rebuildKeyFilter(countKeys());
+		}
+
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lsm-background");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public String get(String key) {
+		if (!keyFilter.mightContain(key)) {
+			return null;
+		}
+		String sortKey = sortKey(key);
+		for (;;) {
+			State current = state;
+			SSTable.Entry entry = current.active.entries.get(sortKey);
+			if (entry != null) {
+				return entry.value;
+			}
+			for (Memtable memtable : current.immutables) {
+				entry = memtable.entries.get(sortKey);
+				if (entry != null) {
+					return entry.value;
+				}
+			}
+
+			boolean retry = false;
+			for (SSTable table : current.tables) {
+				if (!table.mightContain(key)) {
+					continue;
+				}
+				if (!table.acquire()) {
+					/* merged away while we were looking, start over */
+					retry = true;
+					break;
+				}
+				try {
+					entry = table.get(sortKey);
+				} catch (IOException e) {
+					logger.error("Error in finding! Cannot read key " + key + " from " + table.file, e);
+				} finally {
+					table.release();
+				}
+				if (entry != null) {
+					return entry.value;
+				}
+			}
+			if (!retry) {
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public void put(String key, String value) {
+		write(key, value);
+	}
+
+	@Override
+	public boolean delete(String key) {
+		if (get(key) == null) {
+			return false;
+		}
+		write(key, null);
+		return true;
+	}
+
+	/**
+	 * Walks every table, so this costs a full scan.
+	 */
+	@Override
+	public int size() {
+		final int[] count = {0};
+		scan(KeyHash.MAX, KeyHash.MAX, new Visitor() {
+			public void visit(String key, String value) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	@Override
+	public void scan(String lowerHash, String upperHash, Visitor visitor) {
+		State current = acquireTables();
+		try {
+			if (lowerHash.compareTo(upperHash) < 0) {
+				scanRange(current, lowerHash, upperHash, visitor);
+			} else {
+				scanRange(current, lowerHash, KeyHash.MAX, visitor);
+				scanRange(current, null, upperHash, visitor);
+			}
+		} finally {
+			for (SSTable table : current.tables) {
+				table.release();
+			}
+		}
+	}
+
+	@Override
+	public void sync() {
+		flush();
+	}
+
+	@Override
+	public void clear() {
+		memtableLock.writeLock().lock();
+		stateLock.lock();
+		try {
+			for (SSTable table : state.tables) {
+				table.markObsolete();
+			}
+			state = new State(new Memtable(nextId.getAndIncrement()),
+					Collections.<Memtable>emptyList(), Collections.<SSTable>emptyList());
+			keyFilter = new BloomFilter(MIN_KEY_FILTER_CAPACITY, KEY_FILTER_FALSE_POSITIVE_RATE);
+			keyFilterCapacity = MIN_KEY_FILTER_CAPACITY;
+			keyFilterKeys = 0;
+			keyFilterPuts.reset();
+			keyFilterDeletes.reset();
+		} finally {
+			stateLock.unlock();
+			memtableLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		background.shutdown();
+		try {
+			background.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		stateLock.lock();
+		try {
+			for (SSTable table : state.tables) {
+				table.release();
+			}
+		} finally {
+			stateLock.unlock();
+		}
+		saveKeyFilter();
+	}
+
+	/**
+	 * @return the number of SSTables currently holding flushed data
+	 */
+	public int getTableCount() {
+		return state.tables.size();
+	}
+
+	/**
+	 * Freezes the memtable and waits until it and every memtable frozen
+	 * before it have been flushed and compacted.
+	 */
+	public void flush() {
+		memtableLock.writeLock().lock();
+		try {
+			rotate();
+		} finally {
+			memtableLock.writeLock().unlock();
+		}
+
+		try {
+			background.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (Exception e) {
+			logger.error("Error! Flush of " + dir + " did not complete", e);
+		}
+	}
+
+	private void write(String key, String value) {
+		SSTable.Entry entry = new SSTable.Entry(sortKey(key), value);
+		Memtable memtable;
+		memtableLock.readLock().lock();
+		try {
+			if (value == null) {
+				keyFilterDeletes.increment();
+			} else {
+				keyFilter.add(key);
+				BloomFilter next = nextKeyFilter;
+				if (next != null) {
+					next.add(key);
+				}
+				keyFilterPuts.increment();
+			}
+			memtable = state.active;
+			memtable.put(entry);
+		} finally {
+			memtableLock.readLock().unlock();
+		}
+
+		if (memtable.bytes.get() >= memtableSize) {
+			memtableLock.writeLock().lock();
+			try {
+				if (state.active == memtable) {
+					rotate();
+				}
+			} finally {
+				memtableLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/* must hold the memtableLock write lock */
+	private void rotate() {
+		Memtable fresh = new Memtable(nextId.getAndIncrement());
+		final Memtable frozen;
+		stateLock.lock();
+		try {
+			State current = state;
+			frozen = current.active;
+			List<Memtable> immutables = new ArrayList<Memtable>();
+			immutables.add(frozen);
+			immutables.addAll(current.immutables);
+			state = new State(fresh, immutables, current.tables);
+		} finally {
+			stateLock.unlock();
+		}
+
+		background.submit(new Runnable() {
+			public void run() {
+				flush(frozen);
+				compact();
+				if (isKeyFilterStale()) {
+					rebuildKeyFilter(keyFilterKeys + keyFilterPuts.sum());
+				}
+			}
+		});
+	}
+
+	private void flush(Memtable memtable) {
+		if (memtable.entries.isEmpty()) {
+			replaceMemtable(memtable, null);
+			return;
+		}
+
+		try {
+			SSTable table = SSTable.write(tableFile(memtable.id, memtable.id), memtable.id, memtable.id,
+					memtable.entries.values().iterator(), memtable.entries.size());
+			if (!replaceMemtable(memtable, table)) {
+				/* storage was cleared in the meantime */
+				table.markObsolete();
+			}
+		} catch (IOException e) {
+			logger.error("Error! Cannot flush memtable " + memtable.id + " in " + dir, e);
+		}
+	}
+
+	private boolean replaceMemtable(Memtable memtable, SSTable table) {
+		stateLock.lock();
+		try {
+			State current = state;
+			if (!current.immutables.contains(memtable)) {
+				return false;
+			}
+			List<Memtable> immutables = new ArrayList<Memtable>(current.immutables);
+			immutables.remove(memtable);
+			List<SSTable> tables = new ArrayList<SSTable>();
+			if (table != null) {
+				tables.add(table);
+			}
+			tables.addAll(current.tables);
+			state = new State(current.active, immutables, tables);
+			return true;
+		} finally {
+			stateLock.unlock();
+		}
+	}
+
+	private void compact() {
+		List<SSTable> run;
+		while ((run = pickCompactionRun(state.tables)) != null) {
+			if (!compact(run)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the first run of at least MIN_COMPACTION_THRESHOLD adjacent tables
+	 * of similar size. Only adjacent tables are merged so that the merged
+	 * table keeps its place in the newest to oldest order.
+	 */
+	private List<SSTable> pickCompactionRun(List<SSTable> tables) {
+		List<SSTable> run = new ArrayList<SSTable>();
+		long runBytes = 0;
+
+		for (SSTable table : tables) {
+			if (!run.isEmpty()) {
+				double average = (double) runBytes / run.size();
+				boolean similar = (table.size >= average / 2 && table.size <= average * 1.5)
+						|| (table.size < SMALL_TABLE_SIZE && average < SMALL_TABLE_SIZE);
+				if (!similar) {
+					if (run.size() >= MIN_COMPACTION_THRESHOLD) {
+						break;
+					}
+					run.clear();
+					runBytes = 0;
+				}
+			}
+			run.add(table);
+			runBytes += table.size;
+			if (run.size() == MAX_COMPACTION_THRESHOLD) {
+				break;
+			}
+		}
+		return run.size() >= MIN_COMPACTION_THRESHOLD ? run : null;
+	}
+
+	private boolean compact(List<SSTable> run) {
+		List<SSTable> acquired = new ArrayList<SSTable>();
+		try {
+			for (SSTable table : run) {
+				if (!table.acquire()) {
+					return false;
+				}
+				acquired.add(table);
+			}
+
+			List<SSTable> tables = state.tables;
+			/* deletions can only be dropped if no older table is left to resurrect the key */
+			boolean dropTombstones = run.get(run.size() - 1) == tables.get(tables.size() - 1);
+
+			int minId = Integer.MAX_VALUE;
+			int maxId = Integer.MIN_VALUE;
+			long entries = 0;
+			List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+			for (SSTable table : run) {
+				minId = Math.min(minId, table.minId);
+				maxId = Math.max(maxId, table.maxId);
+				entries += table.entryCount;
+				sources.add(table.iterator(null));
+			}
+
+			SSTable merged = SSTable.write(tableFile(minId, maxId), minId, maxId,
+					new MergingIterator(sources, dropTombstones), entries);
+
+			stateLock.lock();
+			try {
+				State current = state;
+				int start = current.tables.indexOf(run.get(0));
+				if (start < 0 || !current.tables.subList(start, current.tables.size()).containsAll(run)) {
+					merged.markObsolete();
+					return false;
+				}
+				List<SSTable> replaced = new ArrayList<SSTable>(current.tables);
+				replaced.removeAll(run);
+				replaced.add(start, merged);
+				state = new State(current.active, current.immutables, replaced);
+			} finally {
+				stateLock.unlock();
+			}
+
+			for (SSTable table : run) {
+				table.markObsolete();
+			}
+			logger.info("Merged " + run.size() + " tables into " + merged.file);
+			return true;
+		} catch (IOException e) {
+			logger.error("Error in compaction! Cannot merge tables in " + dir, e);
+			return false;
+		} finally {
+			for (SSTable table : acquired) {
+				table.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the current state with a reference taken on each of its tables
+	 */
+	private State acquireTables() {
+		for (;;) {
+			State current = state;
+			List<SSTable> acquired = new ArrayList<SSTable>();
+			for (SSTable table : current.tables) {
+				if (!table.acquire()) {
+					break;
+				}
+				acquired.add(table);
+			}
+			if (acquired.size() == current.tables.size()) {
+				return current;
+			}
+			for (SSTable table : acquired) {
+				table.release();
+			}
+		}
+	}
+
+	/* visits the pairs with a hash in (lowerHash, upperHash], or [MIN, upperHash] if lowerHash is null */
+	private void scanRange(State current, String lowerHash, String upperHash, Visitor visitor) {
+		List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+		sources.add(current.active.iterator(lowerHash));
+		for (Memtable memtable : current.immutables) {
+			sources.add(memtable.iterator(lowerHash));
+		}
+		for (SSTable table : current.tables) {
+			sources.add(table.iterator(lowerHash));
+		}
+
+		Iterator<SSTable.Entry> it = new MergingIterator(sources, true);
+		while (it.hasNext()) {
+			SSTable.Entry entry = it.next();
+			String hash = entry.hash();
+			if (lowerHash != null && hash.equals(lowerHash)) {
+				continue;
+			}
+			if (hash.compareTo(upperHash) > 0) {
+				break;
+			}
+			visitor.visit(entry.key(), entry.value);
+		}
+	}
+
+	private void recover() throws IOException {
+		List<SSTable> tables = new ArrayList<SSTable>();
+		int maxId = 0;
+
+		File[] files = dir.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				file.delete();
+			} else if (name.endsWith(SSTable.SUFFIX)) {
+				try {
+					SSTable table = SSTable.open(file);
+					tables.add(table);
+					maxId = Math.max(maxId, table.maxId);
+				} catch (IOException e) {
+					logger.error("Error! Skipping unreadable table " + file, e);
+				}
+			}
+		}
+
+		/* tables whose id range is covered by another table were merged before a crash */
+		List<SSTable> live = new ArrayList<SSTable>();
+		for (SSTable table : tables) {
+			boolean covered = false;
+			for (SSTable other : tables) {
+				if (other != table && other.minId <= table.minId && other.maxId >= table.maxId
+						&& (other.minId != table.minId || other.maxId != table.maxId)) {
+					covered = true;
+				}
+			}
+			if (covered) {
+				table.markObsolete();
+			} else {
+				live.add(table);
+			}
+		}
+		Collections.sort(live, new Comparator<SSTable>() {
+			public int compare(SSTable a, SSTable b) {
+				return b.maxId - a.maxId;
+			}
+		});
+
+		nextId.set(maxId + 1);
+		state = new State(new Memtable(nextId.getAndIncrement()),
+				Collections.<Memtable>emptyList(), live);
+	}
+
+	/* overwrites count as new keys, so this errs towards rebuilding */
+	private boolean isKeyFilterStale() {
+		return keyFilterKeys + keyFilterPuts.sum() > keyFilterCapacity
+				|| keyFilterDeletes.sum() > keyFilterCapacity / 4;
+	}
+
+	/**
+	 * Builds a new key filter with room for twice the expected keys from a
+	 * scan of all tables. Writes are only held up while the new filter is
+	 * installed, and again while it replaces the old one.
+	 */
+	private void rebuildKeyFilter(long expectedKeys) {
+		long capacity = Math.max(MIN_KEY_FILTER_CAPACITY, 2 * expectedKeys);
+		final BloomFilter fresh = new BloomFilter(capacity, KEY_FILTER_FALSE_POSITIVE_RATE);
+		memtableLock.writeLock().lock();
+		try {
+			nextKeyFilter = fresh;
+			keyFilterPuts.reset();
+			keyFilterDeletes.reset();
+		} finally {
+			memtableLock.writeLock().unlock();
+		}
+
+		// writes made from here on are added to the fresh filter by write
+		final long[] keys = {0};
+		scan(KeyHash.MAX, KeyHash.MAX, new Visitor() {
+			public void visit(String key, String value) {
+				fresh.add(key);
+				keys[0]++;
+			}
+		});
+
+		memtableLock.writeLock().lock();
+		try {
+			keyFilter = fresh;
+			nextKeyFilter = null;
+			keyFilterCapacity = capacity;
+			keyFilterKeys = keys[0];
+		} finally {
+			memtableLock.writeLock().unlock();
+		}
+	}
+
+	private long countKeys() {
+		final long[] keys = {0};
+		scan(KeyHash.MAX, KeyHash.MAX, new Visitor() {
+			public void visit(String key, String value) {
+				keys[0]++;
+			}
+		});
+		return keys[0];
+	}
+
+	/**
+	 * Layout: capacity | keys | puts | deletes | filter. The file is deleted
+	 * once it is loaded, so a crash before the next close leaves none and
+	 * the filter is rebuilt.
+	 * @return false if there was no saved filter or it could not be read
+	 */
+	private boolean loadKeyFilter() {
+		File file = new File(dir, KEY_FILTER_FILE);
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			keyFilterCapacity = in.getLong();
+			keyFilterKeys = in.getLong();
+			keyFilterPuts.add(in.getLong());
+			keyFilterDeletes.add(in.getLong());
+			keyFilter = BloomFilter.readFrom(in);
+			return true;
+		} catch (Exception e) {
+			logger.error("Error! Rebuilding unreadable key filter " + file, e);
+			keyFilterPuts.reset();
+			keyFilterDeletes.reset();
+			return false;
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void saveKeyFilter() {
+		File file = new File(dir, KEY_FILTER_FILE);
+		File tmp = new File(dir, KEY_FILTER_FILE + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeLong(keyFilterCapacity);
+				out.writeLong(keyFilterKeys);
+				out.writeLong(keyFilterPuts.sum());
+				out.writeLong(keyFilterDeletes.sum());
+				keyFilter.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Cannot rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			logger.error("Error! Unable to save the key filter of " + dir + ", it is rebuilt on open", e);
+			tmp.delete();
+		}
+	}
+
+	private File tableFile(int minId, int maxId) {
+		return new File(dir, String.format("%08d-%08d", minId, maxId) + SSTable.SUFFIX);
+	}
+
+	static String sortKey(String key) {
+		return KeyHash.md5(key) + key;
+	}
+
+	static String keyOf(String sortKey) {
+		return sortKey.substring(HASH_LENGTH);
+	}
+
+	static String hashOf(String sortKey) {
+		return sortKey.substring(0, HASH_LENGTH);
+	}
+
+	/**
+	 * Snapshot of the memtables and tables, replaced as a whole on every
+	 * change so readers never see a half applied flush or merge.
+	 */
+	private static class State {
+		final Memtable active;
+		/* newest first */
+		final List<Memtable> immutables;
+		/* newest first */
+		final List<SSTable> tables;
+
+		State(Memtable active, List<Memtable> immutables, List<SSTable> tables) {
+			this.active = active;
+			this.immutables = immutables;
+			this.tables = tables;
+		}
+	}
+
+	/**
+	 * Sorted in-memory table that receives all writes until it is frozen.
+	 */
+	private static class Memtable {
+		final int id;
+		final ConcurrentSkipListMap<String, SSTable.Entry> entries =
+				new ConcurrentSkipListMap<String, SSTable.Entry>();
+		final AtomicLong bytes = new AtomicLong();
+
+		Memtable(int id) {
+			this.id = id;
+		}
+
+		void put(SSTable.Entry entry) {
+			SSTable.Entry old = entries.put(entry.sortKey, entry);
+			bytes.addAndGet(2L * (entry.sortKey.length() + (entry.value == null ? 0 : entry.value.length())) + 64);
+			if (old != null) {
+				bytes.addAndGet(-2L * (old.sortKey.length() + (old.value == null ? 0 : old.value.length())) - 64);
+			}
+		}
+
+		Iterator<SSTable.Entry> iterator(String from) {
+			ConcurrentNavigableMap<String, SSTable.Entry> view = from == null ? entries : entries.tailMap(from, true);
+			return view.values().iterator();
+		}
+	}
+
+	/**
+	 * Merges sorted sources into one sorted stream. Sources are given newest
+	 * first, and for keys present in several sources only the newest entry
+	 * is returned.
+	 */
+	private static class MergingIterator implements Iterator<SSTable.Entry> {
+		private final PriorityQueue<Source> queue;
+		private final boolean dropTombstones;
+		private SSTable.Entry next;
+
+		MergingIterator(List<Iterator<SSTable.Entry>> sources, boolean dropTombstones) {
+			this.dropTombstones = dropTombstones;
+			this.queue = new PriorityQueue<Source>(Math.max(sources.size(), 1), new Comparator<Source>() {
+				public int compare(Source a, Source b) {
+					int cmp = a.head.sortKey.compareTo(b.head.sortKey);
+					return cmp != 0 ? cmp : a.rank - b.rank;
+				}
+			});
+			for (int i = 0; i < sources.size(); i++) {
+				Iterator<SSTable.Entry> source = sources.get(i);
+				if (source.hasNext()) {
+					queue.add(new Source(source, i));
+				}
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && !queue.isEmpty()) {
+				Source newest = queue.poll();
+				SSTable.Entry candidate = newest.head;
+				newest.advance(queue);
+
+				/* skip older versions of the same key */
+				while (!queue.isEmpty() && queue.peek().head.sortKey.equals(candidate.sortKey)) {
+					queue.poll().advance(queue);
+				}
+				if (candidate.value != null || !dropTombstones) {
+					next = candidate;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public SSTable.Entry next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			SSTable.Entry current = next;
+			advance();
+			return current;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private static class Source {
+			final Iterator<SSTable.Entry> it;
+			final int rank;
+			SSTable.Entry head;
+
+			Source(Iterator<SSTable.Entry> it, int rank) {
+				this.it = it;
+				this.rank = rank;
+				this.head = it.next();
+			}
+
+			void advance(PriorityQueue<Source> queue) {
+				if (it.hasNext()) {
+					head = it.next();
+					queue.add(this);
+				}
+			}
+		}
+	}
+}
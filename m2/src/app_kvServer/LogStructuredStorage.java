@@ -0,0 +1,602 @@
+package app_kvServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import shared.KeyHash;
+
+/**
+ * Append-only storage engine in the style of Bitcask.
+ * <p>
+ * Every write appends a record to the active segment file and points an
+ * in-memory index entry at it, so GET and PUT each cost a single disk
+ * operation no matter how many keys are stored. Once the active segment
+ * reaches its size limit it becomes read-only and a new one is started. A
+ * background thread merges the read-only segments once enough of their
+ * records have been overwritten or deleted.
+ * <p>
+ * Record layout: crc (4) | sequence (8) | key length (4) | value length (4)
+ * | key | value. A value length of -1 marks a deletion. The crc covers
+ * everything after itself and the sequence number decides which record
+ * wins when the index is rebuilt, so segments can be replayed in any order.
+ * <p>
+ * Read-only segments are memory-mapped, so a GET resolves the key through
+ * the index and copies the value straight out of the mapping without a
+ * system call. Only the active segment is read through its channel.
+ */
+public class LogStructuredStorage implements IKVStorage {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_SUFFIX = ".data";
+	private static final int HEADER_SIZE = 20;
+	private static final int TOMBSTONE = -1;
+	private static final long COMPACTION_INTERVAL_SECONDS = 30;
+	/* merge once this fraction of the read-only segments is garbage */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private final File dir;
+	private final long maxSegmentSize;
+
+	private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+	private final Map<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+	private final AtomicInteger nextSegmentId = new AtomicInteger(1);
+
+	/* serializes appends to the active segment */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/* held shared by readers, exclusively while segment files are deleted */
+	private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+	private final ReentrantLock compactionLock = new ReentrantLock();
+
+	private volatile Segment active;
+	private long nextSequence;
+	private ScheduledExecutorService compactor;
+
+	public LogStructuredStorage(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public LogStructuredStorage(File dir, long maxSegmentSize) throws IOException {
+		this.dir = dir;
+		this.maxSegmentSize = maxSegmentSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create storage directory " + dir);
+		}
+
+		rebuildIndex();
+		startCompactor();
+	}
+
+	@Override
+	public String get(String key) {
+		segmentLock.readLock().lock();
+		try {
+			Location location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			byte[] value = new byte[location.valueLength];
+			Segment segment = location.segment;
+			ByteBuffer mapped = segment == active ? null : segment.map(location.offset + location.recordLength);
+			if (mapped != null) {
+				mapped.position((int) location.valueOffset());
+				mapped.get(value);
+			} else {
+				readFully(segment.channel, ByteBuffer.wrap(value), location.valueOffset());
+			}
+			return new String(value, UTF8);
+		} catch (IOException e) {
+			logger.error("Error in finding! Cannot read key " + key + " from " + dir, e);
+			return null;
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public void put(String key, String value) {
+		if (value == null) {
+			delete(key);
+			return;
+		}
+
+		byte[] valueBytes = value.getBytes(UTF8);
+		writeLock.lock();
+		try {
+			long sequence = nextSequence++;
+			Location location = append(encode(sequence, key.getBytes(UTF8), valueBytes),
+					sequence, valueBytes.length);
+			Location old = index.put(key, location);
+			if (old != null) {
+				old.segment.deadBytes.addAndGet(old.recordLength);
+			}
+		} catch (IOException e) {
+			logger.error("Error in adding! Cannot append key " + key + " to " + dir, e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(String key) {
+		writeLock.lock();
+		try {
+			if (!index.containsKey(key)) {
+				return false;
+			}
+			long sequence = nextSequence++;
+			Location tombstone = append(encode(sequence, key.getBytes(UTF8), null),
+					sequence, TOMBSTONE);
+			tombstone.segment.deadBytes.addAndGet(tombstone.recordLength);
+
+			Location old = index.remove(key);
+			if (old != null) {
+				old.segment.deadBytes.addAndGet(old.recordLength);
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Error in deletion! Cannot append key " + key + " to " + dir, e);
+			return false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * The index is not ordered by hash, so this hashes every stored key.
+	 */
+	@Override
+	public void scan(String lowerHash, String upperHash, Visitor visitor) {
+		for (String key : index.keySet()) {
+			if (KeyHash.inRange(KeyHash.md5(key), lowerHash, upperHash)) {
+				String value = get(key);
+				if (value != null) {
+					visitor.visit(key, value);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		compactionLock.lock();
+		writeLock.lock();
+		segmentLock.writeLock().lock();
+		try {
+			index.clear();
+			for (Segment segment : segments.values()) {
+				segment.delete();
+			}
+			segments.clear();
+			active = openSegment(nextSegmentId.getAndIncrement());
+		} catch (IOException e) {
+			logger.error("Error in clearing db! Cannot recreate storage in " + dir, e);
+		} finally {
+			segmentLock.writeLock().unlock();
+			writeLock.unlock();
+			compactionLock.unlock();
+		}
+	}
+
+	@Override
+	public void sync() {
+		writeLock.lock();
+		try {
+			active.channel.force(false);
+		} catch (IOException e) {
+			logger.error("Error! Cannot sync segment " + active.file, e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+
+		compactionLock.lock();
+		writeLock.lock();
+		segmentLock.writeLock().lock();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+		} finally {
+			segmentLock.writeLock().unlock();
+			writeLock.unlock();
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Merges all read-only segments into new ones that only hold the live
+	 * records, then deletes the merged segments. Writes continue into the
+	 * active segment while the merge runs.
+	 */
+	public void compact() {
+		compactionLock.lock();
+		try {
+			List<Segment> inputs = new ArrayList<Segment>();
+			writeLock.lock();
+			try {
+				for (Segment segment : segments.values()) {
+					if (segment != active) {
+						inputs.add(segment);
+					}
+				}
+			} finally {
+				writeLock.unlock();
+			}
+
+			if (inputs.isEmpty()) {
+				return;
+			}
+
+			Segment output = null;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+			for (Segment input : inputs) {
+				long position = 0;
+				while (position < input.size) {
+					header.clear();
+					readFully(input.channel, header, position);
+					int keyLength = header.getInt(12);
+					int valueLength = header.getInt(16);
+					int recordLength = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+
+					ByteBuffer record = ByteBuffer.allocate(recordLength);
+					readFully(input.channel, record, position);
+					String key = new String(record.array(), HEADER_SIZE, keyLength, UTF8);
+
+					Location current = index.get(key);
+					if (current != null && current.segment == input && current.offset == position) {
+						if (output == null || output.size >= maxSegmentSize) {
+							if (output != null) {
+								output.channel.force(false);
+							}
+							output = openSegment(nextSegmentId.getAndIncrement());
+						}
+
+						long outputPosition = output.size;
+						record.flip();
+						writeFully(output.channel, record, outputPosition);
+						output.size = outputPosition + recordLength;
+
+						Location moved = new Location(output, outputPosition, recordLength,
+								valueLength, current.sequence);
+						if (!index.replace(key, current, moved)) {
+							/* overwritten while we were copying it */
+							output.deadBytes.addAndGet(recordLength);
+						}
+					}
+					position += recordLength;
+				}
+			}
+
+			if (output != null) {
+				output.channel.force(false);
+			}
+
+			segmentLock.writeLock().lock();
+			try {
+				for (Segment input : inputs) {
+					segments.remove(input.id);
+					input.delete();
+				}
+			} finally {
+				segmentLock.writeLock().unlock();
+			}
+			logger.info("Compacted " + inputs.size() + " storage segments in " + dir);
+		} catch (IOException e) {
+			logger.error("Error in compaction! Cannot merge storage segments in " + dir, e);
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	private boolean needsCompaction() {
+		long total = 0;
+		long dead = 0;
+		for (Segment segment : segments.values()) {
+			if (segment != active) {
+				total += segment.size;
+				dead += segment.deadBytes.get();
+			}
+		}
+		return total > 0 && dead >= total * COMPACTION_THRESHOLD;
+	}
+
+	private void startCompactor() {
+		compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "storage-compactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		compactor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (needsCompaction()) {
+					compact();
+				}
+			}
+		}, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void rebuildIndex() throws IOException {
+		List<Integer> ids = new ArrayList<Integer>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring unknown file " + file + " in storage directory");
+					}
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		Map<String, Long> deleted = new HashMap<String, Long>();
+		long maxSequence = 0;
+
+		for (int id : ids) {
+			Segment segment = new Segment(id, segmentFile(id));
+			if (segment.size == 0) {
+				segment.delete();
+				continue;
+			}
+			segments.put(id, segment);
+			maxSequence = Math.max(maxSequence, loadSegment(segment, deleted));
+		}
+
+		nextSequence = maxSequence + 1;
+		nextSegmentId.set(ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1);
+		active = openSegment(nextSegmentId.getAndIncrement());
+
+		logger.info("Loaded " + index.size() + " keys from " + segments.size()
+				+ " storage segments in " + dir);
+	}
+
+	private long loadSegment(Segment segment, Map<String, Long> deleted) throws IOException {
+		long maxSequence = 0;
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		while (position + HEADER_SIZE <= segment.size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			header.flip();
+			int crc = header.getInt();
+			long sequence = header.getLong();
+			int keyLength = header.getInt();
+			int valueLength = header.getInt();
+
+			int dataLength = keyLength + Math.max(valueLength, 0);
+			if (keyLength <= 0 || valueLength < TOMBSTONE
+					|| position + HEADER_SIZE + dataLength > segment.size) {
+				break;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate(dataLength);
+			readFully(segment.channel, data, position + HEADER_SIZE);
+			CRC32 checksum = new CRC32();
+			checksum.update(header.array(), 4, HEADER_SIZE - 4);
+			checksum.update(data.array(), 0, dataLength);
+			if ((int) checksum.getValue() != crc) {
+				break;
+			}
+
+			String key = new String(data.array(), 0, keyLength, UTF8);
+			int recordLength = HEADER_SIZE + dataLength;
+			maxSequence = Math.max(maxSequence, sequence);
+
+			Location current = index.get(key);
+			Long deletedAt = deleted.get(key);
+			long newest = Math.max(current == null ? 0 : current.sequence,
+					deletedAt == null ? 0 : deletedAt);
+
+			if (sequence > newest) {
+				if (current != null) {
+					current.segment.deadBytes.addAndGet(current.recordLength);
+				}
+				if (valueLength == TOMBSTONE) {
+					index.remove(key);
+					deleted.put(key, sequence);
+					segment.deadBytes.addAndGet(recordLength);
+				} else {
+					index.put(key, new Location(segment, position, recordLength, valueLength, sequence));
+				}
+			} else {
+				segment.deadBytes.addAndGet(recordLength);
+			}
+			position += recordLength;
+		}
+
+		if (position < segment.size) {
+			logger.warn("Truncating corrupt tail of " + segment.file + " at offset " + position);
+			segment.channel.truncate(position);
+			segment.size = position;
+		}
+		return maxSequence;
+	}
+
+	private Location append(ByteBuffer record, long sequence, int valueLength) throws IOException {
+		if (active.size >= maxSegmentSize) {
+			active.channel.force(false);
+			active = openSegment(nextSegmentId.getAndIncrement());
+		}
+
+		Segment segment = active;
+		long position = segment.size;
+		int recordLength = record.remaining();
+		writeFully(segment.channel, record, position);
+		segment.size = position + recordLength;
+		return new Location(segment, position, recordLength, valueLength, sequence);
+	}
+
+	private Segment openSegment(int id) throws IOException {
+		Segment segment = new Segment(id, segmentFile(id));
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	private static ByteBuffer encode(long sequence, byte[] key, byte[] value) {
+		int valueLength = value == null ? TOMBSTONE : value.length;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + Math.max(valueLength, 0));
+		record.putInt(0).putLong(sequence).putInt(key.length).putInt(valueLength).put(key);
+		if (value != null) {
+			record.put(value);
+		}
+
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 4, record.capacity() - 4);
+		record.putInt(0, (int) checksum.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of storage segment");
+			}
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * One data file of the log. Only the active segment is ever appended to.
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		volatile long size;
+		/* read-only mapping of the first size bytes, made on first read */
+		private MappedByteBuffer mapped;
+		private final ReentrantLock mapLock = new ReentrantLock();
+		/* bytes taken up by overwritten, deleted or tombstone records */
+		final AtomicLong deadBytes = new AtomicLong();
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+
+		/**
+		 * @return a private view of a mapping that covers at least end bytes,
+		 * 		or null if the segment is too large to be mapped
+		 */
+		ByteBuffer map(long end) throws IOException {
+			mapLock.lock();
+			try {
+				if (mapped == null || mapped.capacity() < end) {
+					long length = size;
+					if (length < end || length > Integer.MAX_VALUE) {
+						return null;
+					}
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				}
+				return mapped.duplicate();
+			} finally {
+				mapLock.unlock();
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to close storage segment " + file, e);
+			}
+		}
+
+		void delete() {
+			close();
+			if (!file.delete()) {
+				logger.warn("Unable to delete storage segment " + file);
+			}
+		}
+	}
+
+	/**
+	 * Position of the newest record for a key.
+	 */
+	private static class Location {
+		final Segment segment;
+		final long offset;
+		final int recordLength;
+		final int valueLength;
+		final long sequence;
+
+		Location(Segment segment, long offset, int recordLength, int valueLength, long sequence) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.valueLength = valueLength;
+			this.sequence = sequence;
+		}
+
+		long valueOffset() {
+			return offset + recordLength - valueLength;
+		}
+	}
+}
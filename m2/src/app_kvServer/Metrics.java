@@ -0,0 +1,430 @@
+package app_kvServer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and latency histograms of one KVServer. Recording is lock-free
+ * and allocation free: counters are LongAdders, which stripe under
+ * contention, and a histogram adds to one LongAdder per bucket, so the hot
+ * path costs two System.nanoTime calls and an uncontended add.
+ * <p>
+ * A daemon thread samples the totals once a second, so that snapshot can
+ * report the rates over the last RATE_WINDOWS seconds. Percentiles are
+ * over the lifetime of the server. The snapshot is what the "stats"
+ * command replies, and each of its entries is an attribute of the MBean
+ * registered by open.
+ */
+public class Metrics implements DynamicMBean {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/* the windows rates are reported over, in seconds */
+	private static final int[] RATE_WINDOWS = {10, 60};
+	private static final long SAMPLE_MILLIS = 1000;
+	private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+	public final Histogram get = new Histogram("get");
+	public final Histogram put = new Histogram("put");
+	public final Histogram delete = new Histogram("delete");
+	/* MGET and MPUT requests, whatever their number of entries */
+	public final Histogram batch = new Histogram("batch");
+	/* moving ranges to another server, and storing chunks moved here */
+	public final Histogram transfer = new Histogram("transfer");
+	public final Histogram importChunk = new Histogram("import");
+	public final Histogram storageRead = new Histogram("storage_read");
+	public final Histogram storageWrite = new Histogram("storage_write");
+
+	public final LongAdder cacheHits = new LongAdder();
+	public final LongAdder cacheMisses = new LongAdder();
+	public final LongAdder bytesIn = new LongAdder();
+	public final LongAdder bytesOut = new LongAdder();
+
+	private final Histogram[] histograms = {get, put, delete, batch, transfer, importChunk, storageRead, storageWrite};
+	private final String[] counterNames = {"cache_hits", "cache_misses", "bytes_in", "bytes_out"};
+	private final LongAdder[] counters = {cacheHits, cacheMisses, bytesIn, bytesOut};
+
+	/* totals of the histograms, then of the counters, one row per second */
+	private final long[][] samples;
+	private final long[] sampleTimes;
+	private int samplesTaken = 0;
+	private Thread sampler;
+	private ObjectName name;
+
+	public Metrics() {
+		int window = 0;
+		for (int seconds : RATE_WINDOWS) {
+			window = Math.max(window, seconds);
+		}
+		samples = new long[window + 1][histograms.length + counters.length];
+		sampleTimes = new long[window + 1];
+		sample();
+	}
+
+	/**
+	 * Starts sampling and registers the metrics with the platform MBean
+	 * server as app_kvServer:type=Metrics,port=port.
+	 */
+	public synchronized void open(int port) {
+		if (sampler == null) {
+			sampler = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(SAMPLE_MILLIS);
+							sample();
+						}
+					} catch (InterruptedException e) {
+						// closed
+					}
+				}
+			}, "metrics-" + port);
+			sampler.setDaemon(true);
+			sampler.start();
+		}
+		try {
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("app_kvServer:type=Metrics,port=" + port);
+			if (!beans.isRegistered(name)) {
+				beans.registerMBean(this, name);
+				this.name = name;
+			}
+		} catch (JMException e) {
+			logger.error("Error! Unable to register metrics with JMX", e);
+		}
+	}
+
+	/**
+	 * Stops sampling and unregisters the MBean.
+	 */
+	public synchronized void close() {
+		if (sampler != null) {
+			sampler.interrupt();
+			sampler = null;
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				logger.error("Error! Unable to unregister metrics from JMX", e);
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * @return the InputStream, adding the bytes read from it to bytes_in
+	 */
+	public InputStream countIn(InputStream in) {
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				int read = super.read();
+				if (read >= 0) {
+					bytesIn.increment();
+				}
+				return read;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					bytesIn.add(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * @return the OutputStream, adding the bytes written to it to bytes_out
+	 */
+	public OutputStream countOut(OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytesOut.increment();
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				// FilterOutputStream would write byte by byte
+				out.write(b, off, len);
+				bytesOut.add(len);
+			}
+		};
+	}
+
+	/**
+	 * @return every metric by name, in a fixed order: per histogram its
+	 * 		count, rates in operations per second, and mean, percentiles and
+	 * 		maximum in microseconds, per counter its total and rates
+	 */
+	public Map<String, Number> snapshot() {
+		long[] totals = totals();
+		long now = System.nanoTime();
+		Map<String, Number> snapshot = new LinkedHashMap<String, Number>();
+		for (int i = 0; i < histograms.length; i++) {
+			Histogram histogram = histograms[i];
+			long[] counts = histogram.counts();
+			snapshot.put(histogram.name + "_count", totals[i]);
+			putRates(snapshot, histogram.name, i, totals[i], now);
+			snapshot.put(histogram.name + "_mean_us", micros(totals[i] == 0 ? 0 : histogram.sum() / totals[i]));
+			for (int p = 0; p < PERCENTILES.length; p++) {
+				snapshot.put(histogram.name + "_" + PERCENTILE_NAMES[p] + "_us",
+						micros(Math.min(Histogram.percentile(counts, PERCENTILES[p]), histogram.max())));
+			}
+			snapshot.put(histogram.name + "_max_us", micros(histogram.max()));
+		}
+		for (int i = 0; i < counters.length; i++) {
+			int column = histograms.length + i;
+			snapshot.put(counterNames[i], totals[column]);
+			putRates(snapshot, counterNames[i], column, totals[column], now);
+		}
+		long lookups = cacheHits.sum() + cacheMisses.sum();
+		snapshot.put("cache_hit_ratio", round(lookups == 0 ? 0 : (double) cacheHits.sum() / lookups, 1000));
+		return snapshot;
+	}
+
+	/**
+	 * @return the snapshot as "name=value" pairs separated by blanks
+	 */
+	public String format() {
+		StringBuilder stats = new StringBuilder();
+		for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			if (stats.length() > 0) {
+				stats.append(' ');
+			}
+			stats.append(entry.getKey()).append('=');
+			// without exponents, which Double.toString uses from 10^7 on
+			if (entry.getValue() instanceof Double) {
+				stats.append(BigDecimal.valueOf(entry.getValue().doubleValue()).toPlainString());
+			} else {
+				stats.append(entry.getValue());
+			}
+		}
+		return stats.toString();
+	}
+
+	private synchronized void putRates(Map<String, Number> snapshot, String name, int column, long total, long now) {
+		for (int seconds : RATE_WINDOWS) {
+			// the oldest sample within the window, fewer seconds if the server is younger
+			int back = Math.min(seconds, samplesTaken - 1);
+			int row = Math.floorMod(samplesTaken - 1 - back, samples.length);
+			double elapsed = (now - sampleTimes[row]) / 1e9;
+			double rate = elapsed <= 0 ? 0 : (total - samples[row][column]) / elapsed;
+			snapshot.put(name + "_rate" + seconds + "s", round(rate, 10));
+		}
+	}
+
+	private synchronized void sample() {
+		int row = samplesTaken % samples.length;
+		samples[row] = totals();
+		sampleTimes[row] = System.nanoTime();
+		samplesTaken++;
+	}
+
+	private long[] totals() {
+		long[] totals = new long[histograms.length + counters.length];
+		for (int i = 0; i < histograms.length; i++) {
+			totals[i] = histograms[i].count();
+		}
+		for (int i = 0; i < counters.length; i++) {
+			totals[histograms.length + i] = counters[i].sum();
+		}
+		return totals;
+	}
+
+	private static double micros(long nanos) {
+		return round(nanos / 1000.0, 10);
+	}
+
+	private static double round(double value, int scale) {
+		return Math.round(value * scale) / (double) scale;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> snapshot = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (snapshot.containsKey(attribute)) {
+				list.add(new Attribute(attribute, snapshot.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+					entry.getKey().replace('_', ' '), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Request latencies and throughput of a KVServer",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+	/**
+	 * A log-linear histogram of durations in nanoseconds: values below
+	 * SUB_BUCKETS have a bucket each, above that every power of two is
+	 * split into SUB_BUCKETS buckets, so a percentile is off by at most
+	 * 1 / SUB_BUCKETS of its value.
+	 */
+	public static class Histogram {
+
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+		final String name;
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+		private volatile long max = 0;
+
+		public Histogram(String name) {
+			this.name = name;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records the time since start, a System.nanoTime value.
+		 */
+		public void since(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets[bucket(nanos)].increment();
+			sum.add(nanos);
+			// racy, a maximum lost to a concurrent one is as good as it
+			if (nanos > max) {
+				max = nanos;
+			}
+		}
+
+		public long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		public long sum() {
+			return sum.sum();
+		}
+
+		public long max() {
+			return max;
+		}
+
+		/**
+		 * @param fraction between 0 and 1, 0.99 for the 99th percentile
+		 * @return the duration in nanoseconds that the fraction of the
+		 * 		recorded ones does not exceed, 0 if none were recorded
+		 */
+		public long percentile(double fraction) {
+			// the middle of the last bucket may lie above the maximum
+			return Math.min(percentile(counts(), fraction), max);
+		}
+
+		long[] counts() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return counts;
+		}
+
+		/* the middle of the bucket holding the percentile */
+		static long percentile(long[] counts, double fraction) {
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return lowerBound(i) + width(i) / 2;
+				}
+			}
+			return lowerBound(counts.length - 1);
+		}
+
+		static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		static long lowerBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		}
+
+		private static long width(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return 1;
+			}
+			return 1L << (bucket / SUB_BUCKETS - 1);
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.BinaryProtocol;
+
+/**
+ * Non-blocking front end of the KVServer.
+ * <p>
+ * An acceptor selector hands new connections round robin to a small set of
+ * reactor threads. Each reactor owns a selector and two direct buffers that
+ * it reuses for every read and write of its connections, and splits the
+ * incoming bytes into line feed terminated requests, or into BinaryProtocol
+ * frames once a client has negotiated it. Requests are executed
+ * by a bounded worker pool through a RequestHandler, one request of a
+ * connection at a time so replies keep their order, except on pipelined
+ * binary connections where several workers may serve one connection and
+ * reply as soon as each request is done, see RequestWindow. When the pool is
+ * saturated the reactor stops reading from the affected connections until
+ * there is room again, which pushes back on the clients through TCP.
+ */
+public class NioServer {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/* same limit as ClientConnection, longer requests are cut */
+	private static final int DROP_SIZE = 128 * 1024;
+	/* requests a connection may queue before the reactor stops reading */
+	private static final int MAX_PENDING = 64;
+	private static final long STALL_RETRY_MILLIS = 10;
+	private static final long SHUTDOWN_GRACE_SECONDS = 5;
+
+	private final KVServer server;
+	private final ServerSocketChannel serverChannel;
+	private final Selector acceptSelector;
+	private final Reactor[] reactors;
+	private final ThreadPoolExecutor workers;
+	private volatile boolean running = true;
+
+	public NioServer(KVServer server, ServerSocketChannel serverChannel, ServerConfig config) throws IOException {
+		this.server = server;
+		this.serverChannel = serverChannel;
+
+		serverChannel.configureBlocking(false);
+		acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		workers = new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(config.getWorkQueue()), new NamedThreadFactory("kv-worker"));
+
+		reactors = new Reactor[config.getReactors()];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor();
+			new Thread(reactors[i], "kv-reactor-" + i).start();
+		}
+	}
+
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	public void run() {
+		int next = 0;
+		while (running) {
+			try {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+
+				SocketChannel client;
+				while ((client = serverChannel.accept()) != null) {
+					client.configureBlocking(false);
+					client.socket().setTcpNoDelay(true);
+					reactors[next].register(client);
+					next = (next + 1) % reactors.length;
+
+					logger.info("Connected to "
+							+ client.socket().getInetAddress().getHostAddress()
+							+ " on port " + client.socket().getPort());
+				}
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (IOException e) {
+				if (running) {
+					logger.error("Error! Unable to establish connection. \n", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections at once. Requests that are already queued
+	 * still run and get their replies before the reactors shut down, since
+	 * this may be called by a worker executing a shutdown request.
+	 */
+	public void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			acceptSelector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+			logger.error("Error! Unable to close server channel", e);
+		}
+
+		workers.shutdown();
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					workers.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				for (Reactor reactor : reactors) {
+					reactor.stop();
+				}
+			}
+		}, "kv-nio-shutdown");
+		closer.start();
+	}
+
+	/**
+	 * Selector loop serving a share of the connections. All channel
+	 * operations happen on this thread, other threads post tasks to it.
+	 */
+	private class Reactor implements Runnable {
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/* connections whose next request was rejected by the full pool */
+		private final List<Connection> stalled = new ArrayList<Connection>();
+		private volatile boolean stopping = false;
+
+		Reactor() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(final SocketChannel channel) {
+			post(new Runnable() {
+				public void run() {
+					try {
+						Connection connection = new Connection(Reactor.this, channel);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (IOException e) {
+						logger.error("Error! Unable to register connection", e);
+						closeQuietly(channel);
+					}
+				}
+			});
+		}
+
+		void post(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void stop() {
+			stopping = true;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (!stopping) {
+					if (stalled.isEmpty()) {
+						selector.select();
+					} else {
+						selector.select(STALL_RETRY_MILLIS);
+					}
+
+					for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						if (key.isValid() && key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(connection);
+						}
+					}
+
+					if (!stalled.isEmpty()) {
+						List<Connection> retry = new ArrayList<Connection>(stalled);
+						stalled.clear();
+						for (Connection connection : retry) {
+							schedule(connection);
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Error! Reactor failed", e);
+			} finally {
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+					task.run();
+				}
+				for (SelectionKey key : selector.keys()) {
+					Connection connection = (Connection) key.attachment();
+					if (connection != null) {
+						write(connection);
+						connection.close();
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					logger.error("Error! Unable to close selector", e);
+				}
+			}
+		}
+
+		private void read(Connection connection) {
+			int read;
+			try {
+				readBuffer.clear();
+				read = connection.channel.read(readBuffer);
+			} catch (IOException e) {
+				logger.error("Error! Connection lost!");
+				connection.close();
+				return;
+			}
+			if (read < 0) {
+				connection.close();
+				return;
+			}
+			server.getMetrics().bytesIn.add(read);
+
+			readBuffer.flip();
+			int pending;
+			try {
+				pending = connection.frame(readBuffer);
+			} catch (IOException e) {
+				logger.error("Error! Invalid request, closing connection: " + e.getMessage());
+				connection.close();
+				return;
+			}
+			if (pending >= MAX_PENDING) {
+				connection.interest(SelectionKey.OP_READ, false);
+			}
+			schedule(connection);
+		}
+
+		/* hands the connection to a worker unless one is already on it */
+		void schedule(Connection connection) {
+			if (!connection.claim()) {
+				return;
+			}
+			try {
+				workers.execute(connection);
+			} catch (RejectedExecutionException e) {
+				connection.release();
+				if (!workers.isShutdown()) {
+					stalled.add(connection);
+				}
+			}
+		}
+
+		private void write(Connection connection) {
+			try {
+				while (true) {
+					writeBuffer.clear();
+					connection.fill(writeBuffer);
+					writeBuffer.flip();
+					if (!writeBuffer.hasRemaining()) {
+						break;
+					}
+					server.getMetrics().bytesOut.add(connection.channel.write(writeBuffer));
+					if (writeBuffer.hasRemaining()) {
+						/* socket is full, keep the rest until it drains */
+						connection.keep(writeBuffer);
+						connection.interest(SelectionKey.OP_WRITE, true);
+						return;
+					}
+				}
+				connection.interest(SelectionKey.OP_WRITE, false);
+			} catch (IOException e) {
+				logger.error("Error! Connection lost!");
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * State of one client connection. Framing and channel I/O run on the
+	 * reactor, request execution on a worker.
+	 */
+	private class Connection implements Runnable {
+		final Reactor reactor;
+		final SocketChannel channel;
+		final RequestHandler handler;
+		SelectionKey key;
+
+		/* reactor only */
+		private byte[] line = new byte[256];
+		private int lineLength = 0;
+		/* undecoded bytes, only used once the binary protocol is negotiated */
+		private ByteBuffer inbound;
+		private int version;
+		private ByteBuffer unwritten;
+
+		/* text lines, binary frames or a Hello */
+		private final RequestWindow requests = new RequestWindow();
+
+		private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final Runnable flush = new Runnable() {
+			public void run() {
+				if (key.isValid()) {
+					reactor.write(Connection.this);
+				}
+			}
+		};
+
+		Connection(Reactor reactor, SocketChannel channel) {
+			this.reactor = reactor;
+			this.channel = channel;
+			this.handler = new RequestHandler(server, (InetSocketAddress) channel.socket().getRemoteSocketAddress());
+		}
+
+		/**
+		 * Splits the bytes into requests at each line feed, or into frames
+		 * after the binary protocol hello.
+		 * @return the number of requests waiting to be executed
+		 */
+		int frame(ByteBuffer data) throws IOException {
+			List<Object> complete = new ArrayList<Object>();
+			while (inbound == null && data.hasRemaining()) {
+				byte b = data.get();
+				if (b != 10) {
+					if (lineLength == line.length) {
+						byte[] tmp = new byte[line.length * 2];
+						System.arraycopy(line, 0, tmp, 0, lineLength);
+						line = tmp;
+					}
+					line[lineLength++] = b;
+				}
+				if (b == 10 || lineLength >= DROP_SIZE) {
+					String request = new String(line, 0, lineLength);
+					lineLength = 0;
+					if (line.length > DROP_SIZE / 4) {
+						line = new byte[256];
+					}
+
+					int requested = BinaryProtocol.parseHello(request, BinaryProtocol.HELLO);
+					if (requested > 0) {
+						this.version = Math.min(requested, BinaryProtocol.VERSION);
+						complete.add(new Hello(this.version));
+						inbound = ByteBuffer.allocate(BUFFER_SIZE);
+						if (this.version >= BinaryProtocol.PIPELINED_VERSION) {
+							requests.setParallelism(RequestWindow.PIPELINED_PARALLELISM);
+						}
+					} else {
+						complete.add(request);
+					}
+				}
+			}
+
+			if (inbound != null && data.hasRemaining()) {
+				if (inbound.remaining() < data.remaining()) {
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2,
+							inbound.position() + data.remaining()));
+					inbound.flip();
+					larger.put(inbound);
+					inbound = larger;
+				}
+				inbound.put(data);
+				inbound.flip();
+				for (BinaryProtocol.Frame frame = BinaryProtocol.decode(inbound, version); frame != null;
+						frame = BinaryProtocol.decode(inbound, version)) {
+					complete.add(frame);
+				}
+				inbound.compact();
+			}
+
+			for (Object request : complete) {
+				requests.add(request);
+			}
+			return requests.size();
+		}
+
+		boolean claim() {
+			return requests.claim();
+		}
+
+		void release() {
+			requests.release();
+		}
+
+		/**
+		 * Executes queued requests on a worker thread.
+		 */
+		public void run() {
+			for (Object request = requests.next(); request != null; request = requests.next()) {
+				byte[] reply;
+				try {
+					if (request instanceof BinaryProtocol.Frame) {
+						reply = handler.handle((BinaryProtocol.Frame) request).encode(version);
+					} else if (request instanceof Hello) {
+						reply = new TextMessage(BinaryProtocol.helloReply(((Hello) request).version)).getMsgBytes();
+					} else {
+						reply = new TextMessage(handler.handle((String) request)).getMsgBytes();
+					}
+				} catch (RuntimeException e) {
+					logger.error("Error! Request failed: " + request, e);
+					if (request instanceof BinaryProtocol.Frame) {
+						reply = RequestHandler.error((BinaryProtocol.Frame) request).encode(version);
+					} else {
+						reply = new TextMessage("ERROR " + e.getMessage()).getMsgBytes();
+					}
+				}
+				replies.add(ByteBuffer.wrap(reply));
+				requests.done(request);
+				reactor.post(flush);
+			}
+
+			/* the reactor may have paused reading while the queue was full */
+			reactor.post(new Runnable() {
+				public void run() {
+					if (key.isValid()) {
+						interest(SelectionKey.OP_READ, true);
+						reactor.schedule(Connection.this);
+					}
+				}
+			});
+		}
+
+		/* moves as many reply bytes as fit into the reactor's buffer */
+		void fill(ByteBuffer buffer) {
+			if (unwritten != null) {
+				move(unwritten, buffer);
+				if (unwritten.hasRemaining()) {
+					return;
+				}
+				unwritten = null;
+			}
+			for (ByteBuffer reply = replies.peek(); reply != null; reply = replies.peek()) {
+				move(reply, buffer);
+				if (reply.hasRemaining()) {
+					return;
+				}
+				replies.poll();
+			}
+		}
+
+		void keep(ByteBuffer rest) {
+			ByteBuffer copy = ByteBuffer.allocate(rest.remaining() + (unwritten == null ? 0 : unwritten.remaining()));
+			copy.put(rest);
+			if (unwritten != null) {
+				copy.put(unwritten);
+			}
+			copy.flip();
+			unwritten = copy;
+		}
+
+		void interest(int op, boolean on) {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops = key.interestOps();
+			key.interestOps(on ? ops | op : ops & ~op);
+		}
+
+		void close() {
+			key.cancel();
+			closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * Request to switch a connection to the binary protocol.
+	 */
+	private static class Hello {
+		final int version;
+
+		Hello(int version) {
+			this.version = version;
+		}
+	}
+
+	private static void move(ByteBuffer from, ByteBuffer to) {
+		int length = Math.min(from.remaining(), to.remaining());
+		ByteBuffer slice = from.duplicate();
+		slice.limit(slice.position() + length);
+		to.put(slice);
+		from.position(from.position() + length);
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Error! Unable to tear down connection!", e);
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, prefix + "-" + count.getAndIncrement());
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package app_kvServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import shared.messages.Bytes;
+
+/**
+ * Cache bounded by a memory size instead of an entry count. The values live
+ * serialized in direct memory slabs outside the Java heap, the heap only
+ * holds a small index of key to slab position, so the garbage collector
+ * does not have to trace or copy the cached values however large they are.
+ * <p>
+ * The cache is split into independently locked segments, each one a ring of
+ * slabs written like a log. A put appends the value to the current slab,
+ * and when that is full the oldest slab is recycled and its entries are
+ * evicted. Values that were updated or removed stay in their slab as dead
+ * bytes until then. For FIFO that is the whole policy; for LRU, LFU and
+ * TINYLFU an entry read since it was written gets a second chance and is
+ * copied forward instead, which approximates their recency and frequency
+ * ordering at slab granularity. Values larger than a slab are not cached.
+ * <p>
+ * Slabs are allocated as they are first written to. Direct memory counts
+ * against -XX:MaxDirectMemorySize, which defaults to the maximum heap.
+ */
+public class OffHeapCache implements IKVCache {
+
+	private static final int MAX_SEGMENTS = 16;
+	/* small budgets get fewer segments, so each has room for several slabs */
+	private static final long MIN_SEGMENT_BYTES = 256 * 1024;
+	private static final int MIN_SLABS = 4;
+	private static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+	private final CacheStrategy strategy;
+	private final Segment[] segments;
+	private final int mask;
+	private final long capacity;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @return the cache for the strategy, or null for CacheStrategy.None
+	 */
+	public static IKVCache create(CacheStrategy strategy, long bytes) {
+		if (strategy == CacheStrategy.None || bytes <= 0) {
+			return null;
+		}
+		return new OffHeapCache(strategy, bytes);
+	}
+
+	/**
+	 * @param bytes the memory budget for the values of all segments
+	 */
+	public OffHeapCache(CacheStrategy strategy, long bytes) {
+		if (strategy == CacheStrategy.None) {
+			throw new IllegalArgumentException("No cache for strategy " + strategy);
+		}
+		if (bytes < MIN_SLABS) {
+			throw new IllegalArgumentException("Cache memory of " + bytes + " bytes is too small");
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS && bytes / (count * 2) >= MIN_SEGMENT_BYTES) {
+			count *= 2;
+		}
+		long budget = bytes / count;
+		int slabSize = (int) Math.min(MAX_SLAB_SIZE, budget / MIN_SLABS);
+		int slabs = (int) (budget / slabSize);
+
+		this.strategy = strategy;
+		this.segments = new Segment[count];
+		this.mask = count - 1;
+		this.capacity = (long) count * slabs * slabSize;
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(slabs, slabSize, strategy != CacheStrategy.FIFO);
+		}
+	}
+
+	public CacheStrategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @return the bytes of direct memory the slabs may take in total
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the bytes taken by the values that are currently cached
+	 */
+	public long getUsedBytes() {
+		long used = 0;
+		for (Segment segment : segments) {
+			used += segment.usedBytes();
+		}
+		return used;
+	}
+
+	public byte[] get(Bytes key) {
+		byte[] value = segmentFor(key).get(key);
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	public void put(Bytes key, byte[] value) {
+		segmentFor(key).put(key.compact(), value);
+	}
+
+	public void remove(Bytes key) {
+		segmentFor(key).remove(key);
+	}
+
+	public boolean containsKey(Bytes key) {
+		return segmentFor(key).containsKey(key);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	private Segment segmentFor(Bytes key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		return segments[(h >>> 24) & mask];
+	}
+
+	/* where a value lives, only changed under the segment's write lock */
+	private static class Location {
+		final Bytes key;
+		int slab;
+		int offset;
+		int length;
+		/* set by reads under the shared lock, every reader writes true */
+		boolean referenced;
+
+		Location(Bytes key) {
+			this.key = key;
+		}
+	}
+
+	private static class Segment {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final ByteBuffer[] slabs;
+		/* entries written to each slab, stale ones are skipped on eviction */
+		private final List<List<Location>> written;
+		private final Map<Bytes, Location> index = new HashMap<Bytes, Location>();
+		private final int slabSize;
+		private final boolean secondChance;
+		private int head = 0;
+		private int used = 0;
+		private long liveBytes = 0;
+
+		Segment(int slabs, int slabSize, boolean secondChance) {
+			this.slabs = new ByteBuffer[slabs];
+			this.written = new ArrayList<List<Location>>(slabs);
+			for (int i = 0; i < slabs; i++) {
+				written.add(new ArrayList<Location>());
+			}
+			this.slabSize = slabSize;
+			this.secondChance = secondChance;
+		}
+
+		byte[] get(Bytes key) {
+			lock.readLock().lock();
+			try {
+				Location location = index.get(key);
+				if (location == null) {
+					return null;
+				}
+				location.referenced = true;
+				byte[] value = new byte[location.length];
+				// a view, so concurrent readers do not share a position
+				ByteBuffer view = slabs[location.slab].duplicate();
+				view.position(location.offset);
+				view.get(value);
+				return value;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void put(Bytes key, byte[] value) {
+			lock.writeLock().lock();
+			try {
+				Location location = index.remove(key);
+				if (location != null) {
+					liveBytes -= location.length;
+				}
+				if (value.length > slabSize) {
+					return;
+				}
+				if (used + value.length > slabSize) {
+					advance();
+					// the survivors of the recycled slab may have filled it
+					while (used + value.length > slabSize) {
+						advance();
+					}
+				}
+				location = new Location(key);
+				append(location, value);
+				index.put(key, location);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void remove(Bytes key) {
+			lock.writeLock().lock();
+			try {
+				Location location = index.remove(key);
+				if (location != null) {
+					liveBytes -= location.length;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		boolean containsKey(Bytes key) {
+			lock.readLock().lock();
+			try {
+				return index.containsKey(key);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		int size() {
+			lock.readLock().lock();
+			try {
+				return index.size();
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		long usedBytes() {
+			lock.readLock().lock();
+			try {
+				return liveBytes;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void clear() {
+			lock.writeLock().lock();
+			try {
+				index.clear();
+				for (List<Location> entries : written) {
+					entries.clear();
+				}
+				head = 0;
+				used = 0;
+				liveBytes = 0;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/*
+		 * Moves on to the oldest slab and evicts its entries, except those
+		 * that get a second chance and are written back to it first.
+		 */
+		private void advance() {
+			head = (head + 1) % slabs.length;
+			used = 0;
+			List<Location> entries = written.get(head);
+			List<Location> survivors = new ArrayList<Location>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			for (Location location : entries) {
+				if (index.get(location.key) != location) {
+					continue;
+				}
+				if (secondChance && location.referenced) {
+					byte[] value = new byte[location.length];
+					ByteBuffer view = slabs[head].duplicate();
+					view.position(location.offset);
+					view.get(value);
+					survivors.add(location);
+					values.add(value);
+				} else {
+					index.remove(location.key);
+				}
+				liveBytes -= location.length;
+			}
+			entries.clear();
+			for (int i = 0; i < survivors.size(); i++) {
+				Location location = survivors.get(i);
+				location.referenced = false;
+				append(location, values.get(i));
+			}
+		}
+
+		private void append(Location location, byte[] value) {
+			if (slabs[head] == null) {
+				slabs[head] = ByteBuffer.allocateDirect(slabSize);
+			}
+			ByteBuffer slab = slabs[head];
+			slab.position(used);
+			slab.put(value);
+			location.slab = head;
+			location.offset = used;
+			location.length = value.length;
+			used += value.length;
+			liveBytes += value.length;
+			written.get(head).add(location);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Hands the keys of hash ranges over to another server when the ring
+ * changes. The pairs are added as the storage engine scans the ranges and
+ * are shipped over one binary protocol connection in IMPORT frames, each a
+ * chunk of PUT entries compressed with Deflate. The receiver stores a
+ * chunk with a single write-ahead log commit and acknowledges it.
+ * <p>
+ * At most WINDOW chunks are unacknowledged at a time, so a slow receiver
+ * holds the scan back instead of the sender buffering the whole range.
+ */
+public class RangeTransfer implements Closeable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/* uncompressed bytes of entries per chunk */
+	private static final int CHUNK_BYTES = 256 * 1024;
+	private static final int WINDOW = 4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String receiver;
+	private final Socket socket;
+	private final DataInputStream input;
+	private final OutputStream output;
+	private final int version;
+
+	private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_BYTES + BUFFER_SIZE);
+	private final Compressor compressor = new Compressor();
+	private int nextRequestId = 0;
+	private int unacknowledged = 0;
+	private long keys = 0;
+	private long rawBytes = 0;
+	private long sentBytes = 0;
+
+	/**
+	 * Connects to the receiving server and switches to the binary protocol.
+	 * @throws IOException if the server cannot be reached or does not
+	 * 		speak a pipelined version of the binary protocol
+	 */
+	public RangeTransfer(String host, int port) throws IOException {
+		this.receiver = host + ":" + port;
+		this.socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+			input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+
+			// a bare line feed, anything after it would be read as binary
+			output.write((BinaryProtocol.hello(BinaryProtocol.VERSION) + "\n").getBytes(StandardCharsets.US_ASCII));
+			output.flush();
+			String reply = readLine();
+			version = BinaryProtocol.parseHello(reply, BinaryProtocol.HELLO_OK);
+			if (version < BinaryProtocol.PIPELINED_VERSION) {
+				throw new IOException("Server at " + receiver + " cannot take bulk transfers: " + reply);
+			}
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queues one pair, sending the chunk once it is full.
+	 * @param value the value, or null to delete the key
+	 */
+	public void add(String key, String value) throws IOException {
+		byte[] entry = BinaryProtocol.encode(BinaryProtocol.PUT, null, key, value);
+		chunk.write(entry, 0, entry.length);
+		keys++;
+		if (chunk.size() >= CHUNK_BYTES) {
+			sendChunk();
+		}
+	}
+
+	/**
+	 * Sends the last chunk and waits until the receiver stored every chunk.
+	 */
+	public void finish() throws IOException {
+		flush();
+		logger.info("Moved " + keys + " keys to " + receiver + ", " + rawBytes + " bytes sent as " + sentBytes);
+	}
+
+	/**
+	 * Sends the pairs added so far and waits until the receiver stored
+	 * them, the connection stays open for more.
+	 */
+	public void flush() throws IOException {
+		sendChunk();
+		while (unacknowledged > 0) {
+			awaitAcknowledgement();
+		}
+	}
+
+	public long getKeys() {
+		return keys;
+	}
+
+	public void close() throws IOException {
+		compressor.end();
+		socket.close();
+	}
+
+	private void sendChunk() throws IOException {
+		if (chunk.size() == 0) {
+			return;
+		}
+		int length = compressor.compress(chunk.toByteArray());
+		rawBytes += chunk.size();
+		sentBytes += length;
+		chunk.reset();
+
+		while (unacknowledged >= WINDOW) {
+			awaitAcknowledgement();
+		}
+		new BinaryProtocol.Frame(nextRequestId++, BinaryProtocol.IMPORT, null, Bytes.EMPTY,
+				Bytes.wrap(compressor.compressed, 0, length)).writeTo(output, version);
+		output.flush();
+		unacknowledged++;
+	}
+
+	private void awaitAcknowledgement() throws IOException {
+		BinaryProtocol.Frame reply = BinaryProtocol.read(input, version);
+		if (reply == null) {
+			throw new IOException("Connection closed by " + receiver);
+		}
+		unacknowledged--;
+		if (reply.getStatus() != StatusType.PUT_SUCCESS) {
+			throw new IOException("Server at " + receiver + " could not store a chunk: " + reply.getStatus());
+		}
+	}
+
+	/* the reply to the hello, up to the carriage return ending text messages */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int read = input.read();
+		while (read != 13 && read != -1) {
+			if (read > 31 && read < 127) {
+				line.append((char) read);
+			}
+			read = input.read();
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Encodes entries as the value of an IMPORT frame, the way a transfer
+	 * sends them.
+	 * @param entries PUT entries, an entry without a value deletes its key
+	 */
+	public static Bytes encode(List<BinaryProtocol.Frame> entries) {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		for (BinaryProtocol.Frame entry : entries) {
+			byte[] bytes = entry.encode(1);
+			raw.write(bytes, 0, bytes.length);
+		}
+		Compressor compressor = new Compressor();
+		try {
+			int length = compressor.compress(raw.toByteArray());
+			return Bytes.wrap(compressor.compressed, 0, length);
+		} finally {
+			compressor.end();
+		}
+	}
+
+	/**
+	 * Decodes the value of an IMPORT frame.
+	 * @return the PUT entries of the chunk
+	 * @throws IOException if the chunk is corrupt
+	 */
+	public static List<BinaryProtocol.Frame> decode(Bytes value) throws IOException {
+		byte[] data = value.toByteArray();
+		if (data.length < 4) {
+			throw new IOException("Truncated chunk");
+		}
+		int length = ByteBuffer.wrap(data).getInt();
+		if (length < 0 || length > BinaryProtocol.MAX_VALUE_LENGTH) {
+			throw new IOException("Invalid chunk length " + length);
+		}
+		byte[] raw = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, 4, data.length - 4);
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(raw, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length) {
+				throw new IOException("Truncated chunk, " + inflated + " of " + length + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt chunk", e);
+		} finally {
+			inflater.end();
+		}
+
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		ByteBuffer buffer = ByteBuffer.wrap(raw);
+		while (buffer.hasRemaining()) {
+			BinaryProtocol.Frame entry = BinaryProtocol.decode(buffer);
+			if (entry == null) {
+				throw new IOException("Truncated chunk entry");
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/* a Deflater and an output buffer that grows to fit the largest chunk */
+	private static final class Compressor {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] compressed = new byte[CHUNK_BYTES];
+
+		/* the chunk as its length (4) and the Deflate stream, into compressed */
+		int compress(byte[] raw) {
+			ByteBuffer.wrap(compressed).putInt(raw.length);
+			int length = 4;
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return length;
+		}
+
+		void end() {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import shared.HashRing;
+import shared.messages.Bytes;
+
+/**
+ * Keeps the replicas of the ranges a server is responsible for up to date.
+ * The replicas of a range are the next distinct servers clockwise on the
+ * ring. Every write of a client is appended to an in-memory replication
+ * log, and one thread per replica ships the log to it in the background,
+ * in the IMPORT chunks of RangeTransfer. A replica that starts holding a
+ * range, because a server joined or left, first gets a scan of the range.
+ * <p>
+ * A write only waits for its replicas if the client asked for a write
+ * quorum, see awaitReplicas. The log holds at most MAX_LOG_BYTES of keys
+ * and values. A replica that falls further behind, for example because it
+ * is down, is dropped from the log and gets its ranges scanned again once
+ * it is back.
+ */
+public class Replicator {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final long MAX_LOG_BYTES = 64L << 20;
+	/* entries shipped per round trip to a replica */
+	private static final int BATCH_ENTRIES = 4096;
+	private static final long RETRY_MILLIS = 1000;
+
+	private final String self;
+	private final long maxLogBytes;
+
+	/* the entry at position p is log.get(p - firstPosition) */
+	private final List<Entry> log = new ArrayList<Entry>();
+	private long firstPosition = 0;
+	private long nextPosition = 0;
+	/* the sum of Entry.size over the log */
+	private long logBytes = 0;
+	private final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+	private volatile HashRing<String> ring = new HashRing<String>(Collections.<String, String>emptyMap());
+	private volatile int replicas = 1;
+
+	/**
+	 * @param self the "ip:port" of this server in the metadata
+	 */
+	public Replicator(String self) {
+		this(self, MAX_LOG_BYTES);
+	}
+
+	/**
+	 * @param maxLogBytes the keys and values the log holds at most before
+	 * 		replicas behind it are scanned again
+	 */
+	public Replicator(String self, long maxLogBytes) {
+		this.self = self;
+		this.maxLogBytes = maxLogBytes;
+	}
+
+	/**
+	 * Applies new metadata: replicas of ranges this server no longer holds
+	 * are stopped, new ones are started and scanned.
+	 * @param metaData the ranges of every server, {lower, upper, ...}
+	 * @param replicas the servers holding each key, the responsible one
+	 * 		included
+	 */
+	public synchronized void update(HashRing<String> ring, Map<String, String[]> metaData, int replicas) {
+		this.ring = ring;
+		this.replicas = replicas;
+
+		Map<String, List<String[]>> holders = new HashMap<String, List<String[]>>();
+		String[] bounds = metaData.get(self);
+		for (int i = 0; bounds != null && replicas > 1 && i + 1 < bounds.length; i += 2) {
+			// every key of a range has the replicas of its upper end
+			for (String holder : ring.replicasByHash(bounds[i + 1], replicas)) {
+				if (holder.equals(self)) {
+					continue;
+				}
+				if (!holders.containsKey(holder)) {
+					holders.put(holder, new ArrayList<String[]>());
+				}
+				holders.get(holder).add(new String[] {bounds[i], bounds[i + 1]});
+			}
+		}
+
+		for (Peer peer : new ArrayList<Peer>(peers.values())) {
+			if (!holders.containsKey(peer.name)) {
+				peer.stop();
+				peers.remove(peer.name);
+			}
+		}
+		for (Map.Entry<String, List<String[]>> holder : holders.entrySet()) {
+			Peer peer = peers.get(holder.getKey());
+			if (peer == null) {
+				peer = new Peer(holder.getKey(), nextPosition);
+				peers.put(peer.name, peer);
+				peer.setRanges(holder.getValue());
+				peer.start();
+			} else {
+				peer.setRanges(holder.getValue());
+			}
+		}
+		trim();
+		notifyAll();
+	}
+
+	/**
+	 * Appends a write, to be called in the order the writes of a key were
+	 * stored.
+	 * @param value the value, or null for a deletion
+	 * @return the position of the write in the log, -1 if no other server
+	 * 		holds a replica
+	 */
+	public synchronized long append(String key, String value) {
+		if (peers.isEmpty()) {
+			return -1;
+		}
+		Entry entry = new Entry(key, value);
+		log.add(entry);
+		logBytes += entry.size();
+		long position = nextPosition++;
+		if (logBytes > maxLogBytes) {
+			// the oldest entries that have to go for the rest to fit
+			long kept = logBytes;
+			long keep = firstPosition;
+			while (kept > maxLogBytes) {
+				kept -= log.get((int) (keep - firstPosition)).size();
+				keep++;
+			}
+			for (Peer peer : peers.values()) {
+				if (peer.cursor < keep) {
+					logger.warn("Replica " + peer.name + " fell behind, scanning its ranges again");
+					peer.resync(nextPosition);
+				}
+			}
+			trim();
+		}
+		notifyAll();
+		return position;
+	}
+
+	/**
+	 * Waits until quorum - 1 replicas of the key, or all of them if there
+	 * are fewer, stored the write at the position.
+	 * @return false if they did not within the timeout
+	 */
+	public synchronized boolean awaitReplicas(Bytes key, long position, int quorum, long timeoutMillis)
+			throws InterruptedException {
+		if (position < 0 || quorum <= 1) {
+			return true;
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			int holders = 0;
+			int stored = 0;
+			for (Peer peer : peers.values()) {
+				if (ring.isReplica(key, peer.name, replicas)) {
+					holders++;
+					if (peer.cursor > position) {
+						stored++;
+					}
+				}
+			}
+			if (stored >= Math.min(quorum - 1, holders)) {
+				return true;
+			}
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+	}
+
+	/**
+	 * Stops shipping to all replicas.
+	 */
+	public synchronized void close() {
+		for (Peer peer : peers.values()) {
+			peer.stop();
+		}
+		peers.clear();
+		log.clear();
+		logBytes = 0;
+		firstPosition = nextPosition;
+		notifyAll();
+	}
+
+	/* drops the entries every replica has */
+	private void trim() {
+		long shipped = nextPosition;
+		for (Peer peer : peers.values()) {
+			shipped = Math.min(shipped, peer.cursor);
+		}
+		if (shipped > firstPosition) {
+			List<Entry> dropped = log.subList(0, (int) (shipped - firstPosition));
+			for (Entry entry : dropped) {
+				logBytes -= entry.size();
+			}
+			dropped.clear();
+			firstPosition = shipped;
+		}
+	}
+
+	private static class Entry {
+		final String key;
+		final String value;
+
+		Entry(String key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		/* the bytes it is counted with against MAX_LOG_BYTES */
+		long size() {
+			return 2L * (key.length() + (value == null ? 0 : value.length()));
+		}
+	}
+
+	/*
+	 * One replica and the thread shipping to it. The fields are guarded by
+	 * the Replicator, the connection belongs to the thread.
+	 */
+	private class Peer implements Runnable {
+		final String name;
+		/* the first position not shipped yet */
+		long cursor;
+		/* "lower-upper" of the ranges the replica holds, and of those scanned */
+		Set<String> ranges = new HashSet<String>();
+		Set<String> scanned = new HashSet<String>();
+		boolean running = true;
+		/* counts the resyncs, a scan that started before one is repeated */
+		long generation = 0;
+		private final Thread thread;
+		private RangeTransfer transfer;
+
+		Peer(String name, long cursor) {
+			this.name = name;
+			this.cursor = cursor;
+			this.thread = new Thread(this, "replicator-" + name);
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		void stop() {
+			running = false;
+			thread.interrupt();
+		}
+
+		void setRanges(List<String[]> bounds) {
+			Set<String> ranges = new LinkedHashSet<String>();
+			for (String[] range : bounds) {
+				ranges.add(range[0] + "-" + range[1]);
+			}
+			this.ranges = ranges;
+			scanned.retainAll(ranges);
+		}
+
+		void resync(long position) {
+			cursor = position;
+			scanned.clear();
+			generation++;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					List<String> unscanned = new ArrayList<String>();
+					List<Entry> batch = new ArrayList<Entry>();
+					long end;
+					long started;
+					synchronized (Replicator.this) {
+						while (running && scanned.containsAll(ranges) && cursor == nextPosition) {
+							Replicator.this.wait();
+						}
+						if (!running) {
+							break;
+						}
+						started = generation;
+						for (String range : ranges) {
+							if (!scanned.contains(range)) {
+								unscanned.add(range);
+							}
+						}
+						end = unscanned.isEmpty() ? Math.min(nextPosition, cursor + BATCH_ENTRIES) : cursor;
+						for (long p = cursor; p < end; p++) {
+							batch.add(log.get((int) (p - firstPosition)));
+						}
+					}
+
+					try {
+						if (transfer == null) {
+							String[] address = name.split(":");
+							transfer = new RangeTransfer(address[0], Integer.parseInt(address[1]));
+						}
+						if (!unscanned.isEmpty()) {
+							scan(unscanned, started);
+						} else {
+							ship(batch, end);
+						}
+					} catch (IOException e) {
+						logger.error("Error! Cannot replicate to " + name + ", retrying", e);
+						disconnect();
+						Thread.sleep(RETRY_MILLIS);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+			disconnect();
+		}
+
+		/* the stored keys of the ranges, the writes from then on follow from the log */
+		private void scan(List<String> unscanned, long started) throws IOException {
+			final IOException[] failure = new IOException[1];
+			for (String range : unscanned) {
+				String[] bounds = HashRing.parseRanges(range);
+				persistentDb.getStorage().scan(bounds[0], bounds[1], new IKVStorage.Visitor() {
+					public void visit(String key, String value) {
+						if (failure[0] != null) {
+							return;
+						}
+						try {
+							transfer.add(key, value);
+						} catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+				});
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+			}
+			transfer.flush();
+			synchronized (Replicator.this) {
+				// the log entries of writes the scan had passed are gone after a resync
+				if (generation != started) {
+					logger.warn("Replica " + name + " fell behind while scanned, scanning again");
+					return;
+				}
+				scanned.addAll(unscanned);
+			}
+			logger.info("Replicated " + unscanned.size() + " ranges to " + name);
+		}
+
+		private void ship(List<Entry> batch, long end) throws IOException {
+			HashRing<String> ring = Replicator.this.ring;
+			int replicas = Replicator.this.replicas;
+			for (Entry entry : batch) {
+				// the log holds the writes of all ranges, each replica only some
+				if (ring.isReplica(Bytes.of(entry.key), name, replicas)) {
+					transfer.add(entry.key, entry.value);
+				}
+			}
+			transfer.flush();
+			synchronized (Replicator.this) {
+				if (cursor < end) {
+					cursor = end;
+				}
+				trim();
+				Replicator.this.notifyAll();
+			}
+		}
+
+		private void disconnect() {
+			if (transfer != null) {
+				try {
+					transfer.close();
+				} catch (IOException e) {
+					logger.error("Error! Unable to close connection to " + name, e);
+				}
+				transfer = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,532 @@
+package app_kvServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.*;
+
+import logger.LogSetup;
+import shared.HashRing;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Executes the text commands of clients and the ECS, and the binary
+ * requests of clients that negotiated BinaryProtocol, against a KVServer
+ * and builds the reply. Both front ends, the thread per connection
+ * ClientConnection and the NIO NioServer, share one handler per connection.
+ */
+public class RequestHandler {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/* compiled once, String.split would compile it for every request */
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final StatusType[] STATUSES = StatusType.values();
+
+	private KVServer server;
+	/* the client as recorded in the RequestTrace */
+	private final int peerAddress;
+	private final int peerPort;
+
+	public RequestHandler(KVServer server) {
+		this(server, null);
+	}
+
+	/**
+	 * @param peer the client of the connection, null if not known
+	 */
+	public RequestHandler(KVServer server, InetSocketAddress peer) {
+		this.server = server;
+		this.peerAddress = RequestTrace.addressOf(peer);
+		this.peerPort = peer == null ? 0 : peer.getPort();
+	}
+
+	/**
+	 * Moves the ranges of a lockWrite, given as pairs of ip:port and
+	 * ranges, to all of their servers at once. A leaving server hands its
+	 * slices to several servers, with virtual nodes each takes several.
+	 * @return the error of a server the data could not be moved to, null
+	 * 		if all of it was moved
+	 */
+	private String moveData(String[] token) {
+		final int targets = (token.length - 1) / 2;
+		final String[] failures = new String[targets];
+		Thread[] movers = new Thread[targets];
+		for (int i = 0; i < targets; i++) {
+			final int target = i;
+			final String address = token[1 + 2 * i];
+			final String ranges = token[2 + 2 * i];
+			movers[i] = new Thread("lockwrite-" + address) {
+				public void run() {
+					String[] hostPort = address.split(":");
+					try {
+						server.moveData(hostPort[0], Integer.parseInt(hostPort[1]), HashRing.parseRanges(ranges));
+					} catch (IOException ioe) {
+						logger.error("Error! Unable to move data to " + address, ioe);
+						failures[target] = ioe.getMessage();
+					} catch (RuntimeException e) {
+						logger.error("Error! Unable to move data to " + address, e);
+						failures[target] = String.valueOf(e.getMessage());
+					}
+				}
+			};
+			movers[i].start();
+		}
+		for (int i = 0; i < targets; i++) {
+			try {
+				movers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return "interrupted";
+			}
+			if (failures[i] != null) {
+				return failures[i];
+			}
+		}
+		return targets == 0 ? "no target" : null;
+	}
+
+	/**
+	 * Executes one request.
+	 * @param request the message as received, without the line terminator
+	 * @return the reply message
+	 */
+	public String handle(String request) {
+		// the text protocol writes with put, a put with no value deletes
+		boolean write = request.trim().regionMatches(true, 0, "put", 0, 3);
+		if (!write) {
+			return execute(request);
+		}
+		server.clientWriteLock().lock();
+		try {
+			return execute(request);
+		} finally {
+			server.clientWriteLock().unlock();
+		}
+	}
+
+	private String execute(String request) {
+		String msg = "";
+		long start = System.nanoTime();
+		Metrics.Histogram latency = null;
+		byte opcode = 0;
+
+		// parse msg and take action accordingly
+		String[] token = null;
+		token = WHITESPACE.split(request.trim());
+
+		if (token[0].equalsIgnoreCase("transfer")) {
+			if(token.length >= 3){
+				if (server.inCache(token[1])){
+					msg = "TRANSFER_UPDATE < ";
+				}else{
+					msg = "TRANSFER_SUCCESS < ";
+				}
+
+				String value = valueOf(token);
+
+				try {
+					server.putKV(token[1], value);
+				} catch (Exception e) {
+					logger.error("TRANSFER ERROR! Error in PUT function");
+				}
+
+				msg += token[1] + " , " + value + " >";
+			}else {
+				msg = "TRANSFER ERROR: Invalid format";
+			}
+		} else if (token[0].equalsIgnoreCase("start")) {
+			server.start();
+			msg = "Server is started";
+		} else if (token[0].equalsIgnoreCase("stop")) {
+			server.stop();
+			msg = "Server is stopped";
+		} else if (token[0].equalsIgnoreCase("stats")) {
+			msg = "STATS " + server.getMetrics().format();
+		} else if (token[0].equalsIgnoreCase("trace")) {
+			File file = new File("logs/trace-" + server.getPort() + ".bin");
+			try {
+				int records = server.getTrace().dump(file);
+				msg = "TRACE " + records + " " + file.getAbsolutePath();
+			} catch (IOException ioe) {
+				logger.error("Error! Unable to dump the request trace to " + file, ioe);
+				msg = "TRACE_ERROR " + ioe.getMessage();
+			}
+		} else if (token[0].equalsIgnoreCase("shutdown")) {
+			server.shutdown();
+			msg = "Server is shutdown";
+		} else if (token[0].equalsIgnoreCase("lockWrite")) {
+			// locked first, so no write lands behind the scan on this server only
+			server.lockWrite();
+			String failure = moveData(token);
+			// the ECS does not publish the new ranges and unlocks on an error
+			msg = failure == null ? "Locked write at " + server.getPort() + " and moved data..."
+					: "LOCKWRITE_ERROR " + failure;
+		} else if (token[0].equalsIgnoreCase("unlockWrite")) {
+			server.unlockWrite();
+			msg = "Unlocked write at " + server.getPort() + "...";
+		} else if (token[0].equalsIgnoreCase("update_metadata")) {
+			server.loadMetadataFromZookeeper();
+			msg = "Updating metadata on " + server.getPort();
+		} else if (token[0].equalsIgnoreCase("metadata_version")) {
+			msg = "METADATA_VERSION " + server.getMetadataVersion();
+		} else if (token[0].equalsIgnoreCase("metadata")) {
+			msg = "METADATA " + server.getMetadataVersion() + " " + server.getMetaData();
+		} else if (server.getServerState() == ServerStateType.STOPPED) {
+			msg = "SERVER_STOPPED";
+		} else if (token[0].equalsIgnoreCase("get")) {
+			if (LogSetup.sample(logger)) {
+				logger.info("Message received with GET request.");
+			}
+			latency = server.getMetrics().get;
+			opcode = BinaryProtocol.GET;
+			boolean append = true;
+			String value = "";
+
+			if (token.length == 2 && server.isReplica(Bytes.of(token[1])) && server.inStorage(token[1])) {
+				try {
+					value = server.getKV(token[1]);
+					msg = "GET_SUCCESS < ";
+				} catch (Exception e) {
+					logger.error("GET_ERROR! Could not find key in DB.");
+				}
+			} else if (token.length != 2) {
+				msg = "GET_ERROR < ";
+			} else if (!server.isReplica(Bytes.of(token[1]))) {
+				msg = "SERVER_NOT_RESPONSIBLE " + server.getMetaData();
+				append = false;
+			} else {
+				msg = "GET_ERROR < ";
+			}
+
+			if (append) {
+				msg += token[1] + ", " + value + " >";
+			}
+		} else if (server.isWriterLocked()) {
+			msg = "SERVER_WRITE_LOCK";
+		} else if(token[0].equalsIgnoreCase("put")) {
+			if (LogSetup.sample(logger)) {
+				logger.info("Message received with PUT request.");
+			}
+
+			if (!(token.length >= 2)) {
+				msg = "INVALID_PUT";
+			} else if (server.isCorrectServer(token[1])) {
+				latency = server.getMetrics().put;
+				opcode = BinaryProtocol.PUT;
+				if ((token.length == 3 && token[2].equalsIgnoreCase("null")) || token.length == 2) {
+					// delete operation
+					latency = server.getMetrics().delete;
+					opcode = BinaryProtocol.DELETE;
+					if (server.inStorage(token[1])) {
+						msg = "DELETE_SUCCESS < ";
+					} else {
+						msg = "DELETE_ERROR < ";
+					}
+				} else if (token.length > 2) {
+					if (server.inStorage(token[1])) {
+						msg = "PUT_UPDATE < ";
+					} else {
+						msg = "PUT_SUCCESS < ";
+					}
+				}
+
+				String value = valueOf(token);
+
+				try {
+					server.putKV(token[1], value);
+				} catch (Exception e) {
+					logger.error("PUT ERROR! Error in PUT function");
+				}
+
+				msg += token[1] + " , " + value + " >";
+			} else {
+				msg = "SERVER_NOT_RESPONSIBLE " + server.getMetaData();
+			}
+		} else {
+			msg = new TextMessage(request).toString();
+		}
+		if (latency != null) {
+			latency.since(start);
+			server.getTrace().record(peerAddress, peerPort, opcode, statusOf(msg),
+					token.length > 1 ? Bytes.of(token[1]) : null, start);
+		}
+		return msg;
+	}
+
+	/* the status a text reply starts with, null if it has none */
+	private static StatusType statusOf(String reply) {
+		int end = reply.indexOf(' ');
+		String name = end < 0 ? reply : reply.substring(0, end);
+		for (StatusType status : STATUSES) {
+			if (status.name().equals(name)) {
+				return status;
+			}
+		}
+		return null;
+	}
+
+	/* the tokens after the key, each followed by a blank as always */
+	private static String valueOf(String[] token) {
+		StringBuilder value = new StringBuilder();
+		for (int i = 2; i < token.length; i++) {
+			value.append(token[i]).append(' ');
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Executes one binary protocol request.
+	 * @return the reply frame
+	 */
+	public BinaryProtocol.Frame handle(BinaryProtocol.Frame request) {
+		long start = System.nanoTime();
+		byte opcode = request.getOpcode();
+		boolean write = opcode == BinaryProtocol.PUT || opcode == BinaryProtocol.DELETE || opcode == BinaryProtocol.MPUT;
+		BinaryProtocol.Frame reply;
+		if (write) {
+			server.clientWriteLock().lock();
+			try {
+				reply = execute(request);
+			} finally {
+				server.clientWriteLock().unlock();
+			}
+		} else {
+			reply = execute(request);
+		}
+		Metrics.Histogram latency = latencyOf(request.getOpcode());
+		if (latency != null) {
+			latency.since(start);
+			server.getTrace().record(peerAddress, peerPort, request.getOpcode(), reply.getStatus(),
+					request.getKeyBytes(), start);
+		}
+		return reply;
+	}
+
+	private Metrics.Histogram latencyOf(byte opcode) {
+		Metrics metrics = server.getMetrics();
+		switch (opcode) {
+		case BinaryProtocol.GET:
+			return metrics.get;
+		case BinaryProtocol.PUT:
+			return metrics.put;
+		case BinaryProtocol.DELETE:
+			return metrics.delete;
+		case BinaryProtocol.MGET:
+		case BinaryProtocol.MPUT:
+			return metrics.batch;
+		case BinaryProtocol.IMPORT:
+			return metrics.importChunk;
+		default:
+			return null;
+		}
+	}
+
+	private BinaryProtocol.Frame execute(BinaryProtocol.Frame request) {
+		byte opcode = request.getOpcode();
+		// the key and value stay encoded, a cache hit is answered with the cached bytes
+		Bytes key = request.getKeyBytes();
+
+		// like text transfers, data handed over by a peer is always taken
+		if (opcode == BinaryProtocol.IMPORT) {
+			return handleImport(request);
+		}
+		if (opcode == BinaryProtocol.METADATA) {
+			return handleMetadata(request);
+		}
+		if (server.getServerState() == ServerStateType.STOPPED) {
+			return reply(request, StatusType.SERVER_STOPPED, key, null);
+		}
+		if (opcode != BinaryProtocol.GET && opcode != BinaryProtocol.MGET && server.isWriterLocked()) {
+			return reply(request, StatusType.SERVER_WRITE_LOCK, key, null);
+		}
+		if (opcode == BinaryProtocol.MGET) {
+			return handleMultiGet(request);
+		}
+		if (opcode == BinaryProtocol.MPUT) {
+			return handleMultiPut(request);
+		}
+		// any replica serves reads, writes go through the responsible server
+		boolean responsible = opcode == BinaryProtocol.GET ? server.isReplica(key) : server.isCorrectServer(key);
+		if (!responsible) {
+			return reply(request, StatusType.SERVER_NOT_RESPONSIBLE, key, Bytes.of(server.getMetaData()));
+		}
+
+		if (opcode == BinaryProtocol.GET) {
+			return get(request);
+		} else if (opcode == BinaryProtocol.PUT) {
+			boolean update = server.inStorage(key.toString());
+			Bytes value = request.getValueBytes();
+			try {
+				long position = server.putKV(key, value);
+				if (!server.awaitReplicas(key, position, request.getWriteQuorum())) {
+					logger.error("PUT ERROR! Key " + key + " not on enough replicas in time");
+					return reply(request, StatusType.PUT_ERROR, key, value);
+				}
+				return reply(request, update ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS, key, value);
+			} catch (Exception e) {
+				logger.error("PUT ERROR! Cannot store key " + key, e);
+				return reply(request, StatusType.PUT_ERROR, key, value);
+			}
+		} else if (opcode == BinaryProtocol.DELETE) {
+			if (!server.inStorage(key.toString())) {
+				return reply(request, StatusType.DELETE_ERROR, key, null);
+			}
+			try {
+				long position = server.putKV(key, null);
+				if (!server.awaitReplicas(key, position, request.getWriteQuorum())) {
+					logger.error("DELETE ERROR! Key " + key + " not deleted on enough replicas in time");
+					return reply(request, StatusType.DELETE_ERROR, key, null);
+				}
+				return reply(request, StatusType.DELETE_SUCCESS, key, null);
+			} catch (Exception e) {
+				logger.error("DELETE ERROR! Cannot delete key " + key, e);
+				return reply(request, StatusType.DELETE_ERROR, key, null);
+			}
+		}
+		logger.error("Error! Unknown binary opcode " + opcode);
+		return reply(request, StatusType.PUT_ERROR, key, null);
+	}
+
+	private BinaryProtocol.Frame handleMultiGet(BinaryProtocol.Frame request) {
+		List<BinaryProtocol.Frame> replies = new ArrayList<BinaryProtocol.Frame>(request.getEntries().size());
+		boolean metadataSent = false;
+		for (BinaryProtocol.Frame entry : request.getEntries()) {
+			String key = entry.getKey();
+			if (!server.isReplica(entry.getKeyBytes())) {
+				replies.add(reply(entry, StatusType.SERVER_NOT_RESPONSIBLE, key,
+						metadataSent ? null : server.getMetaData()));
+				metadataSent = true;
+				continue;
+			}
+			replies.add(get(entry));
+		}
+		return new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(), StatusType.GET_SUCCESS, replies);
+	}
+
+	/* the reply to a GET or to one entry of an MGET */
+	private BinaryProtocol.Frame get(BinaryProtocol.Frame entry) {
+		Bytes key = entry.getKeyBytes();
+		try {
+			byte[] value = server.getValue(key);
+			if (value == null) {
+				return reply(entry, StatusType.GET_ERROR, key, null);
+			}
+			return reply(entry, StatusType.GET_SUCCESS, key, Bytes.wrap(value));
+		} catch (Exception e) {
+			logger.error("GET_ERROR! Cannot read key " + key, e);
+			return reply(entry, StatusType.GET_ERROR, key, null);
+		}
+	}
+
+	/*
+	 * The entries this server is responsible for are stored with a single
+	 * commit, the replies say per entry whether it was new, updated or
+	 * deleted, like for single requests.
+	 */
+	private BinaryProtocol.Frame handleMultiPut(BinaryProtocol.Frame request) {
+		List<BinaryProtocol.Frame> entries = request.getEntries();
+		StatusType[] statuses = new StatusType[entries.size()];
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		boolean metadataSent = false;
+		List<BinaryProtocol.Frame> replies = new ArrayList<BinaryProtocol.Frame>(entries.size());
+
+		for (int i = 0; i < entries.size(); i++) {
+			BinaryProtocol.Frame entry = entries.get(i);
+			String key = entry.getKey();
+			if (!server.isCorrectServer(entry.getKeyBytes())) {
+				statuses[i] = StatusType.SERVER_NOT_RESPONSIBLE;
+				continue;
+			}
+			boolean exists = server.inStorage(key);
+			if (entry.getOpcode() == BinaryProtocol.DELETE) {
+				statuses[i] = exists ? StatusType.DELETE_SUCCESS : StatusType.DELETE_ERROR;
+				if (!exists) {
+					continue;
+				}
+			} else {
+				statuses[i] = exists ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS;
+			}
+			keys.add(key);
+			values.add(entry.getOpcode() == BinaryProtocol.DELETE ? null : entry.getValue());
+		}
+
+		boolean failed = false;
+		try {
+			server.putAllKV(keys, values);
+		} catch (Exception e) {
+			logger.error("PUT ERROR! Cannot store batch of " + keys.size() + " keys", e);
+			failed = true;
+		}
+
+		for (int i = 0; i < entries.size(); i++) {
+			BinaryProtocol.Frame entry = entries.get(i);
+			StatusType status = statuses[i];
+			if (status == StatusType.SERVER_NOT_RESPONSIBLE) {
+				replies.add(reply(entry, status, entry.getKey(), metadataSent ? null : server.getMetaData()));
+				metadataSent = true;
+			} else if (failed && status != StatusType.DELETE_ERROR) {
+				replies.add(error(entry));
+			} else {
+				replies.add(reply(entry, status, entry.getKeyBytes(), entry.getValueBytes()));
+			}
+		}
+		return new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(), StatusType.PUT_SUCCESS, replies);
+	}
+
+	/* a chunk of a range moving to this server, stored with a single commit */
+	private BinaryProtocol.Frame handleImport(BinaryProtocol.Frame request) {
+		try {
+			List<BinaryProtocol.Frame> entries = RangeTransfer.decode(request.getValueBytes());
+			List<String> keys = new ArrayList<String>(entries.size());
+			List<String> values = new ArrayList<String>(entries.size());
+			for (BinaryProtocol.Frame entry : entries) {
+				keys.add(entry.getKey());
+				values.add(entry.getValue());
+			}
+			server.importKV(keys, values);
+			return reply(request, StatusType.PUT_SUCCESS, Bytes.EMPTY, null);
+		} catch (Exception e) {
+			logger.error("TRANSFER ERROR! Cannot import chunk", e);
+			return reply(request, StatusType.PUT_ERROR, Bytes.EMPTY, null);
+		}
+	}
+
+	/* the applied metadata version, with the metadata if the client's is older */
+	private BinaryProtocol.Frame handleMetadata(BinaryProtocol.Frame request) {
+		int version = server.getMetadataVersion();
+		String known = request.getKey();
+		String metadata = known.equals(Integer.toString(version)) ? null : server.getMetaData();
+		return reply(request, StatusType.GET_SUCCESS, Integer.toString(version), metadata);
+	}
+
+	/**
+	 * @return the error reply to a request that could not be executed
+	 */
+	public static BinaryProtocol.Frame error(BinaryProtocol.Frame request) {
+		StatusType status = StatusType.PUT_ERROR;
+		if (request.getOpcode() == BinaryProtocol.GET || request.getOpcode() == BinaryProtocol.MGET
+				|| request.getOpcode() == BinaryProtocol.METADATA) {
+			status = StatusType.GET_ERROR;
+		} else if (request.getOpcode() == BinaryProtocol.DELETE) {
+			status = StatusType.DELETE_ERROR;
+		}
+		return reply(request, status, request.getKey(), null);
+	}
+
+	/* replies echo the opcode and request id of their request */
+	private static BinaryProtocol.Frame reply(BinaryProtocol.Frame request, StatusType status, String key, String value) {
+		return new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(), status, key, value);
+	}
+
+	private static BinaryProtocol.Frame reply(BinaryProtocol.Frame request, StatusType status, Bytes key, Bytes value) {
+		return new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(), status, key, value);
+	}
+}
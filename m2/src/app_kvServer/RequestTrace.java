@@ -0,0 +1,259 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * The last requests of a server in a ring of fixed size binary records, so
+ * that what happened before a problem can be looked at without logging every
+ * request. Recording is a few stores into a preallocated buffer, no String
+ * is built and nothing is written out until the trace is dumped, see the
+ * "trace" command.
+ * <p>
+ * A record takes SLOT_SIZE bytes:
+ * <pre>
+ *  0 sequence    long, 0 if the slot was never written
+ *  8 time        long, milliseconds since the epoch
+ * 16 duration    long, nanoseconds
+ * 24 peer        int, IPv4 address of the client, 0 if not known
+ * 28 port        unsigned short
+ * 30 opcode      byte, as in BinaryProtocol
+ * 31 status      byte, StatusType ordinal + 1, 0 for none
+ * 32 key length  unsigned byte, the length of the whole key up to 255
+ * 33 key         the first MAX_KEY bytes of the key
+ * </pre>
+ * Writers do not lock, each claims the next slot. A record still being
+ * written while the trace is dumped is left out of the dump.
+ */
+public class RequestTrace {
+
+	public static final int SLOT_SIZE = 64;
+	public static final int MAX_KEY = SLOT_SIZE - 33;
+	public static final int DEFAULT_SIZE = 4096;
+
+	/* "KVTR" */
+	private static final int MAGIC = 0x4b565452;
+	private static final int FORMAT = 1;
+
+	private final int mask;
+	private final ByteBuffer records;
+	/* the sequence of each slot, -1 while it is written */
+	private final AtomicLongArray sequences;
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * @param size the number of requests kept, rounded up to a power of two
+	 */
+	public RequestTrace(int size) {
+		int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.mask = slots - 1;
+		this.records = ByteBuffer.allocate(slots * SLOT_SIZE);
+		this.sequences = new AtomicLongArray(slots);
+	}
+
+	public int size() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the IPv4 address of a client as it is recorded, 0 if it has
+	 * 		none
+	 */
+	public static int addressOf(InetSocketAddress peer) {
+		if (peer == null || peer.getAddress() == null) {
+			return 0;
+		}
+		byte[] bytes = peer.getAddress().getAddress();
+		return bytes.length == 4 ? ByteBuffer.wrap(bytes).getInt() : 0;
+	}
+
+	/**
+	 * Records a request that was executed.
+	 * @param address the IPv4 address of the client, see addressOf
+	 * @param port the port of the client
+	 * @param opcode the BinaryProtocol opcode, text requests use the opcode
+	 * 		of the same operation
+	 * @param status the status of the reply, null if it had none
+	 * @param key the key of the request, null if it had none
+	 * @param start the System.nanoTime() when the request was taken up
+	 */
+	public void record(int address, int port, byte opcode, StatusType status, Bytes key, long start) {
+		long duration = System.nanoTime() - start;
+		long sequence = next.incrementAndGet();
+		int slot = (int) (sequence & mask);
+		int base = slot * SLOT_SIZE;
+
+		sequences.set(slot, -1);
+		records.putLong(base + 8, System.currentTimeMillis());
+		records.putLong(base + 16, duration);
+		records.putInt(base + 24, address);
+		records.putShort(base + 28, (short) port);
+		records.put(base + 30, opcode);
+		records.put(base + 31, (byte) (status == null ? 0 : status.ordinal() + 1));
+		int length = key == null ? 0 : key.length();
+		records.put(base + 32, (byte) Math.min(length, 255));
+		for (int i = 0; i < Math.min(length, MAX_KEY); i++) {
+			records.put(base + 33 + i, key.byteAt(i));
+		}
+		sequences.lazySet(slot, sequence);
+	}
+
+	/**
+	 * Writes the records, oldest first, to a file, see read for the format.
+	 * @return the number of records written
+	 * @throws IOException if the file cannot be written
+	 */
+	public int dump(File file) throws IOException {
+		long last = next.get();
+		long first = Math.max(1, last - mask);
+		List<byte[]> copies = new ArrayList<byte[]>();
+		for (long sequence = first; sequence <= last; sequence++) {
+			int slot = (int) (sequence & mask);
+			if (sequences.get(slot) != sequence) {
+				continue;
+			}
+			byte[] copy = new byte[SLOT_SIZE];
+			ByteBuffer source = records.duplicate();
+			source.position(slot * SLOT_SIZE);
+			source.get(copy);
+			// overwritten while it was copied
+			if (sequences.get(slot) != sequence) {
+				continue;
+			}
+			ByteBuffer.wrap(copy).putLong(0, sequence);
+			copies.add(copy);
+		}
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(SLOT_SIZE);
+			out.writeInt(copies.size());
+			for (byte[] copy : copies) {
+				out.write(copy);
+			}
+		} finally {
+			out.close();
+		}
+		return copies.size();
+	}
+
+	/**
+	 * Decodes a dumped trace, a header of the magic "KVTR", the format
+	 * version, the record size and the number of records, followed by the
+	 * records.
+	 * @return a line per request
+	 * @throws IOException if the file cannot be read or is not a trace
+	 */
+	public static List<String> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+				throw new IOException(file + " is not a request trace");
+			}
+			int slotSize = in.readInt();
+			int count = in.readInt();
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			List<String> lines = new ArrayList<String>(count);
+			byte[] record = new byte[slotSize];
+			for (int i = 0; i < count; i++) {
+				in.readFully(record);
+				lines.add(format(ByteBuffer.wrap(record), format));
+			}
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String format(ByteBuffer record, SimpleDateFormat format) throws IOException {
+		StringBuilder line = new StringBuilder();
+		line.append(record.getLong(0)).append(' ');
+		line.append(format.format(new Date(record.getLong(8)))).append(' ');
+		int address = record.getInt(24);
+		if (address == 0) {
+			line.append('-');
+		} else {
+			byte[] bytes = ByteBuffer.allocate(4).putInt(address).array();
+			line.append(InetAddress.getByAddress(bytes).getHostAddress());
+		}
+		line.append(':').append(record.getShort(28) & 0xffff).append(' ');
+		line.append(opcodeName(record.get(30))).append(' ');
+		int status = record.get(31) & 0xff;
+		line.append(status == 0 || status > StatusType.values().length ? "-" : StatusType.values()[status - 1].name());
+		line.append(' ').append(record.getLong(16) / 1000).append("us ");
+		int length = record.get(32) & 0xff;
+		line.append(new String(record.array(), 33, Math.min(length, MAX_KEY), StandardCharsets.UTF_8));
+		if (length > MAX_KEY) {
+			line.append("...");
+		}
+		return line.toString();
+	}
+
+	private static String opcodeName(byte opcode) {
+		switch (opcode) {
+		case BinaryProtocol.GET:
+			return "GET";
+		case BinaryProtocol.PUT:
+			return "PUT";
+		case BinaryProtocol.DELETE:
+			return "DELETE";
+		case BinaryProtocol.MGET:
+			return "MGET";
+		case BinaryProtocol.MPUT:
+			return "MPUT";
+		case BinaryProtocol.IMPORT:
+			return "IMPORT";
+		case BinaryProtocol.METADATA:
+			return "METADATA";
+		default:
+			return Integer.toString(opcode);
+		}
+	}
+
+	/**
+	 * Prints dumped traces as text.
+	 * @param args the trace files
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: RequestTrace <trace file>...");
+			System.exit(1);
+		}
+		for (String name : args) {
+			try {
+				for (String line : read(new File(name))) {
+					System.out.println(line);
+				}
+			} catch (IOException e) {
+				System.out.println("Error! Unable to read trace " + name + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package app_kvServer;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import shared.messages.BinaryProtocol;
+
+/**
+ * Requests of one connection that wait for or are in execution.
+ * <p>
+ * Workers claim the window and then take requests with next() until it
+ * returns null. Up to the parallelism of the window may do so at the same
+ * time. Requests for the same key still execute in the order they arrived,
+ * others may overtake each other, which is what lets a pipelined binary
+ * connection answer out of order. An MGET or MPUT waits for, and holds
+ * back, the requests for any of its keys. With a parallelism of one, the
+ * default, every request executes in arrival order.
+ */
+public class RequestWindow {
+
+	/* workers a pipelined connection may occupy at once */
+	public static final int PIPELINED_PARALLELISM = 16;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition completed = lock.newCondition();
+
+	private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+	/* keys of the requests in execution */
+	private final Set<String> activeKeys = new HashSet<String>();
+	private int parallelism = 1;
+	private int workers = 0;
+	private int executing = 0;
+
+	public void setParallelism(int parallelism) {
+		lock.lock();
+		try {
+			this.parallelism = parallelism;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting or in execution
+	 */
+	public int add(Object request) {
+		lock.lock();
+		try {
+			queue.add(request);
+			return queue.size() + executing;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size() + executing;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reserves a worker slot if a request can run and the parallelism
+	 * allows another worker.
+	 */
+	public boolean claim() {
+		lock.lock();
+		try {
+			if (workers >= parallelism || runnable(false) == null) {
+				return false;
+			}
+			workers++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives back a slot that was claimed but never used.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			workers--;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next request the claiming worker should execute, or null
+	 * 		once there is none, which also gives back its slot
+	 */
+	public Object next() {
+		lock.lock();
+		try {
+			Object request = runnable(true);
+			if (request == null) {
+				workers--;
+				return null;
+			}
+			activeKeys.addAll(keysOf(request));
+			executing++;
+			return request;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks a request returned by next() as answered.
+	 */
+	public void done(Object request) {
+		lock.lock();
+		try {
+			activeKeys.removeAll(keysOf(request));
+			executing--;
+			completed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until fewer than limit requests are waiting or in execution.
+	 */
+	public void awaitBelow(int limit) throws InterruptedException {
+		lock.lock();
+		try {
+			while (queue.size() + executing >= limit) {
+				completed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Finds the oldest request whose key is neither in execution nor held
+	 * back by an older request for the same key.
+	 */
+	private Object runnable(boolean remove) {
+		Set<String> blocked = null;
+		for (Iterator<Object> it = queue.iterator(); it.hasNext();) {
+			Object request = it.next();
+			Set<String> keys = keysOf(request);
+			if (conflicts(keys, activeKeys) || (blocked != null && conflicts(keys, blocked))) {
+				if (blocked == null) {
+					blocked = new HashSet<String>();
+				}
+				blocked.addAll(keys);
+				continue;
+			}
+			if (remove) {
+				it.remove();
+			}
+			return request;
+		}
+		return null;
+	}
+
+	private static boolean conflicts(Set<String> keys, Set<String> others) {
+		for (String key : keys) {
+			if (others.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* text lines and hellos are only ever pipelined with a parallelism of one */
+	private static Set<String> keysOf(Object request) {
+		if (!(request instanceof BinaryProtocol.Frame)) {
+			return Collections.<String>emptySet();
+		}
+		BinaryProtocol.Frame frame = (BinaryProtocol.Frame) request;
+		if (frame.getEntries() == null) {
+			return Collections.singleton(frame.getKey());
+		}
+		Set<String> keys = new HashSet<String>();
+		for (BinaryProtocol.Frame entry : frame.getEntries()) {
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,418 @@
+package app_kvServer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Immutable sorted table written by LSMStorage when a memtable is flushed
+ * or tables are merged.
+ * <p>
+ * Layout: data blocks | block index | bloom filter | footer. Entries are
+ * sorted by sort key (key hash followed by the key, see LSMStorage) and
+ * packed into blocks of about BLOCK_SIZE bytes. The sparse block index and
+ * the bloom filter are loaded into memory when the table is opened, so a
+ * lookup reads at most one block from disk.
+ * <p>
+ * Entry layout: sort key length (4) | value length (4) | sort key | value,
+ * where a value length of -1 marks a deletion.
+ */
+class SSTable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	static final String SUFFIX = ".sst";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BLOCK_SIZE = 4 * 1024;
+	private static final int FOOTER_SIZE = 36;
+	private static final int MAGIC = 0x4c534d31;
+	private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+	/* ids of the oldest and newest flushed memtable merged into this table */
+	final int minId;
+	final int maxId;
+	final File file;
+	final long size;
+	final long entryCount;
+
+	private final FileChannel channel;
+	/* the whole file, or null if it is too large to be mapped */
+	private final MappedByteBuffer mapped;
+	private final String[] blockKeys;
+	private final long[] blockOffsets;
+	private final int[] blockLengths;
+	private final BloomFilter bloom;
+
+	/* one reference is held by the storage state, the others by readers */
+	private final AtomicInteger refs = new AtomicInteger(1);
+	private volatile boolean obsolete = false;
+
+	private SSTable(File file, FileChannel channel, int minId, int maxId, long entryCount,
+			String[] blockKeys, long[] blockOffsets, int[] blockLengths, BloomFilter bloom) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.size = channel.size();
+		this.mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+		this.minId = minId;
+		this.maxId = maxId;
+		this.entryCount = entryCount;
+		this.blockKeys = blockKeys;
+		this.blockOffsets = blockOffsets;
+		this.blockLengths = blockLengths;
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Writes the entries, which must be sorted by sort key, into a new table
+	 * file and opens it. The file only appears under its final name once it
+	 * is complete and synced.
+	 */
+	static SSTable write(File file, int minId, int maxId, Iterator<Entry> entries,
+			long expectedEntries) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BloomFilter bloom = new BloomFilter(expectedEntries, BLOOM_FALSE_POSITIVE_RATE);
+		List<String> keys = new ArrayList<String>();
+		List<Long> offsets = new ArrayList<Long>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		long entryCount = 0;
+		long offset = 0;
+
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+			ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+			DataOutputStream block = new DataOutputStream(blockBytes);
+
+			while (entries.hasNext()) {
+				Entry entry = entries.next();
+				if (blockBytes.size() == 0) {
+					keys.add(entry.sortKey);
+				}
+				byte[] sortKey = entry.sortKey.getBytes(UTF8);
+				byte[] value = entry.value == null ? null : entry.value.getBytes(UTF8);
+				block.writeInt(sortKey.length);
+				block.writeInt(value == null ? -1 : value.length);
+				block.write(sortKey);
+				if (value != null) {
+					block.write(value);
+				}
+				bloom.add(entry.key());
+				entryCount++;
+
+				if (blockBytes.size() >= BLOCK_SIZE) {
+					offsets.add(offset);
+					lengths.add(blockBytes.size());
+					offset += blockBytes.size();
+					blockBytes.writeTo(out);
+					blockBytes.reset();
+				}
+			}
+			if (blockBytes.size() > 0) {
+				offsets.add(offset);
+				lengths.add(blockBytes.size());
+				offset += blockBytes.size();
+				blockBytes.writeTo(out);
+			}
+
+			long indexOffset = offset;
+			ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+			DataOutputStream index = new DataOutputStream(indexBytes);
+			index.writeInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				byte[] key = keys.get(i).getBytes(UTF8);
+				index.writeInt(key.length);
+				index.write(key);
+				index.writeLong(offsets.get(i));
+				index.writeInt(lengths.get(i));
+			}
+			indexBytes.writeTo(out);
+
+			long bloomOffset = indexOffset + indexBytes.size();
+			bloom.writeTo(out);
+
+			out.writeInt(minId);
+			out.writeInt(maxId);
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(entryCount);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getChannel().force(true);
+		} finally {
+			fileOut.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+		return open(file);
+	}
+
+	static SSTable open(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			long size = channel.size();
+			if (size < FOOTER_SIZE) {
+				throw new IOException("Truncated table " + file);
+			}
+
+			ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+			int minId = footer.getInt();
+			int maxId = footer.getInt();
+			long indexOffset = footer.getLong();
+			long bloomOffset = footer.getLong();
+			long entryCount = footer.getLong();
+			if (footer.getInt() != MAGIC) {
+				throw new IOException("Corrupt table footer in " + file);
+			}
+
+			ByteBuffer index = read(channel, indexOffset, (int) (bloomOffset - indexOffset));
+			int blocks = index.getInt();
+			String[] blockKeys = new String[blocks];
+			long[] blockOffsets = new long[blocks];
+			int[] blockLengths = new int[blocks];
+			for (int i = 0; i < blocks; i++) {
+				byte[] key = new byte[index.getInt()];
+				index.get(key);
+				blockKeys[i] = new String(key, UTF8);
+				blockOffsets[i] = index.getLong();
+				blockLengths[i] = index.getInt();
+			}
+
+			BloomFilter bloom = BloomFilter.readFrom(
+					read(channel, bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)));
+			return new SSTable(file, channel, minId, maxId, entryCount,
+					blockKeys, blockOffsets, blockLengths, bloom);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw new IOException("Corrupt table " + file, e);
+		}
+	}
+
+	boolean mightContain(String key) {
+		return bloom.mightContain(key);
+	}
+
+	/**
+	 * @return the entry stored for the sort key, which has a null value if
+	 * 		the key was deleted, or null if this table has no entry for it
+	 */
+	Entry get(String sortKey) throws IOException {
+		int block = floorBlock(sortKey);
+		if (block < 0) {
+			return null;
+		}
+
+		/* only the value of the matching entry is decoded */
+		ByteBuffer data = block(block);
+		while (data.hasRemaining()) {
+			int keyLength = data.getInt();
+			int valueLength = data.getInt();
+			int cmp = decode(data, keyLength).compareTo(sortKey);
+			if (cmp == 0) {
+				return new Entry(sortKey, valueLength < 0 ? null : decode(data, valueLength));
+			} else if (cmp > 0) {
+				break;
+			}
+			data.position(data.position() + Math.max(valueLength, 0));
+		}
+		return null;
+	}
+
+	/**
+	 * @return an iterator over all entries with a sort key greater than or
+	 * 		equal to from, or over the whole table if from is null
+	 */
+	Iterator<Entry> iterator(String from) {
+		int block = from == null ? 0 : Math.max(floorBlock(from), 0);
+		return new BlockIterator(block, from);
+	}
+
+	/**
+	 * Takes a reference so the file stays open while it is being read.
+	 * @return false if the table has already been closed
+	 */
+	boolean acquire() {
+		for (;;) {
+			int current = refs.get();
+			if (current == 0) {
+				return false;
+			}
+			if (refs.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		if (refs.decrementAndGet() == 0) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to close table " + file, e);
+			}
+			if (obsolete && !file.delete()) {
+				logger.warn("Unable to delete table " + file);
+			}
+		}
+	}
+
+	/**
+	 * Drops the reference held by the storage state and deletes the file
+	 * once the last reader is done with it.
+	 */
+	void markObsolete() {
+		obsolete = true;
+		release();
+	}
+
+	private int floorBlock(String sortKey) {
+		int low = 0;
+		int high = blockKeys.length - 1;
+		int floor = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (blockKeys[mid].compareTo(sortKey) <= 0) {
+				floor = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return floor;
+	}
+
+	/* a view of the block in the mapping, or a copy if the table is not mapped */
+	private ByteBuffer block(int block) throws IOException {
+		if (mapped == null) {
+			return read(channel, blockOffsets[block], blockLengths[block]);
+		}
+		ByteBuffer data = mapped.duplicate();
+		data.position((int) blockOffsets[block]);
+		data.limit((int) blockOffsets[block] + blockLengths[block]);
+		return data.slice();
+	}
+
+	private static Entry readEntry(ByteBuffer data) {
+		int keyLength = data.getInt();
+		int valueLength = data.getInt();
+		String sortKey = decode(data, keyLength);
+		String value = valueLength < 0 ? null : decode(data, valueLength);
+		return new Entry(sortKey, value);
+	}
+
+	private static String decode(ByteBuffer data, int length) {
+		if (data.hasArray()) {
+			String s = new String(data.array(), data.arrayOffset() + data.position(), length, UTF8);
+			data.position(data.position() + length);
+			return s;
+		}
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Unexpected end of table");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Sequential scan over the data blocks, one block in memory at a time.
+	 */
+	private class BlockIterator implements Iterator<Entry> {
+		private int block;
+		private ByteBuffer data;
+		private Entry next;
+
+		BlockIterator(int block, String from) {
+			this.block = block;
+			advance();
+			while (from != null && next != null && next.sortKey.compareTo(from) < 0) {
+				advance();
+			}
+		}
+
+		private void advance() {
+			next = null;
+			try {
+				while (data == null || !data.hasRemaining()) {
+					if (block >= blockKeys.length) {
+						return;
+					}
+					data = block(block);
+					block++;
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read table " + file, e);
+			}
+			next = readEntry(data);
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Entry next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry current = next;
+			advance();
+			return current;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A key-value pair ordered by sort key. A null value marks a deletion.
+	 */
+	static final class Entry {
+		final String sortKey;
+		final String value;
+
+		Entry(String sortKey, String value) {
+			this.sortKey = sortKey;
+			this.value = value;
+		}
+
+		String key() {
+			return LSMStorage.keyOf(sortKey);
+		}
+
+		String hash() {
+			return LSMStorage.hashOf(sortKey);
+		}
+	}
+}
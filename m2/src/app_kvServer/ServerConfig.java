@@ -0,0 +1,251 @@
+package app_kvServer;
+
+/**
+ * Optional server settings that follow port, cache size and strategy on the
+ * command line, given as key=value pairs:
+ * <p>
+ * storage=LOG|LSM, fsync=ALWAYS|INTERVAL|NEVER, fsyncInterval=&lt;ms&gt;,
+ * frontend=NIO|THREAD, reactors=&lt;n&gt;, workers=&lt;n&gt;, workQueue=&lt;n&gt;,
+ * executor=PLATFORM|POOL|VIRTUAL, poolSize=&lt;n&gt;,
+ * cacheMemory=&lt;bytes&gt;[k|m|g], logSample=&lt;n&gt;, traceSize=&lt;n&gt;
+ * <p>
+ * The executor options only apply to the THREAD front end. A cacheMemory
+ * above zero replaces the cache of cache size entries with an OffHeapCache
+ * of that many bytes. With logSample=n only one in n requests is logged,
+ * traceSize is the number of requests kept by the RequestTrace.
+ * <p>
+ * A bare LOG or LSM is accepted as the storage engine, as in earlier
+ * releases.
+ */
+public class ServerConfig {
+
+	public enum FrontEnd {
+		NIO,	/* selector based reactors feeding a bounded worker pool */
+		THREAD	/* legacy thread per connection */
+	};
+
+	public enum Executor {
+		PLATFORM,	/* a new platform thread per connection */
+		POOL,		/* a fixed pool of poolSize threads */
+		VIRTUAL		/* a virtual thread per connection, needs JDK 21 */
+	};
+
+	public static final long DEFAULT_FSYNC_INTERVAL = 10;
+	public static final int DEFAULT_POOL_SIZE = 256;
+	public static final int DEFAULT_WORK_QUEUE = 1024;
+
+	private IKVStorage.StorageEngine storageEngine = IKVStorage.StorageEngine.LOG;
+	private WriteAheadLog.FsyncPolicy fsyncPolicy = WriteAheadLog.FsyncPolicy.INTERVAL;
+	private long fsyncInterval = DEFAULT_FSYNC_INTERVAL;
+	private FrontEnd frontEnd = FrontEnd.NIO;
+	private int reactors = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private int workers = 2 * Runtime.getRuntime().availableProcessors();
+	private int workQueue = DEFAULT_WORK_QUEUE;
+	private Executor executor = Executor.PLATFORM;
+	private int poolSize = DEFAULT_POOL_SIZE;
+	private long cacheMemory = 0;
+	private int logSample = 1;
+	private int traceSize = RequestTrace.DEFAULT_SIZE;
+
+	/**
+	 * @throws IllegalArgumentException if an option is unknown or has an
+	 * 		invalid value
+	 */
+	public static ServerConfig parse(String[] options) {
+		ServerConfig config = new ServerConfig();
+		for (String option : options) {
+			int split = option.indexOf('=');
+			String name = split < 0 ? "storage" : option.substring(0, split).trim();
+			String value = option.substring(split + 1).trim();
+
+			if (name.equals("storage")) {
+				config.setStorageEngine(IKVStorage.StorageEngine.valueOf(value.toUpperCase()));
+			} else if (name.equals("fsync")) {
+				config.setFsyncPolicy(WriteAheadLog.FsyncPolicy.valueOf(value.toUpperCase()));
+			} else if (name.equals("fsyncInterval")) {
+				config.setFsyncInterval(Long.parseLong(value));
+			} else if (name.equals("frontend")) {
+				config.setFrontEnd(FrontEnd.valueOf(value.toUpperCase()));
+			} else if (name.equals("reactors")) {
+				config.setReactors(Integer.parseInt(value));
+			} else if (name.equals("workers")) {
+				config.setWorkers(Integer.parseInt(value));
+			} else if (name.equals("workQueue")) {
+				config.setWorkQueue(Integer.parseInt(value));
+			} else if (name.equals("executor")) {
+				config.setExecutor(Executor.valueOf(value.toUpperCase()));
+			} else if (name.equals("poolSize")) {
+				config.setPoolSize(Integer.parseInt(value));
+			} else if (name.equals("cacheMemory")) {
+				config.setCacheMemory(parseBytes(value));
+			} else if (name.equals("logSample")) {
+				config.setLogSample(Integer.parseInt(value));
+			} else if (name.equals("traceSize")) {
+				config.setTraceSize(Integer.parseInt(value));
+			} else {
+				throw new IllegalArgumentException("Unknown server option " + option);
+			}
+		}
+		return config;
+	}
+
+	public static String usage() {
+		return "[storage=LOG|LSM] [fsync=ALWAYS|INTERVAL|NEVER] [fsyncInterval=<ms>] "
+				+ "[frontend=NIO|THREAD] [reactors=<n>] [workers=<n>] [workQueue=<n>] "
+				+ "[executor=PLATFORM|POOL|VIRTUAL] [poolSize=<n>] "
+				+ "[cacheMemory=<bytes>[k|m|g]] [logSample=<n>] [traceSize=<n>]";
+	}
+
+	public IKVStorage.StorageEngine getStorageEngine() {
+		return storageEngine;
+	}
+
+	public ServerConfig setStorageEngine(IKVStorage.StorageEngine storageEngine) {
+		this.storageEngine = storageEngine;
+		return this;
+	}
+
+	public WriteAheadLog.FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public ServerConfig setFsyncPolicy(WriteAheadLog.FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+		return this;
+	}
+
+	public long getFsyncInterval() {
+		return fsyncInterval;
+	}
+
+	public ServerConfig setFsyncInterval(long fsyncInterval) {
+		if (fsyncInterval <= 0) {
+			throw new IllegalArgumentException("fsyncInterval must be positive");
+		}
+		this.fsyncInterval = fsyncInterval;
+		return this;
+	}
+
+	public FrontEnd getFrontEnd() {
+		return frontEnd;
+	}
+
+	public ServerConfig setFrontEnd(FrontEnd frontEnd) {
+		this.frontEnd = frontEnd;
+		return this;
+	}
+
+	public int getReactors() {
+		return reactors;
+	}
+
+	public ServerConfig setReactors(int reactors) {
+		this.reactors = positive("reactors", reactors);
+		return this;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public ServerConfig setWorkers(int workers) {
+		this.workers = positive("workers", workers);
+		return this;
+	}
+
+	public int getWorkQueue() {
+		return workQueue;
+	}
+
+	public ServerConfig setWorkQueue(int workQueue) {
+		this.workQueue = positive("workQueue", workQueue);
+		return this;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public ServerConfig setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public ServerConfig setPoolSize(int poolSize) {
+		this.poolSize = positive("poolSize", poolSize);
+		return this;
+	}
+
+	public long getCacheMemory() {
+		return cacheMemory;
+	}
+
+	/**
+	 * @param cacheMemory the bytes of an off-heap cache, or 0 for a cache
+	 * 		bounded by its number of entries
+	 */
+	public ServerConfig setCacheMemory(long cacheMemory) {
+		if (cacheMemory < 0) {
+			throw new IllegalArgumentException("cacheMemory must not be negative");
+		}
+		this.cacheMemory = cacheMemory;
+		return this;
+	}
+
+	public int getLogSample() {
+		return logSample;
+	}
+
+	/**
+	 * @param logSample log one in that many requests, 1 to log all
+	 */
+	public ServerConfig setLogSample(int logSample) {
+		this.logSample = positive("logSample", logSample);
+		return this;
+	}
+
+	public int getTraceSize() {
+		return traceSize;
+	}
+
+	public ServerConfig setTraceSize(int traceSize) {
+		this.traceSize = positive("traceSize", traceSize);
+		return this;
+	}
+
+	/* a number of bytes with an optional k, m or g suffix */
+	private static long parseBytes(String value) {
+		long unit = 1;
+		char suffix = Character.toLowerCase(value.charAt(value.length() - 1));
+		if (suffix == 'k') {
+			unit = 1024;
+		} else if (suffix == 'm') {
+			unit = 1024 * 1024;
+		} else if (suffix == 'g') {
+			unit = 1024 * 1024 * 1024;
+		}
+		if (unit > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		return Long.parseLong(value) * unit;
+	}
+
+	private static int positive(String name, int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + " must be positive");
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "storage=" + storageEngine + " fsync=" + fsyncPolicy + " fsyncInterval=" + fsyncInterval
+				+ " frontend=" + frontEnd + " reactors=" + reactors + " workers=" + workers
+				+ " workQueue=" + workQueue + " executor=" + executor + " poolSize=" + poolSize
+				+ " cacheMemory=" + cacheMemory + " logSample=" + logSample + " traceSize=" + traceSize;
+	}
+}
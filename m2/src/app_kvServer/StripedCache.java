@@ -0,0 +1,209 @@
+package app_kvServer;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import shared.messages.Bytes;
+
+/**
+ * Concurrent cache made of independently locked segments, each one a small
+ * lru_cache, fifo_cache, lfu_cache or TinyLfuCache with its share of the
+ * capacity. A key
+ * always maps to the same segment, so connections touching different keys
+ * rarely wait for each other, and eviction happens per segment, which
+ * approximates the replacement strategy over the whole cache.
+ * <p>
+ * Reads of LRU, LFU and TINYLFU segments update their access order or
+ * frequencies and take the segment lock exclusively, reads of FIFO
+ * segments share it. Hits and misses are counted without locking.
+ */
+public class StripedCache implements IKVCache {
+
+	private static final int MAX_SEGMENTS = 16;
+	/* small caches get fewer segments, so each keeps a useful history */
+	private static final int MIN_SEGMENT_SIZE = 8;
+	private static final float LFU_EVICTION_FACTOR = 0.5f;
+
+	private final CacheStrategy strategy;
+	private final Segment[] segments;
+	private final int mask;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @return the cache for the strategy, or null for CacheStrategy.None
+	 */
+	public static IKVCache create(CacheStrategy strategy, int size) {
+		if (strategy == CacheStrategy.None || size <= 0) {
+			return null;
+		}
+		return new StripedCache(strategy, size);
+	}
+
+	public StripedCache(CacheStrategy strategy, int size) {
+		if (strategy == CacheStrategy.None) {
+			throw new IllegalArgumentException("No cache for strategy " + strategy);
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS && size / (count * 2) >= MIN_SEGMENT_SIZE) {
+			count *= 2;
+		}
+		this.strategy = strategy;
+		this.segments = new Segment[count];
+		this.mask = count - 1;
+		for (int i = 0; i < count; i++) {
+			// spread the remainder so the capacities add up to size
+			int capacity = size / count + (i < size % count ? 1 : 0);
+			segments[i] = new Segment(newPolicy(strategy, capacity), strategy != CacheStrategy.FIFO);
+		}
+	}
+
+	public CacheStrategy getStrategy() {
+		return strategy;
+	}
+
+	public byte[] get(Bytes key) {
+		byte[] value = segmentFor(key).get(key);
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	public void put(Bytes key, byte[] value) {
+		segmentFor(key).put(key.compact(), value);
+	}
+
+	public void remove(Bytes key) {
+		segmentFor(key).remove(key);
+	}
+
+	public boolean containsKey(Bytes key) {
+		return segmentFor(key).containsKey(key);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	private Segment segmentFor(Bytes key) {
+		int h = key.hashCode();
+		// the low bits also pick the bucket inside the segment, use the high ones
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		return segments[(h >>> 24) & mask];
+	}
+
+	private static Map<Bytes, byte[]> newPolicy(CacheStrategy strategy, int capacity) {
+		switch (strategy) {
+		case LRU:
+			return new lru_cache<Bytes, byte[]>(capacity);
+		case LFU:
+			return new lfu_cache<Bytes, byte[]>(capacity, LFU_EVICTION_FACTOR);
+		case TINYLFU:
+			return new TinyLfuCache<Bytes, byte[]>(capacity);
+		default:
+			return new fifo_cache<Bytes, byte[]>(capacity);
+		}
+	}
+
+	private static class Segment {
+		private final Map<Bytes, byte[]> map;
+		/* taken by get, exclusive if get reorders the map */
+		private final Lock getLock;
+		private final Lock sharedLock;
+		private final Lock writeLock;
+
+		Segment(Map<Bytes, byte[]> map, boolean readsMutate) {
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			this.map = map;
+			this.sharedLock = lock.readLock();
+			this.writeLock = lock.writeLock();
+			this.getLock = readsMutate ? writeLock : sharedLock;
+		}
+
+		byte[] get(Bytes key) {
+			getLock.lock();
+			try {
+				return map.get(key);
+			} finally {
+				getLock.unlock();
+			}
+		}
+
+		void put(Bytes key, byte[] value) {
+			writeLock.lock();
+			try {
+				map.put(key, value);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		void remove(Bytes key) {
+			writeLock.lock();
+			try {
+				map.remove(key);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		boolean containsKey(Bytes key) {
+			// containsKey never reorders, not even an access ordered map
+			sharedLock.lock();
+			try {
+				return map.containsKey(key);
+			} finally {
+				sharedLock.unlock();
+			}
+		}
+
+		int size() {
+			sharedLock.lock();
+			try {
+				return map.size();
+			} finally {
+				sharedLock.unlock();
+			}
+		}
+
+		void clear() {
+			writeLock.lock();
+			try {
+				map.clear();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package app_kvServer;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * W-TinyLFU cache, see Einziger, Friedman and Manes, "TinyLFU: A Highly
+ * Efficient Cache Admission Policy".
+ * <p>
+ * New keys enter a small LRU admission window of about 1% of the capacity.
+ * Keys the window pushes out compete for the main region, a segmented LRU
+ * of a probation and a protected part: a key is only admitted if a
+ * FrequencySketch estimates it was accessed more often recently than the
+ * key probation would evict for it. A burst of keys that are read once
+ * therefore only churns the window and never displaces the hot set, unlike
+ * lfu_cache which evicts half of its entries at once. Keys hit again while
+ * on probation move to the protected part, which holds 80% of the main
+ * region.
+ * <p>
+ * Not thread safe, StripedCache guards each instance with a lock.
+ */
+public class TinyLfuCache<K, V> extends AbstractMap<K, V> {
+
+	private static final double WINDOW_SHARE = 0.01;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private final Map<K, Node<K, V>> data;
+	private final FrequencySketch sketch;
+	private final Queue<K, V> window = new Queue<K, V>();
+	private final Queue<K, V> probation = new Queue<K, V>();
+	private final Queue<K, V> protectedQueue = new Queue<K, V>();
+	private final int windowCapacity;
+	private final int mainCapacity;
+	private final int protectedCapacity;
+
+	public TinyLfuCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.windowCapacity = Math.max(1, (int) (capacity * WINDOW_SHARE));
+		this.mainCapacity = capacity - windowCapacity;
+		this.protectedCapacity = (int) (mainCapacity * PROTECTED_SHARE);
+		this.data = new HashMap<K, Node<K, V>>(capacity * 4 / 3 + 1);
+		this.sketch = new FrequencySketch(capacity);
+	}
+
+	@Override
+	public V get(Object key) {
+		if (key == null) {
+			return null;
+		}
+		sketch.increment(key.hashCode());
+		Node<K, V> node = data.get(key);
+		if (node == null) {
+			return null;
+		}
+		onHit(node);
+		return node.value;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		Node<K, V> node = data.get(key);
+		if (node != null) {
+			V old = node.value;
+			node.value = value;
+			onHit(node);
+			return old;
+		}
+
+		sketch.increment(key.hashCode());
+		node = new Node<K, V>(key, value);
+		data.put(key, node);
+		window.addLast(node, WINDOW);
+		if (window.size > windowCapacity) {
+			evictFromWindow();
+		}
+		return null;
+	}
+
+	@Override
+	public V remove(Object key) {
+		Node<K, V> node = data.remove(key);
+		if (node == null) {
+			return null;
+		}
+		queueOf(node).remove(node);
+		return node.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return data.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return data.size();
+	}
+
+	@Override
+	public void clear() {
+		data.clear();
+		window.clear();
+		probation.clear();
+		protectedQueue.clear();
+		sketch.clear();
+	}
+
+	/**
+	 * @return a snapshot of the entries
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		Map<K, V> copy = new LinkedHashMap<K, V>();
+		for (Node<K, V> node : data.values()) {
+			copy.put(node.key, node.value);
+		}
+		return Collections.unmodifiableMap(copy).entrySet();
+	}
+
+	private void onHit(Node<K, V> node) {
+		if (node.queue == PROBATION) {
+			probation.remove(node);
+			protectedQueue.addLast(node, PROTECTED);
+			if (protectedQueue.size > protectedCapacity) {
+				probation.addLast(protectedQueue.removeFirst(), PROBATION);
+			}
+		} else {
+			queueOf(node).moveToLast(node);
+		}
+	}
+
+	/*
+	 * The window's least recently used key either takes a free place in the
+	 * main region, or has to be estimated more frequent than the key
+	 * probation would give up for it.
+	 */
+	private void evictFromWindow() {
+		Node<K, V> candidate = window.removeFirst();
+		if (probation.size + protectedQueue.size < mainCapacity) {
+			probation.addLast(candidate, PROBATION);
+			return;
+		}
+
+		Node<K, V> victim = probation.first();
+		if (victim == null) {
+			victim = protectedQueue.first();
+		}
+		if (victim != null && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+			queueOf(victim).remove(victim);
+			data.remove(victim.key);
+			probation.addLast(candidate, PROBATION);
+		} else {
+			data.remove(candidate.key);
+		}
+	}
+
+	private Queue<K, V> queueOf(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		default:
+			return protectedQueue;
+		}
+	}
+
+	private static class Node<K, V> {
+		final K key;
+		V value;
+		int queue;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Doubly linked LRU order, least recently used first.
+	 */
+	private static class Queue<K, V> {
+		private Node<K, V> head;
+		private Node<K, V> tail;
+		int size = 0;
+
+		Node<K, V> first() {
+			return head;
+		}
+
+		void addLast(Node<K, V> node, int queue) {
+			node.queue = queue;
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			size++;
+		}
+
+		Node<K, V> removeFirst() {
+			Node<K, V> node = head;
+			if (node != null) {
+				remove(node);
+			}
+			return node;
+		}
+
+		void remove(Node<K, V> node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			size--;
+		}
+
+		void moveToLast(Node<K, V> node) {
+			if (node != tail) {
+				int queue = node.queue;
+				remove(node);
+				addLast(node, queue);
+			}
+		}
+
+		void clear() {
+			head = null;
+			tail = null;
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package app_kvServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-ahead log for the PUTs of all client connections.
+ * <p>
+ * Callers encode their record and hand it to a single appender thread.
+ * The appender drains everything that queued up while it was busy and
+ * writes it with one FileChannel.write, followed by one force() when the
+ * fsync policy asks for it, so concurrent writers share the cost of a sync
+ * (group commit). append returns once the record is written, and with
+ * FsyncPolicy.ALWAYS once it is on disk.
+ * <p>
+ * Record layout: crc (4) | key length (4) | value length (4) | key | value,
+ * where a value length of -1 marks a deletion.
+ */
+public class WriteAheadLog {
+
+	public enum FsyncPolicy {
+		ALWAYS,		/* force after every batch */
+		INTERVAL,	/* force at most every fsync interval */
+		NEVER		/* leave it to the operating system */
+	};
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_BATCH = 1024;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private static final int RECORD = 0;
+	private static final int ROTATE = 1;
+	private static final int CLOSE = 2;
+
+	private final File dir;
+	private final FsyncPolicy policy;
+	private final long fsyncInterval;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private final Thread appender;
+
+	/* only touched by the appender thread once it is started */
+	private FileChannel channel;
+	private int segmentId;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private long lastSync = System.currentTimeMillis();
+	private boolean dirty = false;
+
+	private volatile long segmentSize = 0;
+	private volatile boolean closed = false;
+	/* held to enqueue and for the final drain, so nothing is queued once the log closed */
+	private final Object closeLock = new Object();
+
+	public WriteAheadLog(File dir, FsyncPolicy policy, long fsyncInterval) throws IOException {
+		this.dir = dir;
+		this.policy = policy;
+		this.fsyncInterval = Math.max(fsyncInterval, 1);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create log directory " + dir);
+		}
+
+		List<Integer> ids = segmentIds();
+		segmentId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+		channel = openSegment(segmentId);
+
+		appender = new Thread(new Runnable() {
+			public void run() {
+				appendLoop();
+			}
+		}, "wal-appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	/**
+	 * Feeds every intact record of the existing segments, oldest first, to
+	 * the visitor. Deletions are visited with a null value. Replay stops at
+	 * the first torn or corrupt record of a segment.
+	 */
+	public void replay(IKVStorage.Visitor visitor) throws IOException {
+		for (int id : segmentIds()) {
+			if (id >= segmentId) {
+				break;
+			}
+			RandomAccessFile file = new RandomAccessFile(segmentFile(id), "r");
+			try {
+				replaySegment(file.getChannel(), visitor);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Appends a PUT, or a deletion if value is null, and waits until the
+	 * appender has written it.
+	 */
+	public void append(String key, String value) throws IOException {
+		enqueue(new Pending(RECORD, encode(key, value))).await();
+	}
+
+	/**
+	 * Appends the PUTs, or deletions where the value is null, of a batch as
+	 * one unit for the appender, so they share a single write and sync.
+	 */
+	public void appendAll(List<String> keys, List<String> values) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>(keys.size());
+		int length = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] record = encode(keys.get(i), values.get(i));
+			records.add(record);
+			length += record.length;
+		}
+		ByteBuffer batch = ByteBuffer.allocate(length);
+		for (byte[] record : records) {
+			batch.put(record);
+		}
+		enqueue(new Pending(RECORD, batch.array())).await();
+	}
+
+	/**
+	 * Seals the current segment and starts a new one.
+	 * @return the id of the new segment, every older segment can be deleted
+	 * 		once the storage holds its records durably
+	 */
+	public int rotate() throws IOException {
+		Pending rotate = enqueue(new Pending(ROTATE, null));
+		rotate.await();
+		return rotate.segment;
+	}
+
+	/**
+	 * Deletes all segments older than the given segment id.
+	 */
+	public void deleteBefore(int id) {
+		for (int old : segmentIds()) {
+			if (old < id && !segmentFile(old).delete()) {
+				logger.warn("Unable to delete log segment " + segmentFile(old));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes in the current segment
+	 */
+	public long size() {
+		return segmentSize;
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			enqueue(new Pending(CLOSE, null)).await();
+		} catch (IOException e) {
+			logger.error("Error! Unable to close write-ahead log in " + dir, e);
+		}
+	}
+
+	private Pending enqueue(Pending pending) throws IOException {
+		synchronized (closeLock) {
+			if (closed) {
+				throw new IOException("Write-ahead log " + dir + " is closed");
+			}
+			queue.add(pending);
+		}
+		return pending;
+	}
+
+	private void appendLoop() {
+		List<Pending> batch = new ArrayList<Pending>(MAX_BATCH);
+		while (!closed) {
+			try {
+				Pending first;
+				if (policy == FsyncPolicy.INTERVAL && dirty) {
+					first = queue.poll(fsyncInterval, TimeUnit.MILLISECONDS);
+				} else {
+					first = queue.take();
+				}
+
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+				process(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				closed = true;
+			} finally {
+				batch.clear();
+			}
+		}
+
+		/* fail whoever raced with close */
+		synchronized (closeLock) {
+			for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+				pending.error = new IOException("Write-ahead log " + dir + " is closed");
+				pending.done.countDown();
+			}
+		}
+	}
+
+	/* writes the batch in order, a control request applies to the records before it */
+	private void process(List<Pending> batch) {
+		int from = 0;
+		for (int i = 0; i <= batch.size(); i++) {
+			if (i < batch.size() && batch.get(i).type == RECORD) {
+				continue;
+			}
+
+			IOException error = null;
+			try {
+				writeRecords(batch.subList(from, i));
+				boolean due = System.currentTimeMillis() - lastSync >= fsyncInterval;
+				if (dirty && (policy == FsyncPolicy.ALWAYS || (policy == FsyncPolicy.INTERVAL && due))) {
+					sync();
+				}
+			} catch (IOException e) {
+				logger.error("Error! Cannot write to write-ahead log in " + dir, e);
+				error = e;
+			}
+			for (Pending pending : batch.subList(from, i)) {
+				pending.error = error;
+				pending.done.countDown();
+			}
+
+			if (i < batch.size()) {
+				Pending pending = batch.get(i);
+				try {
+					control(pending);
+				} catch (IOException e) {
+					pending.error = e;
+				}
+				pending.done.countDown();
+			}
+			from = i + 1;
+		}
+	}
+
+	private void writeRecords(List<Pending> records) throws IOException {
+		buffer.clear();
+		for (Pending pending : records) {
+			if (pending.record.length > buffer.remaining()) {
+				flushBuffer();
+				if (pending.record.length > buffer.capacity()) {
+					buffer = ByteBuffer.allocateDirect(pending.record.length);
+				}
+			}
+			buffer.put(pending.record);
+		}
+		flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			segmentSize += channel.write(buffer);
+			dirty = true;
+		}
+		buffer.clear();
+	}
+
+	private void sync() throws IOException {
+		channel.force(false);
+		lastSync = System.currentTimeMillis();
+		dirty = false;
+	}
+
+	private void control(Pending pending) throws IOException {
+		sync();
+		channel.close();
+		if (pending.type == ROTATE) {
+			segmentId++;
+			channel = openSegment(segmentId);
+			segmentSize = 0;
+			pending.segment = segmentId;
+		} else {
+			closed = true;
+		}
+	}
+
+	private FileChannel openSegment(int id) throws IOException {
+		FileChannel segment = new RandomAccessFile(segmentFile(id), "rw").getChannel();
+		segment.position(segment.size());
+		return segment;
+	}
+
+	private void replaySegment(FileChannel segment, IKVStorage.Visitor visitor) throws IOException {
+		long size = segment.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(segment, header, position);
+			header.flip();
+			int crc = header.getInt();
+			int keyLength = header.getInt();
+			int valueLength = header.getInt();
+			int dataLength = keyLength + Math.max(valueLength, 0);
+			if (keyLength <= 0 || valueLength < -1 || position + HEADER_SIZE + dataLength > size) {
+				break;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate(dataLength);
+			readFully(segment, data, position + HEADER_SIZE);
+			CRC32 checksum = new CRC32();
+			checksum.update(header.array(), 4, HEADER_SIZE - 4);
+			checksum.update(data.array(), 0, dataLength);
+			if ((int) checksum.getValue() != crc) {
+				break;
+			}
+
+			String key = new String(data.array(), 0, keyLength, UTF8);
+			String value = valueLength < 0 ? null : new String(data.array(), keyLength, valueLength, UTF8);
+			visitor.visit(key, value);
+			position += HEADER_SIZE + dataLength;
+		}
+	}
+
+	private List<Integer> segmentIds() {
+		List<Integer> ids = new ArrayList<Integer>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring unknown file " + file + " in log directory");
+					}
+				}
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	private static byte[] encode(String key, String value) {
+		byte[] keyBytes = key.getBytes(UTF8);
+		byte[] valueBytes = value == null ? null : value.getBytes(UTF8);
+		int valueLength = valueBytes == null ? -1 : valueBytes.length;
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0));
+		record.putInt(0).putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+		if (valueBytes != null) {
+			record.put(valueBytes);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 4, record.capacity() - 4);
+		record.putInt(0, (int) checksum.getValue());
+		return record.array();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Unexpected end of log segment");
+			}
+		}
+	}
+
+	/**
+	 * A record or control request waiting for the appender.
+	 */
+	private static class Pending {
+		final int type;
+		final byte[] record;
+		final CountDownLatch done = new CountDownLatch(1);
+		IOException error;
+		int segment;
+
+		Pending(int type, byte[] record) {
+			this.type = type;
+			this.record = record;
+		}
+
+		void await() throws IOException {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+}
@@ -1,136 +1,272 @@
 package app_kvServer;
 
 import java.io.*;
-import java.util.Scanner; 
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
 public class persistentDb {
 
-    public static PrintWriter writer = null;
+    public static final String DEFAULT_NAME = "persistentDb";
 
-    public static FileWriter fw = null;
-    public static BufferedWriter bw = null;
-    public static PrintWriter pw = null;
+    /* write-ahead log size that triggers a checkpoint */
+    public static final long CHECKPOINT_SIZE = 64L * 1024 * 1024;
+
+    private static final int KEY_LOCKS = 64;
+
+    private static volatile IKVStorage storage = null;
+    private static volatile WriteAheadLog wal = null;
+
+    /*
+    * Keeps the log order and the storage order of writes to one key the
+    * same, while writes to different keys share the log's group commit.
+    */
+    private static final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS];
+    /* held shared by writers, exclusively while a checkpoint seals the log */
+    private static final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private static final AtomicBoolean checkpointing = new AtomicBoolean(false);
 
     private static Logger logger = Logger.getRootLogger();
 
+    static {
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
     /*
-    * Instantiates the database locally by creating the file
+    * Instantiates the database locally in the default directory
     */
     public static void initializeDb() {
+        initializeDb(DEFAULT_NAME);
+    }
+
+    public static void initializeDb(String name) {
+        initializeDb(name, new ServerConfig());
+    }
+
+    /*
+    * Instantiates the database locally in the given directory using the
+    * configured engine and fsync policy, then replays whatever the
+    * write-ahead log holds beyond the last checkpoint. The storage is shared
+    * by the whole process, so only the first call opens it.
+    */
+    public static synchronized void initializeDb(String name, ServerConfig config) {
+        if (storage != null) {
+            return;
+        }
+        final IKVStorage db;
         try {
-            File f = new File("persistentDb.txt");
-            if (!f.exists()) {
-                writer = new PrintWriter("persistentDb.txt", "UTF-8");
-                writer.flush();
-                writer.close();
+            if (config.getStorageEngine() == IKVStorage.StorageEngine.LSM) {
+                db = new LSMStorage(new File(name + "_lsm"));
+            } else {
+                db = new LogStructuredStorage(new File(name));
             }
-            // String fileName = "persistentDb.txt"; 
-            // File fileObject = new File(fileName);	
-            // PrintWriter out = new PrintWriter(fileObject);
-        } catch (IOException e) { //FileNotFoundException e) {
-            logger.error("Error in initialization! Cannot open file persistentDb.txt"); 
+        } catch (IOException e) {
+            logger.error("Error in initialization! Cannot open storage " + name, e);
+            return;
         }
-    }
 
-    public static String find(String key) {
         try {
-            //System.out.println("In FIND DB");
-            File file = new File("persistentDb.txt");
-            BufferedReader br = new BufferedReader(new FileReader(file)); 
-
-            String st; 
-            while ((st = br.readLine()) != null) {
-                // System.out.println(st);
-                String[] tokens = st.split(" ");
-                // System.out.println(tokens[0]);
-                // System.out.println(key);
-                if(tokens[0].equals(key.trim())) {
-                    // System.out.println("In FIND DB: found key");
-                    String value = "";
-                    // skip key and colon
-                    for(int i = 2; i < tokens.length; i++) {
-                        value += tokens[i] + " ";
+            WriteAheadLog log = new WriteAheadLog(new File(name + "_wal"),
+                    config.getFsyncPolicy(), config.getFsyncInterval());
+            final int[] replayed = {0};
+            log.replay(new IKVStorage.Visitor() {
+                public void visit(String key, String value) {
+                    if (value == null) {
+                        db.delete(key);
+                    } else {
+                        db.put(key, value);
                     }
-                    return value;
+                    replayed[0]++;
                 }
+            });
+            if (replayed[0] > 0) {
+                logger.info("Replayed " + replayed[0] + " writes from the write-ahead log");
             }
-            br.close();
-        } catch (FileNotFoundException e) {
-            logger.error("Error in finding! Cannot open file persistentDb.txt"); 
+            wal = log;
         } catch (IOException e) {
-            logger.error("Error in finding! Cannot read from file persistentDb.txt");
+            logger.error("Error in initialization! Cannot open write-ahead log " + name, e);
+        }
+
+        // publish only once recovered, readers do not take the lock
+        storage = db;
+        checkpoint();
+    }
+
+    /*
+    * Lock free once the storage is open, every request passes through here
+    */
+    public static IKVStorage getStorage() {
+        IKVStorage db = storage;
+        if (db == null) {
+            initializeDb();
+            db = storage;
+        }
+        return db;
+    }
+
+    public static String find(String key) {
+        if (key == null) {
+            return null;
+        }
+        return getStorage().get(key.trim());
+    }
+
+    /*
+    * Like find, without reading the value
+    */
+    public static boolean contains(String key) {
+        if (key == null) {
+            return false;
         }
-        return null;
+        return getStorage().contains(key.trim());
     }
 
-    public static void add(String key, String value) {
-        if (key.isEmpty() || key == null) {
+    /*
+    * Logs the write ahead, then applies it to storage. Returns once the
+    * write is as durable as the fsync policy promises.
+    */
+    public static void add(String key, String value) throws IOException {
+        if (key == null || key.isEmpty()) {
             // invalid key
             logger.error("Error in adding: Empty key not allowed.");
             return;
         }
-        if (value.isEmpty() || value.trim().equals("null") || value == null) {
-            // delete operation
-            deleteLine(key);
+        IKVStorage db = getStorage();
+        key = key.trim();
+        // delete operation
+        boolean delete = value == null || value.isEmpty() || value.trim().equals("null");
+
+        ReentrantLock keyLock = keyLocks[(key.hashCode() & 0x7fffffff) % KEY_LOCKS];
+        checkpointLock.readLock().lock();
+        keyLock.lock();
+        try {
+            if (wal != null) {
+                wal.append(key, delete ? null : value);
+            }
+            if (delete) {
+                db.delete(key);
+            } else {
+                db.put(key, value);
+            }
+        } finally {
+            keyLock.unlock();
+            checkpointLock.readLock().unlock();
+        }
+
+        if (wal != null && wal.size() >= CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    /*
+    * Writes a batch with one write-ahead log commit, then applies it to
+    * storage. A null, empty or "null" value deletes its key.
+    */
+    public static void addAll(List<String> keys, List<String> values) throws IOException {
+        IKVStorage db = getStorage();
+        List<String> logKeys = new ArrayList<String>(keys.size());
+        List<String> logValues = new ArrayList<String>(keys.size());
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (key == null || key.trim().isEmpty()) {
+                logger.error("Error in adding: Empty key not allowed.");
+                continue;
+            }
+            key = key.trim();
+            String value = values.get(i);
+            boolean delete = value == null || value.isEmpty() || value.trim().equals("null");
+            logKeys.add(key);
+            logValues.add(delete ? null : value);
+            stripes.add((key.hashCode() & 0x7fffffff) % KEY_LOCKS);
+        }
+        if (logKeys.isEmpty()) {
             return;
         }
-        if (find(key) != null) {
-            // modify key operation
-            deleteLine(key);
+
+        // stripes are locked in ascending order, so batches cannot deadlock
+        checkpointLock.readLock().lock();
+        for (int stripe : stripes) {
+            keyLocks[stripe].lock();
         }
         try {
-            FileWriter fw = new FileWriter("persistentDb.txt", true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            PrintWriter pw = new PrintWriter(bw);
-
-            pw.println(key + " : " + value);
+            if (wal != null) {
+                wal.appendAll(logKeys, logValues);
+            }
+            for (int i = 0; i < logKeys.size(); i++) {
+                if (logValues.get(i) == null) {
+                    db.delete(logKeys.get(i));
+                } else {
+                    db.put(logKeys.get(i), logValues.get(i));
+                }
+            }
+        } finally {
+            for (int stripe : stripes) {
+                keyLocks[stripe].unlock();
+            }
+            checkpointLock.readLock().unlock();
+        }
 
-            pw.flush();
-            pw.close();
-            bw.close();
-            fw.close();
-        } catch (IOException e) {
-            logger.error("Error in adding! Cannot open file persistentDb.txt"); 
+        if (wal != null && wal.size() >= CHECKPOINT_SIZE) {
+            checkpoint();
         }
     }
 
-    private static void deleteLine(String key) {
+    /*
+    * Seals the write-ahead log, makes the storage durable and drops the log
+    * segments it now covers. Writers only wait for the seal.
+    */
+    public static void checkpoint() {
+        if (wal == null || !checkpointing.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            File file = new File("persistentDb.txt");
-            BufferedReader br = new BufferedReader(new FileReader(file)); 
-            StringBuffer sb = new StringBuffer("");
-
-            String st; 
-            while ((st = br.readLine()) != null) {
-                String[] tokens = st.split(" ");
-                if (!tokens[0].trim().equals(key.trim())) {
-                    sb.append(st + "\n");
-                }
+            int segment;
+            checkpointLock.writeLock().lock();
+            try {
+                segment = wal.rotate();
+            } finally {
+                checkpointLock.writeLock().unlock();
             }
-
-            br.close();
-            FileWriter fw = new FileWriter(new File("persistentDb.txt"));
-            //Write entire string buffer into the file
-            fw.write(sb.toString());
-            fw.flush();
-            fw.close();
-            br.close();
-        } catch (FileNotFoundException e) {
-            logger.error("Error in deletion! Cannot open file persistentDb.txt"); 
+            storage.sync();
+            wal.deleteBefore(segment);
         } catch (IOException e) {
-            logger.error("Error in deletion! Cannot read from file persistentDb.txt"); 
+            logger.error("Error in checkpoint! Cannot seal write-ahead log", e);
+        } finally {
+            checkpointing.set(false);
         }
     }
 
     public static void clearDb() {
+        checkpointLock.writeLock().lock();
         try {
-            PrintWriter pw = new PrintWriter("persistentDb.txt");
-            pw.close();
-        } catch (IOException e) { //FileNotFoundException e) {
-            logger.error("Error in clearing db! Cannot recreate file persistentDb.txt"); 
+            getStorage().clear();
+            if (wal != null) {
+                wal.deleteBefore(wal.rotate());
+            }
+        } catch (IOException e) {
+            logger.error("Error in clearing db! Cannot reset write-ahead log", e);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    public static synchronized void closeDb() {
+        if (wal != null) {
+            checkpoint();
+            wal.close();
+            wal = null;
+        }
+        if (storage != null) {
+            storage.close();
+            storage = null;
         }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,8 @@
 package client;
 
+import java.util.List;
+import java.util.Map;
+
 import shared.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -42,4 +45,32 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts a batch of key-value pairs, sending each KVServer the pairs
+	 * it is responsible for in one request.
+	 *
+	 * @param pairs
+	 *            the key-value pairs, a null, empty or "null" value deletes
+	 *            its key.
+	 * @return the confirmation or error for each key, in the order of the
+	 *         pairs.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> mput(Map<String, String> pairs) throws Exception;
+
+	/**
+	 * Retrieves the values for a batch of keys, asking each KVServer for
+	 * the keys it is responsible for in one request.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the value or error for each key, in the order of the keys.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> mget(List<String> keys) throws Exception;
 }
@@ -1,20 +1,47 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
-
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
 import java.net.UnknownHostException;
 
+import logger.LogSetup;
+import shared.HashRing;
+import shared.KeyHash;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
 import shared.messages.KVMessage;
 import shared.messages.Message;
 import app_kvClient.ClientSocketListener;
@@ -46,18 +73,68 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 	private static final int BUFFER_SIZE = 1024;
 	private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
 
-	// Metadata Structure - "ip:port", range of hash values
-	private Map<String,String[]> metadata = new HashMap<>();
+	// Binary protocol version in use, 0 while talking the text protocol
+	private boolean binaryProtocol = true;
+	private int protocolVersion = 0;
+
+	// Pipelining, from binary protocol version 2 on
+	public static final int DEFAULT_PIPELINE_DEPTH = 32;
+	private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	/* the pipelined state of the current connection, replaced on every connect */
+	private volatile Pipeline pipeline;
+	/* set by disconnect, the router only reconnects a connection that failed */
+	private volatile boolean disconnected;
+
+	// Batches, split into sub-batches per responsible server
+	private static final int MAX_BATCH_ENTRIES = 512;
+	private static final int MAX_BATCH_BYTES = BinaryProtocol.MAX_VALUE_LENGTH / 2;
+	private static final int MAX_BATCH_ROUNDS = 3;
+	// Connections to the other servers of the ring - "ip:port", each request goes straight to its server
+	private final Map<String, KVStore> peers = new HashMap<>();
+	// Per "ip:port": requests in flight at most, and when a failed server may be tried again
+	private final Map<String, Integer> concurrencyLimits = new ConcurrentHashMap<>();
+	private final Map<String, Long> retryAt = new HashMap<>();
+	private final Map<String, Long> retryDelays = new HashMap<>();
+	/* one per server, held while connecting to it */
+	private final Map<String, Object> connectLocks = new HashMap<>();
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final long MIN_RETRY_DELAY = 50;
+	private static final long MAX_RETRY_DELAY = 5000;
+	// Misroutes followed per request, each one brings newer metadata
+	private static final int MAX_REDIRECTS = 3;
+	// Runs the follow-ups of routed requests, which block on metadata, connects and pipeline permits,
+	// so they never hold up the common pool. Threads start on demand and end when idle
+	private static final int ROUTER_THREADS = 8;
+	private static final long ROUTER_IDLE_SECONDS = 10;
+	private final ThreadPoolExecutor router;
+
+	// Metadata Structure - "ip:port", ranges of hash values as {lower, upper, ...}, updated by the reply reader.
+	// Replaced as a whole together with the ring built from it, which routes keys
+	private volatile Map<String,String[]> metadata = new ConcurrentHashMap<>();
+	private volatile HashRing<String> ring;
+	// Version of the metadata znode the ring was built from, -1 if learned from a redirect
+	private volatile int metadataVersion = -1;
+
+	// Replication - the servers holding each key and how many of them must answer, see setQuorums
+	private int replicas = 1;
+	private int readQuorum = 1;
+	private int writeQuorum = 1;
+	// Smoothed round trip in nanoseconds per "ip:port", slow replicas are read last
+	private final Map<String, Long> latencies = new ConcurrentHashMap<>();
+	private static final long FAILURE_NANOS = 1000000000L;
 
 	public KVStore(String address, int port) {
 
 		this.address = address;
 		this.port = port;
+		this.router = newRouter(address + ":" + port);
 
 		String key = address + ":" + Integer.toString(port);
 		String[] value = {"00000000000000000000000000000000","ffffffffffffffffffffffffffffffff"};
 		
 		this.metadata.put(key, value);
+		this.ring = HashRing.fromRanges(metadata);
 	}
 
 	// Manage Connection to Server
@@ -65,7 +142,15 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 	@Override
 	public void connect() throws UnknownHostException, IOException {
 
-		clientSocket = new Socket(address, port);
+		disconnected = false;
+		clientSocket = new Socket();
+		try {
+			clientSocket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+		} catch (IOException e) {
+			clientSocket.close();
+			clientSocket = null;
+			throw e;
+		}
 		listeners = new HashSet<ClientSocketListener>();
 		setRunning(true);
 
@@ -74,11 +159,285 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 		listeners.add(this);
 
 		try {
-			output = clientSocket.getOutputStream();
-			input = clientSocket.getInputStream();
+			output = new BufferedOutputStream(clientSocket.getOutputStream(), BUFFER_SIZE);
+			input = new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE);
 		} catch (Exception e) {
 			logger.error("Connection could not be established!");
 		}
+
+		protocolVersion = 0;
+		if (binaryProtocol) {
+			negotiateProtocol();
+		}
+		if (protocolVersion >= BinaryProtocol.PIPELINED_VERSION) {
+			startReplyReader();
+		}
+	}
+
+	/**
+	 * Chooses the protocol for the next connect, the binary protocol is
+	 * used by default when the server supports it
+	 */
+	public void setBinaryProtocol(boolean enabled) {
+		this.binaryProtocol = enabled;
+	}
+
+	/**
+	 * @return the binary protocol version in use, or 0 for the text protocol
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * Sets how many asynchronous requests may await their reply at once on
+	 * the next connect. Further requests block until a reply arrives.
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Pipeline depth must be positive: " + depth);
+		}
+		this.pipelineDepth = depth;
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * @return true if put and get go straight to the server responsible
+	 * 		for the key, over a pool of connections to all servers, and
+	 * 		follow misroutes themselves. Servers that do not pipeline leave
+	 * 		that to the caller.
+	 */
+	public boolean isRouting() {
+		return protocolVersion >= BinaryProtocol.PIPELINED_VERSION;
+	}
+
+	/**
+	 * Limits the requests in flight to one server, which default to the
+	 * pipeline depth, from the next connection to it on.
+	 * @param server "ip:port" as in the metadata
+	 */
+	public void setConcurrencyLimit(String server, int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Concurrency limit must be positive: " + limit);
+		}
+		concurrencyLimits.put(server, limit);
+	}
+
+	/**
+	 * Reads and writes with quorums on a ring whose servers hold replicas.
+	 * A GET asks readQuorum of the replicas of the key at once, the fast
+	 * ones first, and if their answers differ takes the one of the
+	 * responsible server, which has every write before its replicas do. A
+	 * PUT or DELETE goes to the responsible server, which answers once
+	 * writeQuorum servers hold the write. With readQuorum + writeQuorum
+	 * greater than replicas a GET sees every completed write. Needs a
+	 * server of BinaryProtocol.QUORUM_VERSION, other servers are asked as
+	 * without replicas.
+	 * @param replicas the servers holding each key, as the ECS was
+	 * 		initialized with
+	 */
+	public void setQuorums(int replicas, int readQuorum, int writeQuorum) {
+		if (replicas < 1 || readQuorum < 1 || readQuorum > replicas || writeQuorum < 1 || writeQuorum > replicas
+				|| writeQuorum > BinaryProtocol.MAX_WRITE_QUORUM) {
+			throw new IllegalArgumentException("Invalid quorums " + readQuorum + "/" + writeQuorum
+					+ " for " + replicas + " replicas");
+		}
+		this.replicas = replicas;
+		this.readQuorum = readQuorum;
+		this.writeQuorum = writeQuorum;
+	}
+
+	private boolean usesQuorums() {
+		return replicas > 1 && protocolVersion >= BinaryProtocol.QUORUM_VERSION;
+	}
+
+	// Servers that only speak text answer the hello with something else
+	private void negotiateProtocol() throws IOException {
+		output.write((BinaryProtocol.hello(BinaryProtocol.VERSION) + "\n").getBytes());
+		output.flush();
+		TextMessage reply = receiveMessage();
+		int version = BinaryProtocol.parseHello(reply.getMsg(), BinaryProtocol.HELLO_OK);
+		if (version > 0) {
+			protocolVersion = version;
+			logger.info("Using binary protocol version " + version);
+		} else {
+			logger.info("Server does not support the binary protocol, using text");
+		}
+	}
+
+	// Version 1 has no request ids, every request waits for its reply
+	private KVMessage sendFrame(byte opcode, String key, String value) throws IOException {
+		output.write(BinaryProtocol.encode(opcode, null, key, value));
+		output.flush();
+		BinaryProtocol.Frame reply = BinaryProtocol.read(input);
+		if (reply == null) {
+			throw new IOException("Connection closed by server");
+		}
+		if (LogSetup.sample(logger)) {
+			logger.info("Receive message:\t '" + reply + "'");
+		}
+		receiveFrameMetadata(reply);
+		return printReply(reply);
+	}
+
+	private KVMessage printReply(KVMessage reply) {
+		if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+			handleNewMessage(new TextMessage(reply.getStatus().toString()));
+		} else {
+			handleNewMessage(new TextMessage(reply.toString()));
+		}
+		return reply;
+	}
+
+	private void receiveFrameMetadata(BinaryProtocol.Frame reply) {
+		if (reply.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+			String metadata = reply.getValue() == null ? "" : reply.getValue().trim();
+			if (!metadata.isEmpty()) {
+				loadMetadata(metadata.split("\\s+"));
+			}
+		}
+	}
+
+	private CompletableFuture<KVMessage> sendPipelined(byte opcode, String key, String value) {
+		return sendPipelined(opcode, key, value, null, 1);
+	}
+
+	/**
+	 * Sends a request without waiting for its reply. Blocks while the
+	 * pipeline is full.
+	 * @param entries the entries of an MGET or MPUT, null for other requests
+	 * @param quorum the write quorum of a PUT or DELETE, 1 for other requests
+	 */
+	private CompletableFuture<KVMessage> sendPipelined(byte opcode, String key, String value,
+			List<BinaryProtocol.Frame> entries, int quorum) {
+		CompletableFuture<KVMessage> future = new CompletableFuture<>();
+		Pipeline current = pipeline;
+		try {
+			current.permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		int id = nextRequestId.incrementAndGet();
+		current.inFlight.put(id, future);
+		IOException failure = current.failure;
+		if (failure != null) {
+			current.fail(id, failure);
+			return future;
+		}
+
+		current.writeLock.lock();
+		try {
+			int version = current.version;
+			if (quorum > 1 && version < BinaryProtocol.QUORUM_VERSION) {
+				throw new IOException("Server speaks protocol version " + version + ", without write quorums");
+			}
+			if (entries != null) {
+				current.output.write(BinaryProtocol.encodeBatch(version, id, opcode, null, entries));
+			} else if (quorum > 1) {
+				current.output.write(BinaryProtocol.encodeWrite(version, id, opcode, quorum, key, value));
+			} else {
+				current.output.write(BinaryProtocol.encode(version, id, opcode, null, key, value));
+			}
+			// the last sender in line flushes for all of them
+			if (!current.writeLock.hasQueuedThreads()) {
+				current.output.flush();
+			}
+		} catch (IOException e) {
+			current.fail(id, e);
+		} finally {
+			current.writeLock.unlock();
+		}
+		return future;
+	}
+
+	/*
+	 * The requests awaiting their replies on one connection. The reply
+	 * reader of a connection only ever completes, fails and releases those
+	 * of its own, so a reader that ends after a reconnect leaves the
+	 * requests and the permits of the new connection alone.
+	 */
+	private static final class Pipeline {
+		final OutputStream output;
+		final int version;
+		final Semaphore permits;
+		final Map<Integer, CompletableFuture<KVMessage>> inFlight = new ConcurrentHashMap<>();
+		final ReentrantLock writeLock = new ReentrantLock();
+		volatile IOException failure;
+
+		Pipeline(OutputStream output, int version, int depth) {
+			this.output = output;
+			this.version = version;
+			this.permits = new Semaphore(depth);
+		}
+
+		void fail(int id, IOException e) {
+			CompletableFuture<KVMessage> future = inFlight.remove(id);
+			if (future != null) {
+				permits.release();
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/* false once the reply reader of the connection failed */
+	private boolean isHealthy() {
+		Pipeline current = pipeline;
+		return current == null || current.failure == null;
+	}
+
+	// Completes the pipelined requests as their replies arrive, in any order
+	private void startReplyReader() {
+		final InputStream in = input;
+		final int version = protocolVersion;
+		final Pipeline own = new Pipeline(output, version, pipelineDepth);
+		pipeline = own;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						BinaryProtocol.Frame reply = BinaryProtocol.read(in, version);
+						if (reply == null) {
+							throw new IOException("Connection closed by server");
+						}
+						if (logger.isDebugEnabled()) {
+							logger.debug("Receive message:\t '" + reply + "'");
+						}
+						receiveFrameMetadata(reply);
+						CompletableFuture<KVMessage> future = own.inFlight.remove(reply.getRequestId());
+						if (future == null) {
+							logger.warn("Reply to unknown request " + reply.getRequestId());
+							continue;
+						}
+						own.permits.release();
+						future.complete(reply);
+					}
+				} catch (IOException e) {
+					own.failure = e;
+					for (Integer id : own.inFlight.keySet()) {
+						own.fail(id, e);
+					}
+				}
+			}
+		}, "kvstore-replies-" + address + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static KVMessage await(CompletableFuture<KVMessage> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
 	}
 
 	private void tearDownConnection() throws IOException {
@@ -96,6 +455,14 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 	@Override
 	public void disconnect() {
 		logger.info("try to close connection ...");
+		disconnected = true;
+
+		synchronized (peers) {
+			for (KVStore peer : peers.values()) {
+				peer.disconnect();
+			}
+			peers.clear();
+		}
 
 		if (running) {
 			try {
@@ -112,10 +479,16 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 	// Manage Metadata Handling
 
 	private void loadMetadata(String[] data) {
+		loadMetadata(data, -1);
+	}
 
-		for (int i = 0; i < data.length; i +=2) {
-			String[] value = data[i+1].split("-");
-			this.metadata.put(data[i],value);
+	private void loadMetadata(String[] data, int version) {
+
+		// each reply carries the metadata of the whole ring
+		Map<String,String[]> metadata = new ConcurrentHashMap<>();
+		for (int i = 0; i + 1 < data.length; i +=2) {
+			String[] value = HashRing.parseRanges(data[i+1]);
+			metadata.put(data[i],value);
 			// System.out.println("data[i] : " + data[i]);
 			// System.out.println("value : " + value[0]);
 			// System.out.println("value : " + value[1]);
@@ -127,56 +500,80 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 		// }
 
 		// System.out.println("METADATA AT LOADMETADATA : " + meta);
+
+		synchronized (this) {
+			this.ring = HashRing.fromRanges(metadata);
+			this.metadata = metadata;
+			this.metadataVersion = version;
+		}
+		if (!metadata.isEmpty()) {
+			prunePeers(metadata);
+		}
 	}
 
-	// Inspired from: https://stackoverflow.com/questions/415953/how-can-i-generate-an-md5-hash
-	public String convertToMD5(String md5) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			byte[] array = md.digest(md5.getBytes());
-			StringBuffer sb = new StringBuffer();
+	/**
+	 * @return the version of the metadata this client routes with, -1 if
+	 * 		it came with a SERVER_NOT_RESPONSIBLE reply or was never loaded
+	 */
+	public int getMetadataVersion() {
+		return metadataVersion;
+	}
 
-			for (int i = 0; i < array.length; ++i) {
-				sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1,3));
+	/**
+	 * Asks the server for the version of its metadata and loads the
+	 * metadata only if it differs from the known one. While the ring is
+	 * unchanged a poll costs a few bytes each way, so clients may call
+	 * this often to pick up reconfigurations before requests bounce.
+	 * @return true if new metadata was loaded
+	 */
+	public boolean refreshMetadata() throws Exception {
+		String known = Integer.toString(metadataVersion);
+		String version;
+		String data = null;
+		if (protocolVersion >= BinaryProtocol.PIPELINED_VERSION) {
+			KVMessage reply = await(sendPipelined(BinaryProtocol.METADATA, known, null));
+			version = reply.getKey();
+			data = reply.getValue();
+		} else if (protocolVersion > 0) {
+			output.write(BinaryProtocol.encode(BinaryProtocol.METADATA, null, known, null));
+			output.flush();
+			BinaryProtocol.Frame reply = BinaryProtocol.read(input);
+			if (reply == null) {
+				throw new IOException("Connection closed by server");
 			}
+			version = reply.getKey();
+			data = reply.getValue();
+		} else {
+			sendMessage(new TextMessage("metadata_version"));
+			String[] reply = receiveMessage().getMsg().trim().split("\\s+");
+			version = reply[reply.length - 1];
+			if (!version.equals(known)) {
+				sendMessage(new TextMessage("metadata"));
+				String[] full = receiveMessage().getMsg().trim().split("\\s+", 3);
+				version = full[1];
+				data = full.length > 2 ? full[2] : "";
+			}
+		}
 
-			return sb.toString();
-
-		} catch (NoSuchAlgorithmException e) {
+		int current = Integer.parseInt(version.trim());
+		if (data == null || current == metadataVersion) {
+			return false;
+		}
+		loadMetadata(data.trim().split("\\s+"), current);
+		return true;
+	}
 
-		}	      
-		return null;
-	} 
+	public String convertToMD5(String md5) {
+		return KeyHash.md5(md5);
+	}
 
+	/**
+	 * @return the "ip:port" of the server responsible for the key, or an
+	 * 		empty string if there is no metadata
+	 */
 	public String searchKey(String key){
-		String keyHash = convertToMD5(key);
-		// System.out.println("IN SEARCH KEYYYY");
-		// String meta = "";
-		// for (Map.Entry <String,String[]> pair : this.metadata.entrySet()) {
-		// 	meta += pair.getKey() + " " + pair.getValue()[0] +  "-" +  pair.getValue()[1] + " ";
-		// }
-
-		// System.out.println("METADATA AT SEARCHKEY : " + meta);
-		
-		for (Map.Entry <String,String[]> pair : this.metadata.entrySet()) {
-			// System.out.println("IN FOR LOOP");
-
-			String start = pair.getValue()[0];
-			String end = pair.getValue()[1];
-
-			if (start.compareTo(end) >= 0) {
-				if (keyHash.compareTo(start) >0 || keyHash.compareTo(end) <= 0 ) {
-					return  pair.getKey();
-				}			
-			}
-			else {
-				if (keyHash.compareTo(start) >0 && keyHash.compareTo(end) <= 0 ) {
-					return pair.getKey();
-				}
-			}
-		}
-
-		return "";
+		String server = ring.get(key);
+		return server == null ? "" : server;
 	}
 
 	private void receiveMetadata(String[] msg) {
@@ -194,7 +591,10 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 	private void printMetadata() {
 
 		for(Map.Entry <String,String[]> pair : this.metadata.entrySet()) {
-			System.out.println(pair.getKey() + " " + pair.getValue()[0] + " to " + pair.getValue()[1] );
+			String[] bounds = pair.getValue();
+			for (int i = 0; i + 1 < bounds.length; i += 2) {
+				System.out.println(pair.getKey() + " " + bounds[i] + " to " + bounds[i + 1]);
+			}
 		}
 
 	}
@@ -213,6 +613,13 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 			printError("Put request was unsuccessful! Value was too large");
 			String[] error= {"PUT_ERROR", "<", key, ",", value, ">"};
 			msgToClient = new Message(error);
+		} else if (usesQuorums()) {
+			return printReply(quorumPut(key, value));
+		} else if (protocolVersion >= BinaryProtocol.PIPELINED_VERSION) {
+			return printReply(await(putAsync(key, value)));
+		} else if (protocolVersion > 0) {
+			boolean delete = value == null || value.trim().isEmpty() || value.trim().equals("null");
+			return sendFrame(delete ? BinaryProtocol.DELETE : BinaryProtocol.PUT, key, delete ? null : value);
 		} else {
 			StringBuilder sendMsgToServer = new StringBuilder();
 			sendMsgToServer.append("put " + key + " " + value);
@@ -242,6 +649,12 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 			printError("Get request was unsuccessful! Key was too large");
 			String[] error= {"GET_ERROR", "<", key};
 			msgToClient = new Message(error);
+		} else if (usesQuorums()) {
+			return printReply(quorumGet(key));
+		} else if (protocolVersion >= BinaryProtocol.PIPELINED_VERSION) {
+			return printReply(await(getAsync(key)));
+		} else if (protocolVersion > 0) {
+			return sendFrame(BinaryProtocol.GET, key, null);
 		} else {
 			StringBuilder sendMsgToServer = new StringBuilder();
 			sendMsgToServer.append("get " + key);
@@ -263,6 +676,493 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 		return msgToClient;
 	}
 
+	/**
+	 * Stores a value without waiting for the reply. Up to the pipeline depth
+	 * of requests share the connection, their replies may complete in any
+	 * order, but requests for the same key execute in the order they were
+	 * made. Without a pipelining server this falls back to put.
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value) {
+		if (protocolVersion < BinaryProtocol.PIPELINED_VERSION || usesQuorums()
+				|| isLengthInvalid(key, MAXKEYLENGTH)
+				|| (value != null && !value.equals("") && isLengthInvalid(value, MAXVALUELENGTH))) {
+			try {
+				return CompletableFuture.completedFuture(put(key, value));
+			} catch (Exception e) {
+				CompletableFuture<KVMessage> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+		boolean delete = value == null || value.trim().isEmpty() || value.trim().equals("null");
+		return route(delete ? BinaryProtocol.DELETE : BinaryProtocol.PUT, key, delete ? null : value, 1, 0);
+	}
+
+	/**
+	 * Reads a value without waiting for the reply, see putAsync.
+	 */
+	public CompletableFuture<KVMessage> getAsync(String key) {
+		if (protocolVersion < BinaryProtocol.PIPELINED_VERSION || usesQuorums() || isLengthInvalid(key, MAXKEYLENGTH)) {
+			try {
+				return CompletableFuture.completedFuture(get(key));
+			} catch (Exception e) {
+				CompletableFuture<KVMessage> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+		return route(BinaryProtocol.GET, key, null, 1, 0);
+	}
+
+	/*
+	 * Sends a request to the server responsible for its key over the pooled
+	 * connection, and once more to the next one after each misroute, with
+	 * the metadata the misroute brought along. If the server cannot be
+	 * reached, the metadata is asked for in case the server left the ring.
+	 */
+	private CompletableFuture<KVMessage> route(final byte opcode, final String key, final String value,
+			final int quorum, final int redirects) {
+		final String owner = searchKey(key);
+		CompletableFuture<KVMessage> sent;
+		try {
+			sent = connectionFor(owner).sendPipelined(opcode, key, value, null, quorum);
+		} catch (IOException e) {
+			sent = new CompletableFuture<>();
+			sent.completeExceptionally(e);
+		}
+		// not on the thread reading replies, sending may block until one arrives
+		return sent.handleAsync(new BiFunction<KVMessage, Throwable, CompletionStage<KVMessage>>() {
+			public CompletionStage<KVMessage> apply(KVMessage reply, Throwable failure) {
+				if (failure == null && reply.getStatus() != KVMessage.StatusType.SERVER_NOT_RESPONSIBLE
+						|| redirects >= MAX_REDIRECTS) {
+					return settled(reply, failure);
+				}
+				if (failure != null) {
+					if (!movedAway(key, owner)) {
+						return settled(reply, failure);
+					}
+				} else {
+					receiveFrameMetadata((BinaryProtocol.Frame) reply);
+				}
+				return route(opcode, key, value, quorum, redirects + 1);
+			}
+		}, router).thenCompose(new Function<CompletionStage<KVMessage>, CompletionStage<KVMessage>>() {
+			public CompletionStage<KVMessage> apply(CompletionStage<KVMessage> next) {
+				return next;
+			}
+		});
+	}
+
+	private static ThreadPoolExecutor newRouter(final String server) {
+		ThreadPoolExecutor router = new ThreadPoolExecutor(ROUTER_THREADS, ROUTER_THREADS, ROUTER_IDLE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "kvstore-router-" + server + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		router.allowCoreThreadTimeOut(true);
+		return router;
+	}
+
+	private static CompletableFuture<KVMessage> settled(KVMessage reply, Throwable failure) {
+		CompletableFuture<KVMessage> settled = new CompletableFuture<>();
+		if (failure != null) {
+			settled.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+		} else {
+			settled.complete(reply);
+		}
+		return settled;
+	}
+
+	// Whether the metadata of the connected server has another owner for the key
+	private boolean movedAway(String key, String owner) {
+		try {
+			refreshMetadata();
+		} catch (Exception e) {
+			return false;
+		}
+		return !searchKey(key).equals(owner);
+	}
+
+	// Quorums - each key on several servers, see setQuorums
+
+	private KVMessage quorumPut(String key, String value) throws Exception {
+		if (metadataVersion < 0) {
+			refreshMetadata();
+		}
+		boolean delete = value == null || value.trim().isEmpty() || value.trim().equals("null");
+		return await(route(delete ? BinaryProtocol.DELETE : BinaryProtocol.PUT, key, delete ? null : value,
+				writeQuorum, 0));
+	}
+
+	private KVMessage quorumGet(String key) throws Exception {
+		if (metadataVersion < 0) {
+			refreshMetadata();
+		}
+		List<String> holders = new ArrayList<>(ring.replicas(Bytes.of(key), replicas));
+		String responsible = holders.isEmpty() ? "" : holders.get(0);
+		if (holders.isEmpty()) {
+			holders.add(responsible);
+		}
+		orderByLatency(holders);
+		int wanted = Math.min(readQuorum, holders.size());
+
+		List<KVMessage> answers = new ArrayList<>();
+		KVMessage responsibleAnswer = null;
+		int next = 0;
+		while (answers.size() < wanted && next < holders.size()) {
+			// ask as many as answers are missing at once, the next ones if some fail
+			Map<String, CompletableFuture<KVMessage>> asked = new LinkedHashMap<>();
+			while (asked.size() < wanted - answers.size() && next < holders.size()) {
+				String holder = holders.get(next++);
+				try {
+					asked.put(holder, timed(holder, connectionFor(holder).sendPipelined(BinaryProtocol.GET, key, null)));
+				} catch (IOException e) {
+					logger.error("Cannot connect to replica " + holder, e);
+					latencies.put(holder, FAILURE_NANOS);
+				}
+			}
+			for (Map.Entry<String, CompletableFuture<KVMessage>> request : asked.entrySet()) {
+				try {
+					KVMessage answer = await(request.getValue());
+					if (answer.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+						receiveFrameMetadata((BinaryProtocol.Frame) answer);
+						continue;
+					}
+					answers.add(answer);
+					if (request.getKey().equals(responsible)) {
+						responsibleAnswer = answer;
+					}
+				} catch (Exception e) {
+					logger.error("Replica " + request.getKey() + " failed", e);
+				}
+			}
+		}
+
+		if (answers.isEmpty()) {
+			return new BinaryProtocol.Frame(BinaryProtocol.GET, KVMessage.StatusType.GET_ERROR, key, null);
+		}
+		if (agree(answers)) {
+			return answers.get(0);
+		}
+		// a replica is still catching up, the responsible server has the latest write
+		if (responsibleAnswer != null) {
+			return responsibleAnswer;
+		}
+		return await(connectionFor(responsible).sendPipelined(BinaryProtocol.GET, key, null));
+	}
+
+	private static boolean agree(List<KVMessage> answers) {
+		KVMessage first = answers.get(0);
+		for (KVMessage answer : answers) {
+			if (answer.getStatus() != first.getStatus()
+					|| (answer.getValue() == null ? first.getValue() != null : !answer.getValue().equals(first.getValue()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Random order among replicas of about the same speed, anything twice as slow goes last
+	private void orderByLatency(List<String> holders) {
+		Collections.shuffle(holders, ThreadLocalRandom.current());
+		Collections.sort(holders, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Integer.compare(latencyClass(a), latencyClass(b));
+			}
+		});
+	}
+
+	private int latencyClass(String holder) {
+		Long latency = latencies.get(holder);
+		return latency == null ? 0 : 64 - Long.numberOfLeadingZeros(latency);
+	}
+
+	private CompletableFuture<KVMessage> timed(final String holder, CompletableFuture<KVMessage> request) {
+		final long start = System.nanoTime();
+		request.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage answer, Throwable failure) {
+				long sample = failure == null ? System.nanoTime() - start : FAILURE_NANOS;
+				Long old = latencies.get(holder);
+				latencies.put(holder, old == null ? sample : old + (sample - old) / 8);
+			}
+		});
+		return request;
+	}
+
+	// Batches - split by the metadata ranges, one sub-batch per server in parallel
+
+	@Override
+	public Map<String, KVMessage> mput(Map<String, String> pairs) throws Exception {
+		return batch(BinaryProtocol.MPUT, new ArrayList<>(pairs.keySet()), new ArrayList<>(pairs.values()));
+	}
+
+	@Override
+	public Map<String, KVMessage> mget(List<String> keys) throws Exception {
+		return batch(BinaryProtocol.MGET, keys, null);
+	}
+
+	private Map<String, KVMessage> batch(byte opcode, List<String> keys, List<String> values) throws Exception {
+		Map<String, KVMessage> results = new LinkedHashMap<>();
+		if (protocolVersion < BinaryProtocol.PIPELINED_VERSION) {
+			// servers without batches get one request per key
+			for (int i = 0; i < keys.size(); i++) {
+				String value = values == null ? null : values.get(i) == null ? "null" : values.get(i);
+				results.put(keys.get(i), value == null ? get(keys.get(i)) : put(keys.get(i), value));
+			}
+			return results;
+		}
+
+		List<BinaryProtocol.Frame> entries = new ArrayList<>(keys.size());
+		KVMessage[] replies = new KVMessage[keys.size()];
+		List<Integer> pending = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			String value = values == null ? null : values.get(i);
+			boolean delete = value == null || value.trim().isEmpty() || value.trim().equals("null");
+			byte entryOpcode = values == null ? BinaryProtocol.GET : delete ? BinaryProtocol.DELETE : BinaryProtocol.PUT;
+			BinaryProtocol.Frame entry = new BinaryProtocol.Frame(entryOpcode, null, key, delete ? null : value);
+			entries.add(entry);
+			if (isLengthInvalid(key, MAXKEYLENGTH) || (!delete && isLengthInvalid(value, MAXVALUELENGTH))) {
+				replies[i] = failed(entry);
+			} else {
+				pending.add(i);
+			}
+		}
+
+		for (int round = 0; round < MAX_BATCH_ROUNDS && !pending.isEmpty(); round++) {
+			Map<String, List<Integer>> byServer = new LinkedHashMap<>();
+			for (int i : pending) {
+				String server = searchKey(keys.get(i));
+				List<Integer> share = byServer.get(server);
+				if (share == null) {
+					share = new ArrayList<>();
+					byServer.put(server, share);
+				}
+				share.add(i);
+			}
+
+			List<List<Integer>> sent = new ArrayList<>();
+			List<CompletableFuture<KVMessage>> futures = new ArrayList<>();
+			for (Map.Entry<String, List<Integer>> share : byServer.entrySet()) {
+				KVStore store;
+				try {
+					store = connectionFor(share.getKey());
+				} catch (IOException e) {
+					logger.error("Cannot connect to " + share.getKey() + " for a batch", e);
+					for (int i : share.getValue()) {
+						replies[i] = failed(entries.get(i));
+					}
+					continue;
+				}
+				for (List<Integer> chunk : chunks(share.getValue(), entries)) {
+					List<BinaryProtocol.Frame> subBatch = new ArrayList<>(chunk.size());
+					for (int i : chunk) {
+						subBatch.add(entries.get(i));
+					}
+					sent.add(chunk);
+					futures.add(store.sendBatch(opcode, subBatch));
+				}
+			}
+
+			pending = new ArrayList<>();
+			for (int j = 0; j < sent.size(); j++) {
+				List<Integer> chunk = sent.get(j);
+				BinaryProtocol.Frame reply;
+				try {
+					reply = (BinaryProtocol.Frame) await(futures.get(j));
+				} catch (Exception e) {
+					logger.error("Batch of " + chunk.size() + " keys failed", e);
+					for (int i : chunk) {
+						replies[i] = failed(entries.get(i));
+					}
+					continue;
+				}
+				List<BinaryProtocol.Frame> answers = reply.getEntries();
+				for (int k = 0; k < chunk.size(); k++) {
+					int i = chunk.get(k);
+					if (answers == null || answers.size() != chunk.size()) {
+						// rejected as a whole, e.g. stopped or write locked
+						replies[i] = new BinaryProtocol.Frame(entries.get(i).getOpcode(), reply.getStatus(),
+								keys.get(i), null);
+						continue;
+					}
+					BinaryProtocol.Frame answer = answers.get(k);
+					replies[i] = answer;
+					if (answer.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+						if (answer.getValue() != null && !answer.getValue().trim().isEmpty()) {
+							loadMetadata(answer.getValue().trim().split("\\s+"));
+						}
+						pending.add(i);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			results.put(keys.get(i), replies[i]);
+		}
+		return results;
+	}
+
+	private static BinaryProtocol.Frame failed(BinaryProtocol.Frame entry) {
+		KVMessage.StatusType status = entry.getOpcode() == BinaryProtocol.GET ? KVMessage.StatusType.GET_ERROR
+				: entry.getOpcode() == BinaryProtocol.DELETE ? KVMessage.StatusType.DELETE_ERROR
+				: KVMessage.StatusType.PUT_ERROR;
+		return new BinaryProtocol.Frame(entry.getOpcode(), status, entry.getKey(), entry.getValue());
+	}
+
+	// Splits a server's share so that every sub-batch and its reply fit into one frame
+	private static List<List<Integer>> chunks(List<Integer> share, List<BinaryProtocol.Frame> entries) {
+		List<List<Integer>> chunks = new ArrayList<>();
+		List<Integer> chunk = new ArrayList<>();
+		long bytes = 0;
+		for (int i : share) {
+			BinaryProtocol.Frame entry = entries.get(i);
+			// at most 3 UTF-8 bytes per char, the reply to a GET may carry the longest value
+			long size = BinaryProtocol.HEADER_SIZE + 3L * (entry.getKey().length()
+					+ (entry.getValue() == null ? 0 : entry.getValue().length()))
+					+ (entry.getOpcode() == BinaryProtocol.GET ? MAXVALUELENGTH : 0);
+			if (!chunk.isEmpty() && (chunk.size() == MAX_BATCH_ENTRIES || bytes + size > MAX_BATCH_BYTES)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+				bytes = 0;
+			}
+			chunk.add(i);
+			bytes += size;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	// The pooled connection to a server, the connected server serves the keys of unknown ranges.
+	// A failed connection is replaced, but after a failed connect only once its backoff is over.
+	// Connecting holds the lock of that server only, requests to the others go on meanwhile
+	private KVStore connectionFor(String server) throws IOException {
+		boolean own = server.isEmpty() || server.equals(address + ":" + port);
+		String name = own ? address + ":" + port : server;
+		Object lock;
+		synchronized (peers) {
+			KVStore store = pooled(own, server, name);
+			if (store != null) {
+				return store;
+			}
+			lock = connectLocks.get(name);
+			if (lock == null) {
+				lock = new Object();
+				connectLocks.put(name, lock);
+			}
+		}
+
+		synchronized (lock) {
+			KVStore store;
+			synchronized (peers) {
+				// connected, or failed, by another request while this one waited
+				store = pooled(own, server, name);
+				if (store != null) {
+					return store;
+				}
+				store = own ? this : peers.remove(server);
+			}
+			try {
+				if (own) {
+					logger.info("Reconnecting to " + name);
+					tearDownConnection();
+					connect();
+				} else {
+					if (store != null) {
+						store.disconnect();
+					}
+					String[] hostPort = server.split(":");
+					store = new KVStore(hostPort[0], Integer.parseInt(hostPort[1]));
+					store.setBinaryProtocol(binaryProtocol);
+					Integer limit = concurrencyLimits.get(server);
+					store.setPipelineDepth(limit == null ? pipelineDepth : limit);
+					store.connect();
+				}
+			} catch (IOException e) {
+				synchronized (peers) {
+					// doubled on every failure, up to MAX_RETRY_DELAY
+					Long delay = retryDelays.get(name);
+					delay = delay == null ? MIN_RETRY_DELAY : Math.min(2 * delay, MAX_RETRY_DELAY);
+					retryDelays.put(name, delay);
+					retryAt.put(name, System.currentTimeMillis() + delay);
+				}
+				throw e;
+			}
+			synchronized (peers) {
+				if (!own) {
+					peers.put(server, store);
+				}
+				retryAt.remove(name);
+				retryDelays.remove(name);
+			}
+			return store;
+		}
+	}
+
+	/*
+	 * The healthy pooled connection to a server, or null if it needs a new
+	 * one. Must hold the peers lock.
+	 * @throws IOException if the server is still backing off a failed connect
+	 */
+	private KVStore pooled(boolean own, String server, String name) throws IOException {
+		KVStore store = own ? this : peers.get(server);
+		if (own && disconnected) {
+			throw new IOException("Not connected to " + name);
+		}
+		if (store != null && store.isHealthy()) {
+			return store;
+		}
+		Long next = retryAt.get(name);
+		if (next != null && System.currentTimeMillis() < next) {
+			throw new IOException("Server " + name + " unreachable, retrying in "
+					+ (next - System.currentTimeMillis()) + " ms");
+		}
+		return null;
+	}
+
+	// Connections to servers that left the ring are closed
+	private void prunePeers(Map<String, String[]> metadata) {
+		synchronized (peers) {
+			Iterator<Map.Entry<String, KVStore>> it = peers.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, KVStore> peer = it.next();
+				if (!metadata.containsKey(peer.getKey())) {
+					peer.getValue().disconnect();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private CompletableFuture<KVMessage> sendBatch(byte opcode, List<BinaryProtocol.Frame> entries) {
+		if (protocolVersion >= BinaryProtocol.PIPELINED_VERSION) {
+			return sendPipelined(opcode, null, null, entries, 1);
+		}
+		// one request per key, answered as if it was a batch
+		List<BinaryProtocol.Frame> answers = new ArrayList<>(entries.size());
+		try {
+			for (BinaryProtocol.Frame entry : entries) {
+				KVMessage answer = entry.getOpcode() == BinaryProtocol.GET ? get(entry.getKey())
+						: put(entry.getKey(), entry.getValue() == null ? "null" : entry.getValue());
+				answers.add(new BinaryProtocol.Frame(entry.getOpcode(), answer.getStatus(), answer.getKey(),
+						answer.getValue()));
+			}
+		} catch (Exception e) {
+			CompletableFuture<KVMessage> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return CompletableFuture.completedFuture(new BinaryProtocol.Frame(0, opcode, null, answers));
+	}
+
 	// Sending and Receiving Messages Functionality - used by put and get to send the message and receive the response
 
 	/**
@@ -276,7 +1176,9 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 		//System.out.println(msg.getMsg());
 		output.write(msgBytes, 0, msgBytes.length);
 		output.flush();
-		logger.info("Send message:\t '" + msg.getMsg() + "'");
+		if (LogSetup.sample(logger)) {
+			logger.info("Send message:\t '" + msg.getMsg() + "'");
+		}
 	}
 
 	public TextMessage receiveMessage() throws IOException {
@@ -335,7 +1237,9 @@ public class KVStore extends Thread implements KVCommInterface, ClientSocketList
 
 		/* build final String */
 		TextMessage msg = new TextMessage(msgBytes);
-		logger.info("Receive message:\t '" + msg.getMsg() + "'");
+		if (LogSetup.sample(logger)) {
+			logger.info("Receive message:\t '" + msg.getMsg() + "'");
+		}
 		return msg;
 	}
 
@@ -0,0 +1,79 @@
+package ecs;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+
+import app_kvClient.TextMessage;
+
+/**
+ * Connection from the ECS to one storage server, kept open for all admin
+ * commands sent to it. A command and its reply are one text message each,
+ * so the commands on one connection run one after another, while commands
+ * to different servers may run at the same time.
+ */
+class AdminConnection implements Closeable {
+
+   private static Logger logger = Logger.getRootLogger();
+   private static final int BUFFER_SIZE = 1024;
+   private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
+
+   private final String address;
+   private final Socket socket;
+   private final OutputStream output;
+   private final InputStream input;
+
+   AdminConnection(String host, int port) throws IOException {
+      this.address = host + ":" + port;
+      this.socket = new Socket(host, port);
+      this.output = socket.getOutputStream();
+      this.input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+   }
+
+   /**
+    * Sends a command and waits for its reply.
+    * @throws IOException if the connection failed or the server closed it
+    */
+   synchronized String send(String command) throws IOException {
+      byte[] msgBytes = new TextMessage(command).getMsgBytes();
+      output.write(msgBytes, 0, msgBytes.length);
+      output.flush();
+      if (logger.isInfoEnabled()) {
+         logger.info("Send message to " + address + ":\t '" + command + "'");
+      }
+      String reply = receive();
+      if (logger.isInfoEnabled()) {
+         logger.info("Receive message from " + address + ":\t '" + reply + "'");
+      }
+      return reply;
+   }
+
+   /* a reply up to its carriage return, keeping printable characters only */
+   private String receive() throws IOException {
+      StringBuilder reply = new StringBuilder();
+      int read = input.read();
+      while (read != 13) {
+         if (read == -1) {
+            throw new IOException("Connection closed by " + address);
+         }
+         if (read > 31 && read < 127 && reply.length() < DROP_SIZE) {
+            reply.append((char) read);
+         }
+         read = input.read();
+      }
+      return reply.toString();
+   }
+
+   public void close() {
+      try {
+         socket.close();
+      } catch (IOException e) {
+         logger.error("Error! Unable to close connection to " + address, e);
+      }
+   }
+}
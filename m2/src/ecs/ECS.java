@@ -14,12 +14,24 @@ import java.net.Socket;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Collections;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.TreeMap;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Collection;
+import java.util.Set;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 
@@ -30,6 +42,8 @@ import org.apache.log4j.Logger;
 
 import app_kvClient.TextMessage;
 import logger.LogSetup;
+import shared.HashRing;
+import shared.messages.BinaryProtocol;
 
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -52,19 +66,70 @@ public class ECS {
    public static final String ZK_PORT = "2181";
    public static final String ZK_CONN = ZK_HOST + ":" + ZK_PORT;
    public static final int ZK_TIMEOUT = 2000;
+   /* one position per server, the layout of the single range metadata */
+   public static final int DEFAULT_VIRTUAL_NODES = 1;
+   /* every key on its responsible server only */
+   public static final int DEFAULT_REPLICAS = 1;
 
+   /* every virtual node position, mapped to its server */
    TreeMap<String, ECSNode> metadata = new TreeMap<>();
+   /* rebuilt from metadata whenever a node joins or leaves */
+   private HashRing<ECSNode> ring = new HashRing<ECSNode>(metadata);
    ArrayList<ECSNode> storageNodes = new ArrayList<ECSNode>(); 
    ArrayList<ECSNode> idleNodes = new ArrayList<ECSNode>(); 
    private ZooKeeper zk;
    private static final String dataPath = "/server";
-   private Socket ecsSocket;
-   private OutputStream output;
-   private InputStream input;
-   private static final int BUFFER_SIZE = 1024;
-   private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
+   /* the number of servers holding each key, read by the servers */
+   private static final String replicationPath = "/replication";
+   /*
+    * a server creates its ephemeral znode "host:port" here once it serves,
+    * holding the version of the metadata it applied
+    */
+   private static final String readyPath = "/ready";
+   private static final int READY_TIMEOUT = 30000;
+   /* after this, servers that did not apply the metadata are told to */
+   private static final int METADATA_TIMEOUT = 10000;
+   /* long enough for a lockwrite moving a large range */
+   private static final int COMMAND_TIMEOUT = 600000;
+
+   /* one connection per server, kept open for all admin commands */
+   private final Map<ECSNode, AdminConnection> connections = new HashMap<ECSNode, AdminConnection>();
+   /* sends the commands to all servers at once, one thread per server */
+   private final ExecutorService admin = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "ecs-admin");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+   private final int virtualNodes;
+   private final int replicas;
    
    public ECS(int num_servers,int cache_size, String cache_strategy){
+      this(num_servers, cache_size, cache_strategy, DEFAULT_VIRTUAL_NODES);
+   }
+
+   public ECS(int num_servers,int cache_size, String cache_strategy, int virtualNodes){
+      this(num_servers, cache_size, cache_strategy, virtualNodes, DEFAULT_REPLICAS);
+   }
+
+   /**
+    * @param virtualNodes the positions each server takes on the ring. More
+    *       of them even out the share of the keys each server holds, and a
+    *       server joining or leaving moves many small slices from or to all
+    *       of its peers instead of one large range from or to its successor.
+    * @param replicas the servers holding each key, the responsible one and
+    *       the next ones clockwise on the ring, which serve reads as well
+    */
+   public ECS(int num_servers,int cache_size, String cache_strategy, int virtualNodes, int replicas){
+      if (virtualNodes < 1) {
+         throw new IllegalArgumentException("A server needs at least one virtual node");
+      }
+      if (replicas < 1 || replicas > BinaryProtocol.MAX_WRITE_QUORUM) {
+         throw new IllegalArgumentException("Invalid number of replicas " + replicas);
+      }
+      this.virtualNodes = virtualNodes;
+      this.replicas = replicas;
       zk_start();
       zk_connect();
       ecs_nodes_initialize(num_servers, cache_size,cache_strategy);
@@ -96,12 +161,7 @@ public class ECS {
          }catch(IOException e){
             e.printStackTrace();
          }
-
-         try{
-            TimeUnit.MILLISECONDS.sleep(500);
-         }catch(InterruptedException e){
-            e.printStackTrace();
-         }
+         // no need to wait, zk_connect retries until the server is up
       }
    }
 
@@ -128,7 +188,11 @@ public class ECS {
 
    private void ecs_nodes_initialize(int num_servers, int cache_size, String cache_strategy){
       populate_storage_and_idle_servers(num_servers, cache_size, cache_strategy); 
+      // the servers read the metadata as they start, so publish it first
       create_ecsnode_and_zknode();
+      for (ECSNode node : storageNodes) {
+         launchServer(node, cache_size, cache_strategy);
+      }
    }
 
    private void populate_storage_and_idle_servers(int num_servers, int cache_size, String cache_strategy){
@@ -142,14 +206,12 @@ public class ECS {
             String server_name=words[0];
             String host=words[1];
             String port=words[2];
-            ECSNode node=new ECSNode(server_name,host,Integer.parseInt(port));
-            if (servers_launched>=num_servers){
+            ECSNode node=new ECSNode(server_name,host,Integer.parseInt(port),virtualNodes);
+            if (storageNodes.size()>=num_servers){
                idleNodes.add(node);
             } else {
                storageNodes.add(node);
-               launchServer(node,cache_size,cache_strategy);
-               //servers_launched++;
-               metadata.put(node.getNodeHash(),node);
+               putOnRing(node);
             }
             total_servers++;
 	      }
@@ -159,26 +221,84 @@ public class ECS {
    }
 
    private void create_ecsnode_and_zknode(){
-      String current_data;
-      String data = "";
-
-      for (ECSNode node:storageNodes) {  
-         node.setRange(getServerRange(node.getNodeHash()));
-         current_data=node.getNodeHost()+":" + node.getNodePort()+" "+node.getNodeHashRange()[0]+"-"+node.getNodeHashRange()[1]+"\n";
-         data+=current_data;
-	   }
+      // read by the servers together with the metadata
+      if (!exists(replicationPath)){
+         create_zknode(replicationPath, Integer.toString(replicas));
+      }
+      setData(replicationPath, Integer.toString(replicas));
+      updateRanges();
+      String data = formatMetadata();
       if (!exists(dataPath)){
          create_zknode(dataPath,data);
       }
 	   setData(dataPath,data);
    }
 
-   private void setData(String path, String data){
+   private void putOnRing(ECSNode node){
+      for (String hash : node.getNodeHashes()) {
+         metadata.put(hash, node);
+      }
+      ring = new HashRing<ECSNode>(metadata);
+   }
+
+   private void removeFromRing(ECSNode node){
+      for (String hash : node.getNodeHashes()) {
+         metadata.remove(hash);
+      }
+      ring = new HashRing<ECSNode>(metadata);
+   }
+
+   /* recomputes the range of every virtual node of the storage servers */
+   private void updateRanges(){
+      for (ECSNode node : storageNodes) {
+         List<String[]> ranges = new ArrayList<String[]>();
+         for (String hash : node.getNodeHashes()) {
+            ArrayList<String> range = getServerRange(hash);
+            ranges.add(range.toArray(new String[range.size()]));
+         }
+         node.setRanges(ranges);
+      }
+   }
+
+   /**
+    * @return the metadata as published in ZooKeeper, a line per server
+    *       with all of its ranges, "host:port lower-upper,lower-upper\n"
+    */
+   private String formatMetadata(){
+      StringBuilder data = new StringBuilder();
+      for (ECSNode node : storageNodes) {
+         data.append(node.getNodeHost()).append(":").append(node.getNodePort()).append(" ");
+         data.append(formatRanges(node.getNodeHashRanges())).append("\n");
+      }
+      return data.toString();
+   }
+
+   private static String formatRanges(List<String[]> ranges){
+      String[] bounds = new String[ranges.size() * 2];
+      for (int i = 0; i < ranges.size(); i++) {
+         bounds[2 * i] = ranges.get(i)[0];
+         bounds[2 * i + 1] = ranges.get(i)[1];
+      }
+      return HashRing.formatRanges(bounds);
+   }
+
+   /**
+    * Publishes the metadata of the current ring. The servers watch its
+    * znode and apply every new version by themselves.
+    * @return the version of the znode, -1 if it could not be written
+    */
+   private int publishMetadata(){
+      updateRanges();
+      return setData(dataPath, formatMetadata());
+   }
+
+   private int setData(String path, String data){
       try{
-	      zk.setData(path,data.getBytes(),zk.exists(path,true).getVersion());
+	      return zk.setData(path,data.getBytes(),zk.exists(path,true).getVersion()).getVersion();
       }catch (Exception e){
 	      System.out.println(e.getMessage());
       }
+      return -1;
    }
 
    private void create_zknode(String path, String data){
@@ -192,28 +312,11 @@ public class ECS {
    public ArrayList<String> getServerRange(String hash){
       ArrayList<String>res=new ArrayList<String>();
 
-      if(metadata==null) return res;
-
-      String previous=null;
-      boolean found=false;
-      int count=0;
-
-      for(Map.Entry<String,ECSNode>entry : this.metadata.entrySet()){
-         if(entry.getKey().equals(hash)){
-            if (count!=0){
-               found = true;
-               break;
-            }
-	      }
-         previous=entry.getKey();
-         count++;
-      }
-      
-      if(previous!=null){
-         res.add(previous);
-         res.add(hash);
-      }
+      if(ring.isEmpty()) return res;
 
+      // a node owns the hashes from its predecessor's position up to its own
+      res.add(ring.predecessor(hash));
+      res.add(hash);
       return res;
    }
 
@@ -247,29 +350,65 @@ public class ECS {
 
       ECSNode node= add_idle_node_to_storagenodes();
       System.out.println("Computing key-range of new server...");
-      update_node_range_and_metadata(node);
-      appendToCurrentPath(node);
+      Map<ECSNode, List<String[]>> sources = update_node_range_and_metadata(node);
       System.out.println("Launching new server...");
       launchServer(node, cacheSize, replacementStrategy);
-
-      try{
-         TimeUnit.MILLISECONDS.sleep(500);
-      }catch(InterruptedException e){
-         e.printStackTrace();
-      }
+      awaitReady(Collections.singletonList(node));
 
       System.out.println("Updating metadata of all servers...");
-      lockwrite_successor_while_servers_update_metadata(node);
+      if (!lockwrite_sources_while_servers_update_metadata(node, sources)) {
+         // the old ranges stay published, the sources keep serving them
+         broadcast(sources.keySet(), "unlockwrite");
+         storageNodes.remove(node);
+         removeFromRing(node);
+         updateRanges();
+         idleNodes.add(0, node);
+         sendShutdownMessage(node);
+         throw new Exception("Cannot move the keys to server " + node.getNodePort() + ", it was not added");
+      }
       return node; 
    }
 
-   private void lockwrite_successor_while_servers_update_metadata(ECSNode node){
-       
-      ECSNode successorNode = getSuccessorNode(node); 
-      sendLockWriteMessage(successorNode, node); 
+   /* @return false if some source could not move its keys, nothing was published then */
+   private boolean lockwrite_sources_while_servers_update_metadata(ECSNode node, Map<ECSNode, List<String[]>> sources){
+      // every source streams its slices to the new server at the same time
+      Map<ECSNode, String> lockWrites = new LinkedHashMap<ECSNode, String>();
+      for (Map.Entry<ECSNode, List<String[]>> source : sources.entrySet()) {
+         lockWrites.put(source.getKey(), lockWriteCommand(node, source.getValue()));
+      }
+      if (!moveRanges(lockWrites)) {
+         return false;
+      }
       update_servers_metadata();
-      sendUnlockWriteMessage(successorNode);
+      broadcast(sources.keySet(), "unlockwrite");
+      return true;
+   }
+
+   /**
+    * Has every server lock its writes and move ranges, retrying once
+    * where that failed. Moving a range again only overwrites keys with
+    * the same values.
+    * @param lockWrites the lockwrite command of each server
+    * @return true if every server moved its ranges
+    */
+   private boolean moveRanges(Map<ECSNode, String> lockWrites){
+      Map<ECSNode, String> pending = new LinkedHashMap<ECSNode, String>(lockWrites);
+      for (int attempt = 0; attempt < 2 && !pending.isEmpty(); attempt++) {
+         for (Map.Entry<ECSNode, String> reply : broadcast(pending).entrySet()) {
+            if (moved(reply.getValue())) {
+               pending.remove(reply.getKey());
+            }
+         }
+      }
+      for (ECSNode node : pending.keySet()) {
+         logger.error("Error! Server " + node.getNodePort() + " could not move its keys");
+      }
+      return pending.isEmpty();
+   }
 
+   /* the reply of a server that locked its writes and moved the keys */
+   private static boolean moved(String reply){
+      return reply != null && reply.startsWith("Locked write");
    }
 
    private ECSNode add_idle_node_to_storagenodes(){
@@ -279,132 +418,250 @@ public class ECS {
       return node;
    }
 
-   private void update_node_range_and_metadata(ECSNode node){
-      metadata.put(node.getNodeHash(), node);
-      node.setRange(getServerRange(node.getNodeHash()));
-      ECSNode successorNode = getSuccessorNode(node); 
-      updateMetadata(successorNode);
-   }
-
-   private ECSNode getSuccessorNode(ECSNode node){
-      ECSNode successorNode = metadata.get(getSuccessorHash(node.getNodeHash())); 
-      return successorNode;
+   /**
+    * Puts the node on the ring and computes the new ranges. They are only
+    * published once the keys moved, so clients keep going to the servers
+    * that hold them until then.
+    *
+    * @return the ranges the node takes over, by the server holding them
+    */
+   private Map<ECSNode, List<String[]>> update_node_range_and_metadata(ECSNode node){
+      HashRing<ECSNode> before = ring;
+      putOnRing(node);
+      updateRanges();
+      // the keys below each new position were held by the server owning it before
+      Map<ECSNode, List<String[]>> sources = new LinkedHashMap<ECSNode, List<String[]>>();
+      for (String[] range : node.getNodeHashRanges()) {
+         ECSNode source = before.getByHash(range[1]);
+         if (source == null || source == node) {
+            continue;
+         }
+         if (!sources.containsKey(source)) {
+            sources.put(source, new ArrayList<String[]>());
+         }
+         sources.get(source).add(range);
+      }
+      return sources;
    }
 
    public String getSuccessorHash(String hash){
-      if (metadata == null) return null;
-      NavigableMap<String, ECSNode> temp = metadata;
-      String next;
-      if (temp.higherEntry(hash) == null) next = temp.firstKey();
-      else next = temp.higherEntry(hash).getKey();
+      if (ring.isEmpty()) return null;
+      String next = ring.successor(hash).getNodeHash();
       System.out.println(next);
       return next;
    }
 
-   private void appendToCurrentPath(ECSNode node){
-      String data = getData(dataPath);
-      String host = node.getNodeHost();
-      String port = Integer.toString(node.getNodePort());
-      String range_begin = node.getNodeHashRange()[0];
-      String range_end = node.getNodeHashRange()[1];
-      String currentData = host + ":" + port + " " + range_begin + "-" + range_end + "\n";
-      data += currentData;
-      setData(dataPath,data);
+   private static String lockWriteCommand(ECSNode curNode, List<String[]> ranges) {
+      return "lockwrite " + lockWriteTarget(curNode, ranges);
    }
 
-   private void sendLockWriteMessage(ECSNode node, ECSNode curNode) {
-      try {
-         ecsSocket = new Socket(node.getNodeHost(), node.getNodePort());
-         output = ecsSocket.getOutputStream();
-         input = ecsSocket.getInputStream();
-         String host=curNode.getNodeHost();
-         String port=Integer.toString(curNode.getNodePort());
-         String range_begin=curNode.getNodeHashRange()[0]; 
-         String range_end=curNode.getNodeHashRange()[1]; 
-      
-	      sendMessage (new TextMessage("lockwrite " + host+ ":" + port + " "+ range_begin + "-" + range_end));
-         try{
-            TimeUnit.MILLISECONDS.sleep(500);
-         }catch(InterruptedException e){
-            e.printStackTrace();
-         }
-         
-         TextMessage latestMsg = receiveMessage();
-         System.out.println(PROMPT + latestMsg.getMsg());
+   /* the ip:port and ranges of one server a lockwrite moves keys to */
+   private static String lockWriteTarget(ECSNode curNode, List<String[]> ranges) {
+      return curNode.getNodeHost() + ":" + curNode.getNodePort() + " " + formatRanges(ranges);
+   }
+
+   private void sendUnlockWriteMessage(ECSNode node) {
+      String reply = command(node, "unlockwrite");
+      if (reply != null) {
+         System.out.println(PROMPT + reply);
+      }
+   }
+
+   /**
+    * Publishes the metadata and waits until every storage server applied
+    * it, as reported in its znode under readyPath. Only the servers that
+    * did not report in time are told to load it.
+    */
+   private void update_servers_metadata(){
+      int version = publishMetadata();
+      Collection<ECSNode> lagging = awaitVersion(storageNodes, version, METADATA_TIMEOUT);
+      if (!lagging.isEmpty()) {
+         System.out.println(PROMPT + lagging.size() + " server(s) did not apply metadata version " + version + " in time");
+         broadcast(lagging, "update_metadata");
+      }
+   }
+
+   /**
+    * Sends a command to a server over its admin connection. A connection
+    * the server closed in the meantime, for example because it restarted,
+    * is replaced once.
+    * @return the reply, or null if the server could not be reached
+    */
+   private String command(ECSNode node, String command) {
+      for (int attempt = 0; attempt < 2; attempt++) {
          try {
-            input.close();
-            output.close();
-            ecsSocket.close();
+            return connectionTo(node).send(command);
          } catch (IOException e) {
-            e.printStackTrace();
+            disconnect(node);
+            if (attempt > 0) {
+               logger.error("Error! Cannot send '" + command + "' to " + node.getNodePort(), e);
+            }
          }
-	      ecsSocket = null;	     
-      } catch (Exception e) {
-	      e.printStackTrace();
       }
+      return null;
+   }
+
+   /**
+    * Sends a command to all servers at once and waits until every one of
+    * them replied, so it takes as long as the slowest server.
+    * @return the replies of the servers that could be reached
+    */
+   private Map<ECSNode, String> broadcast(Collection<ECSNode> nodes, String command){
+      Map<ECSNode, String> commands = new LinkedHashMap<ECSNode, String>();
+      for (ECSNode node : nodes) {
+         commands.put(node, command);
+      }
+      return broadcast(commands);
    }
 
-   private void sendUnlockWriteMessage(ECSNode node) {
-      try {
-         ecsSocket = new Socket(node.getNodeHost(), node.getNodePort());
-         output = ecsSocket.getOutputStream();
-         input = ecsSocket.getInputStream();
-         sendMessage (new TextMessage("unlockwrite"));
-         TextMessage latestMsg = receiveMessage();
-         System.out.println(PROMPT + latestMsg.getMsg());
-
+   /* like broadcast(nodes, command), with a command of its own per server */
+   private Map<ECSNode, String> broadcast(Map<ECSNode, String> commands){
+      Map<ECSNode, Future<String>> pending = new LinkedHashMap<ECSNode, Future<String>>();
+      for (final Map.Entry<ECSNode, String> command : commands.entrySet()) {
+         pending.put(command.getKey(), admin.submit(new Callable<String>() {
+            public String call() {
+               return command(command.getKey(), command.getValue());
+            }
+         }));
+      }
+      Map<ECSNode, String> replies = new LinkedHashMap<ECSNode, String>();
+      for (Map.Entry<ECSNode, Future<String>> reply : pending.entrySet()) {
          try {
-            input.close();
-            output.close();
-            ecsSocket.close();
-            } catch (IOException e) {
-               e.printStackTrace();
+            String msg = reply.getValue().get(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (msg != null) {
+               System.out.println(PROMPT + msg);
+               replies.put(reply.getKey(), msg);
             }
-         ecsSocket = null;	     
-      } catch (Exception e) {
-         e.printStackTrace();
+         } catch (TimeoutException e) {
+            reply.getValue().cancel(true);
+            disconnect(reply.getKey());
+            logger.error("Error! No reply from " + reply.getKey().getNodePort() + " in time");
+         } catch (ExecutionException e) {
+            logger.error("Error! Command to " + reply.getKey().getNodePort() + " failed", e.getCause());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
       }
+      return replies;
    }
 
-   private void updateMetadata(ECSNode node) {
-      String data = getData(dataPath);
-      String host=node.getNodeHost();
-      String port=Integer.toString(node.getNodePort());
-      String range_begin=node.getNodeHashRange()[0];
-      String range_end=node.getNodeHashRange()[1];
+   private AdminConnection connectionTo(ECSNode node) throws IOException {
+      synchronized (connections) {
+         AdminConnection connection = connections.get(node);
+         if (connection == null) {
+            connection = new AdminConnection(node.getNodeHost(), node.getNodePort());
+            connections.put(node, connection);
+         }
+         return connection;
+      }
+   }
 
-      String oldData = host + ":" + port + " " + range_begin + "-"+ range_end + "\n";
-      node.setRange(getServerRange(node.getNodeHash()));
-      host = node.getNodeHost();
-      port = Integer.toString(node.getNodePort());
-      range_begin = node.getNodeHashRange()[0];
-      range_end = node.getNodeHashRange()[1];
-      String currentData = host + ":" + port + " " + range_begin + "-"+ range_end + "\n";
-      data = data.replace(oldData, currentData);
-      setData(dataPath,data);
+   private void disconnect(ECSNode node) {
+      AdminConnection connection;
+      synchronized (connections) {
+         connection = connections.remove(node);
+      }
+      if (connection != null) {
+         connection.close();
+      }
    }
 
-   private void update_servers_metadata(){
-      try{
-         TextMessage latestMsg;
-         for (ECSNode node:storageNodes){
-            ecsSocket = new Socket (node.getNodeHost(), node.getNodePort());
-            output= ecsSocket.getOutputStream();
-            input = ecsSocket.getInputStream();
-            sendMessage (new TextMessage("update_metadata"));
-            latestMsg = receiveMessage();
-            System.out.println(PROMPT + latestMsg.getMsg());
-            try{
-               input.close();
-               output.close();
-               ecsSocket.close();
-            }catch(IOException e){
-               e.printStackTrace();
+   /**
+    * Waits until every server announced in ZooKeeper that it serves, by
+    * watching for its znode under readyPath, for at most READY_TIMEOUT.
+    */
+   private void awaitReady(Collection<ECSNode> nodes) {
+      Collection<ECSNode> missing = awaitVersion(nodes, -1, READY_TIMEOUT);
+      if (!missing.isEmpty()) {
+         System.out.println(PROMPT + missing.size() + " server(s) did not report ready in time");
+      }
+   }
+
+   /**
+    * Waits until the znode of every server under readyPath exists and
+    * holds at least the given metadata version, for at most timeout.
+    * @return the servers that did not get there in time
+    */
+   private Collection<ECSNode> awaitVersion(Collection<ECSNode> nodes, int version, int timeout) {
+      Set<ECSNode> lagging = Collections.newSetFromMap(new ConcurrentHashMap<ECSNode, Boolean>());
+      lagging.addAll(nodes);
+      CountDownLatch reported = new CountDownLatch(nodes.size());
+      for (ECSNode node : nodes) {
+         new VersionWatcher(node, version, lagging, reported).check();
+      }
+      try {
+         reported.await(timeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      return new ArrayList<ECSNode>(lagging);
+   }
+
+   /*
+    * Watches the znode of one server under readyPath, reading it again on
+    * every change until it holds the version.
+    */
+   private class VersionWatcher implements Watcher {
+      private final ECSNode node;
+      private final String path;
+      private final int version;
+      private final Set<ECSNode> lagging;
+      private final CountDownLatch reported;
+      private final AtomicBoolean settled = new AtomicBoolean();
+
+      VersionWatcher(ECSNode node, int version, Set<ECSNode> lagging, CountDownLatch reported) {
+         this.node = node;
+         this.path = readyPath + "/" + node.getNodeHost() + ":" + node.getNodePort();
+         this.version = version;
+         this.lagging = lagging;
+         this.reported = reported;
+      }
+
+      public void process(WatchedEvent event) {
+         if (event.getType() != Watcher.Event.EventType.None && !settled.get()) {
+            check();
+         }
+      }
+
+      void check() {
+         try {
+            byte[] data;
+            try {
+               data = zk.getData(path, this, null);
+            } catch (KeeperException.NoNodeException e) {
+               // not announced yet, read it once created
+               if (zk.exists(path, this) == null) {
+                  return;
+               }
+               data = zk.getData(path, this, null);
             }
-	      }
-	   }catch(Exception e){
-	      e.printStackTrace();
-	   }
+            if (applied(data) >= version) {
+               lagging.remove(node);
+               settle();
+            }
+         } catch (KeeperException.NoNodeException e) {
+            // deleted right after it was created, the exists watch is set
+         } catch (Exception e) {
+            logger.error("Error! Cannot watch " + node.getNodePort() + " in ZooKeeper", e);
+            settle();
+         }
+      }
+
+      private void settle() {
+         if (settled.compareAndSet(false, true)) {
+            reported.countDown();
+         }
+      }
+   }
+
+   /* the version in a znode under readyPath, -1 if there is none */
+   private static int applied(byte[] data) {
+      try {
+         return Integer.parseInt(new String(data, "US-ASCII").trim());
+      } catch (Exception e) {
+         return -1;
+      }
    }
 
    private void launchServer(ECSNode node, int cache_size, String cache_strategy) {
@@ -423,67 +680,6 @@ public class ECS {
 	   servers_launched++;
    }
 
-   public void sendMessage(TextMessage msg) throws IOException {
-      byte[] msgBytes = msg.getMsgBytes();
-      output.write(msgBytes, 0, msgBytes.length);
-      output.flush();
-      logger.info("Send message:\t '" + msg.getMsg() + "'");
-   }
-
-   public TextMessage receiveMessage() throws IOException {
-      int index = 0;
-      byte[] msgBytes = null, tmp = null;
-      byte[] bufferBytes = new byte[BUFFER_SIZE];
-      /* read first char from stream */
-      byte read = (byte) input.read();	
-      boolean reading = true;
-      while(read != 13 && reading) {
-         /* carriage return */
-	      /* if buffer filled, copy to msg array */
-         if(index == BUFFER_SIZE) {
-            if (msgBytes == null){
-               tmp = new byte[BUFFER_SIZE];
-               System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-            } else {
-               tmp = new byte[msgBytes.length + BUFFER_SIZE];
-               System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-               System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,BUFFER_SIZE);
-            }
-            msgBytes = tmp;
-            bufferBytes = new byte[BUFFER_SIZE];
-            index = 0;
-         } 
-
-         /* only read valid characters, i.e. letters and numbers */
-         if((read > 31 && read < 127)) {
-            bufferBytes[index] = read;
-            index++;
-         }
-         
-         /* stop reading is DROP_SIZE is reached */
-         if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-            reading = false;
-         }
-
-         /* read next char from stream */
-         read = (byte) input.read();
-      }
-
-      if(msgBytes == null){
-         tmp = new byte[index];
-         System.arraycopy(bufferBytes, 0, tmp, 0, index);
-      } else {
-	      tmp = new byte[msgBytes.length + index];
-         System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-	      System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-      }
-      msgBytes = tmp;
-      /* build final String */
-      TextMessage msg = new TextMessage(msgBytes);
-      logger.info("Receive message:\t '" + msg.getMsg() + "'");
-      return msg;
-   }
-
    public String getData(String path){
       String data = "";
       try{
@@ -495,50 +691,15 @@ public class ECS {
       return data;
    }
 
-   private void removeFromCurrentPath(ECSNode node) {
-      String data = getData(dataPath);
-      String host=node.getNodeHost();
-      String port=Integer.toString(node.getNodePort());
-      String range_begin=node.getNodeHashRange()[0];
-      String range_end=node.getNodeHashRange()[1];
-      String currentData=host+":"+port+" "+range_begin+"-"+range_end+"\n";
-      data = data.replace(currentData, "");
-      setData(dataPath,data);
-   }
-
    public boolean start(){
-      try{
-	      TimeUnit.MILLISECONDS.sleep(storageNodes.size() * 1000);
-	   } catch(InterruptedException e){
-	      e.printStackTrace();
-      }
+      awaitReady(storageNodes);
 
       int count = 0;
-      TextMessage latestMsg;
-
-      try{
-         for(ECSNode node:storageNodes){
-            ecsSocket = new Socket (node.getNodeHost(), node.getNodePort());
-            output= ecsSocket.getOutputStream();
-            input = ecsSocket.getInputStream();
-            sendMessage (new TextMessage("start"));
-            latestMsg= receiveMessage();
-            if (!latestMsg.equals("")){
-               count ++;
-               System.out.println("Started node " + node.getNodePort());
-            }
-            try{
-               input.close();
-               output.close();
-               ecsSocket.close();
-            }catch(IOException e){
-               e.printStackTrace();
-            }
-
-	      }
-	   }catch(Exception e){
-	      e.printStackTrace();
-	   }
+      Map<ECSNode, String> replies = broadcast(storageNodes, "start");
+      for (ECSNode node : replies.keySet()) {
+         count ++;
+         System.out.println("Started node " + node.getNodePort());
+      }
 
       System.out.println(PROMPT + count + " servers have been started" );
       return true;
@@ -554,11 +715,20 @@ public class ECS {
       System.out.println("Adding server to idle servers...");
       add_storageNode_to_idle_nodes(index);
       if (storageNodes.size()==0){
+         publishMetadata();
 	      sendShutdownMessage(node);
       } else {
-         ECSNode successorNode = getSuccessorNode(node); 
+         Map<ECSNode, List<String[]>> targets = getTargets(node);
          System.out.println("Updating metadata of all servers and shutting down " + node.getNodePort() + "...");
-         update_metadata_and_shutdown(node, successorNode);
+         if (!update_metadata_and_shutdown(node, targets)) {
+            // it keeps its ranges, which were never published as moved
+            idleNodes.remove(node);
+            storageNodes.add(index, node);
+            putOnRing(node);
+            updateRanges();
+            sendUnlockWriteMessage(node);
+            throw new Exception("Cannot move the keys of server " + node.getNodePort() + ", it was not removed");
+         }
       }
 
       // System.out.println("Computing key-range of new server...");
@@ -568,40 +738,51 @@ public class ECS {
 
    private void  add_storageNode_to_idle_nodes(int index){
       ECSNode node = storageNodes.get(index);
-      removeFromCurrentPath(node);
       storageNodes.remove(index);
-      metadata.remove(node.getNodeHash());
+      removeFromRing(node);
+      updateRanges();
       idleNodes.add(node);
    }
+
+   /**
+    * @return the ranges of a node that left the ring, by the server now
+    *       owning each of them, the one at the next position above
+    */
+   private Map<ECSNode, List<String[]>> getTargets(ECSNode node){
+      Map<ECSNode, List<String[]>> targets = new LinkedHashMap<ECSNode, List<String[]>>();
+      for (String[] range : node.getNodeHashRanges()) {
+         ECSNode target = ring.getByHash(range[1]);
+         if (!targets.containsKey(target)) {
+            targets.put(target, new ArrayList<String[]>());
+         }
+         targets.get(target).add(range);
+      }
+      return targets;
+   }
    
-   private void update_metadata_and_shutdown(ECSNode node,ECSNode successorNode){
-      updateMetadata(successorNode);
+   /* @return false if some keys could not be moved, nothing was published then */
+   private boolean update_metadata_and_shutdown(ECSNode node, Map<ECSNode, List<String[]>> targets){
+      // the keys are in place before the targets are told they own them,
+      // one lockwrite has the node stream to all of them at the same time
+      StringBuilder lockWrite = new StringBuilder("lockwrite");
+      for (Map.Entry<ECSNode, List<String[]>> target : targets.entrySet()) {
+         lockWrite.append(' ').append(lockWriteTarget(target.getKey(), target.getValue()));
+      }
+      if (!moveRanges(Collections.singletonMap(node, lockWrite.toString()))) {
+         return false;
+      }
       update_servers_metadata();
-      sendLockWriteMessage(node, successorNode);
       sendUnlockWriteMessage(node);	
       sendShutdownMessage(node); 
+      return true;
    }
 
    private void sendShutdownMessage(ECSNode node) {
-      TextMessage latestMsg;
-      try {
-         ecsSocket = new Socket(node.getNodeHost(), node.getNodePort());
-         output = ecsSocket.getOutputStream();
-         input = ecsSocket.getInputStream();
-         sendMessage (new TextMessage("shutdown"));
-         latestMsg = receiveMessage();
-         System.out.println(PROMPT + latestMsg.getMsg() + ". Node: " + node.getNodePort());
-	      try {
-            input.close();
-            output.close();
-            ecsSocket.close();
-         } catch (IOException e) {
-            e.printStackTrace();
-	      }
-         ecsSocket = null;	     
-      } catch (Exception e) {
-         e.printStackTrace();
+      String reply = command(node, "shutdown");
+      if (reply != null) {
+         System.out.println(PROMPT + reply + ". Node: " + node.getNodePort());
       }
+      disconnect(node);
    }
 
    private void disconnectfromZK(){
@@ -614,42 +795,39 @@ public class ECS {
 	   }
    }
 
+   /**
+    * @return the reply of every server to the "stats" command, its
+    *       latencies and counters as "name=value" pairs
+    */
+   public Map<ECSNode, String> stats(){
+      return broadcast(storageNodes, "stats");
+   }
+
+   /**
+    * Has every server dump its RequestTrace into its logs directory.
+    * @return the reply of every server to the "trace" command, the number
+    *       of requests dumped and the file
+    */
+   public Map<ECSNode, String> trace(){
+      return broadcast(storageNodes, "trace");
+   }
+
    public boolean stop(){
-      TextMessage latestMsg;
-      try {
-         for(ECSNode node :storageNodes){
-            ecsSocket = new Socket (node.getNodeHost(), node.getNodePort());
-            output= ecsSocket.getOutputStream();
-            input = ecsSocket.getInputStream();
-            sendMessage (new TextMessage("stop"));
-            latestMsg= receiveMessage();
-            System.out.println(PROMPT + latestMsg.getMsg());
-            try{
-               input.close();
-               output.close();
-               ecsSocket.close();
-               System.out.println("Stopped node " + node.getNodePort());
-            }catch(IOException e){
-               e.printStackTrace();
-            }
-            ecsSocket = null;
-	      }
-	   }catch(Exception e){
-	      e.printStackTrace();
+      Map<ECSNode, String> replies = broadcast(storageNodes, "stop");
+      for (ECSNode node : replies.keySet()) {
+         System.out.println("Stopped node " + node.getNodePort());
       }
-      
-	   try{
-	      TimeUnit.MILLISECONDS.sleep(storageNodes.size() * 1000);
-	   }catch(InterruptedException e){
-	      e.printStackTrace();
-      }
-      
       return true;
    }
+
    public boolean shutdownAll(){
       if (storageNodes != null){
-         for (ECSNode node:storageNodes){
-            sendShutdownMessage(node);
+         Map<ECSNode, String> replies = broadcast(storageNodes, "shutdown");
+         for (Map.Entry<ECSNode, String> reply : replies.entrySet()) {
+            System.out.println(PROMPT + reply.getValue() + ". Node: " + reply.getKey().getNodePort());
+         }
+         for (ECSNode node : storageNodes) {
+            disconnect(node);
          }
          storageNodes.clear();
       }
@@ -658,6 +836,7 @@ public class ECS {
       }
       if (metadata != null){
 	      metadata.clear();
+	      ring = new HashRing<ECSNode>(metadata);
       }
       disconnectfromZK();
 
@@ -667,4 +846,11 @@ public class ECS {
    public int getNumberofNodes(){
       return this.storageNodes.size();
    }
+
+   /**
+    * @return the storage servers of the service
+    */
+   public List<ECSNode> getNodes(){
+      return new ArrayList<ECSNode>(this.storageNodes);
+   }
 }
@@ -1,26 +1,43 @@
 package ecs;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import shared.KeyHash;
+
 public class ECSNode implements IECSNode{
    private String nodeName;
    private String nodeHost;
    private int nodePort;
    private String nodeHash;
    private ArrayList<String> nodeRange;
+   /* one position on the ring per virtual node, the first one is nodeHash */
+   private List<String> nodeHashes = new ArrayList<String>();
+   /* {lower, upper} of each virtual node, in the order of nodeHashes */
+   private List<String[]> nodeRanges = new ArrayList<String[]>();
    
    //constructor
    public ECSNode(String nodeName, String nodeHost, int nodePort){
+      this(nodeName, nodeHost, nodePort, 1);
+   }
+
+   /**
+    * @param virtualNodes the number of positions the node takes on the
+    *       ring, spreading its share of the keys over as many ranges
+    */
+   public ECSNode(String nodeName, String nodeHost, int nodePort, int virtualNodes){
       this.nodeHost=nodeHost;
       this.nodePort=nodePort;
       this.nodeName=nodeName;
       String stringHash=nodeHost + ":" +Integer.toString(nodePort);
       this.nodeHash=convertToMD5(stringHash);
+      nodeHashes.add(nodeHash);
+      for (int i = 1; i < virtualNodes; i++) {
+         nodeHashes.add(convertToMD5(stringHash + "#" + i));
+      }
    }
    public String getNodeName(){
       return this.nodeName;
@@ -29,6 +46,12 @@ public class ECSNode implements IECSNode{
    public String getNodeHash(){
       return this.nodeHash;
    }
+   /**
+    * @return the positions of all virtual nodes, starting with getNodeHash()
+    */
+   public List<String> getNodeHashes(){
+      return Collections.unmodifiableList(nodeHashes);
+   }
    public String getNodeHost(){
       return this.nodeHost;
    }
@@ -41,17 +64,18 @@ public class ECSNode implements IECSNode{
    public String[] getNodeHashRange(){
       return nodeRange.toArray(new String[nodeRange.size()]);
    }
+   /**
+    * @param ranges {lower, upper} of each virtual node, the first one is
+    *       also the range returned by getNodeHashRange()
+    */
+   public void setRanges(List<String[]> ranges){
+      nodeRanges = new ArrayList<String[]>(ranges);
+      nodeRange = new ArrayList<String>(Arrays.asList(ranges.get(0)));
+   }
+   public List<String[]> getNodeHashRanges(){
+      return Collections.unmodifiableList(nodeRanges);
+   }
    public String convertToMD5(String md5){
-      try{
-	 MessageDigest md=MessageDigest.getInstance("MD5");
-	 byte[]array=md.digest(md5.getBytes());
-	 StringBuffer sb=new StringBuffer();
-	 for (int i=0;i<array.length;++i){
-	    sb.append(Integer.toHexString((array[i]&0xFF)|0x100).substring(1,3));
-	 }
-	 return sb.toString();
-      }catch (NoSuchAlgorithmException e){
-      }
-      return null;
+      return KeyHash.md5(md5);
    }
 }
@@ -1,20 +1,33 @@
 package logger;
 
 import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.apache.log4j.AsyncAppender;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 /**
  * Represents the initialization for the server logging with Log4J.
+ * <p>
+ * The console and the log file are written by a background thread, logging
+ * only puts the event into a bounded buffer. When the buffer is full events
+ * are dropped rather than blocking the request, log4j logs how many were
+ * discarded once there is room again. Messages logged per request should be
+ * guarded by sample, so that only some of them are built at all.
  */
 public class LogSetup {
 
 	public static final String UNKNOWN_LEVEL = "UnknownLevel";
+	/* the events waiting to be written */
+	public static final int BUFFER_SIZE = 8192;
 	private static Logger logger = Logger.getRootLogger();
+	private static volatile int sampleRate = 1;
+	private static boolean shutdownHook = false;
 	private String logdir;
 	
 	/**
@@ -36,9 +49,47 @@ public class LogSetup {
 		FileAppender fileAppender = new FileAppender( layout, logdir, true );		
 	    
 	    ConsoleAppender consoleAppender = new ConsoleAppender(layout);
-		logger.addAppender(consoleAppender);
-		logger.addAppender(fileAppender);
+		AsyncAppender asyncAppender = new AsyncAppender();
+		asyncAppender.setBufferSize(BUFFER_SIZE);
+		asyncAppender.setBlocking(false);
+		asyncAppender.addAppender(consoleAppender);
+		asyncAppender.addAppender(fileAppender);
+		logger.addAppender(asyncAppender);
 		logger.setLevel(level);
+
+		synchronized (LogSetup.class) {
+			if (!shutdownHook) {
+				// closing the appenders writes out the buffered events
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					public void run() {
+						LogManager.shutdown();
+					}
+				}, "log-shutdown"));
+				shutdownHook = true;
+			}
+		}
+	}
+
+	/**
+	 * @param rate log one in that many requests, 1 to log all of them
+	 */
+	public static void setSampleRate(int rate) {
+		if (rate < 1) {
+			throw new IllegalArgumentException("The sample rate must be positive");
+		}
+		sampleRate = rate;
+	}
+
+	/**
+	 * Whether to log a request, check it before building the message.
+	 * @return true for one in sample rate requests if the logger logs INFO
+	 */
+	public static boolean sample(Logger logger) {
+		if (!logger.isInfoEnabled()) {
+			return false;
+		}
+		int rate = sampleRate;
+		return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
 	}
 	
 	public static boolean isValidLevel(String levelString) {
@@ -0,0 +1,247 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import shared.messages.Bytes;
+
+/**
+ * Immutable consistent hash ring, shared by the client, the servers and the
+ * ECS. Every node sits at one or more 128 bit MD5 positions and owns the
+ * keys whose hash lies in (previous position, its position], wrapping
+ * around at the top of the ring.
+ * <p>
+ * The positions are kept as pairs of longs in sorted primitive arrays, so
+ * a lookup is a binary search on unsigned numbers. Looking up a Bytes key
+ * or a position allocates nothing, the digest and its output buffer are
+ * kept per thread by KeyHash.
+ *
+ * @param <T> the node type, for example "ip:port" or an ECSNode
+ */
+public final class HashRing<T> {
+
+	private final long[] highs;
+	private final long[] lows;
+	private final Object[] nodes;
+
+	/**
+	 * @param positions the nodes by position, as KeyHash hex strings
+	 */
+	public HashRing(Map<String, T> positions) {
+		List<Map.Entry<String, T>> sorted = new ArrayList<Map.Entry<String, T>>(positions.entrySet());
+		// the hex strings compare like the numbers they stand for
+		Collections.sort(sorted, new Comparator<Map.Entry<String, T>>() {
+			public int compare(Map.Entry<String, T> a, Map.Entry<String, T> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		highs = new long[sorted.size()];
+		lows = new long[sorted.size()];
+		nodes = new Object[sorted.size()];
+		for (int i = 0; i < sorted.size(); i++) {
+			String position = sorted.get(i).getKey();
+			highs[i] = KeyHash.high(position);
+			lows[i] = KeyHash.low(position);
+			nodes[i] = sorted.get(i).getValue();
+		}
+	}
+
+	/**
+	 * Builds the ring of metadata in the "ip:port" to {lower, upper, ...}
+	 * form the servers publish. A node with virtual nodes has one pair of
+	 * bounds per range, and sits at the upper end of each of them.
+	 */
+	public static HashRing<String> fromRanges(Map<String, String[]> ranges) {
+		Map<String, String> positions = new HashMap<String, String>();
+		for (Map.Entry<String, String[]> range : ranges.entrySet()) {
+			String[] bounds = range.getValue();
+			for (int i = 1; i < bounds.length; i += 2) {
+				positions.put(bounds[i], range.getKey());
+			}
+		}
+		return new HashRing<String>(positions);
+	}
+
+	/**
+	 * @param ranges the ranges of a node as published in the metadata,
+	 * 		"lower-upper" or "lower-upper,lower-upper,..."
+	 * @return the bounds as {lower, upper, lower, upper, ...}
+	 */
+	public static String[] parseRanges(String ranges) {
+		return ranges.split("[-,]");
+	}
+
+	/**
+	 * @return the bounds {lower, upper, ...} in the form parseRanges reads
+	 */
+	public static String formatRanges(String[] bounds) {
+		StringBuilder ranges = new StringBuilder();
+		for (int i = 0; i + 1 < bounds.length; i += 2) {
+			if (i > 0) {
+				ranges.append(',');
+			}
+			ranges.append(bounds[i]).append('-').append(bounds[i + 1]);
+		}
+		return ranges.toString();
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	public boolean isEmpty() {
+		return nodes.length == 0;
+	}
+
+	/**
+	 * @return the node responsible for the key, or null if the ring is empty
+	 */
+	public T get(String key) {
+		return get(Bytes.of(key));
+	}
+
+	public T get(Bytes key) {
+		if (nodes.length == 0) {
+			return null;
+		}
+		byte[] digest = KeyHash.md5(key);
+		return nodeAt(ceiling(KeyHash.high(digest), KeyHash.low(digest)));
+	}
+
+	/**
+	 * @return the node responsible for a KeyHash hex position
+	 */
+	public T getByHash(String hash) {
+		if (nodes.length == 0) {
+			return null;
+		}
+		return nodeAt(ceiling(KeyHash.high(hash), KeyHash.low(hash)));
+	}
+
+	/**
+	 * @return the node at the next position above the given one, wrapping
+	 * 		around, or null if the ring is empty
+	 */
+	public T successor(String hash) {
+		if (nodes.length == 0) {
+			return null;
+		}
+		long high = KeyHash.high(hash);
+		long low = KeyHash.low(hash);
+		int index = ceiling(high, low);
+		if (highs[index] == high && lows[index] == low) {
+			index = (index + 1) % nodes.length;
+		}
+		return nodeAt(index);
+	}
+
+	/**
+	 * @return the position below the given one, wrapping around, so that
+	 * 		a node at hash owns (predecessor(hash), hash], or null if the
+	 * 		ring is empty
+	 */
+	public String predecessor(String hash) {
+		if (nodes.length == 0) {
+			return null;
+		}
+		int index = ceiling(KeyHash.high(hash), KeyHash.low(hash));
+		index = (index + nodes.length - 1) % nodes.length;
+		return KeyHash.hex(highs[index], lows[index]);
+	}
+
+	/**
+	 * @return the n distinct nodes holding a key, the responsible node
+	 * 		first and then the next ones clockwise, fewer if the ring has
+	 * 		fewer nodes
+	 */
+	public List<T> replicas(Bytes key, int n) {
+		if (nodes.length == 0) {
+			return Collections.emptyList();
+		}
+		byte[] digest = KeyHash.md5(key);
+		return replicasFrom(ceiling(KeyHash.high(digest), KeyHash.low(digest)), n);
+	}
+
+	/**
+	 * @return the n distinct nodes holding the keys at a KeyHash hex
+	 * 		position, see replicas(Bytes, int)
+	 */
+	public List<T> replicasByHash(String hash, int n) {
+		if (nodes.length == 0) {
+			return Collections.emptyList();
+		}
+		return replicasFrom(ceiling(KeyHash.high(hash), KeyHash.low(hash)), n);
+	}
+
+	/**
+	 * Like replicas(key, n).contains(node), but allocates nothing besides
+	 * the digest buffer KeyHash keeps per thread.
+	 */
+	public boolean isReplica(Bytes key, T node, int n) {
+		if (nodes.length == 0) {
+			return false;
+		}
+		byte[] digest = KeyHash.md5(key);
+		int start = ceiling(KeyHash.high(digest), KeyHash.low(digest));
+		int found = 0;
+		for (int step = 0; step < nodes.length && found < n; step++) {
+			int index = (start + step) % nodes.length;
+			if (!seenBefore(start, index)) {
+				if (nodes[index].equals(node)) {
+					return true;
+				}
+				found++;
+			}
+		}
+		return false;
+	}
+
+	private List<T> replicasFrom(int start, int n) {
+		List<T> replicas = new ArrayList<T>(n);
+		for (int step = 0; step < nodes.length && replicas.size() < n; step++) {
+			int index = (start + step) % nodes.length;
+			if (!seenBefore(start, index)) {
+				replicas.add(nodeAt(index));
+			}
+		}
+		return replicas;
+	}
+
+	/* whether the node at index also sits between start and index, with virtual nodes */
+	private boolean seenBefore(int start, int index) {
+		for (int i = start; i != index; i = (i + 1) % nodes.length) {
+			if (nodes[i].equals(nodes[index])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T nodeAt(int index) {
+		return (T) nodes[index];
+	}
+
+	/* the first position at or above (high, low), wrapping around to 0 */
+	private int ceiling(long high, long low) {
+		int from = 0;
+		int to = nodes.length;
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			int c = Long.compareUnsigned(highs[mid], high);
+			if (c == 0) {
+				c = Long.compareUnsigned(lows[mid], low);
+			}
+			if (c < 0) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from == nodes.length ? 0 : from;
+	}
+}
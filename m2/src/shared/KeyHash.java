@@ -0,0 +1,124 @@
+package shared;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.DigestException;
+import java.security.NoSuchAlgorithmException;
+
+import shared.messages.Bytes;
+
+/**
+ * MD5 key hashing shared by the servers, the storage engines and the client.
+ * Hashes are 32 character lower case hex strings, so they compare in the
+ * same order as the ring positions they stand for. As numbers, a hash is
+ * split into its high and low 64 bits, see HashRing.
+ */
+public final class KeyHash {
+
+	public static final String MIN = "00000000000000000000000000000000";
+	public static final String MAX = "ffffffffffffffffffffffffffffffff";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 is not available", e);
+			}
+		}
+	};
+
+	/* digest output, reused by every hash of the thread */
+	private static final ThreadLocal<byte[]> OUTPUT = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[DIGEST_LENGTH];
+		}
+	};
+
+	private KeyHash() {
+	}
+
+	/**
+	 * @return the MD5 hash of the UTF-8 encoded key as hex string
+	 */
+	public static String md5(String key) {
+		byte[] digest = DIGEST.get().digest(key.getBytes(UTF8));
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return the MD5 hash of the key, in an array of the calling thread
+	 * 		that the next hash overwrites
+	 */
+	public static byte[] md5(Bytes key) {
+		MessageDigest md = DIGEST.get();
+		byte[] digest = OUTPUT.get();
+		key.update(md);
+		try {
+			md.digest(digest, 0, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("MD5 digest does not fit", e);
+		}
+		return digest;
+	}
+
+	public static long high(byte[] digest) {
+		return toLong(digest, 0);
+	}
+
+	public static long low(byte[] digest) {
+		return toLong(digest, 8);
+	}
+
+	public static long high(String hash) {
+		return Long.parseUnsignedLong(hash.substring(0, 16), 16);
+	}
+
+	public static long low(String hash) {
+		return Long.parseUnsignedLong(hash.substring(16, 32), 16);
+	}
+
+	/**
+	 * @return the hex string of the hash with the given high and low bits
+	 */
+	public static String hex(long high, long low) {
+		char[] hex = new char[32];
+		for (int i = 0; i < 16; i++) {
+			hex[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xF];
+			hex[16 + i] = HEX[(int) (low >>> (60 - 4 * i)) & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long v = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			v = (v << 8) | (bytes[i] & 0xFF);
+		}
+		return v;
+	}
+
+	/**
+	 * @return true if the hash lies in the ring range (lower, upper]. The
+	 * 		range wraps around when lower >= upper, and lower == upper covers
+	 * 		the whole ring.
+	 */
+	public static boolean inRange(String hash, String lower, String upper) {
+		if (lower.compareTo(upper) < 0) {
+			return hash.compareTo(lower) > 0 && hash.compareTo(upper) <= 0;
+		}
+		return hash.compareTo(lower) > 0 || hash.compareTo(upper) <= 0;
+	}
+}
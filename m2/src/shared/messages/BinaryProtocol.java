@@ -0,0 +1,486 @@
+package shared.messages;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Length-prefixed binary wire protocol between KVStore and KVServer.
+ * <p>
+ * A client asks for it right after connecting by sending the text line
+ * "BINARY &lt;version&gt;". A server that speaks it answers with the text
+ * line "BINARY_OK &lt;version&gt;" carrying the version both sides use from
+ * then on. Any other answer means the server only knows the text protocol,
+ * which the client keeps using.
+ * <p>
+ * Every message afterwards is a frame of an 8 byte header, opcode (1) |
+ * status (1) | key length (2) | value length (4), followed by the raw UTF-8
+ * key and value. A value length of -1 means there is no value. Requests
+ * carry no status, replies echo the opcode of their request.
+ * <p>
+ * Version 2 appends a request id (4) to the header, which replies echo. A
+ * client may then pipeline requests without waiting for replies, and the
+ * server may answer them in a different order than they were sent. Only
+ * requests for the same key are guaranteed to execute in order.
+ * <p>
+ * Version 3 appends a write quorum (1) after the request id. For PUT and
+ * DELETE requests it is the number of servers, the responsible one
+ * included, that must have stored the write before the server replies. 0
+ * and 1 both mean the responsible server alone, other frames carry 0.
+ * <p>
+ * MGET and MPUT frames carry a batch of entries instead of a key and a
+ * value. Their key is empty and their value is the entries one after the
+ * other, each encoded as a version 1 frame. The reply holds one entry per
+ * request entry, in the same order, with the status of each. A server
+ * executes the PUTs and deletions of one MPUT with a single write-ahead
+ * log commit.
+ * <p>
+ * IMPORT frames are sent between servers when keys move to a new owner,
+ * see app_kvServer.RangeTransfer. Their key is empty and their value is a
+ * compressed chunk of PUT entries, which the receiver stores whichever
+ * ranges it is responsible for and whatever its state.
+ * <p>
+ * METADATA frames let a client poll for ring changes. The request key is
+ * the metadata version the client knows, the reply key the version the
+ * server applied. The reply only carries the metadata as its value if the
+ * two differ, so polling an unchanged ring costs a header and a number.
+ */
+public class BinaryProtocol {
+
+	public static final int VERSION = 3;
+	/* first version with request ids */
+	public static final int PIPELINED_VERSION = 2;
+	/* first version with write quorums */
+	public static final int QUORUM_VERSION = 3;
+
+	public static final String HELLO = "BINARY";
+	public static final String HELLO_OK = "BINARY_OK";
+
+	public static final byte GET = 1;
+	public static final byte PUT = 2;
+	public static final byte DELETE = 3;
+	public static final byte MGET = 4;
+	public static final byte MPUT = 5;
+	public static final byte IMPORT = 6;
+	public static final byte METADATA = 7;
+
+	public static final int HEADER_SIZE = 8;
+	public static final int PIPELINED_HEADER_SIZE = 12;
+	public static final int QUORUM_HEADER_SIZE = 13;
+	public static final int MAX_KEY_LENGTH = 0xFFFF;
+	public static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+
+	public static final int MAX_WRITE_QUORUM = 0xFF;
+
+	private static final int NO_VALUE = -1;
+	private static final KVMessage.StatusType[] STATUS = KVMessage.StatusType.values();
+
+	public static String hello(int version) {
+		return HELLO + " " + version;
+	}
+
+	public static String helloReply(int version) {
+		return HELLO_OK + " " + version;
+	}
+
+	public static boolean isBatch(byte opcode) {
+		return opcode == MGET || opcode == MPUT;
+	}
+
+	public static int headerSize(int version) {
+		if (version >= QUORUM_VERSION) {
+			return QUORUM_HEADER_SIZE;
+		}
+		return version >= PIPELINED_VERSION ? PIPELINED_HEADER_SIZE : HEADER_SIZE;
+	}
+
+	/**
+	 * @return the version requested by a hello line, or -1 if the line is
+	 * 		not a hello
+	 */
+	public static int parseHello(String line, String prefix) {
+		String[] token = line.trim().split(" ");
+		if (token.length != 2 || !token[0].equals(prefix)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(token[1]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Encodes a version 1 frame.
+	 * @param status the reply status, or null for requests
+	 * @param value the value, or null if there is none
+	 */
+	public static byte[] encode(byte opcode, KVMessage.StatusType status, String key, String value) {
+		return encode(1, 0, opcode, status, key, value);
+	}
+
+	/**
+	 * Encodes a frame.
+	 * @param version the negotiated version
+	 * @param requestId the id replies echo, ignored before version 2
+	 * @param status the reply status, or null for requests
+	 * @param value the value, or null if there is none
+	 */
+	public static byte[] encode(int version, int requestId, byte opcode, KVMessage.StatusType status,
+			String key, String value) {
+		return encode(version, requestId, opcode, status, key == null ? Bytes.EMPTY : Bytes.of(key),
+				value == null ? null : Bytes.of(value));
+	}
+
+	/**
+	 * Encodes an MGET or MPUT frame.
+	 * @param entries the keys, with the values for MPUT, or the per key
+	 * 		replies
+	 */
+	public static byte[] encodeBatch(int version, int requestId, byte opcode, KVMessage.StatusType status,
+			List<Frame> entries) {
+		List<byte[]> encoded = new ArrayList<byte[]>(entries.size());
+		int length = 0;
+		for (Frame entry : entries) {
+			byte[] bytes = entry.encode(1);
+			encoded.add(bytes);
+			length += bytes.length;
+		}
+		if (length > MAX_VALUE_LENGTH) {
+			throw new IllegalArgumentException("Batch of " + length + " bytes is too long");
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		for (byte[] bytes : encoded) {
+			body.put(bytes);
+		}
+		return encode(version, requestId, opcode, status, Bytes.EMPTY, Bytes.wrap(body.array()));
+	}
+
+	private static byte[] encode(int version, int requestId, byte opcode, KVMessage.StatusType status,
+			Bytes key, Bytes value) {
+		return encode(version, requestId, opcode, status, 0, key, value);
+	}
+
+	/**
+	 * Encodes a PUT or DELETE request with a write quorum.
+	 * @param version the negotiated version, at least QUORUM_VERSION unless
+	 * 		the quorum is 1
+	 * @param writeQuorum the servers, the responsible one included, that
+	 * 		must have stored the write before the reply, at most
+	 * 		MAX_WRITE_QUORUM
+	 * @param value the value, or null for a DELETE
+	 */
+	public static byte[] encodeWrite(int version, int requestId, byte opcode, int writeQuorum, String key,
+			String value) {
+		if (writeQuorum < 1 || writeQuorum > MAX_WRITE_QUORUM) {
+			throw new IllegalArgumentException("Invalid write quorum " + writeQuorum);
+		}
+		if (writeQuorum > 1 && version < QUORUM_VERSION) {
+			throw new IllegalArgumentException("Write quorums need protocol version " + QUORUM_VERSION
+					+ ", not " + version);
+		}
+		return encode(version, requestId, opcode, null, writeQuorum == 1 ? 0 : writeQuorum, Bytes.of(key),
+				value == null ? null : Bytes.of(value));
+	}
+
+	private static byte[] encode(int version, int requestId, byte opcode, KVMessage.StatusType status,
+			int writeQuorum, Bytes key, Bytes value) {
+		checkKeyLength(key);
+		ByteBuffer frame = ByteBuffer.allocate(headerSize(version) + key.length()
+				+ (value == null ? 0 : value.length()));
+		frame.put(opcode);
+		frame.put((byte) (status == null ? 0 : status.ordinal() + 1));
+		frame.putShort((short) key.length());
+		frame.putInt(value == null ? NO_VALUE : value.length());
+		if (version >= PIPELINED_VERSION) {
+			frame.putInt(requestId);
+		}
+		if (version >= QUORUM_VERSION) {
+			frame.put((byte) writeQuorum);
+		}
+		key.writeTo(frame);
+		if (value != null) {
+			value.writeTo(frame);
+		}
+		return frame.array();
+	}
+
+	/*
+	 * Writes a frame without building it in an array first, the key and
+	 * value go to the stream straight from wherever they are kept.
+	 */
+	private static void write(OutputStream out, int version, int requestId, byte opcode,
+			KVMessage.StatusType status, int writeQuorum, Bytes key, Bytes value) throws IOException {
+		checkKeyLength(key);
+		out.write(opcode);
+		out.write(status == null ? 0 : status.ordinal() + 1);
+		out.write(key.length() >>> 8);
+		out.write(key.length());
+		writeInt(out, value == null ? NO_VALUE : value.length());
+		if (version >= PIPELINED_VERSION) {
+			writeInt(out, requestId);
+		}
+		if (version >= QUORUM_VERSION) {
+			out.write(writeQuorum);
+		}
+		key.writeTo(out);
+		if (value != null) {
+			value.writeTo(out);
+		}
+	}
+
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static void checkKeyLength(Bytes key) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			throw new IllegalArgumentException("Key of " + key.length() + " bytes is too long");
+		}
+	}
+
+	/**
+	 * Reads one version 1 frame from a blocking stream.
+	 * @return the frame, or null if the stream ended between frames
+	 */
+	public static Frame read(InputStream input) throws IOException {
+		return read(input, 1);
+	}
+
+	/**
+	 * Reads one frame of the given version from a blocking stream.
+	 * @return the frame, or null if the stream ended between frames
+	 */
+	public static Frame read(InputStream input, int version) throws IOException {
+		DataInputStream in = input instanceof DataInputStream ? (DataInputStream) input : new DataInputStream(input);
+		int opcode = in.read();
+		if (opcode < 0) {
+			return null;
+		}
+		int status = in.readUnsignedByte();
+		int keyLength = in.readUnsignedShort();
+		int valueLength = in.readInt();
+		checkValueLength(valueLength);
+		int requestId = version >= PIPELINED_VERSION ? in.readInt() : 0;
+		int writeQuorum = version >= QUORUM_VERSION ? in.readUnsignedByte() : 0;
+
+		// key and value share one array and are handed on as slices of it
+		byte[] body = new byte[keyLength + Math.max(valueLength, 0)];
+		in.readFully(body);
+		if (isBatch((byte) opcode)) {
+			return new Frame(requestId, (byte) opcode, status(status),
+					entries(ByteBuffer.wrap(body, keyLength, body.length - keyLength)));
+		}
+		return new Frame(requestId, (byte) opcode, status(status), writeQuorum, Bytes.wrap(body, 0, keyLength),
+				valueLength == NO_VALUE ? null : Bytes.wrap(body, keyLength, valueLength));
+	}
+
+	/**
+	 * Decodes one version 1 frame, see decode(ByteBuffer, int).
+	 */
+	public static Frame decode(ByteBuffer buffer) throws IOException {
+		return decode(buffer, 1);
+	}
+
+	/**
+	 * Decodes one frame of the given version from a buffer that may hold
+	 * only part of it.
+	 * @return the frame, or null if the buffer does not hold all of it yet,
+	 * 		in which case the buffer position is left unchanged
+	 */
+	public static Frame decode(ByteBuffer buffer, int version) throws IOException {
+		int headerSize = headerSize(version);
+		if (buffer.remaining() < headerSize) {
+			return null;
+		}
+		int start = buffer.position();
+		byte opcode = buffer.get(start);
+		int status = buffer.get(start + 1) & 0xFF;
+		int keyLength = buffer.getShort(start + 2) & 0xFFFF;
+		int valueLength = buffer.getInt(start + 4);
+		checkValueLength(valueLength);
+		if (buffer.remaining() < headerSize + keyLength + Math.max(valueLength, 0)) {
+			return null;
+		}
+		int requestId = version >= PIPELINED_VERSION ? buffer.getInt(start + HEADER_SIZE) : 0;
+		int writeQuorum = version >= QUORUM_VERSION ? buffer.get(start + PIPELINED_HEADER_SIZE) & 0xFF : 0;
+
+		buffer.position(start + headerSize);
+		if (isBatch(opcode)) {
+			buffer.position(buffer.position() + keyLength);
+			ByteBuffer body = buffer.slice();
+			body.limit(Math.max(valueLength, 0));
+			buffer.position(buffer.position() + body.limit());
+			return new Frame(requestId, opcode, status(status), entries(body));
+		}
+		// the buffer is reused for later frames, so the body is copied out
+		byte[] body = new byte[keyLength + Math.max(valueLength, 0)];
+		buffer.get(body);
+		return new Frame(requestId, opcode, status(status), writeQuorum, Bytes.wrap(body, 0, keyLength),
+				valueLength == NO_VALUE ? null : Bytes.wrap(body, keyLength, valueLength));
+	}
+
+	private static List<Frame> entries(ByteBuffer body) throws IOException {
+		List<Frame> entries = new ArrayList<Frame>();
+		while (body.hasRemaining()) {
+			Frame entry = decode(body, 1);
+			if (entry == null) {
+				throw new IOException("Truncated batch entry");
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	private static void checkValueLength(int valueLength) throws IOException {
+		if (valueLength < NO_VALUE || valueLength > MAX_VALUE_LENGTH) {
+			throw new IOException("Invalid value length " + valueLength);
+		}
+	}
+
+	private static KVMessage.StatusType status(int code) throws IOException {
+		if (code == 0) {
+			return null;
+		}
+		if (code > STATUS.length) {
+			throw new IOException("Unknown status " + code);
+		}
+		return STATUS[code - 1];
+	}
+
+	/**
+	 * A decoded request or reply.
+	 */
+	public static class Frame implements KVMessage {
+		private final int requestId;
+		private final byte opcode;
+		private final StatusType status;
+		/* 0 or 1 if the request asks for none */
+		private final int writeQuorum;
+		private final Bytes key;
+		private final Bytes value;
+		/* only for MGET and MPUT */
+		private final List<Frame> entries;
+
+		public Frame(byte opcode, StatusType status, String key, String value) {
+			this(0, opcode, status, key, value);
+		}
+
+		public Frame(int requestId, byte opcode, StatusType status, String key, String value) {
+			this(requestId, opcode, status, key == null ? Bytes.EMPTY : Bytes.of(key),
+					value == null ? null : Bytes.of(value));
+		}
+
+		/**
+		 * @param value the value, or null if there is none
+		 */
+		public Frame(int requestId, byte opcode, StatusType status, Bytes key, Bytes value) {
+			this(requestId, opcode, status, 0, key, value);
+		}
+
+		private Frame(int requestId, byte opcode, StatusType status, int writeQuorum, Bytes key, Bytes value) {
+			this.requestId = requestId;
+			this.opcode = opcode;
+			this.status = status;
+			this.writeQuorum = writeQuorum;
+			this.key = key;
+			this.value = value;
+			this.entries = null;
+		}
+
+		public Frame(int requestId, byte opcode, StatusType status, List<Frame> entries) {
+			this.requestId = requestId;
+			this.opcode = opcode;
+			this.status = status;
+			this.writeQuorum = 0;
+			this.key = Bytes.EMPTY;
+			this.value = null;
+			this.entries = Collections.unmodifiableList(entries);
+		}
+
+		public int getRequestId() {
+			return requestId;
+		}
+
+		public byte getOpcode() {
+			return opcode;
+		}
+
+		public String getKey() {
+			return key.toString();
+		}
+
+		public String getValue() {
+			return value == null ? null : value.toString();
+		}
+
+		public Bytes getKeyBytes() {
+			return key;
+		}
+
+		/**
+		 * @return the value, or null if there is none
+		 */
+		public Bytes getValueBytes() {
+			return value;
+		}
+
+		/**
+		 * @return the entries of an MGET or MPUT, or null for other frames
+		 */
+		public List<Frame> getEntries() {
+			return entries;
+		}
+
+		public StatusType getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the write quorum of a PUT or DELETE request, 1 if it
+		 * 		asks for none
+		 */
+		public int getWriteQuorum() {
+			return Math.max(writeQuorum, 1);
+		}
+
+		public byte[] encode() {
+			return encode(1);
+		}
+
+		public byte[] encode(int version) {
+			if (entries != null) {
+				return encodeBatch(version, requestId, opcode, status, entries);
+			}
+			return BinaryProtocol.encode(version, requestId, opcode, status, writeQuorum, key, value);
+		}
+
+		/**
+		 * Writes the frame like encode(version) would, without the array.
+		 */
+		public void writeTo(OutputStream out, int version) throws IOException {
+			if (entries != null) {
+				out.write(encode(version));
+				return;
+			}
+			write(out, version, requestId, opcode, status, writeQuorum, key, value);
+		}
+
+		@Override
+		public String toString() {
+			if (entries != null) {
+				return status + " < " + entries.size() + " entries >";
+			}
+			return status + " < " + key + (value == null ? "" : ", " + value) + " >";
+		}
+	}
+}
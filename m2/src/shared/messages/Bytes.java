@@ -0,0 +1,152 @@
+package shared.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Immutable UTF-8 encoded key or value, a slice of a byte array that is not
+ * copied, for example the body of a received frame. The hash is computed
+ * once and kept, and the String form is only decoded when asked for.
+ * <p>
+ * A slice keeps its whole array reachable, so whatever holds on to a key
+ * for long, like a cache, stores compact() of it.
+ */
+public final class Bytes implements Comparable<Bytes> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final Bytes EMPTY = new Bytes(new byte[0], 0, 0, "");
+
+	private final byte[] array;
+	private final int offset;
+	private final int length;
+	/* both computed on first use, races only compute the same value twice */
+	private int hash;
+	private String string;
+
+	private Bytes(byte[] array, int offset, int length, String string) {
+		this.array = array;
+		this.offset = offset;
+		this.length = length;
+		this.string = string;
+	}
+
+	public static Bytes of(String s) {
+		byte[] array = s.getBytes(UTF8);
+		return new Bytes(array, 0, array.length, s);
+	}
+
+	/**
+	 * @return the array as it is, later changes to it show through
+	 */
+	public static Bytes wrap(byte[] array) {
+		return new Bytes(array, 0, array.length, null);
+	}
+
+	public static Bytes wrap(byte[] array, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > array.length) {
+			throw new IndexOutOfBoundsException("Slice " + offset + "+" + length + " of " + array.length);
+		}
+		return new Bytes(array, offset, length, null);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public byte byteAt(int index) {
+		return array[offset + index];
+	}
+
+	/**
+	 * @return the bytes in an array of their own, this one's if it has no
+	 * 		others
+	 */
+	public byte[] toByteArray() {
+		if (offset == 0 && length == array.length) {
+			return array;
+		}
+		return Arrays.copyOfRange(array, offset, offset + length);
+	}
+
+	/**
+	 * @return bytes that do not keep a larger array reachable
+	 */
+	public Bytes compact() {
+		if (offset == 0 && length == array.length) {
+			return this;
+		}
+		return new Bytes(toByteArray(), 0, length, string);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(array, offset, length);
+	}
+
+	public void update(MessageDigest digest) {
+		digest.update(array, offset, length);
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(array, offset, length);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0 && length > 0) {
+			for (int i = offset; i < offset + length; i++) {
+				h = 31 * h + array[i];
+			}
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Bytes)) {
+			return false;
+		}
+		Bytes other = (Bytes) o;
+		if (length != other.length || hashCode() != other.hashCode()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (array[offset + i] != other.array[other.offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* unsigned byte order, which for UTF-8 is the order of the code points */
+	public int compareTo(Bytes other) {
+		int common = Math.min(length, other.length);
+		for (int i = 0; i < common; i++) {
+			int a = array[offset + i] & 0xFF;
+			int b = other.array[other.offset + i] & 0xFF;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return length - other.length;
+	}
+
+	@Override
+	public String toString() {
+		String s = string;
+		if (s == null) {
+			s = new String(array, offset, length, UTF8);
+			string = s;
+		}
+		return s;
+	}
+}
@@ -75,13 +75,12 @@ public class Message implements KVMessage {
 
 	private String findValue(String[] server_response){
 
-		String value = "";
+		StringBuilder value = new StringBuilder();
 		for (int i =4; i < server_response.length - 2; i++ ){
-			value += server_response[i];
-			value += " ";
+			value.append(server_response[i]).append(' ');
 		}
-		value += server_response[server_response.length -2];
-		return value;
+		value.append(server_response[server_response.length -2]);
+		return value.toString();
 	}
 
 	/**
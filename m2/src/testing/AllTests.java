@@ -35,6 +35,16 @@ public class AllTests {
 		clientSuite.addTestSuite(InteractionTest.class); 
 		//clientSuite.addTestSuite(AdditionalTest.class); 
 		clientSuite.addTestSuite(M2Test.class);
+		clientSuite.addTestSuite(StorageTest.class);
+		clientSuite.addTestSuite(CacheTest.class);
+		clientSuite.addTestSuite(AllocationTest.class);
+		clientSuite.addTestSuite(HashRingTest.class);
+		clientSuite.addTestSuite(MetricsTest.class);
+		clientSuite.addTestSuite(RangeTransferTest.class);
+		clientSuite.addTestSuite(BinaryProtocolTest.class);
+		clientSuite.addTestSuite(RequestWindowTest.class);
+		clientSuite.addTestSuite(ReplicatorTest.class);
+		clientSuite.addTestSuite(RoutingTest.class);
 		return clientSuite;
 	}
 	
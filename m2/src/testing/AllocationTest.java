@@ -0,0 +1,156 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import app_kvServer.IKVCache;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.StripedCache;
+import shared.HashRing;
+import shared.KeyHash;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+import junit.framework.TestCase;
+
+/**
+ * Heap allocated by a GET that hits the cache, from reading the request
+ * frame to writing the reply, and by routing a key on the hash ring,
+ * measured with the per thread allocation counter of HotSpot.
+ */
+public class AllocationTest extends TestCase {
+
+	private static final int KEYS = 1000;
+	private static final int GETS = 50000;
+	/* frame, key slice, reply and value wrapper, nothing sized by the value */
+	private static final long MAX_BYTES_PER_GET = 512;
+
+	@Test
+	public void testGetHitDoesNotAllocatePerValueByte() throws Exception {
+		com.sun.management.ThreadMXBean threads = threadBean();
+		if (threads == null) {
+			return;
+		}
+		long small = bytesPerGet(threads, 64);
+		long large = bytesPerGet(threads, 64 * 1024);
+		assertTrue("GET of 64 byte values allocates " + small + " bytes", small <= MAX_BYTES_PER_GET);
+		assertTrue("GET of 64 KB values allocates " + large + " bytes", large <= MAX_BYTES_PER_GET);
+	}
+
+	private static long bytesPerGet(com.sun.management.ThreadMXBean threads, int valueSize) throws Exception {
+		// room to spare, so that uneven segments evict nothing
+		IKVCache cache = StripedCache.create(CacheStrategy.LRU, 4 * KEYS);
+		byte[] value = new byte[valueSize];
+		Arrays.fill(value, (byte) 'v');
+		for (int i = 0; i < KEYS; i++) {
+			cache.put(Bytes.of("key" + i), value);
+		}
+
+		// every key requested once, read over and over from one stream
+		byte[] requests = new byte[0];
+		for (int i = 0; i < KEYS; i++) {
+			byte[] frame = BinaryProtocol.encode(BinaryProtocol.VERSION, i, BinaryProtocol.GET, null,
+					"key" + i, null);
+			requests = Arrays.copyOf(requests, requests.length + frame.length);
+			System.arraycopy(frame, 0, requests, requests.length - frame.length, frame.length);
+		}
+		ByteArrayInputStream bytes = new ByteArrayInputStream(requests);
+		DataInputStream in = new DataInputStream(bytes);
+		OutputStream out = new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+
+		// warm up, so the measured loop runs compiled
+		serve(cache, bytes, in, out, GETS);
+		long tid = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(tid);
+		serve(cache, bytes, in, out, GETS);
+		long allocated = threads.getThreadAllocatedBytes(tid) - before;
+		return allocated / GETS;
+	}
+
+	private static void serve(IKVCache cache, ByteArrayInputStream bytes, DataInputStream in, OutputStream out,
+			int gets) throws Exception {
+		for (int i = 0; i < gets; i++) {
+			if (bytes.available() == 0) {
+				bytes.reset();
+			}
+			BinaryProtocol.Frame request = BinaryProtocol.read(in, BinaryProtocol.VERSION);
+			byte[] value = cache.get(request.getKeyBytes());
+			assertNotNull(value);
+			new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(), StatusType.GET_SUCCESS,
+					request.getKeyBytes(), Bytes.wrap(value)).writeTo(out, BinaryProtocol.VERSION);
+		}
+	}
+
+	@Test
+	public void testRoutingDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threads = threadBean();
+		if (threads == null) {
+			return;
+		}
+		Map<String, String> positions = new HashMap<String, String>();
+		for (int port = 50000; port < 50100; port++) {
+			positions.put(KeyHash.md5("127.0.0.1:" + port), "127.0.0.1:" + port);
+		}
+		HashRing<String> ring = new HashRing<String>(positions);
+		Bytes[] keys = new Bytes[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = Bytes.of("key" + i);
+		}
+
+		route(ring, keys);
+		long tid = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(tid);
+		route(ring, keys);
+		long perLookup = (threads.getThreadAllocatedBytes(tid) - before) / GETS;
+		assertTrue("Routing allocates " + perLookup + " bytes", perLookup == 0);
+	}
+
+	private static void route(HashRing<String> ring, Bytes[] keys) {
+		for (int i = 0; i < GETS; i++) {
+			assertNotNull(ring.get(keys[i % keys.length]));
+			ring.isReplica(keys[i % keys.length], "127.0.0.1:50000", 3);
+		}
+	}
+
+	@Test
+	public void testBytesRoundTrip() {
+		Bytes key = Bytes.of("gr\u00fc\u00dfe");
+		byte[] framed = ("xx" + "gr\u00fc\u00dfe" + "yy").getBytes(StandardCharsets.UTF_8);
+		Bytes slice = Bytes.wrap(framed, 2, framed.length - 4);
+		assertEquals(key, slice);
+		assertEquals(key.hashCode(), slice.hashCode());
+		assertEquals("gr\u00fc\u00dfe", slice.toString());
+		assertEquals(0, key.compareTo(slice));
+		assertEquals(slice.length(), slice.compact().toByteArray().length);
+		assertTrue(Bytes.of("a").compareTo(Bytes.of("\u00e4")) < 0);
+	}
+
+	/* null on JVMs without the per thread allocation counter */
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+}
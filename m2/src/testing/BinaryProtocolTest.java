@@ -0,0 +1,218 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+import junit.framework.TestCase;
+
+public class BinaryProtocolTest extends TestCase {
+
+	@Test
+	public void testHeaderSizes() {
+		assertEquals(8, BinaryProtocol.encode(BinaryProtocol.GET, null, "", null).length);
+		assertEquals(12, BinaryProtocol.encode(2, 7, BinaryProtocol.GET, null, "", null).length);
+		assertEquals(13, BinaryProtocol.encode(3, 7, BinaryProtocol.GET, null, "", null).length);
+		assertEquals(8, BinaryProtocol.headerSize(1));
+		assertEquals(12, BinaryProtocol.headerSize(BinaryProtocol.PIPELINED_VERSION));
+		assertEquals(13, BinaryProtocol.headerSize(BinaryProtocol.QUORUM_VERSION));
+	}
+
+	@Test
+	public void testRoundTripEveryVersion() throws Exception {
+		for (int version = 1; version <= BinaryProtocol.VERSION; version++) {
+			byte[] frame = BinaryProtocol.encode(version, 42, BinaryProtocol.PUT, StatusType.PUT_UPDATE, "key",
+					"value");
+			for (BinaryProtocol.Frame decoded : decodeBothWays(frame, version)) {
+				assertEquals(BinaryProtocol.PUT, decoded.getOpcode());
+				assertEquals(StatusType.PUT_UPDATE, decoded.getStatus());
+				assertEquals("key", decoded.getKey());
+				assertEquals("value", decoded.getValue());
+				// only pipelined versions carry the id
+				assertEquals(version >= BinaryProtocol.PIPELINED_VERSION ? 42 : 0, decoded.getRequestId());
+			}
+		}
+	}
+
+	@Test
+	public void testNullAndEmptyValues() throws Exception {
+		byte[] none = BinaryProtocol.encode(BinaryProtocol.GET, null, "key", null);
+		byte[] empty = BinaryProtocol.encode(BinaryProtocol.PUT, null, "key", "");
+		assertFalse(Arrays.equals(none, empty));
+		for (BinaryProtocol.Frame decoded : decodeBothWays(none, 1)) {
+			assertNull(decoded.getValue());
+			assertNull(decoded.getValueBytes());
+			assertNull(decoded.getStatus());
+		}
+		for (BinaryProtocol.Frame decoded : decodeBothWays(empty, 1)) {
+			assertEquals("", decoded.getValue());
+			assertEquals(0, decoded.getValueBytes().length());
+		}
+	}
+
+	@Test
+	public void testWriteQuorum() throws Exception {
+		int version = BinaryProtocol.QUORUM_VERSION;
+		byte[] frame = BinaryProtocol.encodeWrite(version, 3, BinaryProtocol.PUT, 3, "key", "value");
+		for (BinaryProtocol.Frame decoded : decodeBothWays(frame, version)) {
+			assertEquals(3, decoded.getWriteQuorum());
+			assertNull(decoded.getStatus());
+			assertEquals("value", decoded.getValue());
+		}
+		frame = BinaryProtocol.encode(version, 4, BinaryProtocol.DELETE, null, "key", null);
+		assertEquals(1, BinaryProtocol.decode(ByteBuffer.wrap(frame), version).getWriteQuorum());
+
+		try {
+			BinaryProtocol.encodeWrite(BinaryProtocol.PIPELINED_VERSION, 1, BinaryProtocol.PUT, 2, "key", "value");
+			fail("Encoded a write quorum the version cannot carry");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			BinaryProtocol.encodeWrite(version, 1, BinaryProtocol.PUT, BinaryProtocol.MAX_WRITE_QUORUM + 1, "key",
+					"value");
+			fail("Encoded a write quorum out of range");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "a", "1"));
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.DELETE, null, "b", null));
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "c", ""));
+		byte[] frame = BinaryProtocol.encodeBatch(BinaryProtocol.VERSION, 9, BinaryProtocol.MPUT, null, entries);
+
+		for (BinaryProtocol.Frame decoded : decodeBothWays(frame, BinaryProtocol.VERSION)) {
+			assertEquals(BinaryProtocol.MPUT, decoded.getOpcode());
+			assertEquals(9, decoded.getRequestId());
+			assertEquals(3, decoded.getEntries().size());
+			assertEquals("a", decoded.getEntries().get(0).getKey());
+			assertEquals("1", decoded.getEntries().get(0).getValue());
+			assertEquals(BinaryProtocol.DELETE, decoded.getEntries().get(1).getOpcode());
+			assertNull(decoded.getEntries().get(1).getValue());
+			assertEquals("", decoded.getEntries().get(2).getValue());
+		}
+
+		List<BinaryProtocol.Frame> keys = new ArrayList<BinaryProtocol.Frame>();
+		keys.add(new BinaryProtocol.Frame(BinaryProtocol.GET, null, "a", null));
+		frame = BinaryProtocol.encodeBatch(1, 0, BinaryProtocol.MGET, null, keys);
+		BinaryProtocol.Frame decoded = BinaryProtocol.decode(ByteBuffer.wrap(frame));
+		assertEquals(BinaryProtocol.MGET, decoded.getOpcode());
+		assertEquals(1, decoded.getEntries().size());
+		assertNull(BinaryProtocol.decode(ByteBuffer.wrap(BinaryProtocol.encode(BinaryProtocol.GET, null, "a", null)))
+				.getEntries());
+	}
+
+	@Test
+	public void testMaximumKeyLength() throws Exception {
+		char[] key = new char[BinaryProtocol.MAX_KEY_LENGTH];
+		Arrays.fill(key, 'k');
+		byte[] frame = BinaryProtocol.encode(BinaryProtocol.PUT, null, new String(key), "v");
+		for (BinaryProtocol.Frame decoded : decodeBothWays(frame, 1)) {
+			assertEquals(BinaryProtocol.MAX_KEY_LENGTH, decoded.getKey().length());
+			assertEquals("v", decoded.getValue());
+		}
+
+		try {
+			BinaryProtocol.encode(BinaryProtocol.PUT, null, new String(key) + "k", "v");
+			fail("Encoded a key longer than the header can hold");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWriteToMatchesEncode() throws Exception {
+		BinaryProtocol.Frame frame = new BinaryProtocol.Frame(5, BinaryProtocol.GET, StatusType.GET_SUCCESS,
+				Bytes.of("key"), Bytes.of("value"));
+		for (int version = 1; version <= BinaryProtocol.VERSION; version++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			frame.writeTo(out, version);
+			assertTrue(Arrays.equals(frame.encode(version), out.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testTruncatedFrame() throws Exception {
+		byte[] frame = BinaryProtocol.encode(BinaryProtocol.VERSION, 1, BinaryProtocol.PUT, null, "key", "value");
+		for (int length = 0; length < frame.length; length++) {
+			// a buffer waits for the rest, without consuming anything
+			ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(frame, length));
+			assertNull(BinaryProtocol.decode(buffer, BinaryProtocol.VERSION));
+			assertEquals(0, buffer.position());
+
+			// a stream that ends between frames has none, within one is broken
+			ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(frame, length));
+			if (length == 0) {
+				assertNull(BinaryProtocol.read(in, BinaryProtocol.VERSION));
+			} else {
+				try {
+					BinaryProtocol.read(in, BinaryProtocol.VERSION);
+					fail("Read a frame cut off after " + length + " bytes");
+				} catch (EOFException e) {
+					// expected
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidHeader() {
+		byte[] frame = BinaryProtocol.encode(BinaryProtocol.PUT, null, "key", "value");
+		ByteBuffer.wrap(frame).putInt(4, -2);
+		try {
+			BinaryProtocol.decode(ByteBuffer.wrap(frame));
+			fail("Decoded a negative value length");
+		} catch (IOException e) {
+			// expected
+		}
+
+		frame = BinaryProtocol.encode(BinaryProtocol.GET, null, "key", null);
+		frame[1] = (byte) (StatusType.values().length + 1);
+		try {
+			BinaryProtocol.decode(ByteBuffer.wrap(frame));
+			fail("Decoded an unknown status");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParseHello() {
+		assertEquals(2, BinaryProtocol.parseHello(BinaryProtocol.hello(2), BinaryProtocol.HELLO));
+		assertEquals(3, BinaryProtocol.parseHello(BinaryProtocol.helloReply(3) + "\r", BinaryProtocol.HELLO_OK));
+		assertEquals(-1, BinaryProtocol.parseHello(BinaryProtocol.hello(3), BinaryProtocol.HELLO_OK));
+		// what a server that only speaks text answers
+		assertEquals(-1, BinaryProtocol.parseHello("error unknown command", BinaryProtocol.HELLO_OK));
+		assertEquals(-1, BinaryProtocol.parseHello("FAILED", BinaryProtocol.HELLO_OK));
+		assertEquals(-1, BinaryProtocol.parseHello("", BinaryProtocol.HELLO_OK));
+		assertEquals(-1, BinaryProtocol.parseHello("BINARY_OK two", BinaryProtocol.HELLO_OK));
+		assertEquals(-1, BinaryProtocol.parseHello("BINARY_OK 2 extra", BinaryProtocol.HELLO_OK));
+	}
+
+	/* the frame as both the stream and the buffer decoder read it */
+	private static List<BinaryProtocol.Frame> decodeBothWays(byte[] frame, int version) throws IOException {
+		List<BinaryProtocol.Frame> decoded = new ArrayList<BinaryProtocol.Frame>();
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		decoded.add(BinaryProtocol.decode(buffer, version));
+		assertFalse(buffer.hasRemaining());
+		ByteArrayInputStream in = new ByteArrayInputStream(frame);
+		decoded.add(BinaryProtocol.read(in, version));
+		assertEquals(0, in.available());
+		return decoded;
+	}
+}
@@ -0,0 +1,262 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import app_kvServer.IKVCache;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.OffHeapCache;
+import app_kvServer.StripedCache;
+
+import junit.framework.TestCase;
+
+public class CacheTest extends TestCase {
+
+	private static final CacheStrategy[] STRATEGIES = {
+			CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.FIFO, CacheStrategy.TINYLFU};
+
+	@Test
+	public void testNoCacheForStrategyNone() {
+		assertNull(StripedCache.create(CacheStrategy.None, 100));
+		assertNull(StripedCache.create(CacheStrategy.LRU, 0));
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		for (CacheStrategy strategy : STRATEGIES) {
+			IKVCache cache = StripedCache.create(strategy, 100);
+			cache.put("a", "1");
+			cache.put("b", "2");
+			assertEquals(strategy.toString(), "1", cache.get("a"));
+			assertTrue(cache.containsKey("b"));
+			cache.remove("b");
+			assertNull(cache.get("b"));
+			assertEquals(1, cache.size());
+			cache.clear();
+			assertEquals(0, cache.size());
+		}
+	}
+
+	@Test
+	public void testCapacityIsKept() {
+		for (CacheStrategy strategy : STRATEGIES) {
+			IKVCache cache = StripedCache.create(strategy, 200);
+			for (int i = 0; i < 5000; i++) {
+				cache.put("key" + i, "value" + i);
+			}
+			assertTrue(strategy + " holds " + cache.size(), cache.size() <= 200);
+			assertTrue(strategy + " holds " + cache.size(), cache.size() > 0);
+		}
+	}
+
+	@Test
+	public void testSmallCacheKeepsExactPolicy() {
+		// too small to be split, so the whole cache is one segment
+		IKVCache lru = StripedCache.create(CacheStrategy.LRU, 3);
+		lru.put("a", "1");
+		lru.put("b", "2");
+		lru.put("c", "3");
+		lru.get("a");
+		lru.put("d", "4");
+		assertNotNull(lru.get("a"));
+		assertNull(lru.get("b"));
+
+		IKVCache fifo = StripedCache.create(CacheStrategy.FIFO, 3);
+		fifo.put("a", "1");
+		fifo.put("b", "2");
+		fifo.put("c", "3");
+		fifo.get("a");
+		fifo.put("d", "4");
+		assertNull(fifo.get("a"));
+		assertNotNull(fifo.get("b"));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		for (CacheStrategy strategy : STRATEGIES) {
+			final IKVCache cache = StripedCache.create(strategy, 500);
+			final AtomicInteger wrong = new AtomicInteger();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int t = 0; t < 8; t++) {
+				final int id = t;
+				Thread thread = new Thread() {
+					public void run() {
+						for (int i = 0; i < 20000; i++) {
+							String key = "key" + ((i * 7 + id) % 2000);
+							cache.put(key, key);
+							String value = cache.get(key);
+							if (value != null && !value.equals(key)) {
+								wrong.incrementAndGet();
+							}
+							if (i % 10 == 0) {
+								cache.remove(key);
+							}
+						}
+					}
+				};
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(0, wrong.get());
+			assertTrue(strategy + " holds " + cache.size(), cache.size() <= 500);
+		}
+	}
+
+	@Test
+	public void testTinyLfuResistsScans() {
+		int tinyLfu = hotHitsDuringScan(CacheStrategy.TINYLFU);
+		int lru = hotHitsDuringScan(CacheStrategy.LRU);
+		assertTrue("TINYLFU " + tinyLfu + " vs LRU " + lru, tinyLfu >= 900);
+		assertTrue("TINYLFU " + tinyLfu + " vs LRU " + lru, tinyLfu > lru);
+	}
+
+	/* hits on a hot set that a stream of keys read once keeps pushing out */
+	private static int hotHitsDuringScan(CacheStrategy strategy) {
+		IKVCache cache = StripedCache.create(strategy, 400);
+		int hotHits = 0;
+		for (int i = 0; i < 20000; i++) {
+			String key = i % 20 == 0 ? "hot" + (i / 20) % 50 : "scan" + i;
+			if (cache.get(key) == null) {
+				cache.put(key, "value");
+			} else if (key.startsWith("hot")) {
+				hotHits++;
+			}
+		}
+		return hotHits;
+	}
+
+	@Test
+	public void testTinyLfuHitRatioOnSkewedAccess() {
+		double lru = zipfHitRatio(CacheStrategy.LRU);
+		double tinyLfu = zipfHitRatio(CacheStrategy.TINYLFU);
+		assertTrue("TINYLFU " + tinyLfu + " vs LRU " + lru, tinyLfu > lru);
+	}
+
+	/* reads through the cache, keys drawn from a Zipf distribution */
+	private static double zipfHitRatio(CacheStrategy strategy) {
+		int keys = 10000;
+		double[] cumulative = new double[keys];
+		double sum = 0;
+		for (int i = 0; i < keys; i++) {
+			sum += 1.0 / Math.pow(i + 1, 0.9);
+			cumulative[i] = sum;
+		}
+		IKVCache cache = StripedCache.create(strategy, 200);
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			int rank = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			String key = "key" + (rank < 0 ? -rank - 1 : rank);
+			if (cache.get(key) == null) {
+				cache.put(key, key);
+			}
+		}
+		return cache.getHitRatio();
+	}
+
+	@Test
+	public void testOffHeapPutGetRemove() {
+		for (CacheStrategy strategy : STRATEGIES) {
+			IKVCache cache = OffHeapCache.create(strategy, 64 * 1024);
+			cache.put("a", "1");
+			cache.put("b", "gr\u00fc\u00dfe \u6771\u4eac");
+			cache.put("a", "3");
+			assertEquals(strategy.toString(), "3", cache.get("a"));
+			assertEquals("gr\u00fc\u00dfe \u6771\u4eac", cache.get("b"));
+			cache.remove("b");
+			assertNull(cache.get("b"));
+			assertFalse(cache.containsKey("b"));
+			assertEquals(1, cache.size());
+			cache.clear();
+			assertEquals(0, cache.size());
+			assertNull(cache.get("a"));
+		}
+		assertNull(OffHeapCache.create(CacheStrategy.None, 1024));
+	}
+
+	@Test
+	public void testOffHeapKeepsByteBudget() {
+		char[] chars = new char[1000];
+		java.util.Arrays.fill(chars, 'v');
+		String value = new String(chars);
+		for (CacheStrategy strategy : STRATEGIES) {
+			OffHeapCache cache = new OffHeapCache(strategy, 1024 * 1024);
+			assertTrue(cache.getCapacity() <= 1024 * 1024);
+			for (int i = 0; i < 10000; i++) {
+				cache.put("key" + i, value);
+			}
+			assertTrue(strategy + " uses " + cache.getUsedBytes(),
+					cache.getUsedBytes() <= cache.getCapacity());
+			// 1000 byte values, so about a thousand fit but not all
+			assertTrue(strategy + " holds " + cache.size(), cache.size() > 500);
+			assertTrue(strategy + " holds " + cache.size(), cache.size() <= 1048);
+			assertEquals(value, cache.get("key9999"));
+			assertNull(cache.get("key0"));
+		}
+	}
+
+	@Test
+	public void testOffHeapSkipsValuesLargerThanSlab() {
+		IKVCache cache = OffHeapCache.create(CacheStrategy.LRU, 4096);
+		char[] chars = new char[2048];
+		java.util.Arrays.fill(chars, 'v');
+		cache.put("big", "small");
+		cache.put("big", new String(chars));
+		// the old value must not survive the update that was not cached
+		assertNull(cache.get("big"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testOffHeapSecondChance() {
+		// one segment of four 16 byte slabs, two 8 byte values per slab
+		IKVCache lru = OffHeapCache.create(CacheStrategy.LRU, 64);
+		IKVCache fifo = OffHeapCache.create(CacheStrategy.FIFO, 64);
+		for (IKVCache cache : new IKVCache[] {lru, fifo}) {
+			cache.put("hot", "01234567");
+			cache.get("hot");
+			for (int i = 0; i < 8; i++) {
+				cache.put("key" + i, "01234567");
+			}
+		}
+		assertNotNull(lru.get("hot"));
+		assertNull(fifo.get("hot"));
+	}
+
+	@Test
+	public void testOffHeapConcurrentAccess() throws Exception {
+		final IKVCache cache = OffHeapCache.create(CacheStrategy.LRU, 64 * 1024);
+		final AtomicInteger wrong = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final int id = t;
+			Thread thread = new Thread() {
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						String key = "key" + ((i * 7 + id) % 2000);
+						cache.put(key, key + key);
+						String value = cache.get(key);
+						if (value != null && !value.equals(key + key)) {
+							wrong.incrementAndGet();
+						}
+						if (i % 10 == 0) {
+							cache.remove(key);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, wrong.get());
+	}
+}
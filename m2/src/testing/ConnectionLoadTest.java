@@ -0,0 +1,152 @@
+package testing;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection scalability load test for a running KVServer.
+ * <p>
+ * Opens the given number of client connections and keeps all of them open,
+ * then lets every connection issue PUT and GET requests in rounds while
+ * the others stay connected. Reports how many connections were accepted
+ * and served, the throughput and the request latency percentiles.
+ * <p>
+ * Usage: ConnectionLoadTest &lt;host&gt; &lt;port&gt; &lt;clients&gt;
+ * [rounds] [threads]
+ * <p>
+ * The server has to be started and responsible for the whole ring. Compare
+ * for example frontend=THREAD with executor=PLATFORM, POOL or VIRTUAL and
+ * frontend=NIO at 10000 clients. Both ends need a file descriptor limit
+ * above the number of clients (ulimit -n).
+ */
+public class ConnectionLoadTest {
+
+	private static final int CR = 13;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: ConnectionLoadTest <host> <port> <clients> [rounds] [threads]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int clients = Integer.parseInt(args[2]);
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+
+		List<Client> connected = new ArrayList<Client>();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			try {
+				connected.add(new Client(host, port, i));
+			} catch (IOException e) {
+				System.out.println("Connection " + i + " failed: " + e.getMessage());
+				break;
+			}
+		}
+		System.out.println("Connected " + connected.size() + " of " + clients + " clients in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final long[] latencies = new long[connected.size() * rounds * 2];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+
+		start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			final int r = round;
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final Client client : connected) {
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						String key = "load" + client.id;
+						String value = "v" + r;
+						try {
+							long t0 = System.nanoTime();
+							String put = client.request("put " + key + " " + value);
+							long t1 = System.nanoTime();
+							String get = client.request("get " + key);
+							long t2 = System.nanoTime();
+							latencies[next.getAndIncrement()] = t1 - t0;
+							latencies[next.getAndIncrement()] = t2 - t1;
+							if (!put.startsWith("PUT_") || !get.startsWith("GET_SUCCESS") || !get.contains(value)) {
+								failures.incrementAndGet();
+							}
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+
+		for (Client client : connected) {
+			client.close();
+		}
+
+		int ops = next.get();
+		long[] sorted = Arrays.copyOf(latencies, ops);
+		Arrays.sort(sorted);
+		System.out.println("Requests: " + ops + ", failed clients: " + failures.get());
+		System.out.println("Throughput: " + (long) (ops / (elapsed / 1e9)) + " requests/s");
+		if (ops > 0) {
+			System.out.println("Latency p50: " + sorted[ops / 2] / 1000 + " us, p99: "
+					+ sorted[(int) (ops * 0.99)] / 1000 + " us, max: " + sorted[ops - 1] / 1000 + " us");
+		}
+	}
+
+	private static class Client {
+		final int id;
+		final Socket socket;
+		final OutputStream output;
+		final InputStream input;
+
+		Client(String host, int port, int id) throws IOException {
+			this.id = id;
+			this.socket = new Socket(host, port);
+			this.output = socket.getOutputStream();
+			this.input = new BufferedInputStream(socket.getInputStream());
+		}
+
+		/* replies end with a line feed and a carriage return */
+		String request(String msg) throws IOException {
+			output.write((msg + "\n").getBytes());
+			output.flush();
+			StringBuilder reply = new StringBuilder();
+			int read = input.read();
+			while (read != CR) {
+				if (read < 0) {
+					throw new IOException("Connection closed by server");
+				}
+				reply.append((char) read);
+				read = input.read();
+			}
+			return reply.toString().trim();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package testing;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import ecs.ECSNode;
+import shared.HashRing;
+import shared.KeyHash;
+import shared.messages.Bytes;
+
+import junit.framework.TestCase;
+
+public class HashRingTest extends TestCase {
+
+	@Test
+	public void testEmptyRing() {
+		HashRing<String> ring = new HashRing<String>(new HashMap<String, String>());
+		assertTrue(ring.isEmpty());
+		assertNull(ring.get("a"));
+		assertNull(ring.successor(KeyHash.MIN));
+	}
+
+	@Test
+	public void testSingleNodeOwnsEverything() {
+		Map<String, String[]> ranges = new HashMap<String, String[]>();
+		String position = KeyHash.md5("127.0.0.1:50000");
+		ranges.put("127.0.0.1:50000", new String[] {position, position});
+		HashRing<String> ring = HashRing.fromRanges(ranges);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("127.0.0.1:50000", ring.get("key" + i));
+		}
+		assertEquals(position, ring.predecessor(position));
+	}
+
+	@Test
+	public void testRoutingMatchesRanges() {
+		// the metadata as the ECS publishes it, each node after its predecessor
+		TreeMap<String, String> positions = new TreeMap<String, String>();
+		for (int port = 50000; port < 50010; port++) {
+			positions.put(KeyHash.md5("127.0.0.1:" + port), "127.0.0.1:" + port);
+		}
+		Map<String, String[]> ranges = new HashMap<String, String[]>();
+		for (Map.Entry<String, String> entry : positions.entrySet()) {
+			String lower = positions.lowerKey(entry.getKey());
+			ranges.put(entry.getValue(), new String[] {lower == null ? positions.lastKey() : lower, entry.getKey()});
+		}
+		HashRing<String> ring = HashRing.fromRanges(ranges);
+		assertEquals(10, ring.size());
+
+		for (int i = 0; i < 5000; i++) {
+			String key = "key" + i;
+			String owner = ring.get(key);
+			String[] range = ranges.get(owner);
+			assertTrue(key + " routed to " + owner, KeyHash.inRange(KeyHash.md5(key), range[0], range[1]));
+			assertEquals(owner, ring.get(Bytes.of(key)));
+			assertEquals(owner, ring.getByHash(KeyHash.md5(key)));
+		}
+		for (Map.Entry<String, String[]> range : ranges.entrySet()) {
+			assertEquals(range.getValue()[0], ring.predecessor(range.getValue()[1]));
+			assertEquals(range.getKey(), ring.getByHash(range.getValue()[1]));
+		}
+	}
+
+	@Test
+	public void testSuccessorWrapsAround() {
+		Map<String, String> positions = new HashMap<String, String>();
+		positions.put("10000000000000000000000000000000", "a");
+		positions.put("80000000000000000000000000000000", "b");
+		positions.put("f0000000000000000000000000000000", "c");
+		HashRing<String> ring = new HashRing<String>(positions);
+		assertEquals("b", ring.successor("10000000000000000000000000000000"));
+		assertEquals("a", ring.successor("f0000000000000000000000000000000"));
+		assertEquals("b", ring.successor("20000000000000000000000000000000"));
+		assertEquals("a", ring.getByHash(KeyHash.MAX));
+		assertEquals("a", ring.getByHash(KeyHash.MIN));
+		assertEquals("f0000000000000000000000000000000", ring.predecessor("10000000000000000000000000000000"));
+	}
+
+	@Test
+	public void testMultipleRangesPerNode() {
+		Map<String, String[]> ranges = new HashMap<String, String[]>();
+		ranges.put("a", HashRing.parseRanges("00000000000000000000000000000000-40000000000000000000000000000000,"
+				+ "80000000000000000000000000000000-c0000000000000000000000000000000"));
+		ranges.put("b", HashRing.parseRanges("40000000000000000000000000000000-80000000000000000000000000000000,"
+				+ "c0000000000000000000000000000000-00000000000000000000000000000000"));
+		HashRing<String> ring = HashRing.fromRanges(ranges);
+		assertEquals(4, ring.size());
+		assertEquals("a", ring.getByHash("30000000000000000000000000000000"));
+		assertEquals("b", ring.getByHash("50000000000000000000000000000000"));
+		assertEquals("a", ring.getByHash("90000000000000000000000000000000"));
+		assertEquals("b", ring.getByHash("d0000000000000000000000000000000"));
+		assertEquals("00000000000000000000000000000000-40000000000000000000000000000000,"
+				+ "80000000000000000000000000000000-c0000000000000000000000000000000",
+				HashRing.formatRanges(ranges.get("a")));
+		assertEquals(2, HashRing.parseRanges(KeyHash.MIN + "-" + KeyHash.MAX).length);
+	}
+
+	@Test
+	public void testVirtualNodesBalanceLoad() {
+		double single = maxShare(5, 1);
+		double virtual = maxShare(5, 64);
+		assertTrue("largest share " + virtual + " with virtual nodes", virtual < 1.3);
+		assertTrue("largest share " + virtual + " not below " + single, virtual < single);
+	}
+
+	@Test
+	public void testJoiningNodeTakesFromManyPeers() {
+		Map<String, String> positions = positions(5, 32);
+		HashRing<String> before = new HashRing<String>(positions);
+		ECSNode joining = new ECSNode("server5", "127.0.0.1", 50005, 32);
+		for (String hash : joining.getNodeHashes()) {
+			positions.put(hash, "127.0.0.1:50005");
+		}
+		HashRing<String> after = new HashRing<String>(positions);
+
+		Set<String> sources = new HashSet<String>();
+		for (int i = 0; i < KEYS; i++) {
+			String owner = before.get("key" + i);
+			String now = after.get("key" + i);
+			if (!now.equals(owner)) {
+				// keys only ever move to the new node
+				assertEquals("127.0.0.1:50005", now);
+				sources.add(owner);
+			}
+		}
+		assertEquals(5, sources.size());
+	}
+
+	@Test
+	public void testReplicasAreDistinctSuccessors() {
+		HashRing<String> ring = new HashRing<String>(positions(5, 16));
+		for (int i = 0; i < 1000; i++) {
+			Bytes key = Bytes.of("key" + i);
+			List<String> replicas = ring.replicas(key, 3);
+			assertEquals(3, replicas.size());
+			assertEquals(3, new HashSet<String>(replicas).size());
+			// the responsible node first
+			assertEquals(ring.get(key), replicas.get(0));
+			for (int port = 50000; port < 50005; port++) {
+				assertEquals(replicas.contains("127.0.0.1:" + port), ring.isReplica(key, "127.0.0.1:" + port, 3));
+			}
+		}
+		// no more replicas than servers
+		assertEquals(5, ring.replicas(Bytes.of("a"), 8).size());
+		assertTrue(new HashRing<String>(new HashMap<String, String>()).replicas(Bytes.of("a"), 3).isEmpty());
+	}
+
+	private static final int KEYS = 20000;
+
+	/* positions of servers on ports 50000 and up, as the ECS places them */
+	private static Map<String, String> positions(int servers, int virtualNodes) {
+		Map<String, String> positions = new HashMap<String, String>();
+		for (int port = 50000; port < 50000 + servers; port++) {
+			ECSNode node = new ECSNode("server" + port, "127.0.0.1", port, virtualNodes);
+			assertEquals(virtualNodes, node.getNodeHashes().size());
+			for (String hash : node.getNodeHashes()) {
+				positions.put(hash, "127.0.0.1:" + port);
+			}
+		}
+		return positions;
+	}
+
+	/* the keys on the busiest server, relative to an even share */
+	private static double maxShare(int servers, int virtualNodes) {
+		HashRing<String> ring = new HashRing<String>(positions(servers, virtualNodes));
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		int max = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String owner = ring.get("key" + i);
+			int count = counts.containsKey(owner) ? counts.get(owner) + 1 : 1;
+			counts.put(owner, count);
+			max = Math.max(max, count);
+		}
+		return (double) max * servers / KEYS;
+	}
+}
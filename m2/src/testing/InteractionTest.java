@@ -1,5 +1,10 @@
 package testing;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.junit.Test;
 
 import client.KVStore;
@@ -130,7 +135,35 @@ public class InteractionTest extends TestCase {
 
 		assertTrue(ex == null && response.getStatus() == StatusType.GET_ERROR);
 	}
-	
 
+	@Test
+	public void testMgetLargeValues() {
+		// together the values are larger than a frame, so the replies must be split
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 200; i++) {
+			char[] value = new char[100 * 1024];
+			Arrays.fill(value, (char) ('a' + i % 26));
+			pairs.put("large" + i, new String(value));
+		}
+		Map<String, KVMessage> puts = null;
+		Map<String, KVMessage> gets = null;
+		Exception ex = null;
+
+		try {
+			puts = kvClient.mput(pairs);
+			gets = kvClient.mget(new ArrayList<String>(pairs.keySet()));
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			StatusType put = puts.get(pair.getKey()).getStatus();
+			assertTrue(put == StatusType.PUT_SUCCESS || put == StatusType.PUT_UPDATE);
+			KVMessage response = gets.get(pair.getKey());
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals(pair.getValue(), response.getValue());
+		}
+	}
 
 }
@@ -0,0 +1,542 @@
+package testing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+
+import app_kvServer.Metrics;
+import client.KVStore;
+import ecs.ECS;
+import ecs.ECSNode;
+import logger.LogSetup;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * YCSB style load generator for a running or locally launched cluster.
+ * <p>
+ * Loads the records, then runs one of the YCSB core workloads from several
+ * client threads, each with a KVStore of its own that routes requests to
+ * the responsible servers: A is 50% reads and 50% updates, B 95% reads and
+ * 5% updates, C reads only, D 95% reads of recent records and 5% inserts,
+ * E 95% scans and 5% inserts, F 50% reads and 50% read-modify-writes. The
+ * keys follow a uniform, zipfian or latest distribution, zipfian unless
+ * the workload is D. Keys are hash partitioned, so a scan reads up to
+ * MAX_SCAN_LENGTH consecutive records with one MGET instead.
+ * <p>
+ * Without a target rate every thread sends its next request as soon as the
+ * last one returned (closed loop). With -rate the requests are scheduled at
+ * fixed intervals, and latency counts from the scheduled time instead of
+ * the time the request was sent, so that a stall shows in every request
+ * that should have been sent during it, not only in the one it held up.
+ * <p>
+ * Each interval, the throughput and latency percentiles of each operation
+ * go to a CSV file, followed by a total row per operation at the end.
+ * <p>
+ * Usage: LoadGenerator [-host 127.0.0.1] [-port 50000] [-launch servers]
+ * [-cachesize 1000] [-strategy LRU] [-workload A] [-distribution zipfian]
+ * [-records 10000] [-operations 100000] [-duration seconds]
+ * [-valuesize 100] [-threads 8] [-rate ops/s] [-interval ms]
+ * [-csv logs/loadgen.csv] [-noload]
+ * <p>
+ * -launch starts that many servers through the ECS and ecs.config first,
+ * and shuts them down again at the end.
+ */
+public class LoadGenerator {
+
+	private static final int MAX_SCAN_LENGTH = 100;
+	private static final int LOAD_BATCH = 100;
+	private static final double ZIPFIAN_CONSTANT = 0.99;
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final String CSV_HEADER =
+			"interval,time_s,operation,count,throughput_ops_s,errors,mean_us,p50_us,p99_us,p999_us,max_us";
+
+	enum Operation {
+		READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+	}
+
+	enum Distribution {
+		UNIFORM, ZIPFIAN, LATEST
+	}
+
+	private String host = "127.0.0.1";
+	private int port = 50000;
+	private int launch = 0;
+	private int cacheSize = 1000;
+	private String strategy = "LRU";
+	private char workload = 'A';
+	private Distribution distribution = null;
+	private long records = 10000;
+	private long operations = 100000;
+	private long durationMillis = 0;
+	private int valueSize = 100;
+	private int threads = 8;
+	private double rate = 0;
+	private long intervalMillis = 1000;
+	private String csv = "logs/loadgen.csv";
+	private boolean load = true;
+
+	/* the share of each operation, in the order of Operation */
+	private double[] mix;
+	/* the next record to insert */
+	private final AtomicLong inserted = new AtomicLong();
+	/* the records below are stored, inserts may finish out of order */
+	private volatile long acknowledged;
+	private final TreeSet<Long> pendingAcknowledgements = new TreeSet<Long>();
+	private final AtomicLong remaining = new AtomicLong();
+	private long deadline;
+	private volatile Interval interval = new Interval();
+	private final Interval total = new Interval();
+
+	public static void main(String[] args) throws Exception {
+		new LogSetup("logs/testing/loadgen.log", Level.ERROR);
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (RuntimeException e) {
+			System.out.println("Error! " + e.getMessage());
+			System.out.println("Usage: LoadGenerator [-host 127.0.0.1] [-port 50000] [-launch servers] "
+					+ "[-cachesize 1000] [-strategy LRU] [-workload A-F] [-distribution uniform|zipfian|latest] "
+					+ "[-records 10000] [-operations 100000] [-duration seconds] [-valuesize 100] [-threads 8] "
+					+ "[-rate ops/s] [-interval ms] [-csv file] [-noload]");
+			System.exit(1);
+		}
+
+		ECS ecs = null;
+		try {
+			if (generator.launch > 0) {
+				ecs = new ECS(generator.launch, generator.cacheSize, generator.strategy);
+				ecs.start();
+				ECSNode node = ecs.getNodes().get(0);
+				generator.host = node.getNodeHost();
+				generator.port = node.getNodePort();
+			}
+			generator.run();
+		} finally {
+			if (ecs != null) {
+				ecs.shutdownAll();
+			}
+		}
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i].toLowerCase();
+			if (option.equals("-noload")) {
+				load = false;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value of " + args[i]);
+			}
+			String value = args[++i];
+			if (option.equals("-host")) {
+				host = value;
+			} else if (option.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if (option.equals("-launch")) {
+				launch = Integer.parseInt(value);
+			} else if (option.equals("-cachesize")) {
+				cacheSize = Integer.parseInt(value);
+			} else if (option.equals("-strategy")) {
+				strategy = value;
+			} else if (option.equals("-workload")) {
+				workload = Character.toUpperCase(value.charAt(0));
+			} else if (option.equals("-distribution")) {
+				distribution = Distribution.valueOf(value.toUpperCase());
+			} else if (option.equals("-records")) {
+				records = Long.parseLong(value);
+			} else if (option.equals("-operations")) {
+				operations = Long.parseLong(value);
+			} else if (option.equals("-duration")) {
+				durationMillis = Long.parseLong(value) * 1000;
+			} else if (option.equals("-valuesize")) {
+				valueSize = Integer.parseInt(value);
+			} else if (option.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (option.equals("-rate")) {
+				rate = Double.parseDouble(value);
+			} else if (option.equals("-interval")) {
+				intervalMillis = Long.parseLong(value);
+			} else if (option.equals("-csv")) {
+				csv = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+			}
+		}
+		mix = mix(workload);
+		if (distribution == null) {
+			distribution = workload == 'D' ? Distribution.LATEST : Distribution.ZIPFIAN;
+		}
+		if (records < 1 || threads < 1 || valueSize < 1 || intervalMillis < 1) {
+			throw new IllegalArgumentException("Records, threads, value size and interval must be positive");
+		}
+	}
+
+	private static double[] mix(char workload) {
+		switch (workload) {
+		case 'A':
+			return new double[] {0.5, 0.5, 0, 0, 0};
+		case 'B':
+			return new double[] {0.95, 0.05, 0, 0, 0};
+		case 'C':
+			return new double[] {1, 0, 0, 0, 0};
+		case 'D':
+			return new double[] {0.95, 0, 0.05, 0, 0};
+		case 'E':
+			return new double[] {0, 0, 0.05, 0.95, 0};
+		case 'F':
+			return new double[] {0.5, 0, 0, 0, 0.5};
+		default:
+			throw new IllegalArgumentException("Unknown workload " + workload + ", expected A to F");
+		}
+	}
+
+	private void run() throws Exception {
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < threads; i++) {
+			clients.add(new Client(i));
+		}
+		if (load) {
+			load(clients);
+		}
+		inserted.set(records);
+		acknowledged = records;
+
+		System.out.println("Running workload " + workload + " with " + distribution.toString().toLowerCase()
+				+ " keys, " + threads + " threads, "
+				+ (rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop"));
+		remaining.set(durationMillis > 0 ? Long.MAX_VALUE : operations);
+		deadline = durationMillis > 0 ? System.currentTimeMillis() + durationMillis : Long.MAX_VALUE;
+		CountDownLatch done = new CountDownLatch(threads);
+		long start = System.nanoTime();
+		for (Client client : clients) {
+			client.start(start, done);
+		}
+
+		File file = new File(csv);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println(CSV_HEADER);
+			long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+			long intervalStart = start;
+			boolean finished = false;
+			for (int number = 1; !finished; number++) {
+				long wait = intervalStart + intervalNanos - System.nanoTime();
+				finished = done.await(Math.max(0, wait), TimeUnit.NANOSECONDS);
+				Interval finishedInterval = interval;
+				interval = new Interval();
+				long now = System.nanoTime();
+				report(out, Integer.toString(number), finishedInterval, (now - start) / 1e9, (now - intervalStart) / 1e9);
+				intervalStart = now;
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			report(out, "total", total, elapsed, elapsed);
+		}
+		for (Client client : clients) {
+			client.store.disconnect();
+		}
+		System.out.println("Wrote " + csv);
+	}
+
+	/* every client stores its share of the records in batches */
+	private void load(List<Client> clients) throws Exception {
+		final CountDownLatch loaded = new CountDownLatch(clients.size());
+		final LongAdder failed = new LongAdder();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients.size(); i++) {
+			final Client client = clients.get(i);
+			final long first = records * i / clients.size();
+			final long last = records * (i + 1) / clients.size();
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						Map<String, String> batch = new LinkedHashMap<String, String>();
+						for (long record = first; record < last; record++) {
+							batch.put(key(record), client.value);
+							if (batch.size() == LOAD_BATCH || record == last - 1) {
+								for (KVMessage reply : client.store.mput(batch).values()) {
+									if (!isSuccess(reply)) {
+										failed.increment();
+									}
+								}
+								batch.clear();
+							}
+						}
+					} catch (Exception e) {
+						System.out.println("Error! Loading failed: " + e);
+						failed.increment();
+					} finally {
+						loaded.countDown();
+					}
+				}
+			}, "load-" + i).start();
+		}
+		loaded.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "Loaded %d records in %.1f s, %.0f records/s, %d failed",
+				records, seconds, records / seconds, failed.sum()));
+	}
+
+	private void report(PrintWriter out, String number, Interval finished, double time, double length) {
+		StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "[%s] %.1f s", number, time));
+		for (Operation operation : Operation.values()) {
+			Metrics.Histogram latencies = finished.latencies[operation.ordinal()];
+			long count = latencies.count();
+			if (count == 0) {
+				continue;
+			}
+			long errors = finished.errors[operation.ordinal()].sum();
+			double p99 = latencies.percentile(0.99) / 1000.0;
+			out.println(String.format(Locale.ROOT, "%s,%.3f,%s,%d,%.1f,%d,%.1f,%.1f,%.1f,%.1f,%.1f",
+					number, time, operation, count, count / length, errors,
+					latencies.sum() / 1000.0 / count, latencies.percentile(0.5) / 1000.0, p99,
+					latencies.percentile(0.999) / 1000.0, latencies.max() / 1000.0));
+			line.append(String.format(Locale.ROOT, "  %s %.0f ops/s p99 %.0f us", operation, count / length, p99));
+			if (errors > 0) {
+				line.append(" errors ").append(errors);
+			}
+		}
+		out.flush();
+		System.out.println(line);
+	}
+
+	/* marks an insert done, the records below the lowest one still running can be read */
+	private synchronized void acknowledge(long record) {
+		if (record != acknowledged) {
+			pendingAcknowledgements.add(record);
+			return;
+		}
+		long next = record + 1;
+		while (pendingAcknowledgements.remove(next)) {
+			next++;
+		}
+		acknowledged = next;
+	}
+
+	private boolean claim() {
+		return remaining.getAndDecrement() > 0 && System.currentTimeMillis() < deadline;
+	}
+
+	/* the record number scrambled, so neighbouring records land on different servers */
+	private static String key(long record) {
+		return "user" + Long.toHexString(fnv(record));
+	}
+
+	/* FNV-1a over the 8 bytes of the value, 56 bits so that keys pass the length check of KVStore */
+	private static long fnv(long value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001B3L;
+			value >>>= 8;
+		}
+		return hash >>> 8;
+	}
+
+	private static boolean isSuccess(KVMessage reply) {
+		StatusType status = reply.getStatus();
+		return status == StatusType.GET_SUCCESS || status == StatusType.PUT_SUCCESS
+				|| status == StatusType.PUT_UPDATE;
+	}
+
+	/* the latencies of one interval, or of the whole run */
+	private static class Interval {
+		final Metrics.Histogram[] latencies = new Metrics.Histogram[Operation.values().length];
+		final LongAdder[] errors = new LongAdder[Operation.values().length];
+
+		Interval() {
+			for (Operation operation : Operation.values()) {
+				latencies[operation.ordinal()] = new Metrics.Histogram(operation.toString());
+				errors[operation.ordinal()] = new LongAdder();
+			}
+		}
+
+		void record(Operation operation, long nanos, boolean success) {
+			latencies[operation.ordinal()].record(nanos);
+			if (!success) {
+				errors[operation.ordinal()].increment();
+			}
+		}
+	}
+
+	/* one client thread with its own connection */
+	private class Client implements Runnable {
+		final int id;
+		final KVStore store;
+		final String value;
+		final Random random = new Random();
+		final KeyChooser keys;
+		long startNanos;
+		CountDownLatch done;
+
+		Client(int id) throws Exception {
+			this.id = id;
+			this.store = new KVStore(host, port);
+			store.connect();
+			char[] chars = new char[valueSize];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+			}
+			this.value = new String(chars);
+			this.keys = new KeyChooser(random);
+		}
+
+		void start(long startNanos, CountDownLatch done) {
+			this.startNanos = startNanos;
+			this.done = done;
+			new Thread(this, "client-" + id).start();
+		}
+
+		public void run() {
+			try {
+				// open loop: each client its share of the rate, spread over the period
+				long period = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+				long intended = startNanos + period * id / threads;
+				while (claim()) {
+					if (period > 0) {
+						intended += period;
+						long wait = intended - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					} else {
+						intended = System.nanoTime();
+					}
+					Operation operation = choose();
+					boolean success;
+					try {
+						success = execute(operation);
+					} catch (Exception e) {
+						success = false;
+					}
+					long latency = System.nanoTime() - intended;
+					interval.record(operation, latency, success);
+					total.record(operation, latency, success);
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private Operation choose() {
+			double draw = random.nextDouble();
+			for (Operation operation : Operation.values()) {
+				draw -= mix[operation.ordinal()];
+				if (draw < 0) {
+					return operation;
+				}
+			}
+			return Operation.READ;
+		}
+
+		private boolean execute(Operation operation) throws Exception {
+			switch (operation) {
+			case READ:
+				return isSuccess(store.getAsync(key(keys.next())).get());
+			case UPDATE:
+				return isSuccess(store.putAsync(key(keys.next()), value).get());
+			case INSERT:
+				long record = inserted.getAndIncrement();
+				try {
+					return isSuccess(store.putAsync(key(record), value).get());
+				} finally {
+					acknowledge(record);
+				}
+			case SCAN:
+				long first = keys.next();
+				long last = Math.min(first + 1 + random.nextInt(MAX_SCAN_LENGTH), acknowledged);
+				List<String> scanned = new ArrayList<String>();
+				for (long r = first; r < last; r++) {
+					scanned.add(key(r));
+				}
+				for (KVMessage reply : store.mget(scanned).values()) {
+					if (!isSuccess(reply)) {
+						return false;
+					}
+				}
+				return true;
+			case READ_MODIFY_WRITE:
+				String modified = key(keys.next());
+				return isSuccess(store.getAsync(modified).get()) && isSuccess(store.putAsync(modified, value).get());
+			default:
+				throw new IllegalStateException("Unknown operation " + operation);
+			}
+		}
+	}
+
+	/*
+	 * Picks records below the acknowledged ones. The zipfian generator is
+	 * the one of YCSB after Gray et al., "Quickly generating billion-record
+	 * synthetic databases", with its zeta sum extended as records are
+	 * inserted.
+	 */
+	private class KeyChooser {
+		final Random random;
+		final double zeta2 = zeta(0, 2, 0);
+		final double alpha = 1 / (1 - ZIPFIAN_CONSTANT);
+		long items = 0;
+		double zetan = 0;
+		double eta;
+
+		KeyChooser(Random random) {
+			this.random = random;
+		}
+
+		long next() {
+			long n = acknowledged;
+			switch (distribution) {
+			case UNIFORM:
+				return (long) (random.nextDouble() * n);
+			case LATEST:
+				return n - 1 - zipfian(n);
+			default:
+				// the popular records scattered over the key space
+				return Math.floorMod(fnv(zipfian(n)), n);
+			}
+		}
+
+		/* 0 is the most popular of n items */
+		private long zipfian(long n) {
+			if (n != items) {
+				zetan = n > items ? zeta(items, n, zetan) : zeta(0, n, 0);
+				items = n;
+				eta = (1 - Math.pow(2.0 / n, 1 - ZIPFIAN_CONSTANT)) / (1 - zeta2 / zetan);
+			}
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < 1 + Math.pow(0.5, ZIPFIAN_CONSTANT)) {
+				return Math.min(1, n - 1);
+			}
+			return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+
+		/* the sum of 1 / i^theta for i from 1 to n, given the one up to from */
+		private double zeta(long from, long n, double sum) {
+			for (long i = from + 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, ZIPFIAN_CONSTANT);
+			}
+			return sum;
+		}
+	}
+}
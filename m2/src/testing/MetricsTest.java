@@ -0,0 +1,103 @@
+package testing;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import app_kvServer.Metrics;
+import app_kvServer.RequestTrace;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase {
+
+	@Test
+	public void testPercentilesWithinBucketPrecision() {
+		Metrics.Histogram histogram = new Metrics.Histogram("test");
+		// 1 to 100000 microseconds, each once
+		for (long micros = 1; micros <= 100000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		assertEquals(100000, histogram.count());
+		assertClose(50000000, histogram.percentile(0.5));
+		assertClose(99000000, histogram.percentile(0.99));
+		assertClose(99900000, histogram.percentile(0.999));
+		assertEquals(100000000, histogram.max());
+		assertEquals(0, new Metrics.Histogram("empty").percentile(0.99));
+	}
+
+	@Test
+	public void testSmallAndLargeValues() {
+		Metrics.Histogram histogram = new Metrics.Histogram("test");
+		histogram.record(3);
+		assertEquals(3, histogram.percentile(1));
+		histogram.record(Long.MAX_VALUE);
+		assertClose(Long.MAX_VALUE, histogram.percentile(1));
+		histogram.record(-1);
+		assertEquals(0, histogram.percentile(0.01));
+	}
+
+	@Test
+	public void testSnapshotAndJmx() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.get.record(2000);
+		metrics.cacheHits.increment();
+		metrics.cacheMisses.add(3);
+		Map<String, Number> snapshot = metrics.snapshot();
+		assertEquals(1L, snapshot.get("get_count"));
+		assertEquals(2.0, snapshot.get("get_p99_us").doubleValue(), 0.25);
+		assertEquals(0.25, snapshot.get("cache_hit_ratio").doubleValue(), 0.001);
+		assertTrue(metrics.format().contains("get_count=1 "));
+
+		metrics.open(1);
+		try {
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("app_kvServer:type=Metrics,port=1");
+			assertEquals(3L, beans.getAttribute(name, "cache_misses"));
+		} finally {
+			metrics.close();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+				new ObjectName("app_kvServer:type=Metrics,port=1")));
+	}
+
+	@Test
+	public void testTraceKeepsLastRequests() throws Exception {
+		RequestTrace trace = new RequestTrace(3);
+		assertEquals(4, trace.size());
+		int address = RequestTrace.addressOf(new InetSocketAddress("127.0.0.1", 5000));
+		for (int i = 0; i < 6; i++) {
+			trace.record(address, 5000, BinaryProtocol.PUT, StatusType.PUT_SUCCESS, Bytes.of("key" + i), System.nanoTime());
+		}
+		trace.record(0, 0, BinaryProtocol.GET, null, Bytes.of("a-key-longer-than-a-record-holds"), System.nanoTime());
+
+		File file = File.createTempFile("trace", ".bin");
+		try {
+			assertEquals(4, trace.dump(file));
+			List<String> lines = RequestTrace.read(file);
+			assertEquals(4, lines.size());
+			assertTrue(lines.get(0), lines.get(0).startsWith("4 "));
+			assertTrue(lines.get(0), lines.get(0).contains(" 127.0.0.1:5000 PUT PUT_SUCCESS "));
+			assertTrue(lines.get(0), lines.get(0).endsWith("us key3"));
+			assertTrue(lines.get(3), lines.get(3).contains(" -:0 GET - "));
+			assertTrue(lines.get(3), lines.get(3).endsWith("us a-key-longer-than-a-record-hold..."));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/* a log-linear bucket is an eighth of its power of two wide */
+	private static void assertClose(long expected, long actual) {
+		assertTrue(actual + " not close to " + expected, Math.abs(actual - expected) <= expected / 8);
+	}
+}
@@ -0,0 +1,125 @@
+package testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import app_kvServer.RangeTransfer;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+
+import junit.framework.TestCase;
+
+public class RangeTransferTest extends TestCase {
+
+	@Test
+	public void testEmptyChunk() throws Exception {
+		Bytes chunk = RangeTransfer.encode(Collections.<BinaryProtocol.Frame>emptyList());
+		assertTrue(RangeTransfer.decode(chunk).isEmpty());
+	}
+
+	@Test
+	public void testRoundTripWithDelete() throws Exception {
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "a", "1"));
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "deleted", null));
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "empty", ""));
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "unicode", "\u00e4\u00f6\u00fc"));
+
+		List<BinaryProtocol.Frame> decoded = RangeTransfer.decode(RangeTransfer.encode(entries));
+		assertEquals(4, decoded.size());
+		assertEquals("a", decoded.get(0).getKey());
+		assertEquals("1", decoded.get(0).getValue());
+		assertEquals("deleted", decoded.get(1).getKey());
+		assertNull(decoded.get(1).getValue());
+		assertEquals("", decoded.get(2).getValue());
+		assertEquals("\u00e4\u00f6\u00fc", decoded.get(3).getValue());
+		for (BinaryProtocol.Frame entry : decoded) {
+			assertEquals(BinaryProtocol.PUT, entry.getOpcode());
+		}
+	}
+
+	@Test
+	public void testChunkLargerThanBuffer() throws Exception {
+		// random values do not compress, so the output outgrows a chunk
+		Random random = new Random(42);
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		for (int i = 0; i < 80; i++) {
+			byte[] value = new byte[4096];
+			for (int j = 0; j < value.length; j++) {
+				value[j] = (byte) ('!' + random.nextInt(94));
+			}
+			entries.add(new BinaryProtocol.Frame(0, BinaryProtocol.PUT, null, Bytes.of("key" + i), Bytes.wrap(value)));
+		}
+		Bytes chunk = RangeTransfer.encode(entries);
+		assertTrue(chunk.length() > 256 * 1024);
+
+		List<BinaryProtocol.Frame> decoded = RangeTransfer.decode(chunk);
+		assertEquals(entries.size(), decoded.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals("key" + i, decoded.get(i).getKey());
+			assertEquals(entries.get(i).getValue(), decoded.get(i).getValue());
+		}
+	}
+
+	@Test
+	public void testTruncatedChunk() throws Exception {
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		for (int i = 0; i < 100; i++) {
+			entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "key" + i, "value" + i));
+		}
+		byte[] chunk = RangeTransfer.encode(entries).toByteArray();
+
+		assertCorrupt(Arrays.copyOf(chunk, 3));
+		assertCorrupt(Arrays.copyOf(chunk, chunk.length / 2));
+	}
+
+	@Test
+	public void testCorruptChunk() throws Exception {
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		entries.add(new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "key", "value"));
+		byte[] chunk = RangeTransfer.encode(entries).toByteArray();
+
+		byte[] negative = chunk.clone();
+		ByteBuffer.wrap(negative).putInt(0, -1);
+		assertCorrupt(negative);
+
+		byte[] garbage = chunk.clone();
+		for (int i = 4; i < garbage.length; i++) {
+			garbage[i] = (byte) 0xFF;
+		}
+		assertCorrupt(garbage);
+	}
+
+	@Test
+	public void testTruncatedEntry() throws Exception {
+		// a well formed Deflate stream holding a frame without its last byte
+		byte[] entry = new BinaryProtocol.Frame(BinaryProtocol.PUT, null, "key", "value").encode();
+		byte[] raw = Arrays.copyOf(entry, entry.length - 1);
+		Deflater deflater = new Deflater();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] chunk = new byte[256];
+		ByteBuffer.wrap(chunk).putInt(raw.length);
+		int length = 4 + deflater.deflate(chunk, 4, chunk.length - 4);
+		deflater.end();
+
+		assertCorrupt(Arrays.copyOf(chunk, length));
+	}
+
+	private static void assertCorrupt(byte[] chunk) {
+		try {
+			RangeTransfer.decode(Bytes.wrap(chunk));
+			fail("Decoded a corrupt chunk of " + chunk.length + " bytes");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
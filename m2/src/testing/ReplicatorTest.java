@@ -0,0 +1,183 @@
+package testing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import app_kvServer.RangeTransfer;
+import app_kvServer.Replicator;
+import app_kvServer.persistentDb;
+import shared.HashRing;
+import shared.KeyHash;
+import shared.messages.BinaryProtocol;
+import shared.messages.Bytes;
+import shared.messages.KVMessage.StatusType;
+
+import junit.framework.TestCase;
+
+public class ReplicatorTest extends TestCase {
+
+	private static final String SELF = "127.0.0.1:1";
+
+	private File dir;
+
+	public void setUp() {
+		dir = new File("logs/testing/replicator-" + System.nanoTime());
+		persistentDb.closeDb();
+		persistentDb.initializeDb(new File(dir, "db").getPath());
+	}
+
+	public void tearDown() {
+		persistentDb.closeDb();
+		deleteRecursively(dir);
+	}
+
+	@Test
+	public void testCatchUpAfterOverflow() throws Exception {
+		FakeReplica replica = new FakeReplica();
+		replica.start();
+		String other = "127.0.0.1:" + replica.port();
+
+		String self = KeyHash.md5(SELF);
+		String peer = KeyHash.md5(other);
+		Map<String, String[]> metaData = new HashMap<String, String[]>();
+		metaData.put(SELF, new String[] {peer, self});
+		metaData.put(other, new String[] {self, peer});
+
+		// the first scan sends a chunk and waits for it to be acknowledged
+		int seed = 0;
+		while (!KeyHash.inRange(KeyHash.md5("seed" + seed), peer, self)) {
+			seed++;
+		}
+		persistentDb.add("seed" + seed, "0");
+
+		Replicator replicator = new Replicator(SELF, 1024);
+		try {
+			replicator.update(HashRing.fromRanges(metaData), metaData, 2);
+			assertTrue(replica.firstChunk.await(5, TimeUnit.SECONDS));
+
+			// written while the scan is held up, far more than the log keeps
+			for (int i = 0; i < 200; i++) {
+				persistentDb.add("key" + i, "value" + i);
+				replicator.append("key" + i, "value" + i);
+			}
+			replica.release.countDown();
+
+			// every key of the replicated range arrives, those dropped from the log by a scan
+			Map<String, String> expected = new HashMap<String, String>();
+			for (int i = 0; i < 200; i++) {
+				if (KeyHash.inRange(KeyHash.md5("key" + i), peer, self)) {
+					expected.put("key" + i, "value" + i);
+				}
+			}
+			assertFalse(expected.isEmpty());
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!replica.holds(expected) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			for (Map.Entry<String, String> pair : expected.entrySet()) {
+				assertEquals(pair.getKey(), pair.getValue(), replica.stored.get(pair.getKey()));
+			}
+		} finally {
+			replicator.close();
+			replica.close();
+		}
+	}
+
+	/* takes IMPORT chunks like a server, the first one only once released */
+	private static class FakeReplica extends Thread {
+		final Map<String, String> stored = new ConcurrentHashMap<String, String>();
+		final CountDownLatch firstChunk = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final ServerSocket server;
+
+		FakeReplica() throws IOException {
+			server = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int port() {
+			return server.getLocalPort();
+		}
+
+		boolean holds(Map<String, String> pairs) {
+			for (Map.Entry<String, String> pair : pairs.entrySet()) {
+				if (!pair.getValue().equals(stored.get(pair.getKey()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					serve(server.accept());
+				}
+			} catch (IOException e) {
+				// closed
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+
+		private void serve(Socket socket) throws IOException, InterruptedException {
+			try {
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				StringBuilder hello = new StringBuilder();
+				for (int read = in.read(); read != '\n' && read != -1; read = in.read()) {
+					hello.append((char) read);
+				}
+				int version = BinaryProtocol.parseHello(hello.toString(), BinaryProtocol.HELLO);
+				// text messages end in a line feed and a carriage return
+				out.write((BinaryProtocol.helloReply(version) + "\n\r").getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+
+				for (BinaryProtocol.Frame chunk = BinaryProtocol.read(in, version); chunk != null;
+						chunk = BinaryProtocol.read(in, version)) {
+					firstChunk.countDown();
+					release.await();
+					for (BinaryProtocol.Frame entry : RangeTransfer.decode(chunk.getValueBytes())) {
+						if (entry.getValue() == null) {
+							stored.remove(entry.getKey());
+						} else {
+							stored.put(entry.getKey(), entry.getValue());
+						}
+					}
+					new BinaryProtocol.Frame(chunk.getRequestId(), BinaryProtocol.IMPORT, StatusType.PUT_SUCCESS,
+							Bytes.EMPTY, null).writeTo(out, version);
+					out.flush();
+				}
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
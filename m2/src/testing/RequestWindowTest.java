@@ -0,0 +1,142 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import app_kvServer.RequestWindow;
+import shared.messages.BinaryProtocol;
+
+import junit.framework.TestCase;
+
+public class RequestWindowTest extends TestCase {
+
+	@Test
+	public void testSerialByDefault() {
+		RequestWindow window = new RequestWindow();
+		BinaryProtocol.Frame a = get("a");
+		BinaryProtocol.Frame b = get("b");
+		window.add(a);
+		window.add(b);
+
+		assertTrue(window.claim());
+		// a parallelism of one allows a single worker
+		assertFalse(window.claim());
+		assertSame(a, window.next());
+		window.done(a);
+		assertSame(b, window.next());
+		window.done(b);
+		assertNull(window.next());
+		assertEquals(0, window.size());
+
+		// the slot was given back with the null
+		window.add(a);
+		assertTrue(window.claim());
+	}
+
+	@Test
+	public void testSameKeyKeepsOrder() {
+		RequestWindow window = new RequestWindow();
+		window.setParallelism(4);
+		BinaryProtocol.Frame first = get("k");
+		BinaryProtocol.Frame second = put("k", "v");
+		BinaryProtocol.Frame other = get("x");
+		window.add(first);
+		window.add(second);
+		window.add(other);
+
+		assertTrue(window.claim());
+		assertSame(first, window.next());
+		// the second request for k waits for the first, another key overtakes it
+		assertTrue(window.claim());
+		assertSame(other, window.next());
+		assertFalse(window.claim());
+		assertNull(window.next());
+
+		window.done(first);
+		assertTrue(window.claim());
+		assertSame(second, window.next());
+		window.done(second);
+		window.done(other);
+		assertEquals(0, window.size());
+	}
+
+	@Test
+	public void testBatchHoldsBackItsKeys() {
+		RequestWindow window = new RequestWindow();
+		window.setParallelism(4);
+		List<BinaryProtocol.Frame> entries = new ArrayList<BinaryProtocol.Frame>();
+		entries.add(put("a", "1"));
+		entries.add(put("b", "2"));
+		BinaryProtocol.Frame batch = new BinaryProtocol.Frame(1, BinaryProtocol.MPUT, null, entries);
+		BinaryProtocol.Frame later = get("b");
+		BinaryProtocol.Frame unrelated = get("c");
+		window.add(batch);
+		window.add(later);
+		window.add(unrelated);
+
+		assertTrue(window.claim());
+		assertSame(batch, window.next());
+		assertSame(unrelated, window.next());
+		assertNull(window.next());
+		window.done(batch);
+		assertTrue(window.claim());
+		assertSame(later, window.next());
+	}
+
+	@Test
+	public void testClaimAndRelease() {
+		RequestWindow window = new RequestWindow();
+		window.setParallelism(2);
+		assertFalse("nothing to run", window.claim());
+		window.add(get("a"));
+		window.add(get("b"));
+		window.add(get("c"));
+
+		assertTrue(window.claim());
+		assertTrue(window.claim());
+		assertFalse(window.claim());
+		// a claimed slot that was never used, e.g. a rejected execution
+		window.release();
+		assertTrue(window.claim());
+		assertEquals(3, window.size());
+	}
+
+	@Test
+	public void testAwaitBelow() throws Exception {
+		final RequestWindow window = new RequestWindow();
+		final BinaryProtocol.Frame request = get("a");
+		window.add(request);
+		window.add(get("b"));
+		assertTrue(window.claim());
+		assertSame(request, window.next());
+
+		final CountDownLatch below = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					window.awaitBelow(2);
+					below.countDown();
+				} catch (InterruptedException e) {
+					// the test fails on the latch
+				}
+			}
+		};
+		waiter.start();
+		assertFalse(below.await(100, TimeUnit.MILLISECONDS));
+		window.done(request);
+		assertTrue(below.await(5, TimeUnit.SECONDS));
+		waiter.join();
+	}
+
+	private static BinaryProtocol.Frame get(String key) {
+		return new BinaryProtocol.Frame(BinaryProtocol.GET, null, key, null);
+	}
+
+	private static BinaryProtocol.Frame put(String key, String value) {
+		return new BinaryProtocol.Frame(BinaryProtocol.PUT, null, key, value);
+	}
+}
@@ -0,0 +1,181 @@
+package testing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import client.KVStore;
+import shared.KeyHash;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import junit.framework.TestCase;
+
+public class RoutingTest extends TestCase {
+
+	@Test
+	public void testFollowsMisroute() throws Exception {
+		FakeServer owner = new FakeServer(new ServerSocket(0));
+		FakeServer other = new FakeServer(new ServerSocket(0));
+		owner.start();
+		other.start();
+		other.metadata = wholeRing(owner.port());
+		KVStore client = new KVStore("127.0.0.1", other.port());
+		try {
+			client.connect();
+			assertTrue(client.isRouting());
+
+			KVMessage reply = client.get("key");
+			assertEquals(StatusType.GET_SUCCESS, reply.getStatus());
+			assertEquals("value of key", reply.getValue());
+			assertEquals(1, other.gets.get());
+			assertEquals(1, owner.gets.get());
+
+			// the metadata of the misroute is kept, the next request goes straight to the owner
+			client.get("another");
+			assertEquals(1, other.gets.get());
+			assertEquals(2, owner.gets.get());
+		} finally {
+			client.disconnect();
+			owner.close();
+			other.close();
+		}
+	}
+
+	@Test
+	public void testBacksOffFromUnreachableServer() throws Exception {
+		ServerSocket unused = new ServerSocket(0);
+		int dead = unused.getLocalPort();
+		unused.close();
+		FakeServer other = new FakeServer(new ServerSocket(0));
+		other.start();
+		other.metadata = wholeRing(dead);
+		KVStore client = new KVStore("127.0.0.1", other.port());
+		try {
+			client.connect();
+			assertFails(client, "Connection refused");
+			// within the backoff the server is not even tried
+			assertFails(client, "unreachable");
+
+			// once the backoff is over the server is tried again
+			FakeServer back = new FakeServer(new ServerSocket(dead));
+			back.start();
+			try {
+				Thread.sleep(200);
+				assertEquals(StatusType.GET_SUCCESS, client.get("key").getStatus());
+				assertEquals(1, back.gets.get());
+			} finally {
+				back.close();
+			}
+		} finally {
+			client.disconnect();
+			other.close();
+		}
+	}
+
+	private static void assertFails(KVStore client, String reason) {
+		try {
+			client.get("key");
+			fail("Reached an unreachable server");
+		} catch (Exception e) {
+			assertTrue(e.getMessage(), e.getMessage() != null && e.getMessage().contains(reason));
+		}
+	}
+
+	/* metadata in which one server holds every key */
+	private static String wholeRing(int port) {
+		String server = "127.0.0.1:" + port;
+		String position = KeyHash.md5(server);
+		return server + " " + position + "-" + position;
+	}
+
+	/*
+	 * Answers binary GETs with a value, or, once given metadata, misroutes
+	 * them to wherever the metadata says.
+	 */
+	private static class FakeServer extends Thread {
+		final AtomicInteger gets = new AtomicInteger();
+		volatile String metadata;
+		private final ServerSocket server;
+
+		FakeServer(ServerSocket server) {
+			this.server = server;
+			setDaemon(true);
+		}
+
+		int port() {
+			return server.getLocalPort();
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					Thread connection = new Thread() {
+						public void run() {
+							serve(socket);
+						}
+					};
+					connection.setDaemon(true);
+					connection.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void serve(Socket socket) {
+			try {
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				StringBuilder hello = new StringBuilder();
+				for (int read = in.read(); read != '\n' && read != -1; read = in.read()) {
+					hello.append((char) read);
+				}
+				int version = BinaryProtocol.parseHello(hello.toString(), BinaryProtocol.HELLO);
+				// text messages end in a line feed and a carriage return
+				out.write((BinaryProtocol.helloReply(version) + "\n\r").getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+
+				for (BinaryProtocol.Frame request = BinaryProtocol.read(in, version); request != null;
+						request = BinaryProtocol.read(in, version)) {
+					BinaryProtocol.Frame reply;
+					if (request.getOpcode() == BinaryProtocol.METADATA) {
+						reply = new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(),
+								StatusType.GET_SUCCESS, "1", metadata);
+					} else if (metadata != null) {
+						gets.incrementAndGet();
+						reply = new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(),
+								StatusType.SERVER_NOT_RESPONSIBLE, request.getKey(), metadata);
+					} else {
+						gets.incrementAndGet();
+						reply = new BinaryProtocol.Frame(request.getRequestId(), request.getOpcode(),
+								StatusType.GET_SUCCESS, request.getKey(), "value of " + request.getKey());
+					}
+					reply.writeTo(out, version);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// the client went away
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+	}
+}
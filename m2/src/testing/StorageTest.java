@@ -0,0 +1,361 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import app_kvServer.IKVStorage;
+import app_kvServer.LSMStorage;
+import app_kvServer.LogStructuredStorage;
+import app_kvServer.WriteAheadLog;
+import shared.KeyHash;
+
+import junit.framework.TestCase;
+
+public class StorageTest extends TestCase {
+
+	private File dir;
+
+	public void setUp() {
+		dir = new File("logs/testing/storage-" + System.nanoTime());
+	}
+
+	public void tearDown() {
+		deleteRecursively(dir);
+	}
+
+	@Test
+	public void testPutGetDelete() throws Exception {
+		IKVStorage storage = new LogStructuredStorage(dir);
+
+		storage.put("a", "1");
+		storage.put("b", "two words ");
+		assertEquals("1", storage.get("a"));
+		assertEquals("two words ", storage.get("b"));
+		assertTrue(storage.contains("a"));
+
+		storage.put("a", "3");
+		assertEquals("3", storage.get("a"));
+
+		assertTrue(storage.delete("a"));
+		assertFalse(storage.delete("a"));
+		assertNull(storage.get("a"));
+		assertEquals(1, storage.size());
+
+		storage.close();
+	}
+
+	@Test
+	public void testIndexRebuiltOnReopen() throws Exception {
+		IKVStorage storage = new LogStructuredStorage(dir);
+		storage.put("a", "1");
+		storage.put("b", "2");
+		storage.put("a", "3");
+		storage.delete("b");
+		storage.close();
+
+		storage = new LogStructuredStorage(dir);
+		assertEquals("3", storage.get("a"));
+		assertNull(storage.get("b"));
+		assertEquals(1, storage.size());
+		storage.close();
+	}
+
+	@Test
+	public void testCompactionKeepsLiveRecords() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(dir, 256);
+
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 20; i++) {
+				storage.put("key" + i, "value" + round);
+			}
+		}
+		storage.delete("key0");
+		int before = dir.listFiles().length;
+
+		storage.compact();
+
+		assertTrue(dir.listFiles().length < before);
+		assertNull(storage.get("key0"));
+		for (int i = 1; i < 20; i++) {
+			assertEquals("value9", storage.get("key" + i));
+		}
+		storage.close();
+
+		storage = new LogStructuredStorage(dir, 256);
+		assertNull(storage.get("key0"));
+		assertEquals("value9", storage.get("key19"));
+		assertEquals(19, storage.size());
+		storage.close();
+	}
+
+	@Test
+	public void testReadsFromMappedSegments() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(dir, 128);
+		for (int i = 0; i < 100; i++) {
+			storage.put("key" + i, "value" + i);
+			/* the record just written is still in the active segment */
+			assertEquals("value" + i, storage.get("key" + i));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value" + i, storage.get("key" + i));
+		}
+		storage.compact();
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value" + i, storage.get("key" + i));
+		}
+		storage.close();
+	}
+
+	@Test
+	public void testTornWriteIsTruncated() throws Exception {
+		IKVStorage storage = new LogStructuredStorage(dir);
+		storage.put("a", "1");
+		storage.put("b", "2");
+		storage.close();
+
+		File segment = dir.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 1);
+		file.close();
+
+		storage = new LogStructuredStorage(dir);
+		assertEquals("1", storage.get("a"));
+		assertNull(storage.get("b"));
+		storage.put("b", "4");
+		assertEquals("4", storage.get("b"));
+		storage.close();
+	}
+
+	@Test
+	public void testLSMFlushAndCompaction() throws Exception {
+		LSMStorage storage = new LSMStorage(dir, 1024);
+
+		for (int round = 0; round < 8; round++) {
+			for (int i = 0; i < 50; i++) {
+				storage.put("key" + i, "value" + round);
+			}
+			storage.flush();
+		}
+		storage.delete("key0");
+		storage.flush();
+
+		assertTrue(storage.getTableCount() < 8);
+		assertNull(storage.get("key0"));
+		for (int i = 1; i < 50; i++) {
+			assertEquals("value7", storage.get("key" + i));
+		}
+		assertEquals(49, storage.size());
+		storage.close();
+	}
+
+	@Test
+	public void testLSMFlushesOnClose() throws Exception {
+		LSMStorage storage = new LSMStorage(dir);
+		storage.put("a", "1");
+		storage.flush();
+		storage.put("a", "2");
+		storage.put("b", "3");
+		storage.delete("b");
+		storage.close();
+
+		storage = new LSMStorage(dir);
+		assertEquals("2", storage.get("a"));
+		assertNull(storage.get("b"));
+		storage.close();
+	}
+
+	@Test
+	public void testLSMKeyFilterSavedAndRebuilt() throws Exception {
+		LSMStorage storage = new LSMStorage(dir);
+		for (int i = 0; i < 100; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		storage.close();
+		File filter = new File(dir, "keys.filter");
+		assertTrue(filter.isFile());
+
+		storage = new LSMStorage(dir);
+		assertFalse(filter.exists());
+		assertEquals("value42", storage.get("key42"));
+		assertNull(storage.get("missing"));
+		assertFalse(storage.contains("missing"));
+		storage.close();
+
+		// as after a crash, the filter is rebuilt from the tables
+		filter.delete();
+		storage = new LSMStorage(dir);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value" + i, storage.get("key" + i));
+		}
+		storage.close();
+	}
+
+	@Test
+	public void testLSMKeyFilterGrows() throws Exception {
+		LSMStorage storage = new LSMStorage(dir, 256 * 1024);
+		// more keys than the smallest filter holds, rebuilt while written
+		for (int i = 0; i < 100000; i++) {
+			storage.put("key" + i, "v");
+		}
+		storage.flush();
+		for (int i = 0; i < 100000; i++) {
+			assertTrue("key" + i, storage.contains("key" + i));
+		}
+		storage.close();
+	}
+
+	@Test
+	public void testScanReturnsHashRange() throws Exception {
+		IKVStorage[] engines = {new LogStructuredStorage(new File(dir, "log")),
+				new LSMStorage(new File(dir, "lsm"), 512)};
+
+		for (IKVStorage storage : engines) {
+			Map<String, String> expected = new HashMap<String, String>();
+			String lower = "40000000000000000000000000000000";
+			String upper = "c0000000000000000000000000000000";
+			for (int i = 0; i < 200; i++) {
+				storage.put("key" + i, "value" + i);
+				if (KeyHash.inRange(KeyHash.md5("key" + i), lower, upper)) {
+					expected.put("key" + i, "value" + i);
+				}
+			}
+
+			final Map<String, String> found = new HashMap<String, String>();
+			IKVStorage.Visitor collect = new IKVStorage.Visitor() {
+				public void visit(String key, String value) {
+					found.put(key, value);
+				}
+			};
+			storage.scan(lower, upper, collect);
+			assertEquals(expected, found);
+
+			found.clear();
+			storage.scan(upper, lower, collect);
+			assertEquals(200 - expected.size(), found.size());
+
+			storage.close();
+		}
+	}
+
+	@Test
+	public void testWriteAheadLogReplay() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.ALWAYS, 10);
+		wal.append("a", "1");
+		wal.append("b", "2");
+		wal.append("a", null);
+		wal.close();
+
+		/* a torn record at the tail is ignored */
+		File segment = dir.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.seek(file.length());
+		file.write(new byte[] {0, 0, 0, 1, 0, 0});
+		file.close();
+
+		final Map<String, String> replayed = new HashMap<String, String>();
+		final List<String> order = new ArrayList<String>();
+		wal = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.NEVER, 10);
+		wal.replay(new IKVStorage.Visitor() {
+			public void visit(String key, String value) {
+				replayed.put(key, value);
+				order.add(key);
+			}
+		});
+		assertEquals(3, order.size());
+		assertNull(replayed.get("a"));
+		assertEquals("2", replayed.get("b"));
+		wal.close();
+	}
+
+	@Test
+	public void testWriteAheadLogGroupCommit() throws Exception {
+		final WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.ALWAYS, 10);
+		Thread[] writers = new Thread[8];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 100; i++) {
+							wal.append("key" + id + "-" + i, "value" + i);
+						}
+					} catch (Exception e) {
+						fail(e.getMessage());
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		int sealed = wal.rotate();
+		wal.append("after", "rotate");
+		wal.close();
+
+		final int[] count = {0};
+		IKVStorage.Visitor counter = new IKVStorage.Visitor() {
+			public void visit(String key, String value) {
+				count[0]++;
+			}
+		};
+		WriteAheadLog reopened = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.NEVER, 10);
+		reopened.replay(counter);
+		assertEquals(801, count[0]);
+
+		reopened.deleteBefore(sealed);
+		count[0] = 0;
+		reopened.replay(counter);
+		assertEquals(1, count[0]);
+		reopened.close();
+	}
+
+	@Test
+	public void testWriteAheadLogAppendRacingClose() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			final WriteAheadLog wal = new WriteAheadLog(new File(dir, "round" + round),
+					WriteAheadLog.FsyncPolicy.NEVER, 10);
+			Thread[] writers = new Thread[4];
+			for (int t = 0; t < writers.length; t++) {
+				writers[t] = new Thread(new Runnable() {
+					public void run() {
+						// every append returns, written or failed because the log closed
+						for (int i = 0; ; i++) {
+							try {
+								wal.append("key" + i, "value");
+							} catch (IOException e) {
+								return;
+							}
+						}
+					}
+				});
+				writers[t].setDaemon(true);
+				writers[t].start();
+			}
+			Thread.sleep(5);
+			wal.close();
+			for (Thread writer : writers) {
+				writer.join(5000);
+				assertFalse("append still waiting after close", writer.isAlive());
+			}
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}